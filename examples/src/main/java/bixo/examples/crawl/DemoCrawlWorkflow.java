@@ -31,11 +31,12 @@ import org.apache.log4j.Logger;
 import bixo.config.FetcherPolicy;
 import bixo.config.ParserPolicy;
 import bixo.config.UserAgent;
-import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
 import bixo.fetcher.SimpleHttpFetcher;
+import bixo.hadoop.FetchedContentScheme;
+import bixo.hadoop.SerializationUtils;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FixedScoreGenerator;
 import bixo.operations.NormalizeUrlFunction;
@@ -143,6 +144,7 @@ public class DemoCrawlWorkflow {
         int numReducers = HadoopUtils.getNumReducers(conf);
         conf.setNumReduceTasks(numReducers);
         Properties props = HadoopUtils.getDefaultProperties(DemoCrawlWorkflow.class, options.isDebugLogging(), conf);
+        SerializationUtils.addSerializations(props);
         FileSystem fs = curWorkingDirPath.getFileSystem(conf);
 
         // Input : the crawldb
@@ -175,7 +177,7 @@ public class DemoCrawlWorkflow {
         Tap loopCrawldbSink = new Hfs(new SequenceFile(CrawlDbDatum.FIELDS), outCrawlDbPath.toString());
 
         Path contentDirPath = new Path(curWorkingDirPath, CrawlConfig.CONTENT_SUBDIR_NAME);
-        Tap contentSink = new Hfs(new SequenceFile(FetchedDatum.FIELDS), contentDirPath.toString());
+        Tap contentSink = new Hfs(new FetchedContentScheme(), contentDirPath.toString());
 
         Path parseDirPath = new Path(curWorkingDirPath, CrawlConfig.PARSE_SUBDIR_NAME);
         Tap parseSink = new Hfs(new SequenceFile(ParsedDatum.FIELDS), parseDirPath.toString());
@@ -19,6 +19,7 @@ package bixo.examples.crawl;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.Properties;
 
 import org.apache.hadoop.fs.FileSystem;
 import org.apache.hadoop.fs.Path;
@@ -27,11 +28,12 @@ import org.apache.log4j.Logger;
 
 import bixo.config.FetcherPolicy;
 import bixo.config.UserAgent;
-import bixo.datum.FetchedDatum;
 import bixo.datum.ParsedDatum;
 import bixo.datum.UrlDatum;
 import bixo.fetcher.BaseFetcher;
 import bixo.fetcher.SimpleHttpFetcher;
+import bixo.hadoop.FetchedContentScheme;
+import bixo.hadoop.SerializationUtils;
 import bixo.operations.BaseScoreGenerator;
 import bixo.operations.FixedScoreGenerator;
 import bixo.operations.NormalizeUrlFunction;
@@ -135,7 +137,7 @@ public class JDBCCrawlWorkflow {
         importPipe = new Every(importPipe, new BestUrlToFetchBuffer(), Fields.RESULTS);
 
         Path contentPath = new Path(curLoopDirPath, CrawlConfig.CRAWLDB_SUBDIR_NAME);
-        Tap contentSink = new Hfs(new SequenceFile(FetchedDatum.FIELDS), contentPath.toString());
+        Tap contentSink = new Hfs(new FetchedContentScheme(), contentPath.toString());
 
         Path parsePath = new Path(curLoopDirPath, CrawlConfig.PARSE_SUBDIR_NAME);
         Tap parseSink = new Hfs(new SequenceFile(ParsedDatum.FIELDS), parsePath.toString());
@@ -184,7 +186,9 @@ public class JDBCCrawlWorkflow {
         sinkMap.put(outputPipe.getName(), urlSink);
         
         // Finally we can run it.
-        FlowConnector flowConnector = new FlowConnector(HadoopUtils.getDefaultProperties(JDBCCrawlWorkflow.class, debug, conf));
+        Properties props = HadoopUtils.getDefaultProperties(JDBCCrawlWorkflow.class, debug, conf);
+        SerializationUtils.addSerializations(props);
+        FlowConnector flowConnector = new FlowConnector(props);
         return flowConnector.connect(inputSource, sinkMap, statusPipe, fetchPipe.getContentTailPipe(), parsePipe.getTailPipe(), outputPipe);
             
     }
@@ -32,11 +32,12 @@ import org.apache.hadoop.mapred.JobConf;
 import bixo.config.FetcherPolicy;
 import bixo.config.ParserPolicy;
 import bixo.config.UserAgent;
-import bixo.datum.FetchedDatum;
 import bixo.datum.StatusDatum;
 import bixo.datum.UrlDatum;
 import bixo.datum.UrlStatus;
 import bixo.fetcher.SimpleHttpFetcher;
+import bixo.hadoop.FetchedContentScheme;
+import bixo.hadoop.SerializationUtils;
 import bixo.operations.BaseScoreGenerator;
 import bixo.parser.SimpleParser;
 import bixo.pipes.FetchPipe;
@@ -59,7 +60,6 @@ import cascading.pipe.Every;
 import cascading.pipe.GroupBy;
 import cascading.pipe.Pipe;
 import cascading.pipe.cogroup.OuterJoin;
-import cascading.scheme.SequenceFile;
 import cascading.scheme.TextDelimited;
 import cascading.scheme.TextLine;
 import cascading.tap.Hfs;
@@ -217,6 +217,7 @@ public class DemoWebMiningWorkflow {
         conf.setNumReduceTasks(numReducers);
         conf.setInt("mapred.min.split.size", 64 * 1024 * 1024);
         Properties props = HadoopUtils.getDefaultProperties(DemoWebMiningWorkflow.class, false, conf);
+        SerializationUtils.addSerializations(props);
         FileSystem fs = crawlDbPath.getFileSystem(conf);
 
         // Input : the crawldb
@@ -283,7 +284,7 @@ public class DemoWebMiningWorkflow {
         Tap statusSink = new Hfs(new TextLine(), statusDirPath.toString());
         // Content
         Path contentDirPath = new Path(curLoopDirPath, CrawlConfig.CONTENT_SUBDIR_NAME);
-        Tap contentSink = new Hfs(new SequenceFile(FetchedDatum.FIELDS), contentDirPath.toString());
+        Tap contentSink = new Hfs(new FetchedContentScheme(), contentDirPath.toString());
         
         // PageResults
         Path resultsDirPath = new Path(curLoopDirPath, CrawlConfig.RESULTS_SUBDIR_NAME);
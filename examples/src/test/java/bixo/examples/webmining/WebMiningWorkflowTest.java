@@ -33,13 +33,12 @@ import org.mortbay.jetty.handler.AbstractHandler;
 import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.FetcherMode;
 import bixo.config.UserAgent;
-import bixo.datum.FetchedDatum;
+import bixo.hadoop.FetchedContentScheme;
 import bixo.utils.CrawlDirUtils;
 import cascading.flow.Flow;
-import cascading.scheme.SequenceFile;
+import cascading.scheme.Scheme;
 import cascading.scheme.TextLine;
 import cascading.tap.Hfs;
-import cascading.tuple.Fields;
 import cascading.tuple.TupleEntryIterator;
 
 import com.bixolabs.cascading.HadoopUtils;
@@ -131,13 +130,13 @@ public class WebMiningWorkflowTest {
         
             // validate
             Path statusPath = new Path(curLoopDirPath, CrawlConfig.STATUS_SUBDIR_NAME);
-            validateEntryCount(statusPath, null, 1, "status", true);
+            validateEntryCount(statusPath, new TextLine(), 1, "status");
     
             Path contentPath = new Path(curLoopDirPath, CrawlConfig.CONTENT_SUBDIR_NAME);
-            validateEntryCount(contentPath, FetchedDatum.FIELDS, 1, "content", false);
+            validateEntryCount(contentPath, new FetchedContentScheme(false), 1, "content");
 
             crawlDbPath = new Path(curLoopDirPath, CrawlConfig.CRAWLDB_SUBDIR_NAME);
-            validateEntryCount(crawlDbPath, null, 3, "crawldb", true);
+            validateEntryCount(crawlDbPath, new TextLine(), 3, "crawldb");
             
             // TODO validate the scores and status ?
             
@@ -148,16 +147,16 @@ public class WebMiningWorkflowTest {
             
             // validate
             statusPath = new Path(curLoopDirPath, CrawlConfig.STATUS_SUBDIR_NAME);
-            validateEntryCount(statusPath, null, 2, "status", true);
+            validateEntryCount(statusPath, new TextLine(), 2, "status");
     
             contentPath = new Path(curLoopDirPath, CrawlConfig.CONTENT_SUBDIR_NAME);
-            validateEntryCount(contentPath, FetchedDatum.FIELDS, 2, "content", false);
+            validateEntryCount(contentPath, new FetchedContentScheme(false), 2, "content");
 
             crawlDbPath = new Path(curLoopDirPath, CrawlConfig.CRAWLDB_SUBDIR_NAME);
-            validateEntryCount(crawlDbPath, null, 8, "crawldb", true);
+            validateEntryCount(crawlDbPath, new TextLine(), 8, "crawldb");
  
             Path resultsPath = new Path(curLoopDirPath, CrawlConfig.RESULTS_SUBDIR_NAME);
-            validateEntryCount(resultsPath, null, 3, "page results", true);
+            validateEntryCount(resultsPath, new TextLine(), 3, "page results");
 
             
         }  finally {
@@ -177,14 +176,8 @@ public class WebMiningWorkflowTest {
         return server;
     }
 
-    private void validateEntryCount(Path dataPath, Fields fields, int expected, String msgStr, boolean isTextLine) throws IOException, InterruptedException {
-        Hfs sourceTap;
-        
-        if (isTextLine) {
-            sourceTap = new Hfs(new TextLine(), dataPath.toString(), false);
-        } else {
-            sourceTap = new Hfs(new SequenceFile(fields), dataPath.toString(), false);
-        }
+    private void validateEntryCount(Path dataPath, Scheme scheme, int expected, String msgStr) throws IOException, InterruptedException {
+        Hfs sourceTap = new Hfs(scheme, dataPath.toString(), false);
         TupleEntryIterator tupleEntryIterator = sourceTap.openForRead(HadoopUtils.getDefaultJobConf());
         int numEntries = 0;
         while (tupleEntryIterator.hasNext()) {
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.config;
+
+import java.io.Serializable;
+import java.security.InvalidParameterException;
+
+/**
+ * Definition of policy for caching robots.txt rules between jobs.
+ * 
+ * Rules are cached for up to <ttl> milliseconds, or <negativeTtl> milliseconds if
+ * the fetch failed in a way that means we should try again later (e.g. a 5xx
+ * response). Each reducer loads all of the cached rules from the cache dir when it
+ * starts up, and saves the rules it fetched there when it's done, so that later
+ * crawl loops can skip re-fetching robots.txt.
+ * 
+ * Within one job each domain is only processed once, so caching is off unless a
+ * cache dir has been set.
+ * 
+ */
+@SuppressWarnings("serial")
+public class RobotsCachePolicy implements Serializable {
+    
+    public static final int NO_CACHING = 0;
+    
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL = 24 * 60 * 60 * 1000L;
+    public static final long DEFAULT_NEGATIVE_TTL = 60 * 60 * 1000L;
+    
+    private int _maxEntries;        // Max # of domains to cache, or NO_CACHING
+    private long _ttl;              // Time (in milliseconds) rules stay valid
+    private long _negativeTtl;      // Time (in milliseconds) rules from a temp failure stay valid
+    private String _cacheDir;       // Where we save rules between jobs, or null.
+    
+    public RobotsCachePolicy() {
+        this(DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+    }
+    
+    public RobotsCachePolicy(int maxEntries, long ttl, long negativeTtl) {
+        if (maxEntries < 0) {
+            throw new InvalidParameterException("maxEntries must be >= 0: " + maxEntries);
+        }
+        
+        if (ttl < 0) {
+            throw new InvalidParameterException("ttl must be >= 0: " + ttl);
+        }
+        
+        if (negativeTtl < 0) {
+            throw new InvalidParameterException("negativeTtl must be >= 0: " + negativeTtl);
+        }
+        
+        _maxEntries = maxEntries;
+        _ttl = ttl;
+        _negativeTtl = negativeTtl;
+        _cacheDir = null;
+    }
+
+    public int getMaxEntries() {
+        return _maxEntries;
+    }
+
+    public void setMaxEntries(int maxEntries) {
+        _maxEntries = maxEntries;
+    }
+
+    public long getTtl() {
+        return _ttl;
+    }
+
+    public void setTtl(long ttl) {
+        _ttl = ttl;
+    }
+
+    public long getNegativeTtl() {
+        return _negativeTtl;
+    }
+
+    public void setNegativeTtl(long negativeTtl) {
+        _negativeTtl = negativeTtl;
+    }
+
+    public String getCacheDir() {
+        return _cacheDir;
+    }
+
+    /**
+     * Set the directory (e.g. <crawl dir>/robots-cache) where cached rules are
+     * saved between jobs.
+     * 
+     * @param cacheDir path to directory, or null to not cache rules.
+     */
+    public void setCacheDir(String cacheDir) {
+        _cacheDir = cacheDir;
+    }
+    
+    public boolean isCaching() {
+        return (_maxEntries != NO_CACHING) && (_cacheDir != null);
+    }
+    
+    @Override
+    public String toString() {
+        return String.format("Max entries: %d, TTL: %dms, negative TTL: %dms, cache dir: %s",
+                        _maxEntries, _ttl, _negativeTtl, _cacheDir);
+    }
+}
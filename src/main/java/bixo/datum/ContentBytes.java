@@ -16,54 +16,296 @@
  */
 package bixo.datum;
 
+import java.io.ByteArrayInputStream;
 import java.io.DataInput;
+import java.io.DataInputStream;
 import java.io.DataOutput;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectStreamException;
 import java.io.Serializable;
+import java.security.InvalidParameterException;
+import java.util.Arrays;
 
 import org.apache.hadoop.io.BinaryComparable;
 import org.apache.hadoop.io.WritableComparable;
 import org.apache.hadoop.io.WritableComparator;
 
+/**
+ * Content of a fetched document.
+ * 
+ * Normally the content is held in memory, but large bodies can be left in a spill
+ * file (see SimpleHttpFetcher.setContentSpillThreshold). In that case the bytes are
+ * only loaded into memory if getBytes() is called, and write() streams them directly
+ * from the file.
+ * 
+ * The content can also be a slice of a larger array, so callers that already have
+ * the bytes in a buffer don't need to copy them. When the same ContentBytes is used
+ * to read a series of records (e.g. from a SequenceFile), readFields() reuses the
+ * previous buffer if it's big enough. The array returned by getBuffer() is only
+ * valid until the next call to readFields(), while the array returned by getBytes()
+ * is never overwritten.
+ *
+ */
 @SuppressWarnings("serial")
 public class ContentBytes extends BinaryComparable implements WritableComparable<BinaryComparable>, Serializable {
 
     private static final int LENGTH_BYTES = 4;
     private static final byte[] EMPTY_BYTES = {};
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
 
     private byte[] bytes;
+    private int offset;
+    private int length;
+    
+    // True if the array might be referenced by somebody else (it was passed in, or
+    // handed out by getBytes()), in which case readFields() can't reuse it.
+    private boolean shared;
+    
+    // Set when the content lives in a spill file, in which case bytes is null
+    // until somebody asks for them.
+    private File spillFile;
+    private int spillLength;
 
     public ContentBytes() {
         this(EMPTY_BYTES);
     }
     
     public ContentBytes(byte[] bytes) {
+        this(bytes, 0, bytes.length);
+    }
+    
+    /**
+     * Create content that's a view of <length> bytes of <bytes>, starting at
+     * <offset>. The bytes are not copied.
+     * 
+     * @param bytes array containing the content
+     * @param offset offset of the content in <bytes>
+     * @param length number of bytes of content
+     */
+    public ContentBytes(byte[] bytes, int offset, int length) {
+        if ((offset < 0) || (length < 0) || (offset + length > bytes.length)) {
+            throw new InvalidParameterException(String.format("Invalid slice (offset %d, length %d) of %d bytes", offset, length, bytes.length));
+        }
+        
         this.bytes = bytes;
+        this.offset = offset;
+        this.length = length;
+        this.shared = true;
     }
     
+    /**
+     * Create content that's backed by the first <length> bytes of <spillFile>.
+     * 
+     * @param spillFile file containing the content
+     * @param length number of bytes of content
+     */
+    public ContentBytes(File spillFile, int length) {
+        this.bytes = null;
+        this.spillFile = spillFile;
+        this.spillLength = length;
+    }
+    
+    /**
+     * Return the content as an array that's exactly getLength() bytes long. If the
+     * content is a slice of a larger buffer, this means making a copy (once).
+     */
     public byte[] getBytes() {
+        loadSpillFile();
+        
+        if ((offset != 0) || (length != bytes.length)) {
+            bytes = Arrays.copyOfRange(bytes, offset, offset + length);
+            offset = 0;
+        }
+        
+        shared = true;
         return bytes;
       }
 
+    /**
+     * Return the array that holds the content, without copying. The content starts
+     * at getOffset() and is getLength() bytes long.
+     */
+    public byte[] getBuffer() {
+        loadSpillFile();
+        return bytes;
+    }
+    
+    public int getOffset() {
+        return bytes == null ? 0 : offset;
+    }
+    
     @Override
     public int getLength() {
-        return bytes.length;
+        return bytes == null ? spillLength : length;
+    }
+    
+    /**
+     * Return true if the content is (still) only stored in a spill file.
+     */
+    public boolean isSpilled() {
+        return bytes == null;
+    }
+    
+    public File getSpillFile() {
+        return spillFile;
+    }
+    
+    /**
+     * Return a stream for the content that doesn't force a spilled file to be
+     * loaded into memory.
+     * 
+     * @return stream of the content bytes.
+     * @throws IOException
+     */
+    public InputStream getInputStream() throws IOException {
+        if (bytes == null) {
+            return new FileInputStream(spillFile);
+        } else {
+            return new ByteArrayInputStream(bytes, offset, length);
+        }
+    }
+    
+    /**
+     * Delete the spill file (if any), after first loading the content into memory if
+     * <keepContent> is true.
+     * 
+     * @param keepContent
+     * @throws IOException
+     */
+    public void releaseSpillFile(boolean keepContent) throws IOException {
+        if (spillFile == null) {
+            return;
+        }
+        
+        if (keepContent) {
+            getBytes();
+        } else if (bytes == null) {
+            bytes = EMPTY_BYTES;
+            offset = 0;
+            length = 0;
+            shared = true;
+        }
+        
+        spillFile.delete();
+        spillFile = null;
+        spillLength = 0;
+    }
+    
+    private void loadSpillFile() {
+        if (bytes != null) {
+            return;
+        }
+        
+        try {
+            bytes = readSpillFile();
+            offset = 0;
+            length = bytes.length;
+            shared = false;
+        } catch (IOException e) {
+            throw new RuntimeException("Can't read content from spill file " + spillFile, e);
+        }
+    }
+    
+    private byte[] readSpillFile() throws IOException {
+        byte[] result = new byte[spillLength];
+        DataInputStream in = new DataInputStream(new FileInputStream(spillFile));
+        
+        try {
+            in.readFully(result);
+        } finally {
+            in.close();
+        }
+        
+        return result;
     }
     
     public void readFields(DataInput in) throws IOException {
         int size = in.readInt();
-        bytes = new byte[size];
+        if (shared || (bytes == null) || (bytes.length < size)) {
+            bytes = new byte[size];
+            shared = false;
+        }
+        
+        offset = 0;
+        length = size;
+        spillFile = null;
+        spillLength = 0;
         in.readFully(bytes, 0, size);
       }
       
       // inherit javadoc
       public void write(DataOutput out) throws IOException {
-        out.writeInt(bytes.length);
-        out.write(bytes, 0, bytes.length);
+          if (bytes != null) {
+              out.writeInt(length);
+              out.write(bytes, offset, length);
+              return;
+          }
+
+          // Stream the content from the spill file, so we never need the whole thing in memory.
+          out.writeInt(spillLength);
+          InputStream in = new FileInputStream(spillFile);
+
+          try {
+              byte[] buffer = new byte[COPY_BUFFER_SIZE];
+              int remaining = spillLength;
+              while (remaining > 0) {
+                  int bytesRead = in.read(buffer, 0, Math.min(buffer.length, remaining));
+                  if (bytesRead == -1) {
+                      throw new IOException("Spill file is shorter than expected: " + spillFile);
+                  }
+
+                  out.write(buffer, 0, bytesRead);
+                  remaining -= bytesRead;
+              }
+          } finally {
+              in.close();
+          }
+      }
+      
+      /**
+       * When using Java serialization, we can't count on the spill file being available
+       * on the other side, so always serialize the actual bytes. Slices get trimmed
+       * to just the content.
+       */
+      private Object writeReplace() throws ObjectStreamException {
+          if (bytes == null) {
+              return new ContentBytes(getBytes());
+          } else if ((offset != 0) || (length != bytes.length)) {
+              return new ContentBytes(Arrays.copyOfRange(bytes, offset, offset + length));
+          } else {
+              return this;
+          }
       }
       
       public int hashCode() {
-        return super.hashCode();
+          byte[] buffer = getBuffer();
+          int end = offset + length;
+          int hash = 1;
+          for (int i = offset; i < end; i++) {
+              hash = (31 * hash) + (int)buffer[i];
+          }
+          
+          return hash;
+      }
+
+      /**
+       * Compare without forcing a slice to be copied.
+       */
+      @Override
+      public int compareTo(BinaryComparable other) {
+          if (this == other) {
+              return 0;
+          }
+          
+          if (other instanceof ContentBytes) {
+              ContentBytes that = (ContentBytes)other;
+              return WritableComparator.compareBytes(getBuffer(), offset, length, that.getBuffer(), that.offset, that.length);
+          } else {
+              return super.compareTo(other);
+          }
       }
 
       /**
@@ -81,11 +323,12 @@ public class ContentBytes extends BinaryComparable implements WritableComparable
        * Generate the stream of bytes as hex pairs separated by ' '.
        */
       public String toString() {
-          int size = bytes.length;
+          byte[] bytes = getBuffer();
+          int size = length;
           StringBuffer sb = new StringBuffer(3*size);
-          for (int idx = 0; idx < size; idx++) {
+          for (int idx = offset; idx < offset + size; idx++) {
               // if not the first, put a blank separator in
-              if (idx != 0) {
+              if (idx != offset) {
                   sb.append(' ');
               }
               String num = Integer.toHexString(0xff & bytes[idx]);
@@ -69,27 +69,45 @@ public class FetchSetDatum extends BaseDatum {
         setSkipped(false);
     }
 
-    @SuppressWarnings("unchecked")
     public List<ScoredUrlDatum> getUrls() {
         Tuple urls = (Tuple)_tupleEntry.get(URLS_FN);
         List<ScoredUrlDatum> result = new ArrayList<ScoredUrlDatum>(urls.size());
-        Iterator<Tuple> iter = (Iterator<Tuple>)urls.iterator();
+        Iterator<?> iter = urls.iterator();
         while (iter.hasNext()) {
-            result.add(new ScoredUrlDatum(iter.next()));
+            Object url = iter.next();
+            
+            // Older data has the tuple for each datum, versus the datum itself.
+            if (url instanceof ScoredUrlDatum) {
+                result.add((ScoredUrlDatum)url);
+            } else {
+                result.add(new ScoredUrlDatum((Tuple)url));
+            }
         }
         
         return result;
     }
     
+    /**
+     * Set the URLs to fetch. The datums are stored directly in the tuple, and use their
+     * Writable format when fetch sets get grouped. Use bixo.hadoop.SerializationUtils
+     * to register a serialization token, so Cascading doesn't write the class name
+     * for each URL.
+     * 
+     * @param urls URLs in this fetch set
+     */
     public void setUrls(List<ScoredUrlDatum> urls) {
         Tuple result = new Tuple();
         for (ScoredUrlDatum datum : urls) {
-            result.add(datum.getTuple());
+            result.add(datum);
         }
         
         _tupleEntry.set(URLS_FN, result);
     }
     
+    public int getNumUrls() {
+        return ((Tuple)_tupleEntry.get(URLS_FN)).size();
+    }
+    
     public long getFetchTime() {
         return _tupleEntry.getLong(FETCH_TIME_FN);
     }
@@ -142,6 +142,16 @@ public class FetchedDatum extends PayloadDatum implements Serializable {
         _tupleEntry.set(FETCH_TIME_FN, fetchTime);
     }
 
+    /**
+     * Return the content handle, which won't load content that was spilled to
+     * disk during the fetch until the bytes are actually needed.
+     * 
+     * @return content
+     */
+    public ContentBytes getContent() {
+        return (ContentBytes)_tupleEntry.getObject(CONTENT_FN);
+    }
+    
     public byte[] getContentBytes() {
         return ((ContentBytes)_tupleEntry.getObject(CONTENT_FN)).getBytes();
     }
@@ -195,7 +205,7 @@ public class FetchedDatum extends PayloadDatum implements Serializable {
     }
 
     public HttpHeaders getHeaders() {
-        return new HttpHeaders((Tuple)_tupleEntry.get(HTTP_HEADERS_FN));
+        return HttpHeaders.fromTupleValue(_tupleEntry.getObject(HTTP_HEADERS_FN));
     }
 
     public void setHeaders(HttpHeaders headers) {
@@ -203,7 +213,7 @@ public class FetchedDatum extends PayloadDatum implements Serializable {
             throw new InvalidParameterException("headers cannot be null");
         }
 
-        _tupleEntry.set(HTTP_HEADERS_FN, headers.toTuple());
+        _tupleEntry.set(HTTP_HEADERS_FN, headers);
     }
 
     @Override
@@ -25,7 +25,7 @@ import cascading.tuple.TupleEntry;
 @SuppressWarnings("serial")
 public class GroupedUrlDatum extends UrlDatum implements Serializable, Comparable<GroupedUrlDatum> {
 
-    private static final String GROUP_KEY_FN = fieldName(GroupedUrlDatum.class, "groupKey");
+    protected static final String GROUP_KEY_FN = fieldName(GroupedUrlDatum.class, "groupKey");
     public static final Fields FIELDS = new Fields(GROUP_KEY_FN).append(getSuperFields(GroupedUrlDatum.class));
     
     public GroupedUrlDatum() {
@@ -19,29 +19,112 @@ package bixo.datum;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.io.Serializable;
 import java.io.UnsupportedEncodingException;
 import java.net.URLDecoder;
 import java.net.URLEncoder;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.WritableComparable;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
 
 import cascading.tuple.Tuple;
 
-public class HttpHeaders implements Writable {
+/**
+ * HTTP response headers, with normalized (lower-case) names.
+ * 
+ * The Writable form is compact: common header names are written as a small integer
+ * id, and values are length-prefixed strings. Headers that are read via readFields()
+ * are only decoded when they're actually used, and if they're never used then write()
+ * just copies the encoded bytes, so passing headers through a GroupBy or into a sink
+ * is cheap. The encoded form is kept until the headers are modified via add(), so
+ * compareTo() only has to encode decoded headers once. Datums store the HttpHeaders object directly in their tuple; use
+ * bixo.hadoop.SerializationUtils to register a Cascading serialization token for it.
+ *
+ */
+@SuppressWarnings("serial")
+public class HttpHeaders implements WritableComparable<HttpHeaders>, Serializable {
+    
+    // Common header names, which get written as (index + 1). This list can only be
+    // appended to, since the ids are stored in serialized data.
+    private static final String[] COMMON_NAMES = {
+        "content-type",
+        "content-length",
+        "date",
+        "server",
+        "last-modified",
+        "etag",
+        "expires",
+        "cache-control",
+        "connection",
+        "content-encoding",
+        "transfer-encoding",
+        "vary",
+        "set-cookie",
+        "location",
+        "accept-ranges",
+        "age",
+        "pragma",
+        "x-powered-by",
+        "content-language",
+        "keep-alive",
+        "p3p",
+        "x-cache",
+        "via",
+        "content-location",
+        "link",
+        "x-frame-options",
+        "x-xss-protection",
+        "x-content-type-options",
+        "strict-transport-security",
+        "access-control-allow-origin",
+        "content-disposition",
+        "refresh",
+        "x-aspnet-version",
+        "x-cache-lookup",
+        "x-varnish",
+    };
+
+    private static final Map<String, Integer> COMMON_NAME_IDS = new HashMap<String, Integer>();
+    
+    static {
+        for (int i = 0; i < COMMON_NAMES.length; i++) {
+            COMMON_NAME_IDS.put(COMMON_NAMES[i], i + 1);
+        }
+    }
+    
+    // Id for names that aren't common, which are written out as strings.
+    private static final int UNCOMMON_NAME_ID = 0;
     
+    // Decoded headers, or null if we haven't needed to decode _encoded yet.
     private Map<String, List<String>> _headers;
     
+    // Encoded headers, or null if they've been modified since they were last
+    // read or encoded.
+    private byte[] _encoded;
+    
     public HttpHeaders() {
         this(null);
     }
     
+    /**
+     * Create headers from the (older) tuple format, where names and values are
+     * encoded as strings.
+     * 
+     * @param headers tuple created by toTuple(), or null.
+     */
     public HttpHeaders(Tuple headers) {
-        _headers = new HashMap<String, List<String>>();
+        _headers = new LinkedHashMap<String, List<String>>();
         
         if (headers != null) {
             int numEntries = headers.size() / 2;
@@ -54,20 +137,45 @@ public class HttpHeaders implements Writable {
         }
     }
     
+    /**
+     * Return headers from a datum's tuple value, which is normally an HttpHeaders,
+     * but might be a tuple in the older format (or null) for data written by
+     * earlier versions.
+     * 
+     * @param value headers value from a tuple
+     * @return headers, which will be empty if value is null.
+     */
+    public static HttpHeaders fromTupleValue(Object value) {
+        if (value instanceof HttpHeaders) {
+            return (HttpHeaders)value;
+        } else {
+            return new HttpHeaders((Tuple)value);
+        }
+    }
+    
+    /**
+     * Return a copy of the common header names that get written as ids. Other
+     * formats can use this as a dictionary for header names.
+     */
+    public static String[] getCommonNames() {
+        return COMMON_NAMES.clone();
+    }
+    
     public void add(String name, String value) {
         String normalizedName = normalize(name);
-        List<String> curValues = _headers.get(normalizedName);
+        List<String> curValues = getHeaders().get(normalizedName);
         if (curValues == null) {
             curValues = new ArrayList<String>();
             _headers.put(normalizedName, curValues);
         }
         
         curValues.add(value);
+        _encoded = null;
     }
     
     public String getFirst(String name) {
         String normalizedName = normalize(name);
-        List<String> curValues = _headers.get(normalizedName);
+        List<String> curValues = getHeaders().get(normalizedName);
         if (curValues == null) {
             return null;
         } else {
@@ -75,30 +183,55 @@ public class HttpHeaders implements Writable {
         }
     }
     
+    /**
+     * Return a copy of the values for <name>, so changing the list doesn't
+     * change the headers.
+     */
     public List<String> getAll(String name) {
         String normalizedName = normalize(name);
-        List<String> curValues = _headers.get(normalizedName);
+        List<String> curValues = getHeaders().get(normalizedName);
         if (curValues == null) {
             return new ArrayList<String>();
         } else {
-            return curValues;
+            return new ArrayList<String>(curValues);
         }
     }
     
     public Set<String> getNames() {
-        return _headers.keySet();
+        return Collections.unmodifiableSet(getHeaders().keySet());
     }
     
     private static String normalize(String name) {
         return name.toLowerCase();
     }
     
+    /**
+     * Return the decoded headers, decoding them first if needed. The map is never
+     * handed out, so only add() can make the encoded bytes stale.
+     */
+    private Map<String, List<String>> getHeaders() {
+        if (_headers == null) {
+            try {
+                DataInputBuffer in = new DataInputBuffer();
+                in.reset(_encoded, _encoded.length);
+                _headers = decode(in);
+            } catch (IOException e) {
+                throw new RuntimeException("Invalid encoded headers", e);
+            }
+        }
+        
+        return _headers;
+    }
+    
+    /**
+     * Return the headers in the older tuple format. Datums now store the HttpHeaders
+     * directly, so this is only needed for code that still expects a tuple.
+     */
     public Tuple toTuple() {
         Tuple result = new Tuple();
-        for (String name : _headers.keySet()) {
-            List<String> values = _headers.get(name);
-            result.add(encodeString(name));
-            result.add(encodeValues(values));
+        for (Map.Entry<String, List<String>> entry : getHeaders().entrySet()) {
+            result.add(encodeString(entry.getKey()));
+            result.add(encodeValues(entry.getValue()));
         }
         
         return result;
@@ -174,34 +307,107 @@ public class HttpHeaders implements Writable {
         }
     }
 
-    @Override
-    public void readFields(DataInput in) throws IOException {
-        int numHeaders = in.readInt();
-        _headers = new HashMap<String, List<String>>(numHeaders);
+    private static Map<String, List<String>> decode(DataInput in) throws IOException {
+        int numNames = WritableUtils.readVInt(in);
+        Map<String, List<String>> result = new LinkedHashMap<String, List<String>>(numNames * 2);
         
-        for (int i = 0; i < numHeaders; i++) {
-            String name = in.readUTF();
-            int numValues = in.readInt();
+        for (int i = 0; i < numNames; i++) {
+            String name;
+            int nameId = WritableUtils.readVInt(in);
+            if (nameId == UNCOMMON_NAME_ID) {
+                name = Text.readString(in);
+            } else if (nameId <= COMMON_NAMES.length) {
+                name = COMMON_NAMES[nameId - 1];
+            } else {
+                throw new IOException("Invalid header name id: " + nameId);
+            }
+            
+            int numValues = WritableUtils.readVInt(in);
             List<String> values = new ArrayList<String>(numValues);
             for (int j = 0; j < numValues; j++) {
-                values.add(in.readUTF());
+                values.add(Text.readString(in));
             }
             
-            _headers.put(name, values);
+            result.put(name, values);
         }
+        
+        return result;
     }
-
-    @Override
-    public void write(DataOutput out) throws IOException {
-        out.writeInt(_headers.size());
-        for (String name : _headers.keySet()) {
-            List<String> values = _headers.get(name);
-            out.writeUTF(name);
-            out.writeInt(values.size());
+    
+    private static void encode(Map<String, List<String>> headers, DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, headers.size());
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            Integer nameId = COMMON_NAME_IDS.get(entry.getKey());
+            if (nameId == null) {
+                WritableUtils.writeVInt(out, UNCOMMON_NAME_ID);
+                Text.writeString(out, entry.getKey());
+            } else {
+                WritableUtils.writeVInt(out, nameId);
+            }
+            
+            List<String> values = entry.getValue();
+            WritableUtils.writeVInt(out, values.size());
             for (String value : values) {
-                out.writeUTF(value);
+                Text.writeString(out, value);
             }
         }
     }
+    
+    private byte[] getEncoded() throws IOException {
+        if (_encoded != null) {
+            return _encoded;
+        }
+        
+        DataOutputBuffer out = new DataOutputBuffer();
+        encode(_headers, out);
+        _encoded = new byte[out.getLength()];
+        System.arraycopy(out.getData(), 0, _encoded, 0, _encoded.length);
+        return _encoded;
+    }
+    
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        _encoded = new byte[WritableUtils.readVInt(in)];
+        in.readFully(_encoded);
+        _headers = null;
+    }
 
+    @Override
+    public void write(DataOutput out) throws IOException {
+        byte[] encoded = getEncoded();
+        WritableUtils.writeVInt(out, encoded.length);
+        out.write(encoded);
+    }
+
+    /**
+     * Headers don't have a natural order, so just compare the encoded form.
+     */
+    @Override
+    public int compareTo(HttpHeaders other) {
+        try {
+            byte[] thisEncoded = getEncoded();
+            byte[] otherEncoded = other.getEncoded();
+            return WritableComparator.compareBytes(thisEncoded, 0, thisEncoded.length, otherEncoded, 0, otherEncoded.length);
+        } catch (IOException e) {
+            throw new RuntimeException("Impossible exception", e);
+        }
+    }
+    
+    @Override
+    public int hashCode() {
+        return getHeaders().hashCode();
+    }
+    
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        
+        if (!(obj instanceof HttpHeaders)) {
+            return false;
+        }
+        
+        return getHeaders().equals(((HttpHeaders)obj).getHeaders());
+    }
 }
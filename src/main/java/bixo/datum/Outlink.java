@@ -20,10 +20,12 @@ import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
 
-import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableComparable;
 
-/* An outgoing link from a page. */
-public class Outlink implements Writable {
+import bixo.utils.IoUtils;
+
+/* An outgoing link from a page, ordered by target URL and then anchor text. */
+public class Outlink implements WritableComparable<Outlink> {
 
     private static final String NO_FOLLOW_REL_ATTRIBUTE = "nofollow";
 
@@ -109,18 +111,33 @@ public class Outlink implements Writable {
 		return true;
 	}
     
+    @Override
+    public int compareTo(Outlink other) {
+        int result = _toUrl.compareTo(other._toUrl);
+        if (result == 0) {
+            result = _anchorText.compareTo(other._anchorText);
+        }
+        
+        return result;
+    }
+    
+    // The URL has to come first, since bixo.hadoop.OutlinkSerialization's raw comparator
+    // relies on it. Rel attributes are often null, so they get a flag.
     @Override
     public void readFields(DataInput in) throws IOException {
-        _toUrl = in.readUTF();
-        _anchorText = in.readUTF();
-        _relAttributes = in.readUTF();
+        _toUrl = IoUtils.readString(in);
+        _anchorText = IoUtils.readString(in);
+        _relAttributes = in.readBoolean() ? IoUtils.readString(in) : null;
     }
 
     @Override
     public void write(DataOutput out) throws IOException {
-        out.writeUTF(_toUrl);
-        out.writeUTF(_anchorText);
-        out.writeUTF(_relAttributes);
+        IoUtils.writeString(out, _toUrl);
+        IoUtils.writeString(out, _anchorText);
+        out.writeBoolean(_relAttributes != null);
+        if (_relAttributes != null) {
+            IoUtils.writeString(out, _relAttributes);
+        }
     }
 
 
@@ -124,21 +124,29 @@ public class ParsedDatum extends PayloadDatum {
     private Tuple convertOutlinksToTuple(Outlink[] outLinks) {
         Tuple tuple = new Tuple();
         for (Outlink outlink : outLinks) {
-            tuple.add(outlink.getToUrl());
-            tuple.add(outlink.getAnchor());
-            tuple.add(outlink.getRelAttributes());
+            tuple.add(outlink);
         }
         
         return tuple;
     }
 
     private Outlink[] convertTupleToOutlinks(Tuple tuple) {
-        int numOutlinks = tuple.size() / 3;
-        Outlink[] result = new Outlink[numOutlinks];
+        // Older data has three strings (URL, anchor, rel attributes) per outlink.
+        if ((tuple.size() > 0) && !(tuple.get(0) instanceof Outlink)) {
+            int numOutlinks = tuple.size() / 3;
+            Outlink[] result = new Outlink[numOutlinks];
+            
+            for (int i = 0; i < numOutlinks; i++) {
+                int tupleOffset = i * 3;
+                result[i] = new Outlink(tuple.getString(tupleOffset), tuple.getString(tupleOffset + 1), tuple.getString(tupleOffset + 2));
+            }
+            
+            return result;
+        }
         
-        for (int i = 0; i < numOutlinks; i++) {
-            int tupleOffset = i * 3;
-            result[i] = new Outlink(tuple.getString(tupleOffset), tuple.getString(tupleOffset + 1), tuple.getString(tupleOffset + 2));
+        Outlink[] result = new Outlink[tuple.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (Outlink)tuple.get(i);
         }
         
         return result;
@@ -16,20 +16,46 @@
  */
 package bixo.datum;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.io.Serializable;
 
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import bixo.utils.DatumQueueCodec;
+import bixo.utils.IoUtils;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
 
+/**
+ * A URL that's ready to be fetched. The Writable form has the URL first (which
+ * bixo.hadoop.ScoredUrlDatumSerialization's raw comparator relies on), then the
+ * group key, the status as its ordinal, the score, and then any other fields (i.e.
+ * the payload) using DatumQueueCodec's tuple encoding. Only the fields in FIELDS get
+ * written, and UrlStatus values can only be appended to while this data is stored.
+ *
+ */
 @SuppressWarnings("serial")
-public class ScoredUrlDatum extends GroupedUrlDatum implements Serializable {
+public class ScoredUrlDatum extends GroupedUrlDatum implements Writable, Serializable {
     
     private static final String STATUS_FN = fieldName(ScoredUrlDatum.class, "status");
     private static final String SCORE_FN = fieldName(ScoredUrlDatum.class, "score");
     public static final Fields FIELDS = new Fields(STATUS_FN, SCORE_FN).append(getSuperFields(ScoredUrlDatum.class));
     
     private static final double DEFAULT_SCORE = 1.0;
+    
+    private static final UrlStatus[] STATUSES = UrlStatus.values();
+    
+    // Positions of fields in our tuple, so readFields() can fill in the tuple directly.
+    private static final int URL_POS = FIELDS.getPos(URL_FN);
+    private static final int GROUP_KEY_POS = FIELDS.getPos(GROUP_KEY_FN);
+    private static final int STATUS_POS = FIELDS.getPos(STATUS_FN);
+    private static final int SCORE_POS = FIELDS.getPos(SCORE_FN);
+    private static final Fields OTHER_FIELDS = getOtherFields();
+    private static final int[] OTHER_POSITIONS = getOtherPositions();
 
     public ScoredUrlDatum() {
         super(FIELDS);
@@ -79,4 +105,77 @@ public class ScoredUrlDatum extends GroupedUrlDatum implements Serializable {
         return new Fields(SCORE_FN);
     }
 
+    private static Fields getOtherFields() {
+        Fields result = new Fields();
+        for (int i = 0; i < FIELDS.size(); i++) {
+            Comparable<?> fieldName = FIELDS.get(i);
+            if (!fieldName.equals(URL_FN) && !fieldName.equals(GROUP_KEY_FN)
+                && !fieldName.equals(STATUS_FN) && !fieldName.equals(SCORE_FN)) {
+                result = result.append(new Fields(fieldName));
+            }
+        }
+        
+        return result;
+    }
+    
+    private static int[] getOtherPositions() {
+        int[] result = new int[OTHER_FIELDS.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = FIELDS.getPos(OTHER_FIELDS.get(i));
+        }
+        
+        return result;
+    }
+    
+    @Override
+    public void write(DataOutput out) throws IOException {
+        String url = getUrl();
+        if (url == null) {
+            throw new IOException("ScoredUrlDatum URL can't be null");
+        }
+        
+        IoUtils.writeString(out, url);
+        
+        String groupKey = getGroupKey();
+        out.writeBoolean(groupKey != null);
+        if (groupKey != null) {
+            IoUtils.writeString(out, groupKey);
+        }
+        
+        WritableUtils.writeVInt(out, getStatus().ordinal());
+        out.writeDouble(getScore());
+        DatumQueueCodec.writeTuple(_tupleEntry.selectTuple(OTHER_FIELDS), out);
+    }
+
+    /**
+     * Read the datum, replacing the tuple (versus changing it, since somebody else
+     * might have a reference to it).
+     */
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        Tuple tuple = Tuple.size(FIELDS.size());
+        tuple.set(URL_POS, IoUtils.readString(in));
+        tuple.set(GROUP_KEY_POS, in.readBoolean() ? IoUtils.readString(in) : null);
+        
+        int statusIndex = WritableUtils.readVInt(in);
+        if ((statusIndex < 0) || (statusIndex >= STATUSES.length)) {
+            throw new IOException("Invalid UrlStatus ordinal: " + statusIndex);
+        }
+        
+        // Same as what setStatus() does.
+        tuple.set(STATUS_POS, STATUSES[statusIndex].name());
+        tuple.set(SCORE_POS, in.readDouble());
+        
+        Tuple otherValues = DatumQueueCodec.readTuple(in);
+        if (otherValues.size() != OTHER_POSITIONS.length) {
+            throw new IOException("Wrong number of ScoredUrlDatum fields: " + otherValues.size());
+        }
+        
+        for (int i = 0; i < OTHER_POSITIONS.length; i++) {
+            tuple.set(OTHER_POSITIONS[i], otherValues.get(i));
+        }
+        
+        _tupleEntry = new TupleEntry(FIELDS, tuple);
+    }
+
 }
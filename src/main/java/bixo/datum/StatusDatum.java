@@ -18,7 +18,6 @@ package bixo.datum;
 
 import bixo.exceptions.BaseFetchException;
 import cascading.tuple.Fields;
-import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
 
 import com.bixolabs.cascading.Payload;
@@ -94,14 +93,14 @@ public class StatusDatum extends PayloadDatum {
     }
     
     public HttpHeaders getHeaders() {
-        return new HttpHeaders((Tuple)_tupleEntry.get(HEADERS_FN));
+        return HttpHeaders.fromTupleValue(_tupleEntry.getObject(HEADERS_FN));
     }
 
     public void setHeaders(HttpHeaders headers) {
         if (headers == null) {
             _tupleEntry.set(HEADERS_FN, null);
         } else {
-            _tupleEntry.set(HEADERS_FN, headers.toTuple());
+            _tupleEntry.set(HEADERS_FN, headers);
         }
     }
     
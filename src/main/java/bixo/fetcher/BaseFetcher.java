@@ -16,30 +16,46 @@
  */
 package bixo.fetcher;
 
+import java.io.IOException;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+import org.apache.log4j.Logger;
+
 import bixo.config.FetcherPolicy;
 import bixo.config.UserAgent;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.IOFetchException;
 
 @SuppressWarnings("serial")
 public abstract class BaseFetcher implements Serializable {
+    private static final Logger LOGGER = Logger.getLogger(BaseFetcher.class);
     
+    // Mime-types where we'll keep truncated content, versus aborting the fetch.
+    private static final String TEXT_MIME_TYPES[] = {
+        "text/html",
+        "application/x-asp",
+        "application/xhtml+xml",
+        "application/vnd.wap.xhtml+xml",
+    };
+
     protected int _maxThreads;
     protected FetcherPolicy _fetcherPolicy;
     protected UserAgent _userAgent;
     protected Map<String, Integer> _maxContentSizes;
+    protected long _taskStackSize;
     
     public BaseFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
         _maxThreads = maxThreads;
         _fetcherPolicy = fetcherPolicy;
         _userAgent = userAgent;
         _maxContentSizes = new HashMap<String, Integer>();
+        _taskStackSize = 0;
     }
 
     public int getMaxThreads() {
@@ -54,6 +70,25 @@ public abstract class BaseFetcher implements Serializable {
         return _userAgent;
     }
     
+    /**
+     * Run the tasks that use this fetcher (fetching, robots, redirect resolution) as
+     * lightweight tasks, on threads with a <taskStackSize> byte stack. Then up to
+     * maxThreads tasks can be running at once, but idle threads aren't kept around.
+     * 
+     * @param taskStackSize stack size in bytes, or 0 to use a regular thread pool.
+     */
+    public void setTaskStackSize(long taskStackSize) {
+        if (taskStackSize < 0) {
+            throw new InvalidParameterException("Task stack size must be >= 0: " + taskStackSize);
+        }
+        
+        _taskStackSize = taskStackSize;
+    }
+    
+    public long getTaskStackSize() {
+        return _taskStackSize;
+    }
+    
     // TODO KKr Move into a _defaultMaxContentSize field when support is removed
     // from FetcherPolicy.
     //
@@ -83,8 +118,133 @@ public abstract class BaseFetcher implements Serializable {
         return result;
     }
 
+    protected static boolean isTextMimeType(String mimeType) {
+        for (String textContentType : TEXT_MIME_TYPES) {
+            if (textContentType.equals(mimeType)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     // Return results of HTTP GET request
     public abstract FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException;
     
+    /**
+     * Fetch a list of URLs from the same server, calling <listener> with the result
+     * of each fetch (in order). Fetches are done sequentially, with at least
+     * <minRequestInterval> milliseconds between the start of one request and the
+     * start of the next.
+     * 
+     * Subclasses can override makeBatchContext() and get(scoredUrl, batchContext, lastInBatch)
+     * to share state (like a keep-alive connection) between the requests.
+     * 
+     * If the calling thread is interrupted, we stop before starting the next request, and
+     * leave the interrupted status set.
+     * 
+     * @param scoredUrls URLs to fetch, which should all be for the same server
+     * @param minRequestInterval min time between requests, in milliseconds
+     * @param listener callback for results
+     * @return number of URLs that were processed.
+     */
+    public int get(List<ScoredUrlDatum> scoredUrls, long minRequestInterval, IFetchListener listener) {
+        Object batchContext = makeBatchContext(scoredUrls);
+        int numUrls = scoredUrls.size();
+        int numProcessed = 0;
+        
+        while ((numProcessed < numUrls) && !Thread.currentThread().isInterrupted()) {
+            ScoredUrlDatum scoredUrl = scoredUrls.get(numProcessed);
+            boolean lastInBatch = (numProcessed == numUrls - 1);
+            long fetchStartTime = System.currentTimeMillis();
+            listener.fetchStarting(scoredUrl);
+            
+            try {
+                FetchedDatum result = get(scoredUrl, batchContext, lastInBatch);
+                listener.fetchSucceeded(scoredUrl, result, System.currentTimeMillis() - fetchStartTime);
+            } catch (BaseFetchException e) {
+                listener.fetchFailed(scoredUrl, e, System.currentTimeMillis() - fetchStartTime);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unexpected exception while fetching " + scoredUrl.getUrl(), e);
+                listener.fetchFailed(scoredUrl, new IOFetchException(scoredUrl.getUrl(), new IOException(e)), System.currentTimeMillis() - fetchStartTime);
+            }
+            
+            numProcessed += 1;
+            
+            // We want to avoid fetching faster than a max acceptable rate.
+            long delay = minRequestInterval - (System.currentTimeMillis() - fetchStartTime);
+            if ((numProcessed < numUrls) && (delay > 0)) {
+                LOGGER.trace(String.format("BaseFetcher: sleeping for %dms", delay));
+                
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        
+        return numProcessed;
+    }
+    
+    /**
+     * Return state that's shared by all of the requests made by one call to
+     * get(List<ScoredUrlDatum>, ...).
+     * 
+     * @param scoredUrls URLs that will be fetched
+     * @return batch context, or null if not needed.
+     */
+    protected Object makeBatchContext(List<ScoredUrlDatum> scoredUrls) {
+        return null;
+    }
+    
+    /**
+     * Fetch one URL as part of a batch. By default this just calls get(scoredUrl).
+     * 
+     * @param scoredUrl URL to fetch
+     * @param batchContext result of makeBatchContext()
+     * @param lastInBatch true if this is the last request in the batch.
+     * @return fetched result
+     * @throws BaseFetchException
+     */
+    protected FetchedDatum get(ScoredUrlDatum scoredUrl, Object batchContext, boolean lastInBatch) throws BaseFetchException {
+        return get(scoredUrl);
+    }
+
+    /**
+     * Return true if getAsync() returns right away, so that a batch can be fetched
+     * without tying up the calling thread until it's done.
+     *
+     * @return true if getAsync() is asynchronous.
+     */
+    public boolean isAsynchronous() {
+        return false;
+    }
+
+    /**
+     * Start fetching a list of URLs from the same server. This works like
+     * get(List<ScoredUrlDatum>, ...), except that batchFinished() gets called once no
+     * more URLs will be fetched (e.g. because all of them have been processed, or abort()
+     * was called).
+     * 
+     * Fetchers where isAsynchronous() is true return right away, and call <listener>
+     * from their own threads. By default the batch is fetched with get(List<ScoredUrlDatum>, ...)
+     * on the calling thread, so this doesn't return until batchFinished() has been called.
+     *
+     * @param scoredUrls URLs to fetch, which should all be for the same server
+     * @param minRequestInterval min time between requests, in milliseconds
+     * @param listener callback for results
+     * @throws BaseFetchException if the batch couldn't be started, in which case
+     *         <listener> won't be called.
+     */
+    public void getAsync(List<ScoredUrlDatum> scoredUrls, long minRequestInterval, IBatchFetchListener listener) throws BaseFetchException {
+        int numProcessed = 0;
+        
+        try {
+            numProcessed = get(scoredUrls, minRequestInterval, listener);
+        } finally {
+            listener.batchFinished(numProcessed);
+        }
+    }
+
     public abstract void abort();
 }
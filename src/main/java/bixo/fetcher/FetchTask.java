@@ -16,8 +16,6 @@
  */
 package bixo.fetcher;
 
-import java.io.IOException;
-import java.util.Iterator;
 import java.util.List;
 
 import org.apache.log4j.Level;
@@ -29,7 +27,6 @@ import bixo.datum.UrlStatus;
 import bixo.exceptions.AbortedFetchException;
 import bixo.exceptions.AbortedFetchReason;
 import bixo.exceptions.BaseFetchException;
-import bixo.exceptions.IOFetchException;
 import bixo.hadoop.FetchCounters;
 import cascading.tuple.Tuple;
 
@@ -37,9 +34,12 @@ import com.bixolabs.cascading.LoggingFlowProcess;
 
 /**
  * Runnable instance for fetching a set of URLs from the same server, using keep-alive.
+ * 
+ * If the fetcher supports asynchronous fetching, start() can be used instead of run(),
+ * in which case no thread is needed while the URLs are being fetched.
  *
  */
-public class FetchTask implements Runnable {
+public class FetchTask implements Runnable, IBatchFetchListener {
     private static final Logger LOGGER = Logger.getLogger(FetchTask.class);
 
     // Min duration (in milliseconds) between page fetches in a single fetch set.
@@ -50,6 +50,8 @@ public class FetchTask implements Runnable {
     private List<ScoredUrlDatum> _items;
     private String _ref;
     
+    private LoggingFlowProcess _process;
+    
     public FetchTask(IFetchMgr fetchMgr, BaseFetcher httpFetcher, List<ScoredUrlDatum> items, String ref) {
         _fetchMgr = fetchMgr;
         _httpFetcher = httpFetcher;
@@ -57,88 +59,49 @@ public class FetchTask implements Runnable {
         _ref = ref;
     }
 
-    @SuppressWarnings("rawtypes")
     @Override
     public void run() {
-        LoggingFlowProcess process = _fetchMgr.getProcess();
-        process.increment(FetchCounters.DOMAINS_PROCESSING, 1);
+        _process = _fetchMgr.getProcess();
+        _process.increment(FetchCounters.DOMAINS_PROCESSING, 1);
 
+        int numProcessed = 0;
+        
         try {
-            // TODO KKr - when fetching the last item, send a Connection: close
-            // header to let the server know it doesn't need to keep the socket open.
-            Iterator<ScoredUrlDatum> iter = _items.iterator();
-            while (!Thread.interrupted() && iter.hasNext()) {
-                ScoredUrlDatum item = iter.next();
-                FetchedDatum result = new FetchedDatum(item);
-                
-                // We use status as an extra field on the end of of FetchedDatum that lets
-                // us generate a full status pipe, and also a content pipe that only has
-                // entries which were fetched. By keying off the type (string == OK,
-                // BaseFetchException == bad) the FetchPipe can do this magic.
-                Comparable status = null;
+            // Hand the whole list to the fetcher, so that it can do all of the requests
+            // using one connection. We get called back with each result.
+            numProcessed = _httpFetcher.get(_items, MIN_PAGE_FETCH_INTERVAL, this);
+        } catch (Throwable t) {
+            LOGGER.error("Exception while fetching", t);
+        } finally {
+            batchFinished(numProcessed);
+        }
+    }
 
-                long fetchStartTime = System.currentTimeMillis();
-                
-                try {
-                    process.increment(FetchCounters.URLS_FETCHING, 1);
-                    result = _httpFetcher.get(item);
-                    long deltaTime = System.currentTimeMillis() - fetchStartTime;
-
-                    process.increment(FetchCounters.FETCHED_TIME, (int)deltaTime);
-                    process.increment(FetchCounters.URLS_FETCHED, 1);
-                    process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
-                    process.setStatus(Level.TRACE, "Fetched " + result);
-
-                    status = UrlStatus.FETCHED.toString();
-                    
-                    // TODO - check keep-alive response (if present), and close the connection/delay
-                    // for some amount of time if we exceed this limit.
-                } catch (BaseFetchException e) {
-                    // TODO KKr - we'd have to do something special here for AbortedFetchException with
-                    // the reason == INTERRUPTED, as we'd want to (a) increment URLS_SKIPPED, not failed,
-                    // and we'd want to bail out of this loop (or set the interrupted flag)
-                    LOGGER.info("Fetch exception while fetching " + item.getUrl(), e);
-                    process.increment(FetchCounters.URLS_FAILED, 1);
-
-                    // We can do this because each of the concrete subclasses of BaseFetchException implements
-                    // WritableComparable
-                    status = (Comparable)e;
-                } catch (Exception e) {
-                    LOGGER.warn("Unexpected exception while fetching " + item.getUrl(), e);
-
-                    process.increment(FetchCounters.URLS_FAILED, 1);
-                    status = new IOFetchException(item.getUrl(), new IOException(e));
-                } finally {
-                    process.decrement(FetchCounters.URLS_FETCHING, 1);
-
-                    Tuple tuple = result.getTuple();
-                    tuple.add(status);
-                   _fetchMgr.collect(tuple);
-                   
-                   // Figure out how long it's been since the start of the request.
-                   long fetchInterval = System.currentTimeMillis() - fetchStartTime;
-                   long delay = Math.min(0, MIN_PAGE_FETCH_INTERVAL - fetchInterval);
-                   
-                   // We want to avoid fetching faster than a max acceptable rate.
-                   if (delay > 0) {
-                       LOGGER.trace(String.format("FetchTask: sleeping for %dms", delay));
-                       
-                       try {
-                           Thread.sleep(delay);
-                       } catch (InterruptedException e) {
-                           LOGGER.warn("FetchTask interrupted!");
-                           Thread.currentThread().interrupt();
-                           continue;
-                       }
-                   }
-                }
-            }
-            
+    /**
+     * Start fetching the URLs using the fetcher's getAsync(), and return right away.
+     * The IFetchMgr's finished() method gets called once all of the URLs have been
+     * processed (or skipped).
+     */
+    public void start() {
+        _process = _fetchMgr.getProcess();
+        _process.increment(FetchCounters.DOMAINS_PROCESSING, 1);
+
+        try {
+            _httpFetcher.getAsync(_items, MIN_PAGE_FETCH_INTERVAL, this);
+        } catch (Throwable t) {
+            LOGGER.error("Exception while starting fetch", t);
+            batchFinished(0);
+        }
+    }
+
+    @Override
+    public void batchFinished(int numProcessed) {
+        try {
             // While we still have entries, we need to write them out to avoid losing them.
-            while (iter.hasNext()) {
-                ScoredUrlDatum item = iter.next();
+            for (int i = numProcessed; i < _items.size(); i++) {
+                ScoredUrlDatum item = _items.get(i);
                 FetchedDatum result = new FetchedDatum(item);
-                process.increment(FetchCounters.URLS_SKIPPED, 1);
+                _process.increment(FetchCounters.URLS_SKIPPED, 1);
                 AbortedFetchException status = new AbortedFetchException(item.getUrl(), AbortedFetchReason.INTERRUPTED);
                 
                 Tuple tuple = result.getTuple();
@@ -146,11 +109,57 @@ public class FetchTask implements Runnable {
                _fetchMgr.collect(tuple);
             }
         } catch (Throwable t) {
-            LOGGER.error("Exception while fetching", t);
+            LOGGER.error("Exception while skipping unfetched URLs", t);
         } finally {
             _fetchMgr.finished(_ref);
-            process.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
+            _process.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
         }
     }
 
+    @Override
+    public void fetchStarting(ScoredUrlDatum scoredUrl) {
+        _process.increment(FetchCounters.URLS_FETCHING, 1);
+    }
+
+    @Override
+    public void fetchSucceeded(ScoredUrlDatum scoredUrl, FetchedDatum result, long fetchTime) {
+        _process.decrement(FetchCounters.URLS_FETCHING, 1);
+
+        _process.increment(FetchCounters.FETCHED_TIME, (int)fetchTime);
+        _process.increment(FetchCounters.URLS_FETCHED, 1);
+        _process.increment(FetchCounters.FETCHED_BYTES, result.getContentLength());
+        _process.setStatus(Level.TRACE, "Fetched " + result);
+
+        // We use status as an extra field on the end of of FetchedDatum that lets
+        // us generate a full status pipe, and also a content pipe that only has
+        // entries which were fetched. By keying off the type (string == OK,
+        // BaseFetchException == bad) the FetchPipe can do this magic.
+        collect(result, UrlStatus.FETCHED.toString());
+        
+        // TODO - check keep-alive response (if present), and close the connection/delay
+        // for some amount of time if we exceed this limit.
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public void fetchFailed(ScoredUrlDatum scoredUrl, BaseFetchException e, long fetchTime) {
+        _process.decrement(FetchCounters.URLS_FETCHING, 1);
+
+        // TODO KKr - we'd have to do something special here for AbortedFetchException with
+        // the reason == INTERRUPTED, as we'd want to (a) increment URLS_SKIPPED, not failed,
+        // and we'd want to bail out of this loop (or set the interrupted flag)
+        LOGGER.info("Fetch exception while fetching " + scoredUrl.getUrl(), e);
+        _process.increment(FetchCounters.URLS_FAILED, 1);
+
+        // We can do this because each of the concrete subclasses of BaseFetchException implements
+        // WritableComparable
+        collect(new FetchedDatum(scoredUrl), (Comparable)e);
+    }
+    
+    @SuppressWarnings("rawtypes")
+    private void collect(FetchedDatum result, Comparable status) {
+        Tuple tuple = result.getTuple();
+        tuple.add(status);
+        _fetchMgr.collect(tuple);
+    }
 }
@@ -0,0 +1,29 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+/**
+ * Callback interface for BaseFetcher.getAsync(), which calls the IFetchListener
+ * methods (in order) for each URL in the batch, and then batchFinished() once
+ * no more URLs will be fetched.
+ *
+ */
+public interface IBatchFetchListener extends IFetchListener {
+    
+    public void batchFinished(int numProcessed);
+    
+}
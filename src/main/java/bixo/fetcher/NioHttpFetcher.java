@@ -0,0 +1,1227 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.TrustManager;
+
+import org.apache.http.Header;
+import org.apache.http.HttpException;
+import org.apache.http.HttpInetConnection;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.HttpVersion;
+import org.apache.http.NoHttpResponseException;
+import org.apache.http.conn.ConnectTimeoutException;
+import org.apache.http.impl.nio.DefaultClientIOEventDispatch;
+import org.apache.http.impl.nio.SSLClientIOEventDispatch;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.message.BasicHttpRequest;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.NHttpClientHandler;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.apache.http.protocol.HTTP;
+import org.apache.log4j.Logger;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.config.UserAgent;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.exceptions.UrlFetchException;
+import bixo.utils.BaseHostResolver;
+import bixo.utils.CachingHostResolver;
+import bixo.utils.EncodingUtils;
+import bixo.utils.EncodingUtils.ExpandedResult;
+import bixo.utils.HttpUtils;
+
+import com.bixolabs.cascading.Payload;
+
+/**
+ * Fetcher that uses non-blocking I/O (HttpCore NIO) for all socket traffic.
+ *
+ * All connections are multiplexed over a small, fixed number of I/O reactor threads.
+ * Host name lookups, fetch timeouts and content post-processing are handled by a
+ * small pool of worker threads, so nothing ever blocks a reactor thread.
+ *
+ * This fetcher supports getAsync(), which FetchBuffer uses to run fetch sets without
+ * tying up a thread per fetch set. In that case getMaxThreads() is the max number of
+ * fetch sets (and thus open connections) that are active at once, so it can be set
+ * much higher than would be reasonable with SimpleHttpFetcher. Calls to get() still
+ * block the calling thread, until the fetch is done or the fetch timeout has passed.
+ *
+ * The same FetcherPolicy settings (min response rate, max content size, redirect mode,
+ * valid mime-types) are applied, and the same BaseFetchException subclasses are thrown,
+ * so this can be used as a drop-in replacement for SimpleHttpFetcher in FetchPipe.
+ *
+ */
+@SuppressWarnings("serial")
+public class NioHttpFetcher extends BaseFetcher {
+    private static Logger LOGGER = Logger.getLogger(NioHttpFetcher.class);
+
+    private static final int DEFAULT_SOCKET_TIMEOUT = 30 * 1000;
+    private static final int DEFAULT_CONNECTION_TIMEOUT = 30 * 1000;
+
+    private static final int DEFAULT_MAX_THREADS = 1;
+
+    // Number of threads used by each reactor (one for http, one for https) to
+    // process I/O events.
+    private static final int DEFAULT_IO_THREAD_COUNT = 2;
+
+    // Number of threads used for host name lookups, timeouts, and running
+    // asynchronous batches.
+    private static final int DEFAULT_WORKER_THREAD_COUNT = 10;
+
+    private static final int BUFFER_SIZE = 8 * 1024;
+    private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
+
+    // Same values as SimpleHttpFetcher.
+    private static final String DEFAULT_ACCEPT = "text/html,application/xhtml+xml,application/xml;q=0.9,*/*;q=0.8";
+    private static final String DEFAULT_ACCEPT_CHARSET = "utf-8,ISO-8859-1;q=0.7,*;q=0.7";
+    private static final String DEFAULT_ACCEPT_ENCODING = "x-gzip, gzip";
+
+    // Key used to find the fetch state in the connection's context.
+    private static final String FETCH_STATE_CONTEXT_KEY = "bixo.fetch-state";
+
+    private static final String SSL_CONTEXT_NAMES[] = {
+        "TLS",
+        "Default",
+        "SSL",
+    };
+
+    private int _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
+    private int _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
+    private int _ioThreadCount = DEFAULT_IO_THREAD_COUNT;
+    private int _workerThreadCount = DEFAULT_WORKER_THREAD_COUNT;
+    private long _fetchTimeout;
+    private String _acceptEncoding = DEFAULT_ACCEPT_ENCODING;
+    private BaseHostResolver _hostResolver;
+
+    transient private ConnectingIOReactor _httpReactor;
+    transient private ConnectingIOReactor _httpsReactor;
+    transient private ScheduledExecutorService _workers;
+    transient private Set<FetchState> _activeFetches;
+    transient private Set<AsyncBatch> _activeBatches;
+
+    /**
+     * State for one call to get(), which can span multiple connections if
+     * redirects are being followed.
+     *
+     * Everything except await() is called from a reactor I/O thread (or from a
+     * worker thread, before the connection has been opened), and only one I/O event
+     * for a given connection is dispatched at a time.
+     */
+    private static class FetchState {
+        private final String _baseUrl;
+        private final Payload _payload;
+        private final AsyncBatch _batch;
+        private final CountDownLatch _done;
+        private final Set<URI> _visited;
+
+        private URI _uri;
+        private int _numRedirects;
+        private String _newBaseUrl;
+        private volatile SessionRequest _sessionRequest;
+        private volatile NHttpClientConnection _connection;
+        private volatile ScheduledFuture<?> _timeout;
+        private boolean _requestSubmitted;
+
+        private HttpHeaders _headers;
+        private String _contentType;
+        private String _mimeType;
+        private String _hostAddress;
+        private int _maxContentSize;
+        private int _targetLength;
+        private boolean _truncated;
+        private ByteArrayOutputStream _content;
+        private ByteBuffer _buffer;
+        private long _readStartTime;
+        private int _totalRead;
+        private int _readRequests;
+        private long _readRate;
+
+        private BaseFetchException _exception;
+        private boolean _completed;
+
+        public FetchState(String baseUrl, URI uri, Payload payload, AsyncBatch batch) {
+            _baseUrl = baseUrl;
+            _uri = uri;
+            _payload = payload;
+            _batch = batch;
+            _done = new CountDownLatch(1);
+            _visited = new HashSet<URI>();
+            _visited.add(uri);
+        }
+
+        public String getCurrentUrl() {
+            try {
+                return _uri.toURL().toExternalForm();
+            } catch (MalformedURLException e) {
+                return _uri.toString();
+            }
+        }
+
+        public synchronized boolean isDone() {
+            return _completed || (_exception != null);
+        }
+
+        /**
+         * Mark the fetch as successfully completed.
+         * 
+         * @return true if this call completed the fetch, false if it was already done.
+         */
+        public synchronized boolean complete() {
+            if (isDone()) {
+                return false;
+            }
+            
+            _completed = true;
+            _done.countDown();
+            return true;
+        }
+
+        /**
+         * Mark the fetch as failed.
+         * 
+         * @param e reason for the failure
+         * @return true if this call completed the fetch, false if it was already done.
+         */
+        public synchronized boolean fail(BaseFetchException e) {
+            if (isDone()) {
+                return false;
+            }
+            
+            _exception = e;
+            _done.countDown();
+            return true;
+        }
+
+        public boolean await(long timeout) throws InterruptedException {
+            return _done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * One call to getAsync(). Each step (starting the next fetch, or handling the
+     * result of the current fetch) runs as a separate task on a worker thread, so
+     * no thread is waiting on the batch while a request is in progress.
+     */
+    private class AsyncBatch implements Runnable {
+        private final List<ScoredUrlDatum> _scoredUrls;
+        private final long _minRequestInterval;
+        private final IBatchFetchListener _listener;
+
+        private int _numProcessed;
+        private long _fetchStartTime;
+        private volatile boolean _aborted;
+
+        public AsyncBatch(List<ScoredUrlDatum> scoredUrls, long minRequestInterval, IBatchFetchListener listener) {
+            _scoredUrls = scoredUrls;
+            _minRequestInterval = minRequestInterval;
+            _listener = listener;
+        }
+
+        public void abort() {
+            _aborted = true;
+        }
+
+        /**
+         * Start the next fetch, or let the listener know that we're all done.
+         */
+        @Override
+        public void run() {
+            if (_aborted || (_numProcessed >= _scoredUrls.size())) {
+                _activeBatches.remove(this);
+                _listener.batchFinished(_numProcessed);
+                return;
+            }
+
+            ScoredUrlDatum scoredUrl = _scoredUrls.get(_numProcessed);
+            _fetchStartTime = System.currentTimeMillis();
+
+            try {
+                _listener.fetchStarting(scoredUrl);
+                startFetch(scoredUrl.getUrl(), scoredUrl.getPayload(), this);
+            } catch (BaseFetchException e) {
+                fetchDone(null, e);
+            } catch (RuntimeException e) {
+                LOGGER.warn("Unexpected exception while fetching " + scoredUrl.getUrl(), e);
+                fetchDone(null, new IOFetchException(scoredUrl.getUrl(), new IOException(e)));
+            }
+        }
+
+        /**
+         * Called (on a worker thread) once the current fetch is done.
+         * 
+         * @param state fetch state, or null if the fetch never got started
+         * @param e exception if the fetch failed
+         */
+        public void fetchDone(FetchState state, BaseFetchException e) {
+            ScoredUrlDatum scoredUrl = _scoredUrls.get(_numProcessed);
+            long fetchTime = System.currentTimeMillis() - _fetchStartTime;
+
+            try {
+                if ((e == null) && (state._exception == null)) {
+                    FetchedDatum result = convert(makeResult(state));
+                    _listener.fetchSucceeded(scoredUrl, result, fetchTime);
+                } else {
+                    _listener.fetchFailed(scoredUrl, (e == null ? state._exception : e), fetchTime);
+                }
+            } catch (BaseFetchException e2) {
+                _listener.fetchFailed(scoredUrl, e2, fetchTime);
+            } catch (RuntimeException e2) {
+                LOGGER.warn("Unexpected exception while fetching " + scoredUrl.getUrl(), e2);
+                _listener.fetchFailed(scoredUrl, new IOFetchException(scoredUrl.getUrl(), new IOException(e2)), fetchTime);
+            } finally {
+                // Whatever happened, keep the batch moving, as otherwise the listener
+                // would never find out that we're done.
+                _numProcessed += 1;
+
+                // We want to avoid fetching faster than a max acceptable rate.
+                long delay = _minRequestInterval - (System.currentTimeMillis() - _fetchStartTime);
+                if ((_numProcessed < _scoredUrls.size()) && (delay > 0) && !_aborted) {
+                    _workers.schedule(this, delay, TimeUnit.MILLISECONDS);
+                } else {
+                    _workers.execute(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * Handler for all connection-level events generated by the I/O reactors.
+     *
+     */
+    private class FetchHandler implements NHttpClientHandler, SessionRequestCallback {
+
+        // =============== SessionRequestCallback methods ====================
+
+        @Override
+        public void completed(SessionRequest request) {
+            // Nothing to do - connected() will get called.
+        }
+
+        @Override
+        public void failed(SessionRequest request) {
+            FetchState state = (FetchState)request.getAttachment();
+            IOException e = request.getException();
+            finish(state, new IOFetchException(state.getCurrentUrl(), e == null ? new IOException("Connection failed") : e));
+        }
+
+        @Override
+        public void timeout(SessionRequest request) {
+            FetchState state = (FetchState)request.getAttachment();
+            finish(state, new IOFetchException(state.getCurrentUrl(), new ConnectTimeoutException("Connect to " + request.getRemoteAddress() + " timed out")));
+        }
+
+        @Override
+        public void cancelled(SessionRequest request) {
+            FetchState state = (FetchState)request.getAttachment();
+            finish(state, new AbortedFetchException(state.getCurrentUrl(), AbortedFetchReason.INTERRUPTED));
+        }
+
+        // =============== NHttpClientHandler methods ====================
+
+        @Override
+        public void connected(NHttpClientConnection conn, Object attachment) {
+            FetchState state = (FetchState)attachment;
+            conn.getContext().setAttribute(FETCH_STATE_CONTEXT_KEY, state);
+            state._connection = conn;
+
+            if (state.isDone()) {
+                safeClose(conn);
+            } else {
+                requestReady(conn);
+            }
+        }
+
+        @Override
+        public void requestReady(NHttpClientConnection conn) {
+            FetchState state = getState(conn);
+            if ((state == null) || state._requestSubmitted || conn.isRequestSubmitted()) {
+                return;
+            }
+
+            URI uri = state._uri;
+            String path = uri.getRawPath();
+            if ((path == null) || (path.length() == 0)) {
+                path = "/";
+            }
+
+            if (uri.getRawQuery() != null) {
+                path = path + "?" + uri.getRawQuery();
+            }
+
+            BasicHttpRequest request = new BasicHttpRequest("GET", path, HttpVersion.HTTP_1_1);
+            String host = uri.getHost();
+            if (uri.getPort() != -1) {
+                host = host + ":" + uri.getPort();
+            }
+
+            request.addHeader(HTTP.TARGET_HOST, host);
+            request.addHeader(HTTP.USER_AGENT, _userAgent.getUserAgentString());
+            request.addHeader(HttpHeaderNames.ACCEPT_LANGUAGE, _fetcherPolicy.getAcceptLanguage());
+            request.addHeader(HttpHeaderNames.ACCEPT_CHARSET, DEFAULT_ACCEPT_CHARSET);
+            if (_acceptEncoding != null) {
+                request.addHeader(HttpHeaderNames.ACCEPT_ENCODING, _acceptEncoding);
+            }
+            request.addHeader(HttpHeaderNames.ACCEPT, DEFAULT_ACCEPT);
+
+            // We don't reuse connections, so let the server know it can close it.
+            request.addHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+
+            try {
+                state._requestSubmitted = true;
+                conn.submitRequest(request);
+            } catch (IOException e) {
+                finish(state, new IOFetchException(state.getCurrentUrl(), e));
+            } catch (HttpException e) {
+                finish(state, new IOFetchException(state.getCurrentUrl(), new IOException(e)));
+            }
+        }
+
+        @Override
+        public void responseReceived(NHttpClientConnection conn) {
+            FetchState state = getState(conn);
+            if (state == null) {
+                safeClose(conn);
+                return;
+            }
+
+            try {
+                processResponse(conn, state);
+            } catch (BaseFetchException e) {
+                finish(state, e);
+            }
+        }
+
+        @Override
+        public void inputReady(NHttpClientConnection conn, ContentDecoder decoder) {
+            FetchState state = getState(conn);
+            if (state == null) {
+                safeClose(conn);
+                return;
+            }
+
+            try {
+                readContent(state, decoder);
+            } catch (IOException e) {
+                finish(state, new IOFetchException(state.getCurrentUrl(), e));
+            } catch (BaseFetchException e) {
+                finish(state, e);
+            }
+        }
+
+        @Override
+        public void outputReady(NHttpClientConnection conn, ContentEncoder encoder) {
+            // We never send a request entity.
+        }
+
+        @Override
+        public void exception(NHttpClientConnection conn, IOException e) {
+            FetchState state = getState(conn);
+            if (state != null) {
+                finish(state, new IOFetchException(state.getCurrentUrl(), e));
+            }
+
+            safeClose(conn);
+        }
+
+        @Override
+        public void exception(NHttpClientConnection conn, HttpException e) {
+            FetchState state = getState(conn);
+            if (state != null) {
+                finish(state, new IOFetchException(state.getCurrentUrl(), new IOException(e)));
+            }
+
+            safeClose(conn);
+        }
+
+        @Override
+        public void timeout(NHttpClientConnection conn) {
+            FetchState state = getState(conn);
+            if (state != null) {
+                finish(state, new IOFetchException(state.getCurrentUrl(), new SocketTimeoutException("Read timed out")));
+            }
+
+            safeClose(conn);
+        }
+
+        @Override
+        public void closed(NHttpClientConnection conn) {
+            FetchState state = getState(conn);
+            if (state != null) {
+                finish(state, new IOFetchException(state.getCurrentUrl(), new NoHttpResponseException("The target server failed to respond")));
+            }
+        }
+
+        /**
+         * Return the fetch state for a connection, or null if the connection
+         * is no longer the active connection for a fetch that's still running.
+         */
+        private FetchState getState(NHttpClientConnection conn) {
+            FetchState state = (FetchState)conn.getContext().getAttribute(FETCH_STATE_CONTEXT_KEY);
+            if ((state == null) || (state._connection != conn) || state.isDone()) {
+                return null;
+            } else {
+                return state;
+            }
+        }
+    }
+
+    /**
+     * Thread factory for reactor and worker threads. These are daemon threads, so
+     * that an unused fetcher doesn't keep the JVM alive.
+     */
+    private static class DaemonThreadFactory implements ThreadFactory {
+        private static final AtomicInteger COUNTER = new AtomicInteger();
+
+        private String _name;
+
+        public DaemonThreadFactory(String name) {
+            _name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, String.format("%s-%d", _name, COUNTER.incrementAndGet()));
+            result.setDaemon(true);
+            return result;
+        }
+    }
+
+    public NioHttpFetcher(UserAgent userAgent) {
+        this(DEFAULT_MAX_THREADS, userAgent);
+    }
+
+    public NioHttpFetcher(int maxThreads, UserAgent userAgent) {
+        this(maxThreads, new FetcherPolicy(), userAgent);
+    }
+
+    public NioHttpFetcher(int maxThreads, FetcherPolicy fetcherPolicy, UserAgent userAgent) {
+        super(maxThreads, fetcherPolicy, userAgent);
+
+        _fetchTimeout = fetcherPolicy.getRequestTimeout();
+        _hostResolver = new CachingHostResolver();
+
+        // Just to be explicit, we rely on lazy initialization of the reactors so that
+        // we don't have to worry about serializing them.
+        _httpReactor = null;
+        _httpsReactor = null;
+    }
+
+    public int getSocketTimeout() {
+        return _socketTimeout;
+    }
+
+    public void setSocketTimeout(int socketTimeoutInMs) {
+        if (_httpReactor == null) {
+            _socketTimeout = socketTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change socket timeout after reactor has been initialized");
+        }
+    }
+
+    public int getConnectionTimeout() {
+        return _connectionTimeout;
+    }
+
+    public void setConnectionTimeout(int connectionTimeoutInMs) {
+        if (_httpReactor == null) {
+            _connectionTimeout = connectionTimeoutInMs;
+        } else {
+            throw new IllegalStateException("Can't change connection timeout after reactor has been initialized");
+        }
+    }
+
+    public int getIoThreadCount() {
+        return _ioThreadCount;
+    }
+
+    public void setIoThreadCount(int ioThreadCount) {
+        if (_httpReactor == null) {
+            _ioThreadCount = ioThreadCount;
+        } else {
+            throw new IllegalStateException("Can't change I/O thread count after reactor has been initialized");
+        }
+    }
+
+    public int getWorkerThreadCount() {
+        return _workerThreadCount;
+    }
+
+    public void setWorkerThreadCount(int workerThreadCount) {
+        if (_httpReactor == null) {
+            _workerThreadCount = workerThreadCount;
+        } else {
+            throw new IllegalStateException("Can't change worker thread count after reactor has been initialized");
+        }
+    }
+
+    public long getFetchTimeout() {
+        return _fetchTimeout;
+    }
+
+    /**
+     * Set the max time for one fetch (including redirects), after which it fails with
+     * an IOFetchException. Defaults to the FetcherPolicy's request timeout.
+     *
+     * @param fetchTimeoutInMs max fetch time, in milliseconds
+     */
+    public void setFetchTimeout(long fetchTimeoutInMs) {
+        _fetchTimeout = fetchTimeoutInMs;
+    }
+
+    public BaseHostResolver getHostResolver() {
+        return _hostResolver;
+    }
+
+    /**
+     * Set the resolver used to look up host names, which is always called from a
+     * worker thread. Defaults to a CachingHostResolver.
+     *
+     * @param hostResolver resolver for host names
+     */
+    public void setHostResolver(BaseHostResolver hostResolver) {
+        _hostResolver = hostResolver;
+    }
+
+    /**
+     * Return the current value used for the ACCEPT-ENCODING request parameter.
+     *
+     * @return value, or null if none is set.
+     */
+    public String getAcceptEncoding() {
+        return _acceptEncoding;
+    }
+
+    public void setAcceptEncoding(String acceptEncoding) {
+        _acceptEncoding = acceptEncoding;
+    }
+
+    @Override
+    public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
+        init();
+
+        String url = scoredUrl.getUrl();
+        try {
+            return convert(doRequest(url, scoredUrl.getPayload()));
+        } catch (HttpFetchException e) {
+            // Don't bother generating a trace for a 404 (not found)
+            if (LOGGER.isTraceEnabled() && (e.getHttpStatus() != HttpStatus.SC_NOT_FOUND)) {
+                LOGGER.trace(String.format("Exception fetching %s (%s)", url, e.getMessage()));
+            }
+
+            throw e;
+        } catch (AbortedFetchException e) {
+            // Don't bother reporting that we bailed because the mime-type wasn't one that we wanted.
+            if (e.getAbortReason() != AbortedFetchReason.INVALID_MIMETYPE) {
+                LOGGER.debug(String.format("Exception fetching %s (%s)", url, e.getMessage()));
+            }
+            throw e;
+        } catch (BaseFetchException e) {
+            LOGGER.debug(String.format("Exception fetching %s (%s)", url, e.getMessage()));
+            throw e;
+        }
+    }
+
+    @Override
+    public boolean isAsynchronous() {
+        return true;
+    }
+
+    @Override
+    public void getAsync(List<ScoredUrlDatum> scoredUrls, long minRequestInterval, IBatchFetchListener listener) throws BaseFetchException {
+        init();
+
+        AsyncBatch batch = new AsyncBatch(scoredUrls, minRequestInterval, listener);
+        _activeBatches.add(batch);
+        _workers.execute(batch);
+    }
+
+    @Override
+    public void abort() {
+        if (_activeFetches == null) {
+            return;
+        }
+
+        // Stop batches before aborting their current fetch, so they don't start another one.
+        for (AsyncBatch batch : _activeBatches) {
+            batch.abort();
+        }
+
+        for (FetchState state : _activeFetches) {
+            finish(state, new AbortedFetchException(state._baseUrl, AbortedFetchReason.INTERRUPTED));
+        }
+    }
+
+    private static FetchedDatum convert(FetchedResult result) {
+        FetchedDatum datum = new FetchedDatum(result.getBaseUrl(), result.getFetchedUrl(), result.getFetchTime(),
+                        result.getHeaders(), result.getContentBytes(), result.getContentType(),
+                        result.getResponseRate());
+        datum.setNewBaseUrl(result.getNewBaseUrl());
+        datum.setNumRedirects(result.getNumRedirects());
+        datum.setHostAddress(result.getHostAddress());
+        datum.setPayload(result.getPayload());
+        return datum;
+    }
+
+    private FetchedResult doRequest(String url, Payload payload) throws BaseFetchException {
+        FetchState state = startFetch(url, payload, null);
+
+        try {
+            if (!state.await(_fetchTimeout)) {
+                finish(state, makeTimeoutException(state));
+            }
+        } catch (InterruptedException e) {
+            finish(state, new AbortedFetchException(url, AbortedFetchReason.INTERRUPTED));
+            Thread.currentThread().interrupt();
+        }
+
+        if (state._exception != null) {
+            throw state._exception;
+        }
+
+        return makeResult(state);
+    }
+
+    /**
+     * Start fetching <url>. This resolves the host name, so it must not be called
+     * from a reactor thread. Once the fetch is done, the state's latch is released,
+     * and if the fetch is part of a batch then the batch gets called (on a worker thread).
+     *
+     * @param url URL to fetch
+     * @param payload payload for the fetch
+     * @param batch batch that the fetch is part of, or null
+     * @return fetch state
+     * @throws BaseFetchException if the URL is invalid
+     */
+    private FetchState startFetch(String url, Payload payload, AsyncBatch batch) throws BaseFetchException {
+        LOGGER.trace("Fetching " + url);
+
+        URI uri;
+        try {
+            uri = new URI(url);
+        } catch (URISyntaxException e) {
+            throw new UrlFetchException(url, e.getMessage());
+        }
+
+        final FetchState state = new FetchState(url, uri, payload, batch);
+        _activeFetches.add(state);
+
+        // Calls to get() do their own timing out, but nobody is waiting on a batch.
+        if (batch != null) {
+            state._timeout = _workers.schedule(new Runnable() {
+
+                @Override
+                public void run() {
+                    finish(state, makeTimeoutException(state));
+                }
+            }, _fetchTimeout, TimeUnit.MILLISECONDS);
+        }
+
+        try {
+            connect(state);
+        } catch (BaseFetchException e) {
+            finish(state, e);
+        }
+
+        return state;
+    }
+
+    private IOFetchException makeTimeoutException(FetchState state) {
+        return new IOFetchException(state.getCurrentUrl(), new SocketTimeoutException("Fetch didn't complete within " + _fetchTimeout + "ms"));
+    }
+
+    /**
+     * Resolve the host name for the state's current URI, and then open a connection
+     * to it. The lookup can block, so this must not be called from a reactor thread.
+     *
+     * @param state fetch state
+     * @throws BaseFetchException
+     */
+    private void connect(FetchState state) throws BaseFetchException {
+        int port = getPort(state);
+        String host = state._uri.getHost();
+
+        String hostAddress;
+        try {
+            hostAddress = _hostResolver.resolve(host);
+        } catch (UnknownHostException e) {
+            throw new IOFetchException(state.getCurrentUrl(), new IOException("Unknown host: " + host));
+        }
+
+        // Creating a socket address from an IP address doesn't do any lookup.
+        connect(state, new InetSocketAddress(hostAddress, port));
+    }
+
+    /**
+     * Open a connection to <address> for the state's current URI. Once connected,
+     * the request gets submitted by the FetchHandler.
+     *
+     * @param state fetch state
+     * @param address resolved address of the server
+     * @throws BaseFetchException
+     */
+    private void connect(FetchState state, InetSocketAddress address) throws BaseFetchException {
+        ConnectingIOReactor reactor = state._uri.getScheme().equalsIgnoreCase("https") ? _httpsReactor : _httpReactor;
+        SessionRequest request = reactor.connect(address, null, state, new FetchHandler());
+        request.setConnectTimeout(_connectionTimeout);
+        state._sessionRequest = request;
+
+        // If the fetch was aborted or timed out while we were connecting, finish()
+        // might not have seen the session request.
+        if (state.isDone()) {
+            request.cancel();
+        }
+    }
+
+    /**
+     * Start connecting to the state's current URI from a worker thread, so that the
+     * host name lookup doesn't block the calling (reactor) thread.
+     *
+     * @param state fetch state
+     */
+    private void connectFromWorker(final FetchState state) {
+        _workers.execute(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    connect(state);
+                } catch (BaseFetchException e) {
+                    finish(state, e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Return the port for the state's current URI.
+     *
+     * @param state fetch state
+     * @return port number
+     * @throws BaseFetchException if the URI or its protocol isn't supported.
+     */
+    private int getPort(FetchState state) throws BaseFetchException {
+        URI uri = state._uri;
+        String scheme = uri.getScheme();
+        if ((scheme == null) || (uri.getHost() == null)) {
+            throw new UrlFetchException(state.getCurrentUrl(), "Invalid URL");
+        }
+
+        int port = uri.getPort();
+        if (scheme.equalsIgnoreCase("http")) {
+            return (port == -1 ? 80 : port);
+        } else if (scheme.equalsIgnoreCase("https") && (_httpsReactor != null)) {
+            return (port == -1 ? 443 : port);
+        } else {
+            throw new UrlFetchException(state.getCurrentUrl(), "Unsupported protocol: " + scheme);
+        }
+    }
+
+    /**
+     * Handle the response headers, which might be a redirect that we need to follow.
+     *
+     * @param conn connection that received the response
+     * @param state fetch state
+     * @throws BaseFetchException
+     */
+    private void processResponse(NHttpClientConnection conn, FetchState state) throws BaseFetchException {
+        HttpResponse response = conn.getHttpResponse();
+
+        HttpHeaders headerMap = new HttpHeaders();
+        for (Header header : response.getAllHeaders()) {
+            headerMap.add(header.getName(), header.getValue());
+        }
+
+        if (conn instanceof HttpInetConnection) {
+            state._hostAddress = ((HttpInetConnection)conn).getRemoteAddress().getHostAddress();
+        }
+
+        int httpStatus = response.getStatusLine().getStatusCode();
+        if (isRedirect(httpStatus) && (_fetcherPolicy.getMaxRedirects() > 0) && (headerMap.getFirst(HttpHeaderNames.LOCATION) != null)) {
+            followRedirect(conn, state, httpStatus, headerMap.getFirst(HttpHeaderNames.LOCATION));
+            return;
+        }
+
+        if ((httpStatus < 200) || (httpStatus >= 300)) {
+            // We can't just check against SC_OK, as some wackos return 201, 202, etc
+            throw new HttpFetchException(state._baseUrl, "Error fetching " + state._baseUrl, httpStatus, headerMap);
+        }
+
+        String contentType = headerMap.getFirst(HttpHeaderNames.CONTENT_TYPE);
+        state._contentType = (contentType == null ? "" : contentType);
+        state._mimeType = HttpUtils.getMimeTypeFromContentType(state._contentType);
+
+        // Same mime-type filtering as SimpleHttpFetcher, so a missing content-type will
+        // fail unless "" is one of the valid mime-types.
+        Set<String> mimeTypes = _fetcherPolicy.getValidMimeTypes();
+        if ((mimeTypes != null) && (mimeTypes.size() > 0)) {
+            if (!mimeTypes.contains(state._mimeType)) {
+                throw new AbortedFetchException(state._baseUrl, "Invalid mime-type: " + state._mimeType, AbortedFetchReason.INVALID_MIMETYPE);
+            }
+        }
+
+        state._headers = headerMap;
+
+        // Same as SimpleHttpFetcher, the response rate only covers reading the content,
+        // not waiting for a connection or the response headers.
+        state._readStartTime = System.currentTimeMillis();
+
+        // Figure out how much data we want to try to fetch.
+        state._maxContentSize = getMaxContentSize(state._mimeType);
+        state._targetLength = state._maxContentSize;
+        String contentLengthStr = headerMap.getFirst(HttpHeaderNames.CONTENT_LENGTH);
+        if (contentLengthStr != null) {
+            try {
+                int contentLength = Integer.parseInt(contentLengthStr);
+                if (contentLength > state._targetLength) {
+                    state._truncated = true;
+                } else {
+                    state._targetLength = contentLength;
+                }
+            } catch (NumberFormatException e) {
+                // Ignore (and log) invalid content length values.
+                LOGGER.warn("Invalid content length in header: " + contentLengthStr);
+            }
+        }
+
+        state._content = new ByteArrayOutputStream(Math.min(DEFAULT_BYTEARRAY_SIZE, Math.max(0, state._targetLength)));
+
+        // Note that entity will be null for responses that can't have a body.
+        if ((response.getEntity() == null) || (state._targetLength <= 0)) {
+            finish(state, null);
+        }
+    }
+
+    private void readContent(FetchState state, ContentDecoder decoder) throws IOException, BaseFetchException {
+        if (state._buffer == null) {
+            state._buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        }
+
+        ByteBuffer buffer = state._buffer;
+        int minResponseRate = _fetcherPolicy.getMinResponseRate();
+        int bytesRead;
+
+        while ((state._totalRead < state._targetLength) && ((bytesRead = decoder.read(buffer)) > 0)) {
+            int bytesToKeep = Math.min(bytesRead, state._targetLength - state._totalRead);
+            state._content.write(buffer.array(), 0, bytesToKeep);
+            buffer.clear();
+
+            state._readRequests += 1;
+            state._totalRead += bytesToKeep;
+
+            // Assume read time is at least one millisecond, to avoid DBZ exception.
+            long totalReadTime = Math.max(1, System.currentTimeMillis() - state._readStartTime);
+            state._readRate = (state._totalRead * 1000L) / totalReadTime;
+
+            // Don't bail on the first read cycle, as we can get a hiccup starting out.
+            // Also don't bail if we've read everything we need.
+            if ((state._readRequests > 1) && (state._totalRead < state._targetLength) && (state._readRate < minResponseRate)) {
+                throw new AbortedFetchException(state._baseUrl, "Slow response rate of " + state._readRate + " bytes/sec", AbortedFetchReason.SLOW_RESPONSE_RATE);
+            }
+        }
+
+        if (decoder.isCompleted() || (state._totalRead >= state._targetLength)) {
+            finish(state, null);
+        }
+    }
+
+    private void followRedirect(NHttpClientConnection conn, FetchState state, int httpStatus, String location) throws BaseFetchException {
+        String url = state.getCurrentUrl();
+        URI redirectUri;
+        try {
+            redirectUri = state._uri.resolve(new URI(location.trim()));
+        } catch (URISyntaxException e) {
+            throw new UrlFetchException(url, "Invalid redirect location: " + location);
+        }
+
+        // Same hack as in SimpleHttpFetcher - some sites return a redirect with an explicit
+        // port number that's the same as the default port, which then triggers a circular
+        // redirect error.
+        if ("http".equalsIgnoreCase(redirectUri.getScheme()) && (redirectUri.getPort() == 80)) {
+            try {
+                redirectUri = new URI(redirectUri.getScheme(), redirectUri.getUserInfo(), redirectUri.getHost(), -1, redirectUri.getPath(), redirectUri.getQuery(), redirectUri.getFragment());
+            } catch (URISyntaxException e) {
+                LOGGER.warn("Unexpected exception removing port from URI", e);
+            }
+        }
+
+        String redirectUrl;
+        try {
+            redirectUrl = redirectUri.toURL().toExternalForm();
+        } catch (Exception e) {
+            throw new UrlFetchException(url, "Invalid redirect location: " + location);
+        }
+
+        boolean isPermRedirect = (httpStatus == HttpStatus.SC_MOVED_PERMANENTLY);
+        RedirectMode redirectMode = _fetcherPolicy.getRedirectMode();
+        if ((redirectMode == RedirectMode.FOLLOW_NONE) ||
+            ((redirectMode == RedirectMode.FOLLOW_TEMP) && isPermRedirect)) {
+            RedirectExceptionReason reason = isPermRedirect ? RedirectExceptionReason.PERM_REDIRECT_DISALLOWED :
+                RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED;
+            throw new RedirectFetchException(state._baseUrl, redirectUrl, reason);
+        }
+
+        if ((state._numRedirects >= _fetcherPolicy.getMaxRedirects()) || !state._visited.add(redirectUri)) {
+            throw new RedirectFetchException(state._baseUrl, url, RedirectExceptionReason.TOO_MANY_REDIRECTS);
+        }
+
+        state._numRedirects += 1;
+        if (isPermRedirect) {
+            state._newBaseUrl = redirectUrl;
+        }
+
+        // Drop the current connection (we asked for it to be closed anyway), and start
+        // over with the new target. If that's the same server, we can reuse its address,
+        // otherwise the lookup has to be done by a worker thread, as we're being called
+        // from a reactor thread.
+        URI oldUri = state._uri;
+        state._uri = redirectUri;
+        state._requestSubmitted = false;
+        state._connection = null;
+        safeClose(conn);
+
+        int port = getPort(state);
+        if ((conn instanceof HttpInetConnection) && isSameServer(oldUri, redirectUri)) {
+            connect(state, new InetSocketAddress(((HttpInetConnection)conn).getRemoteAddress(), port));
+        } else {
+            connectFromWorker(state);
+        }
+    }
+
+    private static boolean isSameServer(URI uri1, URI uri2) {
+        return uri1.getScheme().equalsIgnoreCase(uri2.getScheme())
+            && uri1.getHost().equalsIgnoreCase(uri2.getHost())
+            && (uri1.getPort() == uri2.getPort());
+    }
+
+    private static boolean isRedirect(int httpStatus) {
+        return (httpStatus == HttpStatus.SC_MOVED_PERMANENTLY)
+            || (httpStatus == HttpStatus.SC_MOVED_TEMPORARILY)
+            || (httpStatus == HttpStatus.SC_SEE_OTHER)
+            || (httpStatus == HttpStatus.SC_TEMPORARY_REDIRECT);
+    }
+
+    /**
+     * Mark the fetch as done (either successfully, if e is null, or with the
+     * exception), and close down the active connection. If the fetch is part
+     * of a batch, the batch then handles the result on a worker thread.
+     *
+     * @param state fetch state
+     * @param e exception, or null if the fetch completed normally.
+     */
+    private void finish(final FetchState state, BaseFetchException e) {
+        boolean finished = (e == null) ? state.complete() : state.fail(e);
+
+        NHttpClientConnection conn = state._connection;
+        if (conn != null) {
+            safeClose(conn);
+        } else if (state._sessionRequest != null) {
+            state._sessionRequest.cancel();
+        }
+
+        if (finished) {
+            _activeFetches.remove(state);
+
+            ScheduledFuture<?> timeout = state._timeout;
+            if (timeout != null) {
+                timeout.cancel(false);
+            }
+
+            final AsyncBatch batch = state._batch;
+            if (batch != null) {
+                _workers.execute(new Runnable() {
+
+                    @Override
+                    public void run() {
+                        batch.fetchDone(state, null);
+                    }
+                });
+            }
+        }
+    }
+
+    /**
+     * Do the same post-processing of the content as SimpleHttpFetcher, once all of
+     * the data has been read.
+     *
+     * @param state completed fetch
+     * @return fetch result
+     * @throws BaseFetchException
+     */
+    private FetchedResult makeResult(FetchState state) throws BaseFetchException {
+        String url = state._baseUrl;
+        String mimeType = state._mimeType;
+        boolean truncated = state._truncated;
+        byte[] content = state._content.toByteArray();
+
+        // Toss truncated image content.
+        if (truncated && !isTextMimeType(mimeType)) {
+            throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
+        }
+
+        // Now see if we need to uncompress the content.
+        String contentEncoding = state._headers.getFirst(HttpHeaderNames.CONTENT_ENCODING);
+        if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+            if (truncated) {
+                throw new AbortedFetchException(url, "Truncated compressed data", AbortedFetchReason.CONTENT_SIZE);
+            }
+
+            try {
+                ExpandedResult expandedResult = EncodingUtils.processGzipEncoded(content, state._maxContentSize);
+                if (expandedResult.isTruncated() && !isTextMimeType(mimeType)) {
+                    throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
+                }
+
+                content = expandedResult.getExpanded();
+            } catch (IOException e) {
+                throw new IOFetchException(url, e);
+            }
+        }
+
+        if (state._hostAddress == null) {
+            throw new UrlFetchException(url, "Host address not saved in context");
+        }
+
+        return new FetchedResult(   url,
+                                    state.getCurrentUrl(),
+                                    System.currentTimeMillis(),
+                                    state._headers,
+                                    content,
+                                    state._contentType,
+                                    (int)state._readRate,
+                                    state._payload,
+                                    state._newBaseUrl,
+                                    state._numRedirects,
+                                    state._hostAddress);
+    }
+
+    private static void safeClose(NHttpClientConnection conn) {
+        try {
+            conn.close();
+        } catch (Exception e) {
+            // Ignore any errors
+        }
+    }
+
+    private synchronized void init() throws BaseFetchException {
+        if (_httpReactor == null) {
+            HttpParams params = new BasicHttpParams();
+            HttpConnectionParams.setSoTimeout(params, _socketTimeout);
+            HttpConnectionParams.setConnectionTimeout(params, _connectionTimeout);
+            HttpConnectionParams.setSocketBufferSize(params, BUFFER_SIZE);
+            HttpConnectionParams.setStaleCheckingEnabled(params, false);
+            HttpConnectionParams.setTcpNoDelay(params, true);
+
+            _activeFetches = Collections.newSetFromMap(new ConcurrentHashMap<FetchState, Boolean>());
+            _activeBatches = Collections.newSetFromMap(new ConcurrentHashMap<AsyncBatch, Boolean>());
+            _workers = new ScheduledThreadPoolExecutor(_workerThreadCount, new DaemonThreadFactory("NioHttpFetcher-worker"));
+            FetchHandler handler = new FetchHandler();
+
+            SSLContext sslContext = null;
+            for (String contextName : SSL_CONTEXT_NAMES) {
+                try {
+                    sslContext = SSLContext.getInstance(contextName);
+                    sslContext.init(null, new TrustManager[] { new DummyX509TrustManager(null) }, null);
+                    break;
+                } catch (NoSuchAlgorithmException e) {
+                    LOGGER.debug("SSLContext algorithm not available: " + contextName);
+                    sslContext = null;
+                } catch (Exception e) {
+                    LOGGER.debug("SSLContext can't be initialized: " + contextName, e);
+                    sslContext = null;
+                }
+            }
+
+            try {
+                _httpReactor = startReactor("http", new DefaultClientIOEventDispatch(handler, params), params);
+
+                if (sslContext != null) {
+                    _httpsReactor = startReactor("https", new SSLClientIOEventDispatch(handler, sslContext, params), params);
+                } else {
+                    LOGGER.warn("No valid SSLContext found for https");
+                }
+            } catch (IOException e) {
+                throw new IOFetchException("", e);
+            }
+        }
+    }
+
+    private ConnectingIOReactor startReactor(final String name, final IOEventDispatch dispatch, HttpParams params) throws IOException {
+        final DefaultConnectingIOReactor reactor = new DefaultConnectingIOReactor(_ioThreadCount, new DaemonThreadFactory("NioHttpFetcher-" + name + "-io"), params);
+
+        Thread reactorThread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    reactor.execute(dispatch);
+                } catch (Exception e) {
+                    LOGGER.error("I/O reactor for " + name + " terminated unexpectedly", e);
+                }
+
+                // Anything still waiting on this reactor is never going to complete.
+                abort();
+            }
+        }, "NioHttpFetcher-" + name + "-dispatch");
+
+        reactorThread.setDaemon(true);
+        reactorThread.start();
+        return reactor;
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks when each server (grouping ref) can next be fetched from, and lets the
+ * thread that's dispatching fetch sets wait until either the next server is due,
+ * or it gets woken up because a fetch task finished (which can make a server
+ * ready sooner, and frees up a fetch thread).
+ *
+ * A ref is in one of three states:
+ *
+ * - unknown: it's never been fetched from, or it's done. It's ready now.
+ * - active: a fetch task is working on it, so it's not ready.
+ * - pending: it's waiting for the crawl delay to expire.
+ *
+ */
+public class PolitenessScheduler {
+
+    // Fetch time for a ref that's currently being fetched.
+    public static final long ACTIVE_FETCH_TIME = Long.MAX_VALUE;
+
+    private static class RefState {
+        private final boolean _active;
+        private final long _nextFetchTime;
+
+        public RefState(boolean active, long nextFetchTime) {
+            _active = active;
+            _nextFetchTime = nextFetchTime;
+        }
+    }
+
+    private ConcurrentHashMap<String, RefState> _refs;
+    private Object _lock;
+    private boolean _wakeupPending;
+
+    public PolitenessScheduler() {
+        _refs = new ConcurrentHashMap<String, RefState>();
+        _lock = new Object();
+        _wakeupPending = false;
+    }
+
+    /**
+     * Return the time when <ref> can next be fetched. This is 0 for a ref we
+     * don't know about, and ACTIVE_FETCH_TIME for a ref that's being fetched.
+     *
+     * @param ref grouping ref
+     * @return time (in milliseconds) when we can fetch from <ref>.
+     */
+    public long getFetchTime(String ref) {
+        RefState state = _refs.get(ref);
+        if (state == null) {
+            return 0;
+        } else if (state._active) {
+            return ACTIVE_FETCH_TIME;
+        } else {
+            return state._nextFetchTime;
+        }
+    }
+
+    public boolean isReady(String ref) {
+        return getFetchTime(ref) <= System.currentTimeMillis();
+    }
+
+    public boolean isActive(String ref) {
+        return getFetchTime(ref) == ACTIVE_FETCH_TIME;
+    }
+
+    /**
+     * Make <ref> active, removing from pending if necessary.
+     *
+     * @param ref grouping ref
+     * @param nextFetchTime time when <ref> can be fetched after it's finished, or
+     *        0 if this is the last batch.
+     */
+    public void makeActive(String ref, long nextFetchTime) {
+        synchronized (_lock) {
+            _refs.put(ref, new RefState(true, nextFetchTime));
+        }
+    }
+
+    /**
+     * Push out the next fetch time for an active ref by <deltaTime>.
+     *
+     * @param ref grouping ref
+     * @param deltaTime time to add, in milliseconds
+     */
+    public void adjustActive(String ref, long deltaTime) {
+        synchronized (_lock) {
+            RefState state = _refs.get(ref);
+            if ((state != null) && state._active && (state._nextFetchTime != 0) && (deltaTime != 0)) {
+                _refs.put(ref, new RefState(true, state._nextFetchTime + deltaTime));
+            }
+        }
+    }
+
+    /**
+     * Mark <ref> as no longer active. The caller should call wakeUp() once it's
+     * done with any other work (e.g. re-sorting queued fetch sets) that needs to
+     * happen before the waiting thread tries again.
+     *
+     * @param ref grouping ref
+     * @return time when <ref> can be fetched again, or 0 if it's done.
+     */
+    public long finished(String ref) {
+        synchronized (_lock) {
+            RefState state = _refs.get(ref);
+            if ((state == null) || !state._active) {
+                throw new RuntimeException("finished called on non-active ref: " + ref);
+            }
+
+            // If there's going to be more to fetch, put it back in the pending pool.
+            if (state._nextFetchTime != 0) {
+                _refs.put(ref, new RefState(false, state._nextFetchTime));
+            } else {
+                _refs.remove(ref);
+            }
+
+            return state._nextFetchTime;
+        }
+    }
+
+    /**
+     * Wake up the thread in waitUntil(), or if nobody is waiting, make the next
+     * call to waitUntil() return immediately.
+     */
+    public void wakeUp() {
+        synchronized (_lock) {
+            _wakeupPending = true;
+            _lock.notifyAll();
+        }
+    }
+
+    /**
+     * Wait until <wakeTime>, or until wakeUp() is called, or until <maxWait>
+     * milliseconds have passed, whichever comes first. If wakeUp() was called
+     * since the last call, return immediately.
+     *
+     * @param wakeTime time (in milliseconds) when something will be ready
+     * @param maxWait max time to wait, in milliseconds
+     * @return true if we woke up because wakeUp() was called.
+     * @throws InterruptedException
+     */
+    public boolean waitUntil(long wakeTime, long maxWait) throws InterruptedException {
+        long now = System.currentTimeMillis();
+        long endTime = Math.min(wakeTime, now + maxWait);
+
+        synchronized (_lock) {
+            while (!_wakeupPending && (now < endTime)) {
+                _lock.wait(endTime - now);
+                now = System.currentTimeMillis();
+            }
+
+            boolean result = _wakeupPending;
+            _wakeupPending = false;
+            return result;
+        }
+    }
+}
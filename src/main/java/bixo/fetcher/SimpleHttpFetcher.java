@@ -16,16 +16,18 @@
  */
 package bixo.fetcher;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
+import java.security.InvalidParameterException;
 import java.security.NoSuchAlgorithmException;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.TimeUnit;
 
@@ -78,6 +80,7 @@ import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
 import org.apache.http.protocol.BasicHttpContext;
 import org.apache.http.protocol.ExecutionContext;
+import org.apache.http.protocol.HTTP;
 import org.apache.http.protocol.HttpContext;
 import org.apache.log4j.Logger;
 
@@ -96,8 +99,8 @@ import bixo.exceptions.IOFetchException;
 import bixo.exceptions.RedirectFetchException;
 import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
 import bixo.exceptions.UrlFetchException;
+import bixo.utils.BufferPool;
 import bixo.utils.EncodingUtils;
-import bixo.utils.EncodingUtils.ExpandedResult;
 import bixo.utils.HttpUtils;
 
 import com.bixolabs.cascading.Payload;
@@ -124,6 +127,10 @@ public class SimpleHttpFetcher extends BaseFetcher {
     
     private static final int DEFAULT_BYTEARRAY_SIZE = 32 * 1024;
     
+    // Content buffers bigger than this don't get put back in the pool, so that a few
+    // huge responses don't pin a lot of memory.
+    private static final int MAX_POOLED_BYTEARRAY_SIZE = 1024 * 1024;
+    
     // Use the same values as Firefox (except that we don't accept deflate,
     // which we're not sure is implemented correctly - see the notes in
     // EncodingUtils/EncodingUtilsTest for more details).
@@ -142,20 +149,17 @@ public class SimpleHttpFetcher extends BaseFetcher {
         "SSL",
     };
     
-    private static final String TEXT_MIME_TYPES[] = {
-        "text/html",
-        "application/x-asp",
-        "application/xhtml+xml",
-        "application/vnd.wap.xhtml+xml",
-    };
-
     private HttpVersion _httpVersion = HttpVersion.HTTP_1_1;
     private int _socketTimeout = DEFAULT_SOCKET_TIMEOUT;
     private int _connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
     private int _maxRetryCount = DEFAULT_MAX_RETRY_COUNT;
     private String _acceptEncoding = DEFAULT_ACCEPT_ENCODING;
+    private int _contentSpillThreshold = SpillableOutputStream.NO_SPILL_THRESHOLD;
+    private String _contentSpillDir = null;
     
     transient private DefaultHttpClient _httpClient;
+    transient private BufferPool _readBufferPool;
+    transient private BufferPool _contentBufferPool;
     
     private static class MyRequestRetryHandler implements HttpRequestRetryHandler {
         private int _maxRetryCount;
@@ -380,9 +384,66 @@ public class SimpleHttpFetcher extends BaseFetcher {
         }
     }
     
+    public int getContentSpillThreshold() {
+        return _contentSpillThreshold;
+    }
+    
+    /**
+     * Set the content size (in bytes) above which the body of a response gets streamed
+     * to a spill file, versus being held in memory. The resulting FetchedDatum has a
+     * ContentBytes that only loads the content if it's actually needed, and which
+     * streams the file directly when the datum is serialized. FetchBuffer deletes the
+     * spill file once the datum has been output, but other callers of get() need to
+     * call ContentBytes.releaseSpillFile() themselves.
+     * 
+     * By default content is never spilled.
+     * 
+     * @param contentSpillThreshold size in bytes, or SpillableOutputStream.NO_SPILL_THRESHOLD
+     */
+    public void setContentSpillThreshold(int contentSpillThreshold) {
+        if (contentSpillThreshold < 0) {
+            throw new InvalidParameterException("Content spill threshold can't be negative: " + contentSpillThreshold);
+        }
+        
+        _contentSpillThreshold = contentSpillThreshold;
+    }
+    
+    public String getContentSpillDir() {
+        return _contentSpillDir;
+    }
+    
+    /**
+     * Set the directory used for content spill files.
+     * 
+     * @param contentSpillDir path to directory, or null to use the default temp directory.
+     */
+    public void setContentSpillDir(String contentSpillDir) {
+        _contentSpillDir = contentSpillDir;
+    }
+    
+    /**
+     * Return the pool used for socket read buffers, which can be used to check
+     * how many buffers have been allocated versus reused.
+     * 
+     * @return pool, or null if no request has been made yet.
+     */
+    public BufferPool getReadBufferPool() {
+        return _readBufferPool;
+    }
+    
+    /**
+     * Return the pool used for buffering content while it's being read (and
+     * decompressed).
+     * 
+     * @return pool, or null if no request has been made yet.
+     */
+    public BufferPool getContentBufferPool() {
+        return _contentBufferPool;
+    }
+    
     private static FetchedDatum convert(FetchedResult result) {
     	FetchedDatum datum = new FetchedDatum(result.getBaseUrl(), result.getFetchedUrl(), result.getFetchTime(),
-    	                result.getHeaders(), new ContentBytes(result.getContent()), result.getContentType(),
+    	                result.getHeaders(), result.getContentBytes(), result.getContentType(),
     	                result.getResponseRate());
     	datum.setNewBaseUrl(result.getNewBaseUrl());
     	datum.setNumRedirects(result.getNumRedirects());
@@ -393,14 +454,41 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
     @Override
     public FetchedDatum get(ScoredUrlDatum scoredUrl) throws BaseFetchException {
-        return convert(request(new HttpGet(), scoredUrl));
+        return convert(request(new HttpGet(), scoredUrl, makeContext()));
     }
 
-    private FetchedResult request(HttpRequestBase request, ScoredUrlDatum scoredUrl) throws BaseFetchException {
+    /**
+     * All requests in a batch share one HttpContext, which has a user token that's
+     * unique to the batch. HttpClient tags the connection with this token when it's
+     * released, and the connection manager will hand the tagged connection back to
+     * the next request with the same token, so the batch uses one keep-alive connection
+     * (assuming the server supports it) without interference from other threads.
+     */
+    @Override
+    protected Object makeBatchContext(List<ScoredUrlDatum> scoredUrls) {
+        HttpContext batchContext = makeContext();
+        batchContext.setAttribute(ClientContext.USER_TOKEN, new Object());
+        return batchContext;
+    }
+    
+    @Override
+    protected FetchedDatum get(ScoredUrlDatum scoredUrl, Object batchContext, boolean lastInBatch) throws BaseFetchException {
+        HttpGet request = new HttpGet();
+        
+        // Let the server know it doesn't need to keep the socket open after
+        // the last request.
+        if (lastInBatch) {
+            request.setHeader(HTTP.CONN_DIRECTIVE, HTTP.CONN_CLOSE);
+        }
+        
+        return convert(request(request, scoredUrl, (HttpContext)batchContext));
+    }
+
+    private FetchedResult request(HttpRequestBase request, ScoredUrlDatum scoredUrl, HttpContext localContext) throws BaseFetchException {
         init();
 
         try {
-            return doRequest(request, scoredUrl.getUrl(), scoredUrl.getPayload());
+            return doRequest(request, scoredUrl.getUrl(), scoredUrl.getPayload(), localContext);
         } catch (HttpFetchException e) {
             // Don't bother generating a trace for a 404 (not found)
             if (LOGGER.isTraceEnabled() && (e.getHttpStatus() != HttpStatus.SC_NOT_FOUND)) {
@@ -428,7 +516,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
         init();
         
         try {
-        	return doRequest(request, url, payload);
+        	return doRequest(request, url, payload, makeContext());
         } catch (BaseFetchException e) {
         	if (LOGGER.isTraceEnabled()) {
         		LOGGER.trace(String.format("Exception fetching %s", url), e);
@@ -437,7 +525,21 @@ public class SimpleHttpFetcher extends BaseFetcher {
         }
     }
 
-    private FetchedResult doRequest(HttpRequestBase request, String url, Payload payload) throws BaseFetchException {
+    /**
+     * Create the context used for making one request, or a batch of requests.
+     * 
+     * @return new context
+     */
+    private HttpContext makeContext() {
+        // Create a local instance of cookie store, and bind to local context
+        // Without this we get killed w/lots of threads, due to sync() on single cookie store.
+        HttpContext localContext = new BasicHttpContext();
+        CookieStore cookieStore = new BasicCookieStore();
+        localContext.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
+        return localContext;
+    }
+    
+    private FetchedResult doRequest(HttpRequestBase request, String url, Payload payload, HttpContext localContext) throws BaseFetchException {
         LOGGER.trace("Fetching " + url);
 
         HttpResponse response;
@@ -451,11 +553,11 @@ public class SimpleHttpFetcher extends BaseFetcher {
         String mimeType = "";
         String hostAddress = null;
         
-        // Create a local instance of cookie store, and bind to local context
-        // Without this we get killed w/lots of threads, due to sync() on single cookie store.
-        HttpContext localContext = new BasicHttpContext();
-        CookieStore cookieStore = new BasicCookieStore();
-        localContext.setAttribute(ClientContext.COOKIE_STORE, cookieStore);
+        // The context can be shared by a batch of requests, so clear out anything we
+        // saved during the previous request.
+        localContext.removeAttribute(PERM_REDIRECT_CONTEXT_KEY);
+        localContext.removeAttribute(REDIRECT_COUNT_CONTEXT_KEY);
+        localContext.removeAttribute(HOST_ADDRESS);
 
         StringBuilder fetchTrace = null;
         if (LOGGER.isTraceEnabled()) {
@@ -596,20 +698,20 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
         // Now finally read in response body, up to targetLength bytes.
         // Note that entity might be null, for zero length responses.
-        byte[] content = new byte[0];
+        SpillableOutputStream out = makeContentStream();
         long readRate = 0;
         HttpEntity entity = response.getEntity();
         needAbort = true;
 
         if (entity != null) {
             InputStream in = null;
+            byte[] buffer = _readBufferPool.acquire();
+            boolean succeeded = false;
 
             try {
                 in = entity.getContent();
-                byte[] buffer = new byte[BUFFER_SIZE];
                 int bytesRead = 0;
                 int totalRead = 0;
-                ByteArrayOutputStream out = new ByteArrayOutputStream(DEFAULT_BYTEARRAY_SIZE);
 
                 int readRequests = 0;
                 int minResponseRate = _fetcherPolicy.getMinResponseRate();
@@ -640,12 +742,17 @@ public class SimpleHttpFetcher extends BaseFetcher {
                     }
                 }
 
-                content = out.toByteArray();
                 needAbort = truncated || (in.available() > 0);
+                succeeded = true;
             } catch (IOException e) {
                 // We don't need to abort if there's an IOException
                 throw new IOFetchException(url, e);
             } finally {
+                _readBufferPool.release(buffer);
+                if (!succeeded) {
+                    out.discard();
+                }
+                
                 safeAbort(needAbort, request);
                 safeClose(in);
             }
@@ -654,6 +761,7 @@ public class SimpleHttpFetcher extends BaseFetcher {
         // Toss truncated image content.
         if  (   (truncated)
             &&  (!isTextMimeType(mimeType))) {
+            out.discard();
             throw new AbortedFetchException(url, "Truncated image", AbortedFetchReason.CONTENT_SIZE);
         }
 
@@ -670,34 +778,56 @@ public class SimpleHttpFetcher extends BaseFetcher {
             // out into a separate method, by the way (if not refactor this 
             // entire monolithic method).
             //
-            try {
-                if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
-                    if (truncated) {
-                        throw new AbortedFetchException(url, "Truncated compressed data", AbortedFetchReason.CONTENT_SIZE);
+            if ("gzip".equals(contentEncoding) || "x-gzip".equals(contentEncoding)) {
+                if (truncated) {
+                    out.discard();
+                    throw new AbortedFetchException(url, "Truncated compressed data", AbortedFetchReason.CONTENT_SIZE);
+                } else {
+                    // Expand directly from the (pooled or spilled) compressed data, so the only
+                    // copy we make is the final content array.
+                    SpillableOutputStream expanded = makeContentStream();
+                    byte[] buffer = _readBufferPool.acquire();
+                    InputStream compressedIn = null;
+                    
+                    try {
+                        compressedIn = out.getInputStream();
+                        truncated = EncodingUtils.processGzipEncoded(compressedIn, expanded, maxContentSize, buffer);
+                    } catch (IOException e) {
+                        expanded.discard();
+                        throw new IOFetchException(url, e);
+                    } finally {
+                        _readBufferPool.release(buffer);
+                        safeClose(compressedIn);
+                        out.discard();
+                    }
+                    
+                    out = expanded;
+                    if  (   (truncated)
+                        &&  (!isTextMimeType(mimeType))) {
+                        out.discard();
+                        throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
                     } else {
-                        ExpandedResult expandedResult = EncodingUtils.processGzipEncoded(content, maxContentSize);
-                        truncated = expandedResult.isTruncated();
-                        if  (   (truncated)
-                            &&  (!isTextMimeType(mimeType))) {
-                            throw new AbortedFetchException(url, "Truncated decompressed image", AbortedFetchReason.CONTENT_SIZE);
-                        } else {
-                            content = expandedResult.getExpanded();
-                            if (LOGGER.isTraceEnabled()) {
-                                fetchTrace.append("; unzipped to " + content.length + " bytes");
-                            }
+                        if (LOGGER.isTraceEnabled()) {
+                            fetchTrace.append("; unzipped to " + out.size() + " bytes");
                         }
-//                    } else if ("deflate".equals(contentEncoding)) {
-//                        content = EncodingUtils.processDeflateEncoded(content);
-//                        if (LOGGER.isTraceEnabled()) {
-//                            fetchTrace.append("; inflated to " + content.length + " bytes");
-//                        }
                     }
+//                } else if ("deflate".equals(contentEncoding)) {
+//                    content = EncodingUtils.processDeflateEncoded(content);
+//                    if (LOGGER.isTraceEnabled()) {
+//                        fetchTrace.append("; inflated to " + content.length + " bytes");
+//                    }
                 }
-            } catch (IOException e) {
-                throw new IOFetchException(url, e);
             }
         }
 
+        ContentBytes content;
+        try {
+            content = out.toContentBytes();
+        } catch (IOException e) {
+            out.discard();
+            throw new IOFetchException(url, e);
+        }
+        
         // Finally dump out the trace msg we've been building.
         if (LOGGER.isTraceEnabled()) {
             LOGGER.trace(fetchTrace.toString());
@@ -717,15 +847,6 @@ public class SimpleHttpFetcher extends BaseFetcher {
                                     hostAddress);
     }
     
-    private boolean isTextMimeType(String mimeType) {
-        for (String textContentType : TEXT_MIME_TYPES) {
-            if (textContentType.equals(mimeType)) {
-                return true;
-            }
-        }
-        return false;
-    }
-
     private String extractRedirectedUrl(String url, HttpContext localContext) {
         // This was triggered by HttpClient with the redirect count was exceeded.
         HttpHost host = (HttpHost)localContext.getAttribute(ExecutionContext.HTTP_TARGET_HOST);
@@ -743,6 +864,11 @@ public class SimpleHttpFetcher extends BaseFetcher {
         }
     }
 
+    private SpillableOutputStream makeContentStream() {
+        File spillDir = (_contentSpillDir == null ? null : new File(_contentSpillDir));
+        return new SpillableOutputStream(_contentBufferPool, DEFAULT_BYTEARRAY_SIZE, _contentSpillThreshold, spillDir);
+    }
+    
     private static void safeClose(Closeable o) {
         if (o != null) {
             try {
@@ -765,6 +891,11 @@ public class SimpleHttpFetcher extends BaseFetcher {
 
     private synchronized void init() {
         if (_httpClient == null) {
+            // Each fetch needs one read buffer, and at most two content buffers (compressed
+            // and expanded data).
+            _readBufferPool = new BufferPool(BUFFER_SIZE, BUFFER_SIZE, _maxThreads);
+            _contentBufferPool = new BufferPool(DEFAULT_BYTEARRAY_SIZE, MAX_POOLED_BYTEARRAY_SIZE, _maxThreads * 2);
+            
             // Create and initialize HTTP parameters
             HttpParams params = new BasicHttpParams();
 
@@ -0,0 +1,196 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import bixo.datum.ContentBytes;
+import bixo.utils.BufferPool;
+import bixo.utils.PooledByteArrayOutputStream;
+
+/**
+ * Output stream that keeps data in memory until it grows past a threshold, and then
+ * switches over to writing everything to a temp file.
+ *
+ * The result is a ContentBytes, which is either a regular in-memory array or a
+ * handle to the spill file. The in-memory buffer can come from a BufferPool, in which
+ * case the only per-request allocation is the final (exact size) content array.
+ *
+ */
+public class SpillableOutputStream extends OutputStream {
+    public static final int NO_SPILL_THRESHOLD = Integer.MAX_VALUE;
+
+    private static final String SPILL_FILE_PREFIX = "bixo-content-";
+    private static final int DISK_BUFFER_SIZE = 64 * 1024;
+
+    private int _spillThreshold;
+    private File _spillDir;
+
+    private PooledByteArrayOutputStream _memOut;
+    private File _spillFile;
+    private OutputStream _diskOut;
+    private int _size;
+    private boolean _closed;
+
+    /**
+     * @param initialSize initial size of the in-memory buffer
+     * @param spillThreshold size at which we switch to writing to disk
+     * @param spillDir directory for spill files, or null to use the default temp directory
+     */
+    public SpillableOutputStream(int initialSize, int spillThreshold, File spillDir) {
+        this(null, initialSize, spillThreshold, spillDir);
+    }
+
+    /**
+     * @param pool pool for in-memory buffer, or null to always allocate
+     * @param initialSize initial size of the in-memory buffer
+     * @param spillThreshold size at which we switch to writing to disk
+     * @param spillDir directory for spill files, or null to use the default temp directory
+     */
+    public SpillableOutputStream(BufferPool pool, int initialSize, int spillThreshold, File spillDir) {
+        _spillThreshold = spillThreshold;
+        _spillDir = spillDir;
+        _memOut = new PooledByteArrayOutputStream(pool, Math.min(initialSize, spillThreshold));
+        _size = 0;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte)b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (_closed) {
+            throw new IOException("Stream has been closed");
+        }
+
+        if ((_diskOut == null) && (_size + len > _spillThreshold)) {
+            spill();
+        }
+
+        if (_diskOut == null) {
+            _memOut.write(b, off, len);
+        } else {
+            _diskOut.write(b, off, len);
+        }
+
+        _size += len;
+    }
+
+    private void spill() throws IOException {
+        // We don't use deleteOnExit(), as that list is never trimmed, and a task can
+        // create a lot of spill files. Whoever uses the ContentBytes has to call
+        // releaseSpillFile(), and anything left behind by a failed task is in Hadoop's
+        // per-task temp directory (unless a spill dir is set).
+        _spillFile = File.createTempFile(SPILL_FILE_PREFIX, null, _spillDir);
+        _diskOut = new BufferedOutputStream(new FileOutputStream(_spillFile), DISK_BUFFER_SIZE);
+
+        _memOut.writeTo(_diskOut);
+        _memOut.release();
+        _memOut = null;
+    }
+
+    public int size() {
+        return _size;
+    }
+
+    public boolean isSpilled() {
+        return _spillFile != null;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (_diskOut != null) {
+            _diskOut.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!_closed) {
+            _closed = true;
+
+            if (_diskOut != null) {
+                _diskOut.close();
+            }
+        }
+    }
+
+    /**
+     * Close the stream and delete the spill file (if any), for when the content
+     * isn't going to be used.
+     */
+    public void discard() {
+        try {
+            close();
+        } catch (IOException e) {
+            // Ignore, since we're tossing the data anyway
+        }
+
+        if (_spillFile != null) {
+            _spillFile.delete();
+        }
+
+        if (_memOut != null) {
+            _memOut.release();
+            _memOut = null;
+        }
+    }
+
+    /**
+     * Close the stream, and return a stream for reading back the data. This doesn't
+     * copy in-memory data, so the stream is only valid until discard() is called.
+     *
+     * @return stream of the data that was written
+     * @throws IOException
+     */
+    public InputStream getInputStream() throws IOException {
+        close();
+
+        if (_spillFile == null) {
+            return _memOut.getInputStream();
+        } else {
+            return new FileInputStream(_spillFile);
+        }
+    }
+
+    /**
+     * Close the stream and return the content that was written.
+     *
+     * @return content, backed by the spill file if the threshold was exceeded.
+     * @throws IOException
+     */
+    public ContentBytes toContentBytes() throws IOException {
+        close();
+
+        if (_spillFile == null) {
+            ContentBytes result = new ContentBytes(_memOut.toByteArray());
+            _memOut.release();
+            _memOut = null;
+            return result;
+        } else {
+            return new ContentBytes(_spillFile, _size);
+        }
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.Serialization;
+import org.apache.hadoop.io.serializer.Serializer;
+
+/**
+ * Base class for Hadoop serializations of Bixo classes, which handles the stream
+ * setup so that subclasses only need to write and read one element. Each subclass
+ * also provides a RawComparator, for sorting serialized elements without
+ * deserializing them (e.g. with a SequenceFile.Sorter, or as a map output key).
+ * 
+ * Register these via SerializationUtils.addSerializations().
+ *
+ * @param <T> type of element being serialized
+ */
+public abstract class BaseSerialization<T> implements Serialization<T> {
+
+    private Class<T> _clazz;
+    
+    protected BaseSerialization(Class<T> clazz) {
+        _clazz = clazz;
+    }
+    
+    /**
+     * Write <element> to <out>.
+     */
+    public abstract void write(T element, DataOutput out) throws IOException;
+    
+    /**
+     * Read the next element from <in>, reusing <element> if it's not null and the
+     * type supports it.
+     */
+    public abstract T read(T element, DataInput in) throws IOException;
+    
+    /**
+     * Return a comparator that works on serialized elements.
+     */
+    public abstract RawComparator<T> getRawComparator();
+    
+    @Override
+    public boolean accept(Class<?> clazz) {
+        // Subclasses could have a different format, so they don't get accepted.
+        return _clazz.equals(clazz);
+    }
+
+    @Override
+    public Serializer<T> getSerializer(Class<T> clazz) {
+        return new Serializer<T>() {
+            private DataOutputStream _out;
+            
+            @Override
+            public void open(OutputStream out) throws IOException {
+                if (out instanceof DataOutputStream) {
+                    _out = (DataOutputStream)out;
+                } else {
+                    _out = new DataOutputStream(out);
+                }
+            }
+
+            @Override
+            public void serialize(T element) throws IOException {
+                write(element, _out);
+            }
+
+            @Override
+            public void close() throws IOException {
+                _out.close();
+            }
+        };
+    }
+
+    @Override
+    public Deserializer<T> getDeserializer(Class<T> clazz) {
+        return new Deserializer<T>() {
+            private DataInputStream _in;
+            
+            @Override
+            public void open(InputStream in) throws IOException {
+                if (in instanceof DataInputStream) {
+                    _in = (DataInputStream)in;
+                } else {
+                    _in = new DataInputStream(in);
+                }
+            }
+
+            @Override
+            public T deserialize(T element) throws IOException {
+                return read(element, _in);
+            }
+
+            @Override
+            public void close() throws IOException {
+                _in.close();
+            }
+        };
+    }
+    
+    /**
+     * Compare two strings written by IoUtils.writeString(), starting at <s1> and <s2>.
+     */
+    protected static int compareStrings(byte[] b1, int s1, byte[] b2, int s2) {
+        try {
+            int prefixSize1 = WritableUtils.decodeVIntSize(b1[s1]);
+            int length1 = WritableComparator.readVInt(b1, s1);
+            int prefixSize2 = WritableUtils.decodeVIntSize(b2[s2]);
+            int length2 = WritableComparator.readVInt(b2, s2);
+            return WritableComparator.compareBytes(b1, s1 + prefixSize1, length1, b2, s2 + prefixSize2, length2);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+    
+    /**
+     * Return the number of bytes used by a string written with IoUtils.writeString().
+     */
+    protected static int getStringSize(byte[] b, int s) {
+        try {
+            return WritableUtils.decodeVIntSize(b[s]) + WritableComparator.readVInt(b, s);
+        } catch (IOException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
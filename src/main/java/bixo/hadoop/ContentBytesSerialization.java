@@ -0,0 +1,71 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+
+import bixo.datum.ContentBytes;
+
+/**
+ * Serialization for ContentBytes, using its Writable format (a four byte length
+ * followed by the content). Reading reuses the ContentBytes buffer when possible.
+ * Serialized content is ordered the same as ContentBytes.compareTo().
+ *
+ */
+public class ContentBytesSerialization extends BaseSerialization<ContentBytes> {
+
+    private static final int LENGTH_BYTES = 4;
+    
+    public static class Comparator implements RawComparator<ContentBytes> {
+
+        @Override
+        public int compare(ContentBytes o1, ContentBytes o2) {
+            return o1.compareTo(o2);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return WritableComparator.compareBytes(b1, s1 + LENGTH_BYTES, l1 - LENGTH_BYTES, b2, s2 + LENGTH_BYTES, l2 - LENGTH_BYTES);
+        }
+    }
+    
+    public ContentBytesSerialization() {
+        super(ContentBytes.class);
+    }
+    
+    @Override
+    public void write(ContentBytes content, DataOutput out) throws IOException {
+        content.write(out);
+    }
+
+    @Override
+    public ContentBytes read(ContentBytes content, DataInput in) throws IOException {
+        ContentBytes result = (content == null) ? new ContentBytes() : content;
+        result.readFields(in);
+        return result;
+    }
+
+    @Override
+    public RawComparator<ContentBytes> getRawComparator() {
+        return new Comparator();
+    }
+}
@@ -30,6 +30,12 @@ public enum FetchCounters {
     URLS_DEFERRED,      // URLs we deferred, because domain was deferred
     URLS_REJECTED,      // URLS we rejected, because domain was rejected
     URLS_BLOCKED,       // URLS we blocked, because of robots.txt
+    DOMAINS_ROBOTS_CACHED,  // Domains where we used cached robots.txt rules
+    DOMAINS_RESOLVING,      // Domains that are in the process of being resolved (ResolveHostsBuffer)
+    DNS_LOOKUPS,            // Host name lookups that weren't cached
+    DNS_LOOKUP_TIME,        // Total time in milliseconds spent in host name lookups
+    DNS_CACHE_HITS,         // Host name lookups that were cached (incl. unknown hosts)
+    DNS_FAILURES,           // Host name lookups that failed (unknown host)
     
     // During URL fetching
     URLS_FETCHING,
@@ -46,4 +52,9 @@ public enum FetchCounters {
     FETCHSETS_QUEUED,       // Number of fetch sets in the disk queue
     URLS_QUEUED,            // Number of URLs in the disk queue
 
+    // Output from worker threads
+    OUTPUT_QUEUE_WAITS,     // Times a worker waited because the output queue was full
+    OUTPUT_QUEUE_WAIT_TIME, // Total time in milliseconds spent waiting for room in the output queue
+    OUTPUT_QUEUE_MAX_DEPTH, // Max number of queued output tuples (summed across tasks)
+
 }
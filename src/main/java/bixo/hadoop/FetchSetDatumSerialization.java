@@ -0,0 +1,129 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.WritableComparator;
+import org.apache.hadoop.io.WritableUtils;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.utils.IoUtils;
+
+/**
+ * Serialization for FetchSetDatum, with each URL written in its Writable format.
+ * 
+ * Serialized datums are ordered by grouping key and then fetch time, which is how
+ * FetchPipe groups and sorts fetch sets.
+ *
+ */
+public class FetchSetDatumSerialization extends BaseSerialization<FetchSetDatum> {
+
+    public static class Comparator implements RawComparator<FetchSetDatum> {
+
+        @Override
+        public int compare(FetchSetDatum o1, FetchSetDatum o2) {
+            int result = compareLongs(o1.getGroupingKey(), o2.getGroupingKey());
+            if (result == 0) {
+                result = compareLongs(o1.getFetchTime(), o2.getFetchTime());
+            }
+            
+            return result;
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            try {
+                int result = compareLongs(WritableComparator.readVInt(b1, s1), WritableComparator.readVInt(b2, s2));
+                if (result == 0) {
+                    s1 += WritableUtils.decodeVIntSize(b1[s1]);
+                    s2 += WritableUtils.decodeVIntSize(b2[s2]);
+                    result = compareLongs(WritableComparator.readVLong(b1, s1), WritableComparator.readVLong(b2, s2));
+                }
+                
+                return result;
+            } catch (IOException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        
+        private static int compareLongs(long l1, long l2) {
+            return (l1 < l2) ? -1 : ((l1 == l2) ? 0 : 1);
+        }
+    }
+    
+    public FetchSetDatumSerialization() {
+        super(FetchSetDatum.class);
+    }
+    
+    @Override
+    public void write(FetchSetDatum datum, DataOutput out) throws IOException {
+        // Grouping key and fetch time have to come first, for the comparator.
+        WritableUtils.writeVInt(out, datum.getGroupingKey());
+        WritableUtils.writeVLong(out, datum.getFetchTime());
+        WritableUtils.writeVLong(out, datum.getFetchDelay());
+        
+        String groupingRef = datum.getGroupingRef();
+        out.writeBoolean(groupingRef != null);
+        if (groupingRef != null) {
+            IoUtils.writeString(out, groupingRef);
+        }
+        
+        out.writeBoolean(datum.isLastList());
+        out.writeBoolean(datum.isSkipped());
+        
+        List<ScoredUrlDatum> urls = datum.getUrls();
+        WritableUtils.writeVInt(out, urls.size());
+        for (ScoredUrlDatum url : urls) {
+            url.write(out);
+        }
+    }
+
+    @Override
+    public FetchSetDatum read(FetchSetDatum datum, DataInput in) throws IOException {
+        int groupingKey = WritableUtils.readVInt(in);
+        long fetchTime = WritableUtils.readVLong(in);
+        long fetchDelay = WritableUtils.readVLong(in);
+        String groupingRef = in.readBoolean() ? IoUtils.readString(in) : null;
+        boolean lastList = in.readBoolean();
+        boolean skipped = in.readBoolean();
+        
+        int numUrls = WritableUtils.readVInt(in);
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>(numUrls);
+        for (int i = 0; i < numUrls; i++) {
+            ScoredUrlDatum url = new ScoredUrlDatum();
+            url.readFields(in);
+            urls.add(url);
+        }
+        
+        FetchSetDatum result = new FetchSetDatum(urls, fetchTime, fetchDelay, groupingKey, groupingRef);
+        result.setLastList(lastList);
+        result.setSkipped(skipped);
+        return result;
+    }
+
+    @Override
+    public RawComparator<FetchSetDatum> getRawComparator() {
+        return new Comparator();
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import bixo.utils.DatumQueueCodec;
+import cascading.tuple.Tuple;
+
+/**
+ * Key for records written by FetchedContentScheme. This holds all of the small
+ * fields of a FetchedDatum (everything but the headers and the content), plus the
+ * content length. With block compression, SequenceFile keys and values are compressed
+ * separately, so a reader that only wants the key never has to decompress any content.
+ * 
+ * The values are written with DatumQueueCodec's tuple encoding, so the payload can
+ * hold any mix of the usual Tuple value types, Writables or Serializable objects.
+ *
+ */
+public class FetchedContentKey implements Writable {
+
+    private Tuple _values;
+    private int _contentLength;
+    
+    public FetchedContentKey() {
+        this(new Tuple(), 0);
+    }
+    
+    public FetchedContentKey(Tuple values, int contentLength) {
+        set(values, contentLength);
+    }
+    
+    public void set(Tuple values, int contentLength) {
+        _values = values;
+        _contentLength = contentLength;
+    }
+    
+    public Tuple getValues() {
+        return _values;
+    }
+    
+    public int getContentLength() {
+        return _contentLength;
+    }
+    
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        _values = DatumQueueCodec.readTuple(in);
+        _contentLength = WritableUtils.readVInt(in);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        DatumQueueCodec.writeTuple(_values, out);
+        WritableUtils.writeVInt(out, _contentLength);
+    }
+
+}
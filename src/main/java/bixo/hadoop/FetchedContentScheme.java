@@ -0,0 +1,167 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.CompressionCodec;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileOutputFormat;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import cascading.pipe.GroupBy;
+import cascading.pipe.Pipe;
+import cascading.scheme.Scheme;
+import cascading.tap.Tap;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+import com.bixolabs.cascading.BaseDatum;
+
+/**
+ * Scheme for storing FetchedDatum tuples, as a more compact alternative to a
+ * SequenceFile scheme with FetchedDatum.FIELDS.
+ * 
+ * Records are written to block-compressed SequenceFiles, with a FetchedContentKey
+ * (URLs, fetch time, content type, etc.) and a FetchedContentValue (dictionary
+ * encoded headers and the content). If the scheme is created with readContent set
+ * to false, then only the keys are read, and the source fields are SUMMARY_FIELDS
+ * (FetchedDatum.FIELDS minus the headers and content, plus the content length). This
+ * never decompresses any content, so it's much faster than reading everything.
+ * 
+ * Pages from the same host compress better when they're next to each other, so
+ * use sortByUrl() on the content pipe before the sink if the extra reduce is OK.
+ *
+ */
+@SuppressWarnings("serial")
+public class FetchedContentScheme extends Scheme {
+
+    public static final String CONTENT_LENGTH_FN = BaseDatum.fieldName(FetchedContentScheme.class, "contentLength");
+
+    // Everything but the headers and the content, which go into the value.
+    public static final Fields KEY_FIELDS = new Fields(FetchedDatum.URL_FN, FetchedDatum.NEW_BASE_URL_FN,
+                    FetchedDatum.FETCHED_URL_FN, FetchedDatum.FETCH_TIME_FN, FetchedDatum.CONTENT_TYPE_FN,
+                    FetchedDatum.RESPONSE_RATE_FN, FetchedDatum.NUM_REDIRECTS_FN, FetchedDatum.HOST_ADDRESS_FN)
+                    .append(BaseDatum.getSuperFields(FetchedDatum.class));
+
+    public static final Fields SUMMARY_FIELDS = KEY_FIELDS.append(new Fields(CONTENT_LENGTH_FN));
+
+    private boolean _readContent;
+    private Class<? extends CompressionCodec> _codecClass;
+
+    public FetchedContentScheme() {
+        this(true);
+    }
+
+    public FetchedContentScheme(boolean readContent) {
+        this(readContent, DefaultCodec.class);
+    }
+
+    /**
+     * @param readContent true to read full FetchedDatum tuples, false to only read SUMMARY_FIELDS
+     * @param codecClass compression codec to use when writing
+     */
+    public FetchedContentScheme(boolean readContent, Class<? extends CompressionCodec> codecClass) {
+        super(readContent ? FetchedDatum.FIELDS : SUMMARY_FIELDS, FetchedDatum.FIELDS);
+
+        _readContent = readContent;
+        _codecClass = codecClass;
+    }
+
+    public boolean isReadContent() {
+        return _readContent;
+    }
+
+    /**
+     * Sort the content by URL, which keeps pages from the same host (and protocol)
+     * together, so that they get compressed in the same blocks.
+     * 
+     * @param contentPipe pipe of FetchedDatum tuples
+     * @return pipe to use with the sink tap
+     */
+    public static Pipe sortByUrl(Pipe contentPipe) {
+        return new GroupBy(contentPipe, new Fields(FetchedDatum.URL_FN));
+    }
+
+    @Override
+    public void sourceInit(Tap tap, JobConf conf) throws IOException {
+        if (_readContent) {
+            conf.setInputFormat(SequenceFileInputFormat.class);
+        } else {
+            conf.setInputFormat(FetchedContentSummaryInputFormat.class);
+        }
+    }
+
+    @Override
+    public void sinkInit(Tap tap, JobConf conf) throws IOException {
+        conf.setOutputKeyClass(FetchedContentKey.class);
+        conf.setOutputValueClass(FetchedContentValue.class);
+        conf.setOutputFormat(SequenceFileOutputFormat.class);
+        
+        FileOutputFormat.setCompressOutput(conf, true);
+        FileOutputFormat.setOutputCompressorClass(conf, _codecClass);
+        SequenceFileOutputFormat.setOutputCompressionType(conf, CompressionType.BLOCK);
+    }
+
+    @Override
+    public Tuple source(Object key, Object value) {
+        FetchedContentKey contentKey = (FetchedContentKey)key;
+        Tuple keyValues = contentKey.getValues();
+        
+        if (!_readContent) {
+            Tuple result = new Tuple(keyValues);
+            result.add(contentKey.getContentLength());
+            return result;
+        }
+        
+        FetchedContentValue contentValue = (FetchedContentValue)value;
+        Fields fields = FetchedDatum.FIELDS;
+        Tuple result = new Tuple();
+        for (int i = 0; i < fields.size(); i++) {
+            Comparable<?> fieldName = fields.get(i);
+            
+            if (fieldName.equals(FetchedDatum.CONTENT_FN)) {
+                result.add(contentValue.getContent());
+            } else if (fieldName.equals(FetchedDatum.HTTP_HEADERS_FN)) {
+                result.add(contentValue.getHeaders());
+            } else {
+                result.add(keyValues.get(KEY_FIELDS.getPos(fieldName)));
+            }
+        }
+        
+        return result;
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public void sink(TupleEntry tupleEntry, OutputCollector outputCollector) throws IOException {
+        ContentBytes content = (ContentBytes)tupleEntry.getObject(FetchedDatum.CONTENT_FN);
+        HttpHeaders headers = HttpHeaders.fromTupleValue(tupleEntry.getObject(FetchedDatum.HTTP_HEADERS_FN));
+        
+        FetchedContentKey key = new FetchedContentKey(tupleEntry.selectTuple(KEY_FIELDS), content.getLength());
+        outputCollector.collect(key, new FetchedContentValue(headers, content));
+    }
+
+}
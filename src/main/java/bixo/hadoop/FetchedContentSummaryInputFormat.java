@@ -0,0 +1,54 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.InputSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.mapred.SequenceFileRecordReader;
+
+/**
+ * Input format for reading just the keys of a FetchedContentScheme directory. The
+ * values are never read, which (with block compression) means the content is skipped
+ * without being decompressed.
+ *
+ */
+public class FetchedContentSummaryInputFormat extends SequenceFileInputFormat<FetchedContentKey, FetchedContentValue> {
+
+    private static class SummaryRecordReader extends SequenceFileRecordReader<FetchedContentKey, FetchedContentValue> {
+
+        public SummaryRecordReader(JobConf conf, FileSplit split) throws IOException {
+            super(conf, split);
+        }
+
+        @Override
+        public synchronized boolean next(FetchedContentKey key, FetchedContentValue value) throws IOException {
+            return next(key);
+        }
+    }
+    
+    @Override
+    public RecordReader<FetchedContentKey, FetchedContentValue> getRecordReader(InputSplit split, JobConf job, Reporter reporter) throws IOException {
+        reporter.setStatus(split.toString());
+        return new SummaryRecordReader(job, (FileSplit)split);
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.HttpHeaders;
+
+/**
+ * Value for records written by FetchedContentScheme, with the response headers and
+ * the content.
+ * 
+ * Header names and common header values are written as an index into a fixed
+ * dictionary, so most of the header data for a typical response is only a few bytes
+ * (before compression). Other names and values are written as strings. The
+ * dictionaries can only be appended to, since existing indexes are stored in
+ * the data.
+ *
+ */
+public class FetchedContentValue implements Writable {
+
+    private static final byte FORMAT_VERSION = 1;
+    
+    // Index 0 means "string follows", so dictionary entries start at 1.
+    private static final int NOT_IN_DICTIONARY = 0;
+    
+    // Header names use the same dictionary as HttpHeaders.
+    private static final String[] HEADER_NAMES = HttpHeaders.getCommonNames();
+    
+    private static final String[] HEADER_VALUES = {
+        "text/html",
+        "text/html; charset=utf-8",
+        "text/html; charset=UTF-8",
+        "text/html; charset=iso-8859-1",
+        "text/html; charset=ISO-8859-1",
+        "text/plain",
+        "application/xhtml+xml",
+        "close",
+        "keep-alive",
+        "Keep-Alive",
+        "chunked",
+        "gzip",
+        "deflate",
+        "Accept-Encoding",
+        "Accept-Encoding,User-Agent",
+        "bytes",
+        "none",
+        "no-cache",
+        "private",
+        "public",
+        "max-age=0",
+        "no-store, no-cache, must-revalidate, post-check=0, pre-check=0",
+        "Thu, 19 Nov 1981 08:52:00 GMT",
+        "0",
+        "-1",
+        "Apache",
+        "nginx",
+        "Microsoft-IIS/6.0",
+        "Microsoft-IIS/7.5",
+        "ASP.NET",
+        "SAMEORIGIN",
+        "DENY",
+        "nosniff",
+        "1; mode=block",
+        "*",
+        "en",
+        "en-US",
+    };
+    
+    private static final Map<String, Integer> HEADER_NAME_INDEXES = makeIndexes(HEADER_NAMES);
+    private static final Map<String, Integer> HEADER_VALUE_INDEXES = makeIndexes(HEADER_VALUES);
+    
+    private HttpHeaders _headers;
+    private ContentBytes _content;
+    
+    public FetchedContentValue() {
+        this(new HttpHeaders(), new ContentBytes());
+    }
+    
+    public FetchedContentValue(HttpHeaders headers, ContentBytes content) {
+        set(headers, content);
+    }
+    
+    public void set(HttpHeaders headers, ContentBytes content) {
+        _headers = headers;
+        _content = content;
+    }
+    
+    public HttpHeaders getHeaders() {
+        return _headers;
+    }
+    
+    public ContentBytes getContent() {
+        return _content;
+    }
+    
+    private static Map<String, Integer> makeIndexes(String[] dictionary) {
+        Map<String, Integer> result = new HashMap<String, Integer>(dictionary.length * 2);
+        for (int i = 0; i < dictionary.length; i++) {
+            result.put(dictionary[i], i + 1);
+        }
+        
+        return result;
+    }
+    
+    private static void writeString(DataOutput out, String value, Map<String, Integer> indexes) throws IOException {
+        Integer index = indexes.get(value);
+        if (index == null) {
+            WritableUtils.writeVInt(out, NOT_IN_DICTIONARY);
+            Text.writeString(out, value);
+        } else {
+            WritableUtils.writeVInt(out, index);
+        }
+    }
+    
+    private static String readString(DataInput in, String[] dictionary) throws IOException {
+        int index = WritableUtils.readVInt(in);
+        if (index == NOT_IN_DICTIONARY) {
+            return Text.readString(in);
+        } else if (index <= dictionary.length) {
+            return dictionary[index - 1];
+        } else {
+            throw new IOException("Invalid header dictionary index: " + index);
+        }
+    }
+    
+    @Override
+    public void readFields(DataInput in) throws IOException {
+        byte version = in.readByte();
+        if (version != FORMAT_VERSION) {
+            throw new IOException("Unknown fetched content format version: " + version);
+        }
+        
+        _headers = new HttpHeaders();
+        int numNames = WritableUtils.readVInt(in);
+        for (int i = 0; i < numNames; i++) {
+            String name = readString(in, HEADER_NAMES);
+            int numValues = WritableUtils.readVInt(in);
+            for (int j = 0; j < numValues; j++) {
+                _headers.add(name, readString(in, HEADER_VALUES));
+            }
+        }
+        
+        // Always use a new ContentBytes, since the previous one might still be
+        // referenced by a tuple that's being processed.
+        _content = new ContentBytes();
+        _content.readFields(in);
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeByte(FORMAT_VERSION);
+        
+        WritableUtils.writeVInt(out, _headers.getNames().size());
+        for (String name : _headers.getNames()) {
+            List<String> values = _headers.getAll(name);
+            writeString(out, name, HEADER_NAME_INDEXES);
+            WritableUtils.writeVInt(out, values.size());
+            for (String value : values) {
+                writeString(out, value, HEADER_VALUE_INDEXES);
+            }
+        }
+        
+        _content.write(out);
+    }
+
+}
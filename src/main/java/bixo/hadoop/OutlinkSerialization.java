@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.RawComparator;
+
+import bixo.datum.Outlink;
+
+/**
+ * Serialization for Outlink, using its Writable format. Serialized outlinks are
+ * ordered by URL and then anchor text, the same as Outlink.compareTo() (for
+ * strings without supplementary characters).
+ *
+ */
+public class OutlinkSerialization extends BaseSerialization<Outlink> {
+
+    public static class Comparator implements RawComparator<Outlink> {
+
+        @Override
+        public int compare(Outlink o1, Outlink o2) {
+            return o1.compareTo(o2);
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            int result = compareStrings(b1, s1, b2, s2);
+            if (result == 0) {
+                result = compareStrings(b1, s1 + getStringSize(b1, s1), b2, s2 + getStringSize(b2, s2));
+            }
+            
+            return result;
+        }
+    }
+    
+    public OutlinkSerialization() {
+        super(Outlink.class);
+    }
+    
+    @Override
+    public void write(Outlink outlink, DataOutput out) throws IOException {
+        outlink.write(out);
+    }
+
+    @Override
+    public Outlink read(Outlink outlink, DataInput in) throws IOException {
+        Outlink result = (outlink == null) ? new Outlink() : outlink;
+        result.readFields(in);
+        return result;
+    }
+
+    @Override
+    public RawComparator<Outlink> getRawComparator() {
+        return new Comparator();
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import org.apache.hadoop.io.RawComparator;
+
+import bixo.datum.ScoredUrlDatum;
+
+/**
+ * Serialization for ScoredUrlDatum, using its Writable format. Serialized datums
+ * are ordered by URL.
+ *
+ */
+public class ScoredUrlDatumSerialization extends BaseSerialization<ScoredUrlDatum> {
+
+    public static class Comparator implements RawComparator<ScoredUrlDatum> {
+
+        @Override
+        public int compare(ScoredUrlDatum o1, ScoredUrlDatum o2) {
+            return o1.getUrl().compareTo(o2.getUrl());
+        }
+
+        @Override
+        public int compare(byte[] b1, int s1, int l1, byte[] b2, int s2, int l2) {
+            return compareStrings(b1, s1, b2, s2);
+        }
+    }
+    
+    public ScoredUrlDatumSerialization() {
+        super(ScoredUrlDatum.class);
+    }
+    
+    @Override
+    public void write(ScoredUrlDatum datum, DataOutput out) throws IOException {
+        datum.write(out);
+    }
+
+    @Override
+    public ScoredUrlDatum read(ScoredUrlDatum datum, DataInput in) throws IOException {
+        ScoredUrlDatum result = (datum == null) ? new ScoredUrlDatum() : datum;
+        result.readFields(in);
+        return result;
+    }
+
+    @Override
+    public RawComparator<ScoredUrlDatum> getRawComparator() {
+        return new Comparator();
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.util.Map;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.serializer.WritableSerialization;
+
+/**
+ * Registers Hadoop serializations and Cascading serialization tokens for Bixo's
+ * classes that get stored directly in tuples. Without a serialization, datums like
+ * ScoredUrlDatum fall back to Java serialization, and without a token Cascading
+ * writes out the full class name for every one of these values, which can be
+ * bigger than the value itself.
+ * 
+ * The tokens have to be the same when the data is written and read, so use these
+ * for every flow that reads or writes these classes.
+ *
+ */
+public class SerializationUtils {
+
+    public static final String SERIALIZATION_TOKENS_PROPERTY = "cascading.serialization.tokens";
+    public static final String SERIALIZATIONS_PROPERTY = "io.serializations";
+    
+    private static final String DEFAULT_SERIALIZATIONS = WritableSerialization.class.getName();
+    
+    // These go before any existing serializations, since Outlink and ContentBytes
+    // are also Writables.
+    @SuppressWarnings("rawtypes")
+    private static final Class[] SERIALIZATIONS = {
+        ScoredUrlDatumSerialization.class,
+        FetchSetDatumSerialization.class,
+        OutlinkSerialization.class,
+        ContentBytesSerialization.class,
+    };
+    
+    // Cascading reserves tokens below 128. These can only be appended to, since the
+    // tokens are stored in the data.
+    private static final String[] SERIALIZATION_TOKENS = {
+        "130=bixo.datum.HttpHeaders",
+        "131=bixo.datum.ScoredUrlDatum",
+        "132=bixo.datum.FetchSetDatum",
+        "133=bixo.datum.Outlink",
+        "134=bixo.datum.ContentBytes",
+    };
+    
+    /**
+     * Add Bixo's serializations and serialization tokens to the properties used to
+     * create a FlowConnector.
+     * 
+     * @param properties flow properties
+     */
+    public static void addSerializations(Map<Object, Object> properties) {
+        Object curSerializations = properties.get(SERIALIZATIONS_PROPERTY);
+        properties.put(SERIALIZATIONS_PROPERTY, addSerializations(curSerializations == null ? DEFAULT_SERIALIZATIONS : curSerializations.toString()));
+        addSerializationTokens(properties);
+    }
+    
+    /**
+     * Add Bixo's serializations and serialization tokens to a Hadoop configuration.
+     * 
+     * @param conf configuration for the job
+     */
+    public static void addSerializations(Configuration conf) {
+        conf.set(SERIALIZATIONS_PROPERTY, addSerializations(conf.get(SERIALIZATIONS_PROPERTY, DEFAULT_SERIALIZATIONS)));
+        addSerializationTokens(conf);
+    }
+    
+    /**
+     * Add Bixo's serialization tokens to the properties used to create a FlowConnector.
+     * 
+     * @param properties flow properties
+     */
+    public static void addSerializationTokens(Map<Object, Object> properties) {
+        Object curTokens = properties.get(SERIALIZATION_TOKENS_PROPERTY);
+        properties.put(SERIALIZATION_TOKENS_PROPERTY, addTokens(curTokens == null ? null : curTokens.toString()));
+    }
+    
+    /**
+     * Add Bixo's serialization tokens to a Hadoop configuration.
+     * 
+     * @param conf configuration for the job
+     */
+    public static void addSerializationTokens(Configuration conf) {
+        conf.set(SERIALIZATION_TOKENS_PROPERTY, addTokens(conf.get(SERIALIZATION_TOKENS_PROPERTY)));
+    }
+    
+    private static String addSerializations(String curSerializations) {
+        if (curSerializations.trim().length() == 0) {
+            curSerializations = DEFAULT_SERIALIZATIONS;
+        }
+        
+        StringBuilder result = new StringBuilder();
+        for (Class<?> serialization : SERIALIZATIONS) {
+            if (!hasToken(curSerializations, serialization.getName())) {
+                result.append(serialization.getName());
+                result.append(',');
+            }
+        }
+        
+        result.append(curSerializations.trim());
+        return result.toString();
+    }
+    
+    private static String addTokens(String curTokens) {
+        StringBuilder result = new StringBuilder();
+        if ((curTokens != null) && (curTokens.trim().length() > 0)) {
+            result.append(curTokens.trim());
+        }
+        
+        for (String token : SERIALIZATION_TOKENS) {
+            if (!hasToken(result.toString(), token)) {
+                if (result.length() > 0) {
+                    result.append(',');
+                }
+                
+                result.append(token);
+            }
+        }
+        
+        return result.toString();
+    }
+    
+    private static boolean hasToken(String tokens, String token) {
+        for (String curToken : tokens.split(",")) {
+            if (curToken.trim().equals(token)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.IOException;
+
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.util.Progressable;
+import org.apache.log4j.Logger;
+
+import bixo.datum.FetchedDatum;
+import bixo.utils.WarcWriter;
+
+/**
+ * Output format that writes FetchedDatums to <name>-nnnnn.warc.gz files. A new file
+ * is started once the current one is bigger than MAX_FILE_SIZE_KEY bytes.
+ *
+ */
+public class WarcOutputFormat extends FileOutputFormat<NullWritable, FetchedDatum> {
+    private static final Logger LOGGER = Logger.getLogger(WarcOutputFormat.class);
+    
+    public static final String MAX_FILE_SIZE_KEY = "bixo.warc.max-file-size";
+    public static final String USER_AGENT_KEY = "bixo.warc.user-agent";
+    
+    public static final long DEFAULT_MAX_FILE_SIZE = 1024L * 1024L * 1024L;
+    
+    public static final String FILE_EXTENSION = ".warc.gz";
+    
+    private static class WarcRecordWriter implements RecordWriter<NullWritable, FetchedDatum> {
+        
+        private JobConf _conf;
+        private String _name;
+        private Progressable _progress;
+        private long _maxFileSize;
+        private String _userAgent;
+        
+        private int _fileIndex;
+        private FSDataOutputStream _out;
+        private WarcWriter _writer;
+        
+        public WarcRecordWriter(JobConf conf, String name, Progressable progress) {
+            _conf = conf;
+            _name = name;
+            _progress = progress;
+            _maxFileSize = conf.getLong(MAX_FILE_SIZE_KEY, DEFAULT_MAX_FILE_SIZE);
+            _userAgent = conf.get(USER_AGENT_KEY);
+            _fileIndex = 0;
+        }
+        
+        private void openFile() throws IOException {
+            String filename = String.format("%s-%05d%s", _name, _fileIndex++, FILE_EXTENSION);
+            Path file = FileOutputFormat.getTaskOutputPath(_conf, filename);
+            FileSystem fs = file.getFileSystem(_conf);
+            
+            LOGGER.info("Starting WARC file " + file);
+            _out = fs.create(file, _progress);
+            _writer = new WarcWriter(_out, _userAgent);
+            _writer.writeWarcInfo(filename, null);
+        }
+        
+        private void closeFile() throws IOException {
+            if (_out != null) {
+                _out.close();
+                _out = null;
+                _writer = null;
+            }
+        }
+        
+        @Override
+        public void write(NullWritable key, FetchedDatum value) throws IOException {
+            if (_out == null) {
+                openFile();
+            }
+            
+            _writer.write(value);
+            
+            if (_out.getPos() >= _maxFileSize) {
+                closeFile();
+            }
+        }
+
+        @Override
+        public void close(Reporter reporter) throws IOException {
+            closeFile();
+        }
+    }
+    
+    @Override
+    public RecordWriter<NullWritable, FetchedDatum> getRecordWriter(FileSystem ignored, JobConf job, String name, Progressable progress) throws IOException {
+        return new WarcRecordWriter(job, name, progress);
+    }
+
+}
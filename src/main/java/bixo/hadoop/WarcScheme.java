@@ -0,0 +1,95 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import java.io.IOException;
+import java.security.InvalidParameterException;
+
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+
+import bixo.config.UserAgent;
+import bixo.datum.FetchedDatum;
+import cascading.scheme.Scheme;
+import cascading.tap.Tap;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+/**
+ * Sink-only scheme that writes FetchedDatum tuples as WARC files (see WarcWriter),
+ * so that fetched content can be exported directly from the fetch job. For example:
+ * 
+ *   Tap contentSink = new Hfs(new WarcScheme(), contentPath, true);
+ *   flowConnector.connect(urlSource, FetchPipe.makeSinkMap(statusSink, contentSink), fetchPipe);
+ *
+ */
+@SuppressWarnings("serial")
+public class WarcScheme extends Scheme {
+
+    private long _maxFileSize;
+    private String _userAgent;
+    
+    public WarcScheme() {
+        this(WarcOutputFormat.DEFAULT_MAX_FILE_SIZE, null);
+    }
+    
+    /**
+     * @param maxFileSize size at which a new WARC file is started
+     * @param userAgent user agent for request records, or null
+     */
+    public WarcScheme(long maxFileSize, UserAgent userAgent) {
+        super(FetchedDatum.FIELDS, FetchedDatum.FIELDS);
+        
+        if (maxFileSize <= 0) {
+            throw new InvalidParameterException("Max file size must be > 0: " + maxFileSize);
+        }
+        
+        _maxFileSize = maxFileSize;
+        _userAgent = (userAgent == null) ? null : userAgent.getUserAgentString();
+    }
+    
+    public long getMaxFileSize() {
+        return _maxFileSize;
+    }
+    
+    @Override
+    public void sourceInit(Tap tap, JobConf conf) throws IOException {
+        throw new UnsupportedOperationException("WarcScheme can only be used as a sink");
+    }
+
+    @Override
+    public void sinkInit(Tap tap, JobConf conf) throws IOException {
+        conf.setOutputFormat(WarcOutputFormat.class);
+        conf.setLong(WarcOutputFormat.MAX_FILE_SIZE_KEY, _maxFileSize);
+        if (_userAgent != null) {
+            conf.set(WarcOutputFormat.USER_AGENT_KEY, _userAgent);
+        }
+    }
+
+    @Override
+    public Tuple source(Object key, Object value) {
+        throw new UnsupportedOperationException("WarcScheme can only be used as a sink");
+    }
+
+    @SuppressWarnings({ "rawtypes", "unchecked" })
+    @Override
+    public void sink(TupleEntry tupleEntry, OutputCollector outputCollector) throws IOException {
+        outputCollector.collect(NullWritable.get(), new FetchedDatum(tupleEntry.selectTuple(FetchedDatum.FIELDS)));
+    }
+
+}
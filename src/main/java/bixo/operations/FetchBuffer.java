@@ -16,17 +16,18 @@
  */
 package bixo.operations;
 
+import java.io.IOException;
 import java.util.Comparator;
 import java.util.Iterator;
 import java.util.List;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RejectedExecutionException;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.FetcherMode;
+import bixo.datum.ContentBytes;
 import bixo.datum.FetchSetDatum;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
@@ -34,8 +35,11 @@ import bixo.datum.UrlStatus;
 import bixo.fetcher.BaseFetcher;
 import bixo.fetcher.FetchTask;
 import bixo.fetcher.IFetchMgr;
+import bixo.fetcher.PolitenessScheduler;
 import bixo.hadoop.FetchCounters;
+import bixo.hadoop.FetchSetDatumSerialization;
 import bixo.utils.DiskQueue;
+import bixo.utils.SerializationQueueCodec;
 import bixo.utils.ThreadedExecutor;
 import cascading.flow.FlowProcess;
 import cascading.flow.hadoop.HadoopFlowProcess;
@@ -46,7 +50,6 @@ import cascading.operation.OperationCall;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
 import cascading.tuple.TupleEntry;
-import cascading.tuple.TupleEntryCollector;
 
 import com.bixolabs.cascading.BaseDatum;
 import com.bixolabs.cascading.LoggingFlowProcess;
@@ -59,24 +62,11 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
 
     private class QueuedFetchSetsComparator implements Comparator<FetchSetDatum> {
 
-        private long getFetchTime(String groupingRef) {
-            if (_activeRefs.get(groupingRef) == null) {
-                Long nextFetchTime = _pendingRefs.get(groupingRef);
-                if (nextFetchTime == null) {
-                    return(0);
-                } else {
-                    return(nextFetchTime);
-                }
-            } else {
-                // fetch set is active, so sort at end
-                return(Long.MAX_VALUE);
-            }
-        }
-        
         @Override
         public int compare(FetchSetDatum o1, FetchSetDatum o2) {
-            long o1FetchTime = getFetchTime(o1.getGroupingRef());
-            long o2FetchTime = getFetchTime(o2.getGroupingRef());
+            // Active fetch sets have a fetch time of Long.MAX_VALUE, so they sort at the end.
+            long o1FetchTime = _scheduler.getFetchTime(o1.getGroupingRef());
+            long o2FetchTime = _scheduler.getFetchTime(o2.getGroupingRef());
             
             // The entry that's ready sooner sorts sooner. If both
             // are ready, return the one with the bigger fetch set.
@@ -84,9 +74,9 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 return -1;
             } else if (o1FetchTime > o2FetchTime) {
                 return 1;
-            } else if (o1.getUrls().size() > o2.getUrls().size()) {
+            } else if (o1.getNumUrls() > o2.getNumUrls()) {
                 return -1;
-            } else if (o1.getUrls().size() < o2.getUrls().size()) {
+            } else if (o1.getNumUrls() < o2.getNumUrls()) {
                 return 1;
             } else {
                 return 0;
@@ -108,7 +98,17 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         public QueuedValues(Iterator<TupleEntry> values) {
             _values = values;
             _iteratorDone = false;
-            _queue = new DiskQueue<FetchSetDatum>(MAX_ELEMENTS_IN_MEMORY, new QueuedFetchSetsComparator());
+            _queue = new DiskQueue<FetchSetDatum>(MAX_ELEMENTS_IN_MEMORY, new QueuedFetchSetsComparator(), true);
+            _queue.setCodec(new SerializationQueueCodec<FetchSetDatum>(new FetchSetDatumSerialization()));
+        }
+        
+        /**
+         * Let the queue know that the active/pending state of some grouping ref has
+         * changed, which changes the sort order of queued fetch sets. This gets called
+         * by FetchTask threads (via finished()), so all it does is flag the queue.
+         */
+        public void reprioritize() {
+            _queue.reprioritize();
         }
         
         /**
@@ -128,14 +128,23 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         }
         
         private boolean readyToFetch(String ref) {
-            if (_activeRefs.get(ref) == null) {
-                Long nextFetchTime = _pendingRefs.get(ref);
-                if ((nextFetchTime == null) || (nextFetchTime <= System.currentTimeMillis())) {
-                    return true;
-                }
+            return _scheduler.isReady(ref);
+        }
+        
+        /**
+         * Return the time when the best fetch set in the queue can be fetched, which
+         * is the earliest time that nextOrNull() could return something from the queue.
+         * 
+         * @return time in milliseconds, or Long.MAX_VALUE if the queue is empty (or
+         *         everything in it is active).
+         */
+        public long getNextFetchTime() {
+            FetchSetDatum datum = _queue.peek();
+            if (datum == null) {
+                return Long.MAX_VALUE;
+            } else {
+                return _scheduler.getFetchTime(datum.getGroupingRef());
             }
-            
-            return false;
         }
         
         public FetchSetDatum nextOrNull(FetcherMode mode) {
@@ -229,7 +238,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             FetchSetDatum result = _queue.poll();
             if (result != null) {
                 _flowProcess.increment(FetchCounters.FETCHSETS_QUEUED, -1);
-                _flowProcess.increment(FetchCounters.URLS_QUEUED, -result.getUrls().size());
+                _flowProcess.increment(FetchCounters.URLS_QUEUED, -result.getNumUrls());
             }
             
             return result;
@@ -238,32 +247,56 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         private void addToQueue(FetchSetDatum datum) {
             if (datum != null) {
                 _flowProcess.increment(FetchCounters.FETCHSETS_QUEUED, 1);
-                _flowProcess.increment(FetchCounters.URLS_QUEUED, datum.getUrls().size());
+                _flowProcess.increment(FetchCounters.URLS_QUEUED, datum.getNumUrls());
 
                 _queue.add(datum);
             }
         }
 }
 
+    /**
+     * Output queue that deletes content spill files (see SimpleHttpFetcher.setContentSpillThreshold)
+     * once the tuple has been output. The next operation in the pipe might still be holding
+     * on to the ContentBytes, so the content is loaded into memory before the file is deleted.
+     */
+    private static class FetchOutputQueue extends TupleCollectorQueue {
+        
+        @Override
+        protected void tupleDone(Tuple tuple) {
+            for (int i = 0; i < tuple.size(); i++) {
+                Object value = tuple.get(i);
+                if (value instanceof ContentBytes) {
+                    try {
+                        ((ContentBytes)value).releaseSpillFile(true);
+                    } catch (IOException e) {
+                        LOGGER.warn("Can't delete content spill file", e);
+                    }
+                }
+            }
+        }
+    }
+
     private static final Fields FETCH_RESULT_FIELD = new Fields(BaseDatum.fieldName(FetchBuffer.class, "fetch-exception"));
 
-    // Time to sleep when we don't have any URLs that can be fetched.
+    // Max time to sleep when we don't have any URLs that can be fetched. We'll wake
+    // up sooner if a queued fetch set becomes ready, or a fetch task finishes.
     private static final long NOTHING_TO_FETCH_SLEEP_TIME = 1000;
 
     private static final long HARD_TERMINATION_CLEANUP_DURATION = 10 * 1000L;
 
+    // How often we check whether asynchronous fetches are done, during cleanup.
+    private static final long ASYNC_TERMINATION_POLL_TIME = 100L;
+
     private BaseFetcher _fetcher;
     private FetcherMode _fetcherMode;
 
     private transient ThreadedExecutor _executor;
+    private transient AtomicInteger _activeFetchSets;
     private transient LoggingFlowProcess _flowProcess;
-    private transient TupleEntryCollector _collector;
+    private transient TupleCollectorQueue _output;
 
-    private transient Object _refLock;
-    private transient ConcurrentHashMap<String, Long> _activeRefs;
-    private transient ConcurrentHashMap<String, Long> _pendingRefs;
-    
-    private transient AtomicBoolean _keepCollecting;
+    private transient PolitenessScheduler _scheduler;
+    private transient volatile QueuedValues _queuedValues;
     
     public FetchBuffer(BaseFetcher fetcher) {
         // We're going to output a tuple that contains a FetchedDatum, plus meta-data,
@@ -289,38 +322,53 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
         _flowProcess = new LoggingFlowProcess((HadoopFlowProcess) flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
 
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), _fetcher.getFetcherPolicy().getRequestTimeout());
+        // Asynchronous fetchers run fetch sets on their own threads.
+        if (!_fetcher.isAsynchronous()) {
+            _executor = new ThreadedExecutor(_fetcher.getMaxThreads(),
+                            _fetcher.getFetcherPolicy().getRequestTimeout(), _fetcher.getTaskStackSize());
+        }
 
-        _refLock = new Object();
-        _pendingRefs = new ConcurrentHashMap<String, Long>();
-        _activeRefs = new ConcurrentHashMap<String, Long>();
+        _activeFetchSets = new AtomicInteger();
+        _scheduler = new PolitenessScheduler();
         
-        _keepCollecting = new AtomicBoolean(true);
+        // Fetch threads queue up their results, and we output them from this thread.
+        _output = new FetchOutputQueue();
     }
 
     @Override
     public void operate(FlowProcess process, BufferCall<NullContext> buffCall) {
         QueuedValues values = new QueuedValues(buffCall.getArgumentsIterator());
+        _queuedValues = values;
 
-        _collector = buffCall.getOutputCollector();
+        _output.setCollector(buffCall.getOutputCollector());
         FetcherPolicy fetcherPolicy = _fetcher.getFetcherPolicy();
         
         // Each value is a PreFetchedDatum that contains a set of URLs to fetch in one request from
         // a single server, plus other values needed to set state properly.
         while (!Thread.interrupted() && !fetcherPolicy.isTerminateFetch() && !values.isEmpty()) {
-            FetchSetDatum datum = values.nextOrNull(_fetcherMode);
+            _output.drain();
             
             try {
+                // With an asynchronous fetcher there's no thread pool limiting the number
+                // of fetch sets that are active at once, so we have to do that here.
+                if (_fetcher.isAsynchronous() && (_activeFetchSets.get() >= _fetcher.getMaxThreads())) {
+                    trace("Too many active fetch sets, sleeping...");
+                    process.keepAlive();
+                    _scheduler.waitUntil(Long.MAX_VALUE, NOTHING_TO_FETCH_SLEEP_TIME);
+                    continue;
+                }
+
+                FetchSetDatum datum = values.nextOrNull(_fetcherMode);
                 if (datum == null) {
                     trace("Nothing ready to fetch, sleeping...");
                     process.keepAlive();
-                    Thread.sleep(NOTHING_TO_FETCH_SLEEP_TIME);
+                    _scheduler.waitUntil(values.getNextFetchTime(), NOTHING_TO_FETCH_SLEEP_TIME);
                 } else {
                     List<ScoredUrlDatum> urls = datum.getUrls();
                     String ref = datum.getGroupingRef();
                     trace("Processing %d URLs for %s", urls.size(), ref);
 
-                    Runnable doFetch = new FetchTask(this, _fetcher, urls, ref);
+                    FetchTask doFetch = new FetchTask(this, _fetcher, urls, ref);
                     if (datum.isLastList()) {
                         makeActive(ref, 0L);
                         trace("Executing fetch of %d URLs from %s (last batch)", urls.size(), ref);
@@ -332,8 +380,14 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
 
                     long startTime = System.currentTimeMillis();
 
+                    _activeFetchSets.incrementAndGet();
+
                     try {
-                        _executor.execute(doFetch);
+                        if (_fetcher.isAsynchronous()) {
+                            doFetch.start();
+                        } else {
+                            _executor.execute(doFetch);
+                        }
                     } catch (RejectedExecutionException e) {
                         // should never happen.
                         LOGGER.error("Fetch pool rejected our fetch list for " + ref);
@@ -369,19 +423,29 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 }
             }
         }
+        
+        _output.drain();
     }
 
     @Override
     public void cleanup(FlowProcess process, OperationCall<NullContext> operationCall) {
         try {
-            // We don't know worst-case for amount of time a worker thread will effectively
-            // "sleep" waiting for a FetchTask to be queued up, but we'll add in a bit of
-            // slop to represent that amount of time.
-            long pollTime = ThreadedExecutor.MAX_POLL_TIME;
-            Thread.sleep(pollTime);
-            
             long requestTimeout = _fetcher.getFetcherPolicy().getRequestTimeout();
-            if (!_executor.terminate(requestTimeout)) {
+            boolean terminated;
+            
+            if (_fetcher.isAsynchronous()) {
+                terminated = waitForAsyncFetches(requestTimeout);
+            } else {
+                // We don't know worst-case for amount of time a worker thread will effectively
+                // "sleep" waiting for a FetchTask to be queued up, but we'll add in a bit of
+                // slop to represent that amount of time.
+                long pollTime = ThreadedExecutor.MAX_POLL_TIME;
+                Thread.sleep(pollTime);
+                
+                terminated = _executor.terminate(requestTimeout);
+            }
+            
+            if (!terminated) {
                 LOGGER.warn("Had to do a hard termination of general fetching");
                 
                 // Abort any active connections, which should give the FetchTasks a chance
@@ -393,50 +457,63 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
                 Thread.sleep(HARD_TERMINATION_CLEANUP_DURATION);
             }
             
-            // Now stop collecting results. If somebody is in the middle of the collect() call,
-            // we want them to finish before we set it to false and drop out of this method.
-            synchronized (_keepCollecting) {
-                _keepCollecting.set(false);
-            }
         } catch (InterruptedException e) {
             // FUTURE What's the right thing to do here? E.g. do I need to worry about
             // losing URLs still to be processed?
             LOGGER.warn("Interrupted while waiting for termination");
         }
 
+        // Output everything that's queued up, and stop collecting results. Anything
+        // that's collected after this gets logged and dropped.
+        _output.close();
+        _output.updateCounters(_flowProcess);
+        LOGGER.info("Fetch output queue: " + _output);
+
         _flowProcess.dumpCounters();
     }
 
-    @Override
-    public void finished(String ref) {
-        synchronized (_refLock) {
-            Long nextFetchTime = _activeRefs.remove(ref);
-            if (nextFetchTime == null) {
-                throw new RuntimeException("finished called on non-active ref: " + ref);
+    /**
+     * Wait for all of the fetch sets started with FetchTask.start() to finish.
+     * 
+     * @param timeout max time to wait, in milliseconds
+     * @return true if they all finished in time.
+     * @throws InterruptedException
+     */
+    private boolean waitForAsyncFetches(long timeout) throws InterruptedException {
+        long endTime = System.currentTimeMillis() + timeout;
+        while (_activeFetchSets.get() > 0) {
+            if (System.currentTimeMillis() >= endTime) {
+                return false;
             }
             
-            // If there's going to be more to fetch, put it back in the pending pool.
-            if (nextFetchTime != 0) {
-                trace("Finished batch fetch for %s, with next batch at %d", ref, nextFetchTime);
-                _pendingRefs.put(ref, nextFetchTime);
-            } else {
-                trace("Finished last batch fetch for %s", ref);
-            }
+            Thread.sleep(ASYNC_TERMINATION_POLL_TIME);
         }
+        
+        return true;
     }
 
     @Override
-    public void collect(Tuple tuple) {
-        // Prevent two bad things from happening:
-        // 1. Somebody changes _keepCollecting after we've tested that it's true
-        // 2. Two people calling collector.add() at the same time (it's not thread safe)
-        synchronized (_keepCollecting) {
-            if (_keepCollecting.get()) {
-                _collector.add(tuple);
-            } else {
-                LOGGER.warn("Losing an entry: " + tuple);
-            }
+    public void finished(String ref) {
+        _activeFetchSets.decrementAndGet();
+        
+        long nextFetchTime = _scheduler.finished(ref);
+        if (nextFetchTime != 0) {
+            trace("Finished batch fetch for %s, with next batch at %d", ref, nextFetchTime);
+        } else {
+            trace("Finished last batch fetch for %s", ref);
         }
+        
+        // Wake up the main thread (if it's waiting for something to be ready) after
+        // the queue knows that it has to re-sort.
+        reprioritizeQueue();
+        _scheduler.wakeUp();
+    }
+
+    @Override
+    public void collect(Tuple tuple) {
+        // Collectors aren't thread safe, so the tuple gets queued up and then
+        // output by the FetchBuffer thread.
+        _output.add(tuple);
     }
 
     @Override
@@ -449,7 +526,7 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
             FetchedDatum result = new FetchedDatum(datum);
             Tuple tuple = result.getTuple();
             tuple.add(status.toString());
-            _collector.add(tuple);
+            _output.add(tuple);
         }
 
         _flowProcess.increment(FetchCounters.URLS_SKIPPED, urls.size());
@@ -469,20 +546,22 @@ public class FetchBuffer extends BaseOperation<NullContext> implements Buffer<Nu
      * @param nextFetchTime
      */
     private void makeActive(String ref, Long nextFetchTime) {
-        synchronized (_refLock) {
-            trace("Making %s active", ref);
-            _pendingRefs.remove(ref);
-            _activeRefs.put(ref, nextFetchTime);
+        trace("Making %s active", ref);
+        _scheduler.makeActive(ref, nextFetchTime);
+        reprioritizeQueue();
+    }
+    
+    private void reprioritizeQueue() {
+        // Changing the active fetch time doesn't matter (adjustActive), since active
+        // refs always sort to the end, but moving between active and pending does.
+        QueuedValues values = _queuedValues;
+        if (values != null) {
+            values.reprioritize();
         }
     }
 
     private void adjustActive(String ref, long deltaTime) {
-        synchronized (_refLock) {
-            Long nextFetchTime = _activeRefs.get(ref);
-            if ((nextFetchTime != null) && (nextFetchTime != 0) && (deltaTime != 0)) {
-                _activeRefs.put(ref, nextFetchTime + deltaTime);
-            }
-        }
+        _scheduler.adjustActive(ref, deltaTime);
     }
 
     private void trace(String template, Object... params) {
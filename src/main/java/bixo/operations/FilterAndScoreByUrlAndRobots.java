@@ -16,18 +16,30 @@
  */
 package bixo.operations;
 
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.concurrent.RejectedExecutionException;
 
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
 import org.apache.log4j.Logger;
 
+import bixo.config.RobotsCachePolicy;
 import bixo.config.UserAgent;
 import bixo.datum.GroupedUrlDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.fetcher.BaseFetcher;
 import bixo.hadoop.FetchCounters;
 import bixo.robots.BaseRobotsParser;
+import bixo.robots.RobotRulesCache;
 import bixo.robots.RobotUtils;
+import bixo.utils.BaseHostResolver;
+import bixo.utils.CachingHostResolver;
+import bixo.utils.DatumQueueCodec;
 import bixo.utils.DiskQueue;
 import bixo.utils.GroupingKey;
 import bixo.utils.ThreadedExecutor;
@@ -59,8 +71,12 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
     private BaseScoreGenerator _scorer;
 	private BaseFetcher _fetcher;
 	private BaseRobotsParser _parser;
+	private RobotsCachePolicy _cachePolicy;
+	private BaseHostResolver _resolver;
 	
     private transient ThreadedExecutor _executor;
+    private transient RobotRulesCache _cache;
+    private transient TupleCollectorQueue _output;
     private transient LoggingFlowProcess _flowProcess;
 
     public FilterAndScoreByUrlAndRobots(UserAgent userAgent, int maxThreads, BaseRobotsParser parser, BaseScoreGenerator scorer) {
@@ -69,25 +85,65 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
         _scorer = scorer;
         _parser = parser;
         _fetcher = RobotUtils.createFetcher(userAgent, maxThreads);
+        _cachePolicy = new RobotsCachePolicy();
+        _resolver = new CachingHostResolver();
     }
 
     public FilterAndScoreByUrlAndRobots(BaseFetcher fetcher, BaseRobotsParser parser, BaseScoreGenerator scorer) {
+        this(fetcher, parser, scorer, new RobotsCachePolicy());
+    }
+
+    public FilterAndScoreByUrlAndRobots(BaseFetcher fetcher, BaseRobotsParser parser, BaseScoreGenerator scorer, RobotsCachePolicy cachePolicy) {
         // We're going to output a ScoredUrlDatum (what FetcherBuffer expects).
         super(ScoredUrlDatum.FIELDS);
 
         _scorer = scorer;
         _parser = parser;
         _fetcher = fetcher;
+        _cachePolicy = cachePolicy;
+        _resolver = new CachingHostResolver();
+    }
+
+    /**
+     * Set the resolver used to get the IP address for each domain. By default this
+     * is a CachingHostResolver, which starts resolving a domain while the robots
+     * task for the domain is waiting for a thread.
+     * 
+     * @param resolver resolver for host names
+     */
+    public void setHostResolver(BaseHostResolver resolver) {
+        _resolver = resolver;
+    }
+    
+    public BaseHostResolver getHostResolver() {
+        return _resolver;
     }
 
     @Override
     public void prepare(FlowProcess flowProcess, cascading.operation.OperationCall<NullContext> operationCall) {
-        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), COMMAND_TIMEOUT);
+        _executor = new ThreadedExecutor(_fetcher.getMaxThreads(), COMMAND_TIMEOUT, _fetcher.getTaskStackSize());
+        _output = new TupleCollectorQueue();
         
         // FUTURE KKr - use Cascading process vs creating our own, once it
         // supports logging in local mode, and a setStatus() call.
         _flowProcess = new LoggingFlowProcess((HadoopFlowProcess)flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
+        
+        _cache = null;
+        if (_cachePolicy.isCaching()) {
+            _cache = new RobotRulesCache(_cachePolicy);
+            
+            String cacheDir = _cachePolicy.getCacheDir();
+            try {
+                Path cachePath = new Path(cacheDir);
+                FileSystem fs = cachePath.getFileSystem(((HadoopFlowProcess)flowProcess).getJobConf());
+                int numLoaded = _cache.load(fs, cachePath);
+                LOGGER.info(String.format("Loaded %d cached robot rules from %s", numLoaded, cacheDir));
+            } catch (IOException e) {
+                // The cache is just an optimization, so we can keep going without it.
+                LOGGER.warn("Can't load cached robot rules from " + cacheDir, e);
+            }
+        }
     }
     
     @Override
@@ -104,6 +160,15 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
             Thread.currentThread().interrupt();
         }
         
+        _output.close();
+        _output.updateCounters(_flowProcess);
+        LOGGER.info("Robots output queue: " + _output);
+        
+        if (_cache != null) {
+            saveCache((HadoopFlowProcess)flowProcess);
+        }
+        
+        ResolveHostsBuffer.updateResolverCounters(_resolver, _flowProcess);
         _flowProcess.dumpCounters();
     }
     
@@ -112,29 +177,62 @@ public class FilterAndScoreByUrlAndRobots extends BaseOperation<NullContext> imp
         TupleEntry group = bufferCall.getGroup();
         String protocolAndDomain = group.getString(0);
 
+        // Get the DNS lookup going now, since we might have to wait for a free thread
+        // (and we have to read in all of the URLs) before the robots task starts.
+        // Skip this if the domain was already resolved by ResolveHostsBuffer.
+        if (!GroupingKey.isResolvedDomainKey(protocolAndDomain)) {
+            try {
+                _resolver.prefetch(Collections.singletonList(new URL(protocolAndDomain).getHost()));
+            } catch (MalformedURLException e) {
+                // The robots task will handle this.
+            }
+        }
+        
+        // Output whatever the robots tasks have generated since the last call.
+        _output.setCollector(bufferCall.getOutputCollector());
+        _output.drain();
+
         DiskQueue<GroupedUrlDatum> urls = new DiskQueue<GroupedUrlDatum>(MAX_URLS_IN_MEMORY);
+        urls.setCodec(new DatumQueueCodec<GroupedUrlDatum>(GroupedUrlDatum.class));
         Iterator<TupleEntry> values = bufferCall.getArgumentsIterator();
         while (values.hasNext()) {
             urls.add(new GroupedUrlDatum(new TupleEntry(values.next())));
         }
         
         try {
-            Runnable doRobots = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _fetcher, _parser, bufferCall.getOutputCollector(), _flowProcess);
+            Runnable doRobots = new ProcessRobotsTask(protocolAndDomain, _scorer, urls, _fetcher, _parser, _cache, _resolver, _output, _flowProcess);
             _executor.execute(doRobots);
         } catch (RejectedExecutionException e) {
             // should never happen.
             LOGGER.error("Robots handling pool rejected our request for " + protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
             _flowProcess.increment(FetchCounters.URLS_REJECTED, urls.size());
-            ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, bufferCall.getOutputCollector());
+            ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, _output);
         } catch (Throwable t) {
            LOGGER.error("Caught an unexpected throwable - robots handling rejected our request for " + protocolAndDomain, t);
            _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
            _flowProcess.increment(FetchCounters.URLS_REJECTED, urls.size());
-           ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, bufferCall.getOutputCollector());
+           ProcessRobotsTask.emptyQueue(urls, GroupingKey.DEFERRED_GROUPING_KEY, _output);
       } 
 	}
-
 	
+    private void saveCache(HadoopFlowProcess flowProcess) {
+        _flowProcess.increment(FetchCounters.DOMAINS_ROBOTS_CACHED, (int)_cache.getNumHits());
+        LOGGER.info("Robot rules cache: " + _cache);
+        
+        String cacheDir = _cachePolicy.getCacheDir();
+        try {
+            JobConf conf = flowProcess.getJobConf();
+            Path cachePath = new Path(cacheDir);
+            FileSystem fs = cachePath.getFileSystem(conf);
+            int numPartitions = Math.max(1, conf.getNumReduceTasks());
+            int numSaved = _cache.save(fs, cachePath, conf.getInt("mapred.task.partition", 0), numPartitions);
+            LOGGER.info(String.format("Saved %d cached robot rules to %s", numSaved, cacheDir));
+        } catch (IOException e) {
+            LOGGER.warn("Can't save cached robot rules to " + cacheDir, e);
+        }
+    }
+
+    
 
 }
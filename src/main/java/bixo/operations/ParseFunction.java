@@ -0,0 +1,376 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ParsedDatum;
+import bixo.parser.BaseParser;
+import bixo.parser.ParseExecutor;
+import bixo.parser.ParserCounters;
+import bixo.parser.SimpleParser;
+import bixo.utils.ThreadedExecutor;
+import cascading.flow.FlowProcess;
+import cascading.flow.hadoop.HadoopFlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Function;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+import com.bixolabs.cascading.LoggingFlowReporter;
+import com.bixolabs.cascading.NullContext;
+
+/**
+ * Parse each FetchedDatum, and output the resulting ParsedDatum. Documents that
+ * can't be parsed are logged and counted, but don't generate any output.
+ *
+ * By default each document is parsed on the Cascading thread, one at a time. If
+ * <numThreads> is > 0, documents are instead handed off to a pool of that many
+ * parse threads (each with its own copy of the parser), and results are output as
+ * they complete, via a TupleCollectorQueue. At most <maxInFlight> documents can be
+ * queued up, being parsed, or waiting to be output at any one time, which bounds
+ * memory use.
+ *
+ * If <preserveOrder> is true, results are output in the same order as the input
+ * documents, at the cost of a slow parse holding up the output of later ones.
+ *
+ */
+@SuppressWarnings("serial")
+public class ParseFunction extends BaseOperation<NullContext> implements Function<NullContext> {
+    private static final Logger LOGGER = Logger.getLogger(ParseFunction.class);
+
+    // Default number of in-flight documents per parse thread.
+    public static final int DEFAULT_IN_FLIGHT_PER_THREAD = 2;
+
+    // How long to wait for a parse thread to free up before we parse on our own thread.
+    private static final long REQUEST_TIMEOUT = 60 * 1000L;
+
+    // How long to wait for an in-flight slot before checking for output again.
+    private static final long IN_FLIGHT_POLL_TIME = 10L;
+
+    // Marker for a document that didn't parse, when preserving order.
+    private static final Tuple NO_RESULT = new Tuple();
+
+    private class ParseTask implements Runnable {
+        private FetchedDatum _fetchedDatum;
+        private long _sequence;
+
+        public ParseTask(FetchedDatum fetchedDatum, long sequence) {
+            _fetchedDatum = fetchedDatum;
+            _sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            Tuple result = null;
+
+            try {
+                result = parse(_threadParser.get(), _fetchedDatum);
+            } catch (Throwable t) {
+                // parse() handles exceptions, so this is an Error (e.g. a StackOverflowError
+                // from the parser). We still have to account for the document below, as
+                // otherwise cleanup() would wait forever for its in-flight slot.
+                LOGGER.error("Unexpected error processing " + _fetchedDatum.getUrl(), t);
+                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+            } finally {
+                if (_preserveOrder) {
+                    _completed.put(_sequence, result == null ? NO_RESULT : result);
+                } else {
+                    try {
+                        if (result != null) {
+                            _output.add(result);
+                        }
+                    } finally {
+                        _inFlight.release();
+                    }
+                }
+            }
+        }
+    }
+
+    private BaseParser _parser;
+    private int _numThreads;
+    private int _maxInFlight;
+    private boolean _preserveOrder;
+
+    private transient LoggingFlowProcess _flowProcess;
+
+    // Only set when we're parsing with multiple threads.
+    private transient ThreadedExecutor _executor;
+    private transient TupleCollectorQueue _output;
+    private transient Semaphore _inFlight;
+    private transient ThreadLocal<BaseParser> _threadParser;
+    private transient List<BaseParser> _threadParsers;
+    private transient ConcurrentHashMap<Long, Tuple> _completed;
+    private transient long _nextSequence;
+    private transient long _nextToOutput;
+
+    public ParseFunction(BaseParser parser) {
+        this(parser, 0, 0, false);
+    }
+
+    /**
+     * @param parser parser to use (copied for each parse thread)
+     * @param numThreads number of parse threads, or 0 to parse on the calling thread
+     * @param maxInFlight max number of documents being parsed or waiting to be output
+     * @param preserveOrder true if results should be output in the same order as the input
+     */
+    public ParseFunction(BaseParser parser, int numThreads, int maxInFlight, boolean preserveOrder) {
+        super(ParsedDatum.FIELDS);
+
+        if (numThreads < 0) {
+            throw new InvalidParameterException("Number of threads must be >= 0: " + numThreads);
+        }
+
+        if ((numThreads > 0) && (maxInFlight < numThreads)) {
+            throw new InvalidParameterException("Max in-flight documents must be >= number of threads: " + maxInFlight);
+        }
+
+        _parser = parser;
+        _numThreads = numThreads;
+        _maxInFlight = maxInFlight;
+        _preserveOrder = preserveOrder;
+    }
+
+    public int getNumThreads() {
+        return _numThreads;
+    }
+
+    public int getMaxInFlight() {
+        return _maxInFlight;
+    }
+
+    public boolean isPreserveOrder() {
+        return _preserveOrder;
+    }
+
+    @Override
+    public boolean isSafe() {
+        // We don't want to get called multiple times for the same tuple
+        return false;
+    }
+
+    @Override
+    public void prepare(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+        super.prepare(flowProcess, operationCall);
+        _flowProcess = new LoggingFlowProcess((HadoopFlowProcess)flowProcess);
+        _flowProcess.addReporter(new LoggingFlowReporter());
+
+        if (_numThreads > 0) {
+            _executor = new ThreadedExecutor(_numThreads, REQUEST_TIMEOUT);
+            _output = new TupleCollectorQueue();
+            _inFlight = new Semaphore(_maxInFlight);
+            _completed = new ConcurrentHashMap<Long, Tuple>();
+            _nextSequence = 0;
+            _nextToOutput = 0;
+
+            // Parsers aren't thread safe, so every thread gets its own copy.
+            final byte[] serializedParser = serialize(_parser);
+            _threadParsers = new ArrayList<BaseParser>();
+            _threadParser = new ThreadLocal<BaseParser>() {
+
+                @Override
+                protected BaseParser initialValue() {
+                    BaseParser result = deserialize(serializedParser);
+                    synchronized (_threadParsers) {
+                        _threadParsers.add(result);
+                    }
+
+                    return result;
+                }
+            };
+        }
+    }
+
+    @Override
+    public void operate(FlowProcess flowProcess, FunctionCall<NullContext> functionCall) {
+        if (_executor == null) {
+            FetchedDatum fetchedDatum = new FetchedDatum(functionCall.getArguments());
+            Tuple result = parse(_parser, fetchedDatum);
+            if (result != null) {
+                functionCall.getOutputCollector().add(result);
+            }
+
+            return;
+        }
+
+        _output.setCollector(functionCall.getOutputCollector());
+
+        // Cascading re-uses the argument tuple, so we need our own copy. That's a shallow
+        // copy, and the fetch side can release a spilled ContentBytes once we return, so
+        // the content has to be loaded into memory here as well.
+        FetchedDatum fetchedDatum = new FetchedDatum(new TupleEntry(functionCall.getArguments()));
+        fetchedDatum.setContent(new ContentBytes(fetchedDatum.getContentBytes()));
+        acquireInFlight(flowProcess);
+
+        ParseTask task = new ParseTask(fetchedDatum, _nextSequence++);
+        try {
+            _executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            LOGGER.warn("No parse thread available, parsing on the calling thread: " + fetchedDatum.getUrl());
+            task.run();
+        }
+
+        outputCompleted();
+    }
+
+    @Override
+    public void cleanup(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
+        if (_executor != null) {
+            // Wait for everything that's in flight to be output.
+            for (int i = 0; i < _maxInFlight; i++) {
+                acquireInFlight(flowProcess);
+            }
+
+            outputCompleted();
+
+            try {
+                if (!_executor.terminate(REQUEST_TIMEOUT)) {
+                    LOGGER.warn("Had to do a hard termination of parsing");
+                }
+            } catch (InterruptedException e) {
+                LOGGER.warn("Interrupted while waiting for termination");
+            }
+
+            _output.close();
+            _output.updateCounters(_flowProcess);
+            LOGGER.info("Parse output queue: " + _output);
+
+            synchronized (_threadParsers) {
+                for (BaseParser parser : _threadParsers) {
+                    updateParserCounters(parser);
+                }
+            }
+        } else {
+            updateParserCounters(_parser);
+        }
+
+        _flowProcess.dumpCounters();
+        super.cleanup(flowProcess, operationCall);
+    }
+
+    private Tuple parse(BaseParser parser, FetchedDatum fetchedDatum) {
+        try {
+            ParsedDatum parseResult = parser.parse(fetchedDatum);
+            _flowProcess.increment(ParserCounters.DOCUMENTS_PARSED, 1);
+            return parseResult.getTuple();
+        } catch (Exception e) {
+            LOGGER.warn("Error processing " + fetchedDatum.getUrl(), e);
+            _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
+            // TODO KKr - don't lose datums for documents that couldn't be parsed
+            return null;
+        }
+    }
+
+    /**
+     * Wait until we're allowed to have another document in flight, outputting
+     * results while we wait.
+     */
+    private void acquireInFlight(FlowProcess flowProcess) {
+        boolean interrupted = false;
+
+        while (true) {
+            try {
+                if (_inFlight.tryAcquire(IN_FLIGHT_POLL_TIME, TimeUnit.MILLISECONDS)) {
+                    break;
+                }
+            } catch (InterruptedException e) {
+                // Parse threads always finish up, so keep waiting.
+                interrupted = true;
+            }
+
+            flowProcess.keepAlive();
+            outputCompleted();
+        }
+
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Output whatever results are ready. Only called from the Cascading thread.
+     */
+    private void outputCompleted() {
+        if (_preserveOrder) {
+            Tuple result;
+            while ((result = _completed.remove(_nextToOutput)) != null) {
+                _nextToOutput += 1;
+                if (result != NO_RESULT) {
+                    _output.add(result);
+                }
+
+                _inFlight.release();
+            }
+        }
+
+        _output.drain();
+    }
+
+    private void updateParserCounters(BaseParser parser) {
+        if (parser instanceof SimpleParser) {
+            ParseExecutor executor = ((SimpleParser)parser).getParseExecutor();
+            if (executor != null) {
+                _flowProcess.increment(ParserCounters.PARSE_QUEUE_WAIT_TIME, (int)executor.getQueueWaitTime());
+                _flowProcess.increment(ParserCounters.PARSE_TIME, (int)executor.getParseTime());
+                _flowProcess.increment(ParserCounters.PARSE_TIMEOUTS, (int)executor.getNumTimeouts());
+                _flowProcess.increment(ParserCounters.PARSE_THREADS_REPLACED, (int)executor.getNumReplacedWorkers());
+            }
+        }
+    }
+
+    private static byte[] serialize(BaseParser parser) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream out = new ObjectOutputStream(bytes);
+            out.writeObject(parser);
+            out.close();
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException("Can't serialize parser", e);
+        }
+    }
+
+    private static BaseParser deserialize(byte[] serializedParser) {
+        try {
+            ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(serializedParser));
+            return (BaseParser)in.readObject();
+        } catch (IOException e) {
+            throw new RuntimeException("Can't deserialize parser", e);
+        } catch (ClassNotFoundException e) {
+            throw new RuntimeException("Can't find class for parser", e);
+        }
+    }
+}
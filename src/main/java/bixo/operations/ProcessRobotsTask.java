@@ -31,12 +31,13 @@ import bixo.fetcher.BaseFetcher;
 import bixo.hadoop.FetchCounters;
 import bixo.robots.BaseRobotRules;
 import bixo.robots.BaseRobotsParser;
+import bixo.robots.RobotRulesCache;
 import bixo.robots.RobotUtils;
+import bixo.utils.BaseHostResolver;
 import bixo.utils.DomainInfo;
+import bixo.utils.SimpleHostResolver;
 import bixo.utils.DomainNames;
 import bixo.utils.GroupingKey;
-import cascading.tuple.TupleEntryCollector;
-
 import com.bixolabs.cascading.LoggingFlowProcess;
 
 public class ProcessRobotsTask implements Runnable {
@@ -46,18 +47,33 @@ public class ProcessRobotsTask implements Runnable {
     private BaseScoreGenerator _scorer;
     private Queue<GroupedUrlDatum> _urls;
     private BaseFetcher _fetcher;
-    private TupleEntryCollector _collector;
+    private TupleCollectorQueue _output;
     private BaseRobotsParser _parser;
+    private RobotRulesCache _cache;
+    private BaseHostResolver _resolver;
     private LoggingFlowProcess _flowProcess;
 
     public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
-                    BaseRobotsParser parser, TupleEntryCollector collector, LoggingFlowProcess flowProcess) {
+                    BaseRobotsParser parser, TupleCollectorQueue output, LoggingFlowProcess flowProcess) {
+        this(protocolAndDomain, scorer, urls, fetcher, parser, null, output, flowProcess);
+    }
+
+    public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
+                    BaseRobotsParser parser, RobotRulesCache cache, TupleCollectorQueue output, LoggingFlowProcess flowProcess) {
+        this(protocolAndDomain, scorer, urls, fetcher, parser, cache, new SimpleHostResolver(), output, flowProcess);
+    }
+
+    public ProcessRobotsTask(String protocolAndDomain, BaseScoreGenerator scorer, Queue<GroupedUrlDatum> urls, BaseFetcher fetcher, 
+                    BaseRobotsParser parser, RobotRulesCache cache, BaseHostResolver resolver, TupleCollectorQueue output,
+                    LoggingFlowProcess flowProcess) {
         _protocolAndDomain = protocolAndDomain;
         _scorer = scorer;
         _urls = urls;
         _fetcher = fetcher;
         _parser = parser;
-        _collector = collector;
+        _cache = cache;
+        _resolver = resolver;
+        _output = output;
         _flowProcess = flowProcess;
     }
 
@@ -68,17 +84,14 @@ public class ProcessRobotsTask implements Runnable {
      * 
      * @param urls Queue of URLs to empty out
      * @param groupingKey grouping key to use for all entries.
-     * @param collector tuple output collector
+     * @param output queue for tuples that we output
      */
-    public static void emptyQueue(Queue<GroupedUrlDatum> urls, String groupingKey, TupleEntryCollector collector) {
+    public static void emptyQueue(Queue<GroupedUrlDatum> urls, String groupingKey, TupleCollectorQueue output) {
         GroupedUrlDatum datum;
         while ((datum = urls.poll()) != null) {
             ScoredUrlDatum scoreUrl = new ScoredUrlDatum(datum.getUrl(), groupingKey, UrlStatus.UNFETCHED, 1.0);
             scoreUrl.setPayload(datum.getPayload());
-            // TODO KKr - move synchronization up, to avoid lots of contention with other threads?
-            synchronized (collector) {
-                collector.add(scoreUrl.getTuple());
-            }
+            output.add(scoreUrl.getTuple());
         }
     }
 
@@ -94,7 +107,19 @@ public class ProcessRobotsTask implements Runnable {
         _flowProcess.increment(FetchCounters.DOMAINS_PROCESSING, 1);
 
         try {
-            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain);
+            DomainInfo domainInfo;
+            if (GroupingKey.isResolvedDomainKey(_protocolAndDomain)) {
+                // Domain was already resolved (by ResolveHostsBuffer), so use that IP address.
+                String hostAddress = GroupingKey.getHostAddressFromKey(_protocolAndDomain);
+                if (hostAddress == null) {
+                    throw new UnknownHostException(_protocolAndDomain);
+                }
+                
+                domainInfo = new DomainInfo(GroupingKey.getProtocolAndDomainFromKey(_protocolAndDomain), hostAddress);
+            } else {
+                domainInfo = new DomainInfo(_protocolAndDomain, _resolver);
+            }
+            
             if (!domainInfo.isValidHostAddress()) {
                 throw new UnknownHostException(_protocolAndDomain);
             }
@@ -111,9 +136,9 @@ public class ProcessRobotsTask implements Runnable {
                 
                 LOGGER.debug("Skipping URLs from not-good domain: " + domain);
                 
-                emptyQueue(_urls, GroupingKey.SKIPPED_GROUPING_KEY, _collector);
+                emptyQueue(_urls, GroupingKey.SKIPPED_GROUPING_KEY, _output);
             } else {
-                BaseRobotRules robotRules = RobotUtils.getRobotRules(_fetcher, _parser, new URL(domainInfo.getProtocolAndDomain() + "/robots.txt"));
+                BaseRobotRules robotRules = RobotUtils.getRobotRules(_fetcher, _parser, new URL(domainInfo.getProtocolAndDomain() + "/robots.txt"), _cache);
 
                 String validKey = null;
                 boolean isDeferred = robotRules.isDeferVisits();
@@ -147,32 +172,29 @@ public class ProcessRobotsTask implements Runnable {
                     scoreUrl.setPayload(datum.getPayload());
                     _flowProcess.increment(counter, 1);
 
-                    // collectors aren't thread safe
-                    synchronized (_collector) {
-                        _collector.add(scoreUrl.getTuple());
-                    }
+                    _output.add(scoreUrl.getTuple());
                 }
             }
         } catch (UnknownHostException e) {
             LOGGER.debug("Unknown host: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
             _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.UNKNOWN_HOST_GROUPING_KEY, _collector);
+            emptyQueue(_urls, GroupingKey.UNKNOWN_HOST_GROUPING_KEY, _output);
         } catch (MalformedURLException e) {
             LOGGER.debug("Invalid URL: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
             _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _output);
         } catch (URISyntaxException e) {
             LOGGER.debug("Invalid URI: " + _protocolAndDomain);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
             _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _output);
         } catch (Exception e) {
             LOGGER.warn("Exception processing " + _protocolAndDomain, e);
             _flowProcess.increment(FetchCounters.DOMAINS_REJECTED, 1);
             _flowProcess.increment(FetchCounters.URLS_REJECTED, _urls.size());
-            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _collector);
+            emptyQueue(_urls, GroupingKey.INVALID_URL_GROUPING_KEY, _output);
         } finally {
             _flowProcess.decrement(FetchCounters.DOMAINS_PROCESSING, 1);
         }
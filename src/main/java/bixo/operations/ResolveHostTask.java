@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.util.Queue;
+
+import org.apache.log4j.Logger;
+
+import bixo.datum.GroupedUrlDatum;
+import bixo.hadoop.FetchCounters;
+import bixo.utils.BaseHostResolver;
+import bixo.utils.DomainInfo;
+import bixo.utils.GroupingKey;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+/**
+ * Resolve the host for one protocol+domain, and output all of the URLs for that
+ * domain with a grouping key that includes the IP address (or no address, if the
+ * host is unknown), so that ProcessRobotsTask doesn't have to resolve it again.
+ * 
+ * If the protocol+domain isn't valid, we output the URLs with their original key,
+ * and let ProcessRobotsTask deal with it.
+ *
+ */
+public class ResolveHostTask implements Runnable {
+    private static final Logger LOGGER = Logger.getLogger(ResolveHostTask.class);
+
+    private String _protocolAndDomain;
+    private Queue<GroupedUrlDatum> _urls;
+    private BaseHostResolver _resolver;
+    private TupleCollectorQueue _output;
+    private LoggingFlowProcess _flowProcess;
+
+    public ResolveHostTask(String protocolAndDomain, Queue<GroupedUrlDatum> urls, BaseHostResolver resolver,
+                    TupleCollectorQueue output, LoggingFlowProcess flowProcess) {
+        _protocolAndDomain = protocolAndDomain;
+        _urls = urls;
+        _resolver = resolver;
+        _output = output;
+        _flowProcess = flowProcess;
+    }
+
+    /**
+     * Output all of the URLs in <urls> using <groupingKey>.
+     * 
+     * @param urls Queue of URLs to empty out
+     * @param groupingKey grouping key to use for all entries.
+     * @param output queue for tuples that we output
+     */
+    public static void emptyQueue(Queue<GroupedUrlDatum> urls, String groupingKey, TupleCollectorQueue output) {
+        GroupedUrlDatum datum;
+        while ((datum = urls.poll()) != null) {
+            datum.setGroupKey(groupingKey);
+            output.add(datum.getTuple());
+        }
+    }
+    
+    @Override
+    public void run() {
+        _flowProcess.increment(FetchCounters.DOMAINS_RESOLVING, 1);
+
+        String key = _protocolAndDomain;
+        
+        try {
+            DomainInfo domainInfo = new DomainInfo(_protocolAndDomain, _resolver);
+            if (domainInfo.isValidHostAddress()) {
+                key = GroupingKey.makeResolvedDomainKey(_protocolAndDomain, domainInfo.getHostAddress());
+            } else {
+                key = GroupingKey.makeResolvedDomainKey(_protocolAndDomain, null);
+            }
+        } catch (UnknownHostException e) {
+            LOGGER.debug("Unknown host: " + _protocolAndDomain);
+            key = GroupingKey.makeResolvedDomainKey(_protocolAndDomain, null);
+        } catch (MalformedURLException e) {
+            LOGGER.debug("Invalid URL: " + _protocolAndDomain);
+        } catch (URISyntaxException e) {
+            LOGGER.debug("Invalid URI: " + _protocolAndDomain);
+        } catch (Exception e) {
+            LOGGER.warn("Exception resolving " + _protocolAndDomain, e);
+        } finally {
+            emptyQueue(_urls, key, _output);
+            _flowProcess.decrement(FetchCounters.DOMAINS_RESOLVING, 1);
+        }
+    }
+
+}
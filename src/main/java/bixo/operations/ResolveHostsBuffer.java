@@ -0,0 +1,160 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import java.util.Iterator;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.apache.log4j.Logger;
+
+import bixo.datum.GroupedUrlDatum;
+import bixo.hadoop.FetchCounters;
+import bixo.utils.BaseHostResolver;
+import bixo.utils.CachingHostResolver;
+import bixo.utils.DatumQueueCodec;
+import bixo.utils.DiskQueue;
+import bixo.utils.ThreadedExecutor;
+import cascading.flow.FlowProcess;
+import cascading.flow.hadoop.HadoopFlowProcess;
+import cascading.operation.BaseOperation;
+import cascading.operation.Buffer;
+import cascading.operation.BufferCall;
+import cascading.tuple.TupleEntry;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+import com.bixolabs.cascading.LoggingFlowReporter;
+import com.bixolabs.cascading.NullContext;
+
+/**
+ * Resolve the hosts for URLs grouped by protocol+domain, before they get to
+ * FilterAndScoreByUrlAndRobots. Each group is resolved once, with lots of lookups
+ * running in parallel, and the URLs are output with a grouping key that also
+ * contains the IP address (see GroupingKey.makeResolvedDomainKey).
+ * 
+ * This way slow DNS lookups don't tie up the (much smaller) pool of threads that
+ * are fetching robots.txt files.
+ *
+ */
+@SuppressWarnings("serial")
+public class ResolveHostsBuffer extends BaseOperation<NullContext> implements Buffer<NullContext> {
+    private static final Logger LOGGER = Logger.getLogger(ResolveHostsBuffer.class);
+    
+    public static final int DEFAULT_MAX_THREADS = 200;
+    
+    // How long to wait for a free thread, and for lookups to finish when we're done.
+    private static final long COMMAND_TIMEOUT = 2 * 60 * 1000L;
+    private static final long TERMINATE_TIMEOUT = COMMAND_TIMEOUT;
+
+    private static final int MAX_URLS_IN_MEMORY = 100;
+
+    private BaseHostResolver _resolver;
+    private int _maxThreads;
+    private long _taskStackSize;
+    
+    private transient ThreadedExecutor _executor;
+    private transient TupleCollectorQueue _output;
+    private transient LoggingFlowProcess _flowProcess;
+
+    public ResolveHostsBuffer() {
+        this(new CachingHostResolver());
+    }
+    
+    public ResolveHostsBuffer(BaseHostResolver resolver) {
+        this(resolver, DEFAULT_MAX_THREADS, ThreadedExecutor.DEFAULT_TASK_STACK_SIZE);
+    }
+    
+    /**
+     * @param resolver resolver for host names
+     * @param maxThreads max number of lookups to run at the same time
+     * @param taskStackSize stack size for lightweight lookup threads, or 0 to use a regular thread pool.
+     */
+    public ResolveHostsBuffer(BaseHostResolver resolver, int maxThreads, long taskStackSize) {
+        super(GroupedUrlDatum.FIELDS);
+        
+        _resolver = resolver;
+        _maxThreads = maxThreads;
+        _taskStackSize = taskStackSize;
+    }
+    
+    @Override
+    public void prepare(FlowProcess flowProcess, cascading.operation.OperationCall<NullContext> operationCall) {
+        _executor = new ThreadedExecutor(_maxThreads, COMMAND_TIMEOUT, _taskStackSize);
+        _output = new TupleCollectorQueue();
+        
+        _flowProcess = new LoggingFlowProcess((HadoopFlowProcess)flowProcess);
+        _flowProcess.addReporter(new LoggingFlowReporter());
+    }
+    
+    @Override
+    public void cleanup(FlowProcess flowProcess, cascading.operation.OperationCall<NullContext> operationCall) {
+        try {
+            if (!_executor.terminate(TERMINATE_TIMEOUT)) {
+                LOGGER.warn("Had to do a hard shutdown of host resolution");
+            }
+        } catch (InterruptedException e) {
+            LOGGER.warn("Interrupted while waiting for termination");
+            Thread.currentThread().interrupt();
+        }
+        
+        _output.close();
+        _output.updateCounters(_flowProcess);
+        updateResolverCounters(_resolver, _flowProcess);
+        _flowProcess.dumpCounters();
+    }
+    
+    @Override
+    public void operate(FlowProcess flowProcess, BufferCall<NullContext> bufferCall) {
+        TupleEntry group = bufferCall.getGroup();
+        String protocolAndDomain = group.getString(0);
+
+        // Output whatever the lookup tasks have generated since the last call.
+        _output.setCollector(bufferCall.getOutputCollector());
+        _output.drain();
+
+        DiskQueue<GroupedUrlDatum> urls = new DiskQueue<GroupedUrlDatum>(MAX_URLS_IN_MEMORY);
+        urls.setCodec(new DatumQueueCodec<GroupedUrlDatum>(GroupedUrlDatum.class));
+        Iterator<TupleEntry> values = bufferCall.getArgumentsIterator();
+        while (values.hasNext()) {
+            urls.add(new GroupedUrlDatum(new TupleEntry(values.next())));
+        }
+        
+        try {
+            _executor.execute(new ResolveHostTask(protocolAndDomain, urls, _resolver, _output, _flowProcess));
+        } catch (RejectedExecutionException e) {
+            // Pass the URLs through unresolved, so FilterAndScoreByUrlAndRobots will resolve them.
+            LOGGER.warn("Host resolution pool rejected our request for " + protocolAndDomain);
+            ResolveHostTask.emptyQueue(urls, protocolAndDomain, _output);
+        }
+    }
+    
+    /**
+     * Report lookup counters if <resolver> keeps track of them.
+     * 
+     * @param resolver resolver for host names
+     * @param flowProcess process that gets the counters
+     */
+    static void updateResolverCounters(BaseHostResolver resolver, LoggingFlowProcess flowProcess) {
+        if (resolver instanceof CachingHostResolver) {
+            CachingHostResolver cachingResolver = (CachingHostResolver)resolver;
+            flowProcess.increment(FetchCounters.DNS_LOOKUPS, (int)cachingResolver.getNumLookups());
+            flowProcess.increment(FetchCounters.DNS_LOOKUP_TIME, (int)cachingResolver.getLookupTime());
+            flowProcess.increment(FetchCounters.DNS_CACHE_HITS, (int)cachingResolver.getNumHits());
+            flowProcess.increment(FetchCounters.DNS_FAILURES, (int)cachingResolver.getNumFailures());
+            LOGGER.info("Host resolver: " + cachingResolver);
+        }
+    }
+}
@@ -19,7 +19,6 @@ package bixo.operations;
 import org.apache.log4j.Logger;
 
 import cascading.tuple.Tuple;
-import cascading.tuple.TupleEntryCollector;
 
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
@@ -33,12 +32,12 @@ public class ResolveRedirectsTask implements Runnable {
     
     private String _url;
     private BaseFetcher _fetcher;
-    private TupleEntryCollector _collector;
+    private TupleCollectorQueue _output;
 
-    public ResolveRedirectsTask(String url, BaseFetcher fetcher, TupleEntryCollector collector) {
+    public ResolveRedirectsTask(String url, BaseFetcher fetcher, TupleCollectorQueue output) {
         _url = url;
         _fetcher = fetcher;
-        _collector = collector;
+        _output = output;
     }
 
     @Override
@@ -66,9 +65,6 @@ public class ResolveRedirectsTask implements Runnable {
             LOGGER.debug("Exception processing redirect for " + _url + ": " + e.getMessage(), e);
         }
 
-        synchronized (_collector) {
-            // collectors aren't thread safe
-            _collector.add(new Tuple(redirectedUrl));
-        }
+        _output.add(new Tuple(redirectedUrl));
     }
 }
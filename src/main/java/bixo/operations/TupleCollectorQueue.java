@@ -0,0 +1,337 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+import bixo.hadoop.FetchCounters;
+import bixo.utils.MpscRingBuffer;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+/**
+ * Lets worker threads (fetching, robots processing, etc) output tuples without
+ * all of them synchronizing on the Cascading collector, which isn't thread safe.
+ *
+ * Workers call add(), which puts the tuple into a lock-free ring buffer. The
+ * thread that owns the collector (the Buffer or Function's thread) calls drain()
+ * whenever it gets a chance, which moves tuples to the collector in batches.
+ *
+ * If the ring buffer is full then add() waits for the owning thread to make room,
+ * which provides backpressure. But the owning thread might be blocked too (e.g.
+ * waiting for a worker thread to free up), so if a worker has to wait more than
+ * MAX_PRODUCER_WAIT_TIME it does the draining itself. The drain lock makes sure
+ * that only one thread is ever talking to the collector.
+ *
+ */
+public class TupleCollectorQueue {
+    private static final Logger LOGGER = Logger.getLogger(TupleCollectorQueue.class);
+
+    public static final int DEFAULT_CAPACITY = 4096;
+    public static final int DEFAULT_DRAIN_BATCH_SIZE = 1024;
+
+    // Max time (in nanoseconds) a producer waits for room before draining the queue itself.
+    private static final long MAX_PRODUCER_WAIT_TIME = 10 * 1000L * 1000L;
+
+    // How long a producer parks between checks for room.
+    private static final long PRODUCER_PARK_TIME = 100 * 1000L;
+
+    private final MpscRingBuffer<Tuple> _queue;
+    private final int _drainBatchSize;
+    private final ReentrantLock _drainLock;
+
+    private volatile TupleEntryCollector _collector;
+    private volatile boolean _closed;
+
+    private final AtomicLong _numAdded;
+    private final AtomicLong _numWaits;
+    private final AtomicLong _waitTime;
+    private final AtomicLong _numProducerDrains;
+    private final AtomicLong _numLost;
+
+    // Only updated while holding the drain lock.
+    private volatile int _maxDepth;
+    private volatile long _numDrains;
+
+    public TupleCollectorQueue() {
+        this(null);
+    }
+
+    public TupleCollectorQueue(TupleEntryCollector collector) {
+        this(collector, DEFAULT_CAPACITY, DEFAULT_DRAIN_BATCH_SIZE);
+    }
+
+    public TupleCollectorQueue(TupleEntryCollector collector, int capacity, int drainBatchSize) {
+        if (drainBatchSize <= 0) {
+            throw new InvalidParameterException("Drain batch size must be > 0: " + drainBatchSize);
+        }
+
+        _queue = new MpscRingBuffer<Tuple>(capacity);
+        _drainBatchSize = drainBatchSize;
+        _drainLock = new ReentrantLock();
+        _collector = collector;
+        _closed = false;
+
+        _numAdded = new AtomicLong();
+        _numWaits = new AtomicLong();
+        _waitTime = new AtomicLong();
+        _numProducerDrains = new AtomicLong();
+        _numLost = new AtomicLong();
+        _maxDepth = 0;
+        _numDrains = 0;
+    }
+
+    /**
+     * Set the collector that drain() writes to. Cascading hands us the collector
+     * with each operate() call, so this is typically called from there.
+     *
+     * @param collector output collector
+     */
+    public void setCollector(TupleEntryCollector collector) {
+        if (collector == _collector) {
+            return;
+        }
+
+        _drainLock.lock();
+        try {
+            _collector = collector;
+        } finally {
+            _drainLock.unlock();
+        }
+    }
+
+    /**
+     * Queue up <tuple> for output. This is safe to call from any thread. If the
+     * queue is full, we wait until there's room.
+     *
+     * @param tuple tuple to output
+     */
+    public void add(Tuple tuple) {
+        if (_closed) {
+            lose(tuple);
+            return;
+        }
+
+        if (!_queue.offer(tuple) && !waitToAdd(tuple)) {
+            return;
+        }
+
+        _numAdded.incrementAndGet();
+
+        // If we got closed while adding, nobody else will drain what we just added.
+        if (_closed) {
+            drain(Integer.MAX_VALUE);
+        }
+    }
+
+    private boolean waitToAdd(Tuple tuple) {
+        _numWaits.incrementAndGet();
+        long startTime = System.nanoTime();
+        long drainTime = startTime + MAX_PRODUCER_WAIT_TIME;
+
+        while (!_queue.offer(tuple)) {
+            if (_closed) {
+                lose(tuple);
+                return false;
+            }
+            
+            long curTime = System.nanoTime();
+            if ((curTime >= drainTime) && (_collector != null) && (drain(_drainBatchSize) > 0)) {
+                // The owning thread is busy, so we made room ourselves.
+                _numProducerDrains.incrementAndGet();
+                drainTime = curTime + MAX_PRODUCER_WAIT_TIME;
+            } else {
+                LockSupport.parkNanos(PRODUCER_PARK_TIME);
+            }
+        }
+
+        _waitTime.addAndGet(System.nanoTime() - startTime);
+        return true;
+    }
+
+    /**
+     * Move up to DEFAULT_DRAIN_BATCH_SIZE (or whatever was passed to the constructor)
+     * queued tuples to the collector.
+     *
+     * @return number of tuples output.
+     */
+    public int drain() {
+        return drain(_drainBatchSize);
+    }
+
+    /**
+     * Move up to <maxTuples> queued tuples to the collector. If there's no
+     * collector set yet, nothing happens.
+     *
+     * @param maxTuples max number of tuples to output
+     * @return number of tuples output.
+     */
+    public int drain(int maxTuples) {
+        _drainLock.lock();
+        try {
+            if (_closed) {
+                return drain(maxTuples, false);
+            } else if (_collector == null) {
+                return 0;
+            } else {
+                return drain(maxTuples, true);
+            }
+        } finally {
+            _drainLock.unlock();
+        }
+    }
+
+    private int drain(int maxTuples, boolean output) {
+        int depth = _queue.size();
+        if (depth > _maxDepth) {
+            _maxDepth = depth;
+        }
+
+        TupleEntryCollector collector = _collector;
+        int numDrained = 0;
+        Tuple tuple;
+        while ((numDrained < maxTuples) && ((tuple = _queue.poll()) != null)) {
+            if (output && (collector != null)) {
+                try {
+                    collector.add(tuple);
+                } finally {
+                    tupleDone(tuple);
+                }
+            } else {
+                lose(tuple);
+            }
+
+            numDrained += 1;
+        }
+
+        if (numDrained > 0) {
+            _numDrains += 1;
+        }
+
+        return numDrained;
+    }
+
+    /**
+     * Output everything that's queued, and then stop accepting tuples. Anything
+     * added after this is logged and dropped.
+     */
+    public void close() {
+        _drainLock.lock();
+        try {
+            // Set this first, so that anybody who adds a tuple after we're done
+            // draining knows to clean up after themselves.
+            _closed = true;
+            drain(Integer.MAX_VALUE, true);
+        } finally {
+            _drainLock.unlock();
+        }
+    }
+
+    public boolean isClosed() {
+        return _closed;
+    }
+
+    private void lose(Tuple tuple) {
+        _numLost.incrementAndGet();
+        LOGGER.warn("Losing an entry: " + tuple);
+        tupleDone(tuple);
+    }
+
+    /**
+     * Called once <tuple> has been output to the collector, or dropped. Subclasses
+     * can override this to release resources held by the tuple. By default this
+     * does nothing.
+     *
+     * @param tuple tuple that we're done with
+     */
+    protected void tupleDone(Tuple tuple) {
+    }
+
+    /**
+     * @return current number of queued tuples.
+     */
+    public int getDepth() {
+        return _queue.size();
+    }
+
+    public int getCapacity() {
+        return _queue.getCapacity();
+    }
+
+    public int getMaxDepth() {
+        return _maxDepth;
+    }
+
+    public long getNumAdded() {
+        return _numAdded.get();
+    }
+
+    public long getNumDrains() {
+        return _numDrains;
+    }
+
+    /**
+     * @return number of times a producer had to wait because the queue was full.
+     */
+    public long getNumWaits() {
+        return _numWaits.get();
+    }
+
+    /**
+     * @return total time (in milliseconds) producers spent waiting for room.
+     */
+    public long getWaitTime() {
+        return _waitTime.get() / (1000L * 1000L);
+    }
+
+    /**
+     * @return number of times a producer drained the queue, because the
+     * owning thread didn't make room fast enough.
+     */
+    public long getNumProducerDrains() {
+        return _numProducerDrains.get();
+    }
+
+    public long getNumLost() {
+        return _numLost.get();
+    }
+
+    /**
+     * Add our wait and depth stats to the Hadoop counters.
+     *
+     * @param flowProcess process with counters
+     */
+    public void updateCounters(LoggingFlowProcess flowProcess) {
+        flowProcess.increment(FetchCounters.OUTPUT_QUEUE_WAITS, (int)getNumWaits());
+        flowProcess.increment(FetchCounters.OUTPUT_QUEUE_WAIT_TIME, (int)getWaitTime());
+        flowProcess.increment(FetchCounters.OUTPUT_QUEUE_MAX_DEPTH, getMaxDepth());
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d tuples added in %d drains, max depth %d of %d, %d waits (%dms), %d producer drains, %d lost",
+                        getNumAdded(), getNumDrains(), getMaxDepth(), getCapacity(), getNumWaits(), getWaitTime(),
+                        getNumProducerDrains(), getNumLost());
+    }
+}
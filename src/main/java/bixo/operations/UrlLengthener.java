@@ -42,7 +42,6 @@ import cascading.operation.FunctionCall;
 import cascading.operation.OperationCall;
 import cascading.tuple.Fields;
 import cascading.tuple.Tuple;
-import cascading.tuple.TupleEntryCollector;
 
 import com.bixolabs.cascading.LoggingFlowProcess;
 import com.bixolabs.cascading.LoggingFlowReporter;
@@ -77,7 +76,7 @@ public class UrlLengthener extends BaseOperation<NullContext> implements Functio
     private Set<String> _urlShorteners;
 
     private transient LoggingFlowProcess _flowProcess;
-    private transient TupleEntryCollector _collector;
+    private transient TupleCollectorQueue _output;
     private transient ThreadedExecutor _executor;
 
     /**
@@ -125,7 +124,8 @@ public class UrlLengthener extends BaseOperation<NullContext> implements Functio
         _flowProcess = new LoggingFlowProcess((HadoopFlowProcess) flowProcess);
         _flowProcess.addReporter(new LoggingFlowReporter());
 
-        _executor = new ThreadedExecutor(_maxThreads, COMMAND_TIMEOUT);
+        _executor = new ThreadedExecutor(_maxThreads, COMMAND_TIMEOUT, _fetcher.getTaskStackSize());
+        _output = new TupleCollectorQueue();
     }
     
     @Override
@@ -141,13 +141,19 @@ public class UrlLengthener extends BaseOperation<NullContext> implements Functio
             Thread.currentThread().interrupt();
         }
         
+        _output.close();
+        _output.updateCounters(_flowProcess);
+        LOGGER.info("Redirect output queue: " + _output);
+        
         _flowProcess.dumpCounters();
         super.cleanup(flowProcess, operationCall);
     }
     
     @Override
     public void operate(FlowProcess flowProcess, FunctionCall<NullContext> functionCall) {
-        _collector = functionCall.getOutputCollector();
+        // Output whatever the redirect tasks have generated since the last call.
+        _output.setCollector(functionCall.getOutputCollector());
+        _output.drain();
 
         String url = functionCall.getArguments().getTuple().getString(0);
         
@@ -169,7 +175,7 @@ public class UrlLengthener extends BaseOperation<NullContext> implements Functio
         }
         
         try {
-            ResolveRedirectsTask task = new ResolveRedirectsTask(url, _fetcher, _collector);
+            ResolveRedirectsTask task = new ResolveRedirectsTask(url, _fetcher, _output);
             _executor.execute(task);
         } catch (RejectedExecutionException e) {
             // should never happen.
@@ -207,9 +213,7 @@ public class UrlLengthener extends BaseOperation<NullContext> implements Functio
     
 
     private void emitTuple(String url) {
-        synchronized(_collector) {
-            _collector.add(new Tuple(url));
-        }
+        _output.add(new Tuple(url));
     }
     
 }
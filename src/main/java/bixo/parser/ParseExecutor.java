@@ -0,0 +1,454 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A small, bounded pool of parse threads that gets reused across documents, versus
+ * starting a new thread for every parse just so that we can enforce a max parse
+ * duration.
+ *
+ * A watchdog thread checks on running parses. When one has taken longer than its
+ * max duration, the watchdog interrupts it, and the caller gets a TimeoutException.
+ * The worker running it is then abandoned (it exits whenever the parse returns) and a
+ * new worker takes its place right away, so a hung parse can't shrink the pool, or
+ * hold up the next parse. If the parse still hasn't returned <hungThreadTimeout>
+ * milliseconds later, we log a warning.
+ *
+ * Workers (and the watchdog) exit after being idle for a while, and are started
+ * again as needed, so an executor that's no longer used doesn't hang on to threads.
+ *
+ */
+public class ParseExecutor {
+    private static final Logger LOGGER = Logger.getLogger(ParseExecutor.class);
+
+    public static final int DEFAULT_MAX_QUEUE_SIZE = 100;
+
+    // How long to wait for an interrupted parse to return before logging it as hung.
+    public static final long DEFAULT_HUNG_THREAD_TIMEOUT = 10 * 1000L;
+
+    // How long submit waits for room in the queue.
+    public static final long DEFAULT_REQUEST_TIMEOUT = 60 * 1000L;
+
+    private static final long IDLE_TIMEOUT = 10 * 1000L;
+    private static final long WATCHDOG_INTERVAL = 100L;
+
+    private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+    private class ParseTask<T> extends FutureTask<T> {
+        private final long _maxDuration;
+        private final long _submitTime;
+        private volatile long _startTime;
+        private volatile long _interruptTime;
+        private boolean _finished;
+
+        public ParseTask(Callable<T> callable, long maxDuration) {
+            super(callable);
+
+            _maxDuration = maxDuration;
+            _submitTime = System.currentTimeMillis();
+            _startTime = 0;
+            _interruptTime = 0;
+            _finished = false;
+        }
+
+        public boolean isTimedOut() {
+            return _interruptTime != 0;
+        }
+
+        // Update our counters before the caller gets the result, so they're
+        // always current from the caller's point of view.
+        @Override
+        protected void set(T v) {
+            finished();
+            super.set(v);
+        }
+
+        @Override
+        protected void setException(Throwable t) {
+            finished();
+            super.setException(t);
+        }
+
+        public void finished() {
+            if (!_finished) {
+                _finished = true;
+                _numParsed.incrementAndGet();
+                _totalParseTime.addAndGet(System.currentTimeMillis() - _startTime);
+            }
+        }
+    }
+
+    private class Worker implements Runnable {
+        private Thread _thread;
+        
+        // Only changed while holding the worker's lock, so the watchdog can be sure
+        // that the task it's interrupting is still running on this worker.
+        private ParseTask<?> _task;
+        private volatile boolean _abandoned;
+
+        public Worker() {
+            _thread = new Thread(this, _namePrefix + _threadNumber.getAndIncrement());
+            _thread.setDaemon(true);
+            _task = null;
+            _abandoned = false;
+        }
+
+        @Override
+        public void run() {
+            while (!_abandoned) {
+                ParseTask<?> task;
+
+                try {
+                    task = _queue.poll(IDLE_TIMEOUT, TimeUnit.MILLISECONDS);
+                } catch (InterruptedException e) {
+                    if (_terminated) {
+                        return;
+                    } else {
+                        // Left over from a parse that timed out just as it finished.
+                        continue;
+                    }
+                }
+
+                if (task == null) {
+                    if (removeIdleWorker(this)) {
+                        return;
+                    } else {
+                        continue;
+                    }
+                }
+
+                long startTime = System.currentTimeMillis();
+                task._startTime = startTime;
+                _totalQueueWaitTime.addAndGet(startTime - task._submitTime);
+
+                synchronized (this) {
+                    _task = task;
+                }
+                
+                task.run();
+                
+                synchronized (this) {
+                    _task = null;
+                }
+
+                // Clear any interrupt the watchdog sent our way while finishing up. It only
+                // interrupts us while _task is set, so nothing can arrive after this.
+                Thread.interrupted();
+
+                // In case it timed out, and so never got to set a result.
+                task.finished();
+            }
+        }
+    }
+
+    private class Watchdog implements Runnable {
+
+        @Override
+        public void run() {
+            while (!_terminated) {
+                try {
+                    Thread.sleep(WATCHDOG_INTERVAL);
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                List<Worker> workers;
+                List<Worker> abandonedWorkers;
+                synchronized (ParseExecutor.this) {
+                    if (_workers.isEmpty() && _abandonedWorkers.isEmpty()) {
+                        _watchdog = null;
+                        return;
+                    }
+
+                    workers = new ArrayList<Worker>(_workers);
+                    abandonedWorkers = new ArrayList<Worker>(_abandonedWorkers);
+                }
+
+                long now = System.currentTimeMillis();
+                for (Worker worker : workers) {
+                    interruptIfTimedOut(worker, now);
+                }
+                
+                for (Worker worker : abandonedWorkers) {
+                    checkAbandonedWorker(worker, now);
+                }
+            }
+        }
+        
+        /**
+         * Interrupt the worker's parse if it has run for too long, and replace the worker.
+         */
+        private void interruptIfTimedOut(Worker worker, long now) {
+            synchronized (worker) {
+                ParseTask<?> task = worker._task;
+                if ((task == null) || task.isDone() || (now - task._startTime <= task._maxDuration)) {
+                    return;
+                }
+
+                // Do all of the bookkeeping first, as the caller can see the result as
+                // soon as we cancel the task.
+                task._interruptTime = now;
+                _numTimeouts.incrementAndGet();
+                worker._abandoned = true;
+                replaceWorker(worker);
+                
+                if (!task.cancel(true)) {
+                    // It finished just now, so it didn't time out after all. The worker
+                    // still gets replaced, but that's harmless.
+                    task._interruptTime = 0;
+                    _numTimeouts.decrementAndGet();
+                }
+            }
+        }
+        
+        private void checkAbandonedWorker(Worker worker, long now) {
+            ParseTask<?> task;
+            synchronized (worker) {
+                task = worker._task;
+            }
+            
+            if ((task == null) || (now - task._interruptTime > _hungThreadTimeout)) {
+                if (task != null) {
+                    LOGGER.warn(String.format("Parse thread %s is still hung %dms after being interrupted", worker._thread.getName(), now - task._interruptTime));
+                }
+                
+                synchronized (ParseExecutor.this) {
+                    _abandonedWorkers.remove(worker);
+                }
+            }
+        }
+    }
+
+    private final int _numThreads;
+    private final long _hungThreadTimeout;
+    private final long _requestTimeout;
+    private final String _namePrefix;
+    private final AtomicInteger _threadNumber;
+    private final BlockingQueue<ParseTask<?>> _queue;
+    private final List<Worker> _workers;
+    private final List<Worker> _abandonedWorkers;
+    private Thread _watchdog;
+    private volatile boolean _terminated;
+
+    private final AtomicLong _numParsed;
+    private final AtomicLong _totalQueueWaitTime;
+    private final AtomicLong _totalParseTime;
+    private final AtomicLong _numTimeouts;
+    private final AtomicLong _numReplacedWorkers;
+
+    public ParseExecutor(int numThreads) {
+        this(numThreads, DEFAULT_MAX_QUEUE_SIZE, DEFAULT_HUNG_THREAD_TIMEOUT, DEFAULT_REQUEST_TIMEOUT);
+    }
+
+    /**
+     * @param numThreads number of parses that can run at the same time
+     * @param maxQueueSize max number of parses waiting for a thread
+     * @param hungThreadTimeout time (in milliseconds) to wait for an interrupted parse
+     *        to return before logging it as hung.
+     * @param requestTimeout max time (in milliseconds) to wait for room in the queue
+     */
+    public ParseExecutor(int numThreads, int maxQueueSize, long hungThreadTimeout, long requestTimeout) {
+        if (numThreads <= 0) {
+            throw new InvalidParameterException("Number of threads must be > 0: " + numThreads);
+        }
+
+        if (maxQueueSize <= 0) {
+            throw new InvalidParameterException("Max queue size must be > 0: " + maxQueueSize);
+        }
+
+        if (hungThreadTimeout < 0) {
+            throw new InvalidParameterException("Hung thread timeout must be >= 0: " + hungThreadTimeout);
+        }
+
+        _numThreads = numThreads;
+        _hungThreadTimeout = hungThreadTimeout;
+        _requestTimeout = requestTimeout;
+        _namePrefix = "bixo-parse-" + POOL_NUMBER.getAndIncrement() + "-";
+        _threadNumber = new AtomicInteger(1);
+        _queue = new ArrayBlockingQueue<ParseTask<?>>(maxQueueSize);
+        _workers = new ArrayList<Worker>(numThreads);
+        _abandonedWorkers = new ArrayList<Worker>();
+        _watchdog = null;
+        _terminated = false;
+
+        _numParsed = new AtomicLong();
+        _totalQueueWaitTime = new AtomicLong();
+        _totalParseTime = new AtomicLong();
+        _numTimeouts = new AtomicLong();
+        _numReplacedWorkers = new AtomicLong();
+    }
+
+    /**
+     * Run <callable> on one of our threads, and return its result. If it runs for
+     * more than <maxDuration> milliseconds, it's interrupted and we throw a
+     * TimeoutException. Exceptions thrown by <callable> are re-thrown as-is.
+     *
+     * @param callable parse to run
+     * @param maxDuration max time (in milliseconds) the parse can take once it's started
+     * @return result of the parse
+     * @throws Exception
+     */
+    public <T> T execute(Callable<T> callable, long maxDuration) throws Exception {
+        if (_terminated) {
+            throw new RejectedExecutionException("Parse executor has been terminated");
+        }
+
+        ParseTask<T> task = new ParseTask<T>(callable, maxDuration);
+        if (!_queue.offer(task, _requestTimeout, TimeUnit.MILLISECONDS)) {
+            throw new RejectedExecutionException("No room in the parse queue within " + _requestTimeout + "ms");
+        }
+
+        startWorkers();
+
+        try {
+            return task.get();
+        } catch (CancellationException e) {
+            if (task.isTimedOut()) {
+                throw new TimeoutException("Parse took longer than " + maxDuration + "ms");
+            } else {
+                throw e;
+            }
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception)cause;
+            } else if (cause instanceof Error) {
+                throw (Error)cause;
+            } else {
+                throw e;
+            }
+        } catch (InterruptedException e) {
+            task.cancel(true);
+            throw e;
+        }
+    }
+
+    /**
+     * Stop all of the threads. Any parse that's still running gets interrupted.
+     */
+    public synchronized void terminate() {
+        _terminated = true;
+
+        for (Worker worker : _workers) {
+            worker._thread.interrupt();
+        }
+        _workers.clear();
+        _abandonedWorkers.clear();
+
+        if (_watchdog != null) {
+            _watchdog.interrupt();
+            _watchdog = null;
+        }
+
+        ParseTask<?> task;
+        while ((task = _queue.poll()) != null) {
+            task.cancel(false);
+        }
+    }
+
+    private synchronized void startWorkers() {
+        if (_terminated) {
+            return;
+        }
+
+        while (_workers.size() < _numThreads) {
+            Worker worker = new Worker();
+            _workers.add(worker);
+            worker._thread.start();
+        }
+
+        if (_watchdog == null) {
+            _watchdog = new Thread(new Watchdog(), _namePrefix + "watchdog");
+            _watchdog.setDaemon(true);
+            _watchdog.start();
+        }
+    }
+
+    private synchronized boolean removeIdleWorker(Worker worker) {
+        if (_queue.isEmpty() || _terminated) {
+            _workers.remove(worker);
+            return true;
+        } else {
+            return false;
+        }
+    }
+
+    private synchronized void replaceWorker(Worker worker) {
+        if (!_workers.remove(worker)) {
+            return;
+        }
+
+        LOGGER.debug(String.format("Replacing parse thread %s, which is running a timed out parse", worker._thread.getName()));
+        _abandonedWorkers.add(worker);
+        _numReplacedWorkers.incrementAndGet();
+        startWorkers();
+    }
+
+    public int getNumThreads() {
+        return _numThreads;
+    }
+
+    /**
+     * @return number of worker threads that are currently alive (not counting abandoned ones)
+     */
+    public synchronized int getNumWorkers() {
+        return _workers.size();
+    }
+
+    public long getNumParsed() {
+        return _numParsed.get();
+    }
+
+    /**
+     * @return total time (in milliseconds) that parses spent waiting for a thread
+     */
+    public long getQueueWaitTime() {
+        return _totalQueueWaitTime.get();
+    }
+
+    /**
+     * @return total time (in milliseconds) spent parsing, including parses that timed out
+     */
+    public long getParseTime() {
+        return _totalParseTime.get();
+    }
+
+    public long getNumTimeouts() {
+        return _numTimeouts.get();
+    }
+
+    public long getNumReplacedWorkers() {
+        return _numReplacedWorkers.get();
+    }
+}
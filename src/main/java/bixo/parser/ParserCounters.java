@@ -18,5 +18,11 @@ package bixo.parser;
 
 public enum ParserCounters {
     DOCUMENTS_PARSED,   // successfully parsed a document.
-    DOCUMENTS_FAILED    // failed to parse a document
+    DOCUMENTS_FAILED,   // failed to parse a document
+    
+    // From the ParseExecutor used by SimpleParser
+    PARSE_QUEUE_WAIT_TIME,  // Total time in milliseconds parses waited for a thread
+    PARSE_TIME,             // Total time in milliseconds spent parsing
+    PARSE_TIMEOUTS,         // Parses that took longer than the max parse duration
+    PARSE_THREADS_REPLACED, // Parse threads replaced because their parse timed out
 }
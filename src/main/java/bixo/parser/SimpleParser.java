@@ -16,15 +16,12 @@
  */
 package bixo.parser;
 
-import java.io.ByteArrayInputStream;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.net.URL;
 import java.util.Locale;
+import java.util.Set;
 import java.util.concurrent.Callable;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
 
 import org.apache.log4j.Logger;
 import org.apache.tika.metadata.Metadata;
@@ -61,6 +58,13 @@ public class SimpleParser extends BaseParser {
     protected BaseLinkExtractor _linkExtractor;
     protected ParseContext _parseContext;
     private transient Parser _parser;
+    private transient ParseExecutor _executor;
+    
+    // Parse context we make (and re-use) when the caller didn't provide one, and
+    // the link tags/attributes it was made for.
+    private transient ParseContext _defaultParseContext;
+    private transient Set<String> _defaultContextLinkTags;
+    private transient Set<String> _defaultContextLinkAttributeTypes;
     
     public SimpleParser() {
         this(new ParserPolicy());
@@ -144,12 +148,48 @@ public class SimpleParser extends BaseParser {
             _parser = getTikaParser();
         }
         
+        if (_executor == null) {
+            _executor = new ParseExecutor(1);
+        }
+        
         _contentExtractor.reset();
         _linkExtractor.setLinkTags(getParserPolicy().getLinkTags());
         _linkExtractor.setLinkAttributeTypes(getParserPolicy().getLinkAttributeTypes());
         _linkExtractor.reset();
     }
 
+    protected synchronized ParseContext getParseContext() {
+        if (_parseContext != null) {
+            return _parseContext;
+        }
+        
+        Set<String> linkTags = _linkExtractor.getLinkTags();
+        Set<String> linkAttributeTypes = _linkExtractor.getLinkAttributeTypes();
+        if  (   (_defaultParseContext == null)
+            ||  !equals(linkTags, _defaultContextLinkTags)
+            ||  !equals(linkAttributeTypes, _defaultContextLinkAttributeTypes)) {
+            _defaultParseContext = TikaCallable.makeParseContext(_linkExtractor);
+            _defaultContextLinkTags = linkTags;
+            _defaultContextLinkAttributeTypes = linkAttributeTypes;
+        }
+        
+        return _defaultParseContext;
+    }
+    
+    private static boolean equals(Set<String> set1, Set<String> set2) {
+        return (set1 == null) ? (set2 == null) : set1.equals(set2);
+    }
+    
+    /**
+     * Return the executor that runs our parses (with the max parse duration from
+     * our ParserPolicy), so callers can get at its counters.
+     * 
+     * @return parse executor, or null if we haven't parsed anything yet.
+     */
+    public synchronized ParseExecutor getParseExecutor() {
+        return _executor;
+    }
+
     public Parser getTikaParser() {
         return new AutoDetectParser();
     }
@@ -177,27 +217,15 @@ public class SimpleParser extends BaseParser {
         String charset = getCharset(fetchedDatum);
         metadata.add(Metadata.CONTENT_LANGUAGE, getLanguage(fetchedDatum, charset));
         
-        InputStream is = new ByteArrayInputStream(fetchedDatum.getContentBytes(), 0, fetchedDatum.getContentLength());
+        // Read directly from the content's buffer (or spill file), without copying it.
+        InputStream is = fetchedDatum.getContent().getInputStream();
 
         try {
         	URL baseUrl = getContentLocation(fetchedDatum);
         	metadata.add(Metadata.CONTENT_LOCATION, baseUrl.toExternalForm());
 
-            Callable<ParsedDatum> c = new TikaCallable(_parser, _contentExtractor, _linkExtractor, is, metadata, isExtractLanguage(), _parseContext);
-            FutureTask<ParsedDatum> task = new FutureTask<ParsedDatum>(c);
-            Thread t = new Thread(task);
-            t.start();
-            
-            ParsedDatum result;
-            try {
-                result = task.get(getParserPolicy().getMaxParseDuration(), TimeUnit.MILLISECONDS);
-            } catch (TimeoutException e) {
-                task.cancel(true);
-                t.interrupt();
-                throw e;
-            } finally {
-                t = null;
-            }
+            Callable<ParsedDatum> c = new TikaCallable(_parser, _contentExtractor, _linkExtractor, is, metadata, isExtractLanguage(), getParseContext());
+            ParsedDatum result = _executor.execute(c, getParserPolicy().getMaxParseDuration());
             
             // TODO KKr Should there be a BaseParser to take care of copying
             // these two fields?
@@ -0,0 +1,844 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.log4j.Logger;
+import org.apache.tika.language.LanguageIdentifier;
+import org.apache.tika.metadata.Metadata;
+import org.apache.tika.utils.CharsetUtils;
+
+import bixo.config.ParserPolicy;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.Outlink;
+import bixo.datum.ParsedDatum;
+import bixo.utils.HttpUtils;
+
+/**
+ * Parser for HTML that scans the tags directly, versus going through Tika's
+ * AutoDetectParser, HTML sanitizing and a chain of SAX handlers. The content is
+ * decoded once, and then a single pass extracts the title, the visible text and
+ * the outlinks (using the link tags and attributes from the ParserPolicy, and
+ * honoring a robots "nofollow" or "none" meta tag).
+ *
+ * It's much faster than SimpleParser, but less forgiving of truly broken HTML, and
+ * the text isn't cleaned up as much (e.g. no Boilerpipe-style extraction). Anything
+ * that isn't HTML gets handed off to the fallback parser, which by default is a
+ * SimpleParser with the same ParserPolicy.
+ *
+ */
+@SuppressWarnings("serial")
+public class StreamingHtmlParser extends BaseParser {
+    private static final Logger LOGGER = Logger.getLogger(StreamingHtmlParser.class);
+
+    private static final String HTML_MIME_TYPES[] = {
+        "text/html",
+        "application/xhtml+xml",
+        "application/vnd.wap.xhtml+xml",
+        "application/x-asp",
+    };
+
+    // How much of the content to check for a <meta> charset, if there's no charset in the headers.
+    private static final int CHARSET_SNIFF_SIZE = 4096;
+
+    // What we use if there's no charset in the headers or content, and it's not valid UTF-8.
+    private static final String DEFAULT_CHARSET = "windows-1252";
+
+    // Elements that never have content, so they can't contain anchor text.
+    private static final Set<String> VOID_TAGS = makeSet(
+        "area", "base", "basefont", "bgsound", "br", "col", "embed", "frame", "hr", "img",
+        "input", "keygen", "link", "meta", "param", "source", "track", "wbr");
+
+    // Elements that separate runs of text, so that we don't jam words together.
+    private static final Set<String> BLOCK_TAGS = makeSet(
+        "address", "article", "aside", "blockquote", "br", "caption", "center", "dd", "div",
+        "dl", "dt", "fieldset", "footer", "form", "h1", "h2", "h3", "h4", "h5", "h6",
+        "header", "hr", "li", "nav", "ol", "p", "pre", "section", "table", "td", "th",
+        "tr", "ul");
+
+    private static final Map<String, Character> ENTITIES = new HashMap<String, Character>();
+    static {
+        ENTITIES.put("amp", '&');
+        ENTITIES.put("lt", '<');
+        ENTITIES.put("gt", '>');
+        ENTITIES.put("quot", '"');
+        ENTITIES.put("apos", '\'');
+        ENTITIES.put("nbsp", '\u00A0');
+        ENTITIES.put("copy", '\u00A9');
+        ENTITIES.put("reg", '\u00AE');
+        ENTITIES.put("trade", '\u2122');
+        ENTITIES.put("laquo", '\u00AB');
+        ENTITIES.put("raquo", '\u00BB');
+        ENTITIES.put("lsquo", '\u2018');
+        ENTITIES.put("rsquo", '\u2019');
+        ENTITIES.put("ldquo", '\u201C');
+        ENTITIES.put("rdquo", '\u201D');
+        ENTITIES.put("ndash", '\u2013');
+        ENTITIES.put("mdash", '\u2014');
+        ENTITIES.put("hellip", '\u2026');
+        ENTITIES.put("middot", '\u00B7');
+        ENTITIES.put("bull", '\u2022');
+    }
+
+    // Max amount of text we use to guess the language, since profiling all of it
+    // can take longer than the parse.
+    private static final int MAX_LANGUAGE_SAMPLE_LENGTH = 10 * 1024;
+
+    // Longest entity name we'll look for, including the '&' and ';'
+    private static final int MAX_ENTITY_LENGTH = 10;
+
+    // If a link tag has more than one of the link attributes, we use the first of these
+    // that's in the ParserPolicy, which is the same one SimpleParser winds up using.
+    // Other attributes from the policy are checked after these, in alphabetical order.
+    private static final String[] LINK_ATTRIBUTE_PRIORITY = { "href", "cite", "src", "data" };
+
+    private static Set<String> makeSet(String... values) {
+        Set<String> result = new HashSet<String>();
+        for (String value : values) {
+            result.add(value);
+        }
+
+        return result;
+    }
+
+    /**
+     * Return <linkAttributeTypes> in the order we check them, so the URL we pick
+     * for a tag doesn't depend on the set's iteration order.
+     */
+    private static List<String> orderLinkAttributes(Set<String> linkAttributeTypes) {
+        List<String> result = new ArrayList<String>(linkAttributeTypes.size());
+        for (String linkAttributeType : LINK_ATTRIBUTE_PRIORITY) {
+            if (linkAttributeTypes.contains(linkAttributeType)) {
+                result.add(linkAttributeType);
+            }
+        }
+
+        List<String> others = new ArrayList<String>(linkAttributeTypes);
+        others.removeAll(result);
+        Collections.sort(others);
+        result.addAll(others);
+        return result;
+    }
+
+    /**
+     * All of the state for scanning one document, so that the parser itself is
+     * stateless (and thread safe).
+     */
+    private static class HtmlScanner {
+        private final String _html;
+        private final int _length;
+        private final Set<String> _linkTags;
+        private final List<String> _linkAttributeTypes;
+
+        private URL _baseUrl;
+        private boolean _foundBase;
+        private boolean _inHead;
+        private boolean _noFollow;
+        private String _title;
+        private String _language;
+
+        private final StringBuilder _content;
+        private final List<Outlink> _outlinks;
+        private final Map<String, String> _meta;
+
+        // State for the link whose anchor text we're collecting.
+        private String _anchorTag;
+        private String _anchorUrl;
+        private String _anchorRel;
+        private final StringBuilder _anchor;
+
+        // Attributes of the current start tag, and whether it ended with "/>".
+        private boolean _selfClosing;
+        private final List<String> _attrNames;
+        private final List<String> _attrValues;
+
+        private final StringBuilder _decodeBuffer;
+
+        public HtmlScanner(String html, URL baseUrl, Set<String> linkTags, List<String> linkAttributeTypes) {
+            _html = html;
+            _length = html.length();
+            _linkTags = linkTags;
+            _linkAttributeTypes = linkAttributeTypes;
+
+            _baseUrl = baseUrl;
+            _foundBase = false;
+            _inHead = false;
+            _noFollow = false;
+            _title = null;
+            _language = null;
+
+            _content = new StringBuilder(html.length() / 4);
+            _outlinks = new ArrayList<Outlink>();
+            _meta = new HashMap<String, String>();
+
+            _anchorTag = null;
+            _anchor = new StringBuilder();
+
+            _attrNames = new ArrayList<String>();
+            _attrValues = new ArrayList<String>();
+
+            _decodeBuffer = new StringBuilder();
+        }
+
+        public void scan() {
+            int pos = 0;
+            while (pos < _length) {
+                int tagStart = _html.indexOf('<', pos);
+                if (tagStart == -1) {
+                    text(pos, _length);
+                    break;
+                }
+
+                if (tagStart > pos) {
+                    text(pos, tagStart);
+                }
+
+                pos = tag(tagStart);
+            }
+
+            if (_anchorTag != null) {
+                endLink();
+            }
+        }
+
+        /**
+         * Process the markup starting at <tagStart> (which is a '<').
+         *
+         * @return position just past the markup.
+         */
+        private int tag(int tagStart) {
+            int pos = tagStart + 1;
+            if (pos >= _length) {
+                text(tagStart, _length);
+                return _length;
+            }
+
+            char c = _html.charAt(pos);
+            if (c == '!') {
+                if (_html.startsWith("<!--", tagStart)) {
+                    int commentEnd = _html.indexOf("-->", tagStart + 4);
+                    return commentEnd == -1 ? _length : commentEnd + 3;
+                } else {
+                    // <!DOCTYPE ...>, <![CDATA[...]]> and friends.
+                    return skipPast('>', pos);
+                }
+            } else if (c == '?') {
+                return skipPast('>', pos);
+            } else if (c == '/') {
+                int nameEnd = scanName(pos + 1);
+                if (nameEnd > pos + 1) {
+                    endTag(_html.substring(pos + 1, nameEnd).toLowerCase());
+                }
+
+                return skipPast('>', nameEnd);
+            } else if (isLetter(c)) {
+                int nameEnd = scanName(pos);
+                String name = _html.substring(pos, nameEnd).toLowerCase();
+                pos = scanAttributes(nameEnd);
+                boolean selfClosing = _selfClosing;
+                startTag(name, selfClosing);
+
+                if (!selfClosing) {
+                    if (name.equals("script") || name.equals("style")) {
+                        pos = skipRawText(name, pos);
+                    } else if (name.equals("title")) {
+                        pos = title(pos);
+                    }
+                }
+
+                return pos;
+            } else {
+                // Just a '<' in the text.
+                text(tagStart, pos);
+                return pos;
+            }
+        }
+
+        private void startTag(String name, boolean selfClosing) {
+            if (name.equals("head")) {
+                _inHead = true;
+            } else if (name.equals("body")) {
+                _inHead = false;
+            } else if (name.equals("base")) {
+                base();
+            } else if (name.equals("meta")) {
+                meta();
+            }
+
+            // Links can't be nested, so (like the TagSoup parser that SimpleParser uses) a
+            // link that's never closed ends when the next one of the same kind starts.
+            if (name.equals(_anchorTag)) {
+                endLink();
+            }
+
+            if ((_anchorTag == null) && _linkTags.contains(name)) {
+                String url = null;
+                for (String linkAttributeType : _linkAttributeTypes) {
+                    url = getAttribute(linkAttributeType);
+                    if (url != null) {
+                        break;
+                    }
+                }
+
+                if (url != null) {
+                    _anchorTag = name;
+                    _anchorUrl = url;
+                    _anchorRel = getAttribute("rel");
+                    _anchor.setLength(0);
+
+                    if (selfClosing || VOID_TAGS.contains(name)) {
+                        endLink();
+                    }
+                }
+            }
+
+            if (BLOCK_TAGS.contains(name)) {
+                addBreak();
+            }
+        }
+
+        private void endTag(String name) {
+            if (name.equals("head")) {
+                _inHead = false;
+            } else if (name.equals(_anchorTag)) {
+                endLink();
+            }
+
+            if (BLOCK_TAGS.contains(name)) {
+                addBreak();
+            }
+        }
+
+        private void endLink() {
+            _outlinks.add(new Outlink(resolve(_anchorUrl), _anchor.toString(), _anchorRel));
+            _anchorTag = null;
+        }
+
+        private void base() {
+            String href = getAttribute("href");
+            if (!_foundBase && (href != null)) {
+                _foundBase = true;
+
+                try {
+                    _baseUrl = new URL(_baseUrl, href.trim());
+                } catch (MalformedURLException e) {
+                    LOGGER.debug("Ignoring invalid base URL: " + href);
+                }
+            }
+        }
+
+        private void meta() {
+            String content = getAttribute("content");
+            if (content == null) {
+                return;
+            }
+
+            String name = getAttribute("name");
+            if (name != null) {
+                _meta.put(name, content);
+
+                if (name.equalsIgnoreCase("robots")) {
+                    for (String directive : content.split(",")) {
+                        directive = directive.trim().toLowerCase();
+                        if (directive.equals("none") || directive.equals("nofollow")) {
+                            _noFollow = true;
+                        }
+                    }
+                } else if (name.equalsIgnoreCase("language") || name.equalsIgnoreCase("dc.language")) {
+                    _language = content;
+                }
+            }
+
+            String httpEquiv = getAttribute("http-equiv");
+            if (httpEquiv != null) {
+                _meta.put(httpEquiv, content);
+
+                if (httpEquiv.equalsIgnoreCase("content-language") && (_language == null)) {
+                    _language = content;
+                }
+            }
+        }
+
+        private int title(int pos) {
+            int titleEnd = findEndTag("title", pos);
+            int textEnd = (titleEnd == -1) ? _length : titleEnd;
+
+            String title = decode(pos, textEnd);
+            if (_title == null) {
+                _title = title.trim();
+            }
+
+            // Same as BaseContentExtractor, the title is the first part of the content.
+            _content.append(title);
+            _content.append(' ');
+
+            return (titleEnd == -1) ? _length : skipPast('>', titleEnd);
+        }
+
+        private void text(int start, int end) {
+            if (_inHead && (_anchorTag == null)) {
+                return;
+            }
+
+            String text = decode(start, end);
+            if (!_inHead) {
+                _content.append(text);
+            }
+
+            if (_anchorTag != null) {
+                _anchor.append(text);
+            }
+        }
+
+        private void addBreak() {
+            int length = _content.length();
+            if ((length > 0) && !Character.isWhitespace(_content.charAt(length - 1))) {
+                _content.append('\n');
+            }
+        }
+
+        private String resolve(String url) {
+            url = url.trim();
+
+            try {
+                return new URL(_baseUrl, url).toExternalForm();
+            } catch (MalformedURLException e) {
+                // Things like javascript: links, which we leave alone.
+                return url;
+            }
+        }
+
+        private String getAttribute(String name) {
+            for (int i = 0; i < _attrNames.size(); i++) {
+                if (_attrNames.get(i).equals(name)) {
+                    return _attrValues.get(i);
+                }
+            }
+
+            return null;
+        }
+
+        /**
+         * Parse the attributes of a start tag, starting just after the tag name.
+         *
+         * @return position just past the end of the tag.
+         */
+        private int scanAttributes(int pos) {
+            _selfClosing = false;
+            _attrNames.clear();
+            _attrValues.clear();
+
+            while (pos < _length) {
+                char c = _html.charAt(pos);
+                if (c == '>') {
+                    return pos + 1;
+                } else if ((c == '/') && (pos + 1 < _length) && (_html.charAt(pos + 1) == '>')) {
+                    _selfClosing = true;
+                    return pos + 2;
+                } else if (Character.isWhitespace(c) || (c == '/')) {
+                    pos += 1;
+                    continue;
+                }
+
+                int nameStart = pos;
+                while ((pos < _length) && !isAttributeNameEnd(_html.charAt(pos))) {
+                    pos += 1;
+                }
+
+                String name = _html.substring(nameStart, pos).toLowerCase();
+                pos = skipWhitespace(pos);
+
+                String value = "";
+                if ((pos < _length) && (_html.charAt(pos) == '=')) {
+                    pos = skipWhitespace(pos + 1);
+                    if (pos >= _length) {
+                        break;
+                    }
+
+                    char quote = _html.charAt(pos);
+                    int valueStart;
+                    int valueEnd;
+                    if ((quote == '"') || (quote == '\'')) {
+                        valueStart = pos + 1;
+                        valueEnd = _html.indexOf(quote, valueStart);
+                        if (valueEnd == -1) {
+                            valueEnd = _length;
+                        }
+
+                        pos = Math.min(valueEnd + 1, _length);
+                    } else {
+                        valueStart = pos;
+                        while ((pos < _length) && !Character.isWhitespace(_html.charAt(pos)) && (_html.charAt(pos) != '>')) {
+                            pos += 1;
+                        }
+
+                        valueEnd = pos;
+                    }
+
+                    value = decode(valueStart, valueEnd);
+                }
+
+                // Like browsers, the first of any duplicate attributes wins.
+                if ((name.length() > 0) && (getAttribute(name) == null)) {
+                    _attrNames.add(name);
+                    _attrValues.add(value);
+                }
+            }
+
+            return _length;
+        }
+
+        private int scanName(int pos) {
+            while ((pos < _length) && !isAttributeNameEnd(_html.charAt(pos))) {
+                pos += 1;
+            }
+
+            return pos;
+        }
+
+        private int skipWhitespace(int pos) {
+            while ((pos < _length) && Character.isWhitespace(_html.charAt(pos))) {
+                pos += 1;
+            }
+
+            return pos;
+        }
+
+        private int skipPast(char c, int pos) {
+            int result = _html.indexOf(c, pos);
+            return result == -1 ? _length : result + 1;
+        }
+
+        /**
+         * Skip over the content of a <script> or <style> element.
+         *
+         * @return position just past the end tag.
+         */
+        private int skipRawText(String name, int pos) {
+            int endTag = findEndTag(name, pos);
+            return endTag == -1 ? _length : skipPast('>', endTag);
+        }
+
+        private int findEndTag(String name, int pos) {
+            while (true) {
+                int result = _html.indexOf("</", pos);
+                if (result == -1) {
+                    return -1;
+                } else if (_html.regionMatches(true, result + 2, name, 0, name.length())) {
+                    return result;
+                } else {
+                    pos = result + 2;
+                }
+            }
+        }
+
+        /**
+         * Return the text from <start> to <end>, with character references decoded.
+         */
+        private String decode(int start, int end) {
+            int amp = indexOf('&', start, end);
+            if (amp == -1) {
+                return _html.substring(start, end);
+            }
+
+            StringBuilder result = _decodeBuffer;
+            result.setLength(0);
+
+            int pos = start;
+            while (amp != -1) {
+                result.append(_html, pos, amp);
+                pos = decodeEntity(amp, end, result);
+                amp = indexOf('&', pos, end);
+            }
+
+            result.append(_html, pos, end);
+            return result.toString();
+        }
+
+        /**
+         * Decode the character reference starting at <amp>, appending the result
+         * to <result>. If it's not one we know about, the '&' is left as-is.
+         *
+         * @return position just past what we consumed.
+         */
+        private int decodeEntity(int amp, int end, StringBuilder result) {
+            int semi = indexOf(';', amp + 1, Math.min(end, amp + MAX_ENTITY_LENGTH + 1));
+            if ((semi == -1) || (semi == amp + 1)) {
+                result.append('&');
+                return amp + 1;
+            }
+
+            if (_html.charAt(amp + 1) == '#') {
+                try {
+                    int codePoint;
+                    char c = _html.charAt(amp + 2);
+                    if ((c == 'x') || (c == 'X')) {
+                        codePoint = Integer.parseInt(_html.substring(amp + 3, semi), 16);
+                    } else {
+                        codePoint = Integer.parseInt(_html.substring(amp + 2, semi));
+                    }
+
+                    if ((codePoint > 0) && Character.isValidCodePoint(codePoint)) {
+                        result.appendCodePoint(codePoint);
+                        return semi + 1;
+                    }
+                } catch (NumberFormatException e) {
+                    // Fall through to leaving it alone.
+                }
+            } else {
+                Character c = ENTITIES.get(_html.substring(amp + 1, semi));
+                if (c != null) {
+                    result.append(c.charValue());
+                    return semi + 1;
+                }
+            }
+
+            result.append('&');
+            return amp + 1;
+        }
+
+        /**
+         * Like String.indexOf, but we don't look at or past <end>, so that
+         * we're not scanning the rest of the document for every run of text.
+         */
+        private int indexOf(char c, int start, int end) {
+            for (int i = start; i < end; i++) {
+                if (_html.charAt(i) == c) {
+                    return i;
+                }
+            }
+
+            return -1;
+        }
+
+        private static boolean isLetter(char c) {
+            return ((c >= 'a') && (c <= 'z')) || ((c >= 'A') && (c <= 'Z'));
+        }
+
+        private static boolean isAttributeNameEnd(char c) {
+            return Character.isWhitespace(c) || (c == '=') || (c == '>') || (c == '/');
+        }
+    }
+
+    private BaseParser _fallbackParser;
+    private boolean _extractLanguage = true;
+
+    public StreamingHtmlParser() {
+        this(new ParserPolicy());
+    }
+
+    public StreamingHtmlParser(ParserPolicy parserPolicy) {
+        this(parserPolicy, new SimpleParser(parserPolicy));
+    }
+
+    /**
+     * @param parserPolicy to customize operation of the parser
+     * @param fallbackParser parser to use for content that isn't HTML
+     */
+    public StreamingHtmlParser(ParserPolicy parserPolicy, BaseParser fallbackParser) {
+        super(parserPolicy);
+
+        _fallbackParser = fallbackParser;
+    }
+
+    public BaseParser getFallbackParser() {
+        return _fallbackParser;
+    }
+
+    public void setExtractLanguage(boolean extractLanguage) {
+        _extractLanguage = extractLanguage;
+    }
+
+    public boolean isExtractLanguage() {
+        return _extractLanguage;
+    }
+
+    @Override
+    public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
+        if (!isHtml(fetchedDatum.getContentType())) {
+            return _fallbackParser.parse(fetchedDatum);
+        }
+
+        if (LOGGER.isTraceEnabled()) {
+            LOGGER.trace(String.format("Parsing %s", fetchedDatum.getUrl()));
+        }
+
+        String charset = getCharset(fetchedDatum);
+        if ((charset != null) && (charset.length() == 0)) {
+            charset = null;
+        }
+        
+        String html = decode(fetchedDatum, charset);
+        URL baseUrl = getContentLocation(fetchedDatum);
+
+        ParserPolicy policy = getParserPolicy();
+        HtmlScanner scanner = new HtmlScanner(html, baseUrl, policy.getLinkTags(), orderLinkAttributes(policy.getLinkAttributeTypes()));
+        scanner.scan();
+
+        String content = scanner._content.toString();
+        String title = scanner._title;
+        Outlink[] outlinks = scanner._noFollow ? new Outlink[0] : scanner._outlinks.toArray(new Outlink[scanner._outlinks.size()]);
+
+        Map<String, String> parsedMeta = scanner._meta;
+        parsedMeta.put(Metadata.RESOURCE_NAME_KEY, fetchedDatum.getUrl());
+        parsedMeta.put(Metadata.CONTENT_TYPE, fetchedDatum.getContentType());
+        parsedMeta.put(Metadata.CONTENT_LOCATION, baseUrl.toExternalForm());
+        if (title != null) {
+            parsedMeta.put(Metadata.TITLE, title);
+        }
+
+        String language = "";
+        if (_extractLanguage) {
+            language = detectLanguage(scanner._language, getLanguage(fetchedDatum, charset), content);
+        }
+
+        ParsedDatum result = new ParsedDatum(fetchedDatum.getUrl(), null, content, language, title, outlinks, parsedMeta);
+        result.setHostAddress(fetchedDatum.getHostAddress());
+        result.setPayload(fetchedDatum.getPayload());
+        return result;
+    }
+
+    protected static boolean isHtml(String contentType) {
+        if (contentType == null) {
+            return false;
+        }
+
+        String mimeType = HttpUtils.getMimeTypeFromContentType(contentType);
+        for (String htmlMimeType : HTML_MIME_TYPES) {
+            if (htmlMimeType.equals(mimeType)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static String detectLanguage(String contentLanguage, String headerLanguage, String content) {
+        String result = TikaCallable.getFirstLanguage(contentLanguage != null ? contentLanguage : headerLanguage);
+
+        if (result == null) {
+            String sample = content.length() > MAX_LANGUAGE_SAMPLE_LENGTH ? content.substring(0, MAX_LANGUAGE_SAMPLE_LENGTH) : content;
+            LanguageIdentifier langIdentifier = new LanguageIdentifier(sample);
+            if (langIdentifier.isReasonablyCertain()) {
+                result = langIdentifier.getLanguage();
+            } else {
+                result = "";
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * Decode the content using the charset from the response headers, a byte order
+     * mark, or a <meta> tag (in that order). If there's none of those, use UTF-8 if
+     * the content is valid UTF-8, otherwise DEFAULT_CHARSET.
+     *
+     * @param fetchedDatum
+     * @param headerCharset charset from the response headers, or null
+     * @return decoded content.
+     */
+    private static String decode(FetchedDatum fetchedDatum, String headerCharset) {
+        ContentBytes content = fetchedDatum.getContent();
+        byte[] bytes = content.getBuffer();
+        int start = content.getOffset();
+        int length = content.getLength();
+        int skip = 0;
+
+        String charset = headerCharset;
+        if ((length >= 3) && ((bytes[start] & 0xFF) == 0xEF) && ((bytes[start + 1] & 0xFF) == 0xBB) && ((bytes[start + 2] & 0xFF) == 0xBF)) {
+            charset = "UTF-8";
+            skip = 3;
+        } else if ((length >= 2) && ((bytes[start] & 0xFF) == 0xFE) && ((bytes[start + 1] & 0xFF) == 0xFF)) {
+            charset = "UTF-16BE";
+            skip = 2;
+        } else if ((length >= 2) && ((bytes[start] & 0xFF) == 0xFF) && ((bytes[start + 1] & 0xFF) == 0xFE)) {
+            charset = "UTF-16LE";
+            skip = 2;
+        } else if (charset == null) {
+            charset = sniffCharset(bytes, start, length);
+        }
+
+        if (charset != null) {
+            return new String(bytes, start + skip, length - skip, Charset.forName(charset));
+        }
+
+        CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder();
+        decoder.onMalformedInput(CodingErrorAction.REPORT);
+        decoder.onUnmappableCharacter(CodingErrorAction.REPORT);
+
+        try {
+            CharBuffer result = decoder.decode(ByteBuffer.wrap(bytes, start, length));
+            return result.toString();
+        } catch (CharacterCodingException e) {
+            return new String(bytes, start, length, Charset.forName(DEFAULT_CHARSET));
+        }
+    }
+
+    /**
+     * Look for <meta charset="xxx"> or <meta http-equiv="Content-Type" content="text/html; charset=xxx">
+     * at the start of the content.
+     *
+     * @return valid charset name, or null.
+     */
+    private static String sniffCharset(byte[] bytes, int offset, int length) {
+        String head = new String(bytes, offset, Math.min(length, CHARSET_SNIFF_SIZE), Charset.forName("ISO-8859-1")).toLowerCase();
+
+        int pos = 0;
+        while ((pos = head.indexOf("<meta", pos)) != -1) {
+            int tagEnd = head.indexOf('>', pos);
+            if (tagEnd == -1) {
+                break;
+            }
+
+            int charsetPos = head.indexOf("charset=", pos);
+            if ((charsetPos != -1) && (charsetPos < tagEnd)) {
+                int start = charsetPos + "charset=".length();
+                while ((start < tagEnd) && ((head.charAt(start) == '"') || (head.charAt(start) == '\''))) {
+                    start += 1;
+                }
+
+                int end = start;
+                while ((end < tagEnd) && (Character.isLetterOrDigit(head.charAt(end)) || ("-_.:".indexOf(head.charAt(end)) != -1))) {
+                    end += 1;
+                }
+
+                return CharsetUtils.clean(head.substring(start, end));
+            }
+
+            pos = tagEnd;
+        }
+
+        return null;
+    }
+}
@@ -117,7 +117,7 @@ class TikaCallable implements Callable<ParsedDatum> {
             }
 
             if (_parseContext == null) {
-                _parseContext = makeParseContext();
+                _parseContext = makeParseContext(_linkExtractor);
             }
             _parser.parse(_input, teeContentHandler, _metadata, _parseContext);
             
@@ -140,16 +140,17 @@ class TikaCallable implements Callable<ParsedDatum> {
      * Decide if we need to set up our own HtmlMapper, because the link extractor has tags that
      * aren't part of the default set.
      * 
+     * @param linkExtractor
      * @return
      */
-    private ParseContext makeParseContext() {
+    static ParseContext makeParseContext(BaseLinkExtractor linkExtractor) {
         ParseContext result = new ParseContext();
 
-        Set<String> validTags = _linkExtractor.getLinkTags();
+        Set<String> validTags = linkExtractor.getLinkTags();
         HtmlMapper defaultMapper = DefaultHtmlMapper.INSTANCE;
         for (String tag : validTags) {
             if (defaultMapper.mapSafeElement(tag) == null) {
-                result.set(HtmlMapper.class, new CustomHtmlMapper(validTags, _linkExtractor.getLinkAttributeTypes()));
+                result.set(HtmlMapper.class, new CustomHtmlMapper(validTags, linkExtractor.getLinkAttributeTypes()));
                 break;
             }
         }
@@ -206,7 +207,7 @@ class TikaCallable implements Callable<ParsedDatum> {
     }
 
 
-    private static String getFirstLanguage(String lang) {
+    static String getFirstLanguage(String lang) {
         if (lang != null && lang.length() > 0) {
             // TODO VMa -- DublinCore languages could be specified in a multiple of ways
             // see : http://dublincore.org/documents/2000/07/16/usageguide/qualified-html.shtml#language
@@ -23,6 +23,7 @@ import java.util.Map;
 
 import bixo.config.BaseFetchJobPolicy;
 import bixo.config.DefaultFetchJobPolicy;
+import bixo.config.RobotsCachePolicy;
 import bixo.datum.FetchSetDatum;
 import bixo.datum.FetchedDatum;
 import bixo.datum.GroupedUrlDatum;
@@ -38,9 +39,11 @@ import bixo.operations.FetchBuffer;
 import bixo.operations.FilterAndScoreByUrlAndRobots;
 import bixo.operations.GroupFunction;
 import bixo.operations.MakeFetchSetsBuffer;
+import bixo.operations.ResolveHostsBuffer;
 import bixo.robots.BaseRobotsParser;
 import bixo.robots.RobotUtils;
 import bixo.robots.SimpleRobotRulesParser;
+import bixo.utils.BaseHostResolver;
 import bixo.utils.GroupingKey;
 import bixo.utils.UrlUtils;
 import cascading.flow.FlowProcess;
@@ -226,10 +229,36 @@ public class FetchPipe extends SubAssembly {
     
     public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
                     BaseFetchJobPolicy fetchJobPolicy, int numReducers) {
+        this(urlProvider, scorer, fetcher, robotsFetcher, parser, new RobotsCachePolicy(), fetchJobPolicy, numReducers);
+    }
+    
+    /**
+     * Generate an assembly that will fetch all of the UrlDatum tuples coming out of urlProvider,
+     * using <robotsCachePolicy> to decide how long robots.txt rules can be re-used (e.g. between
+     * crawl loops, if the policy has a cache dir).
+     */
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
+                    RobotsCachePolicy robotsCachePolicy, BaseFetchJobPolicy fetchJobPolicy, int numReducers) {
+        this(urlProvider, scorer, fetcher, robotsFetcher, parser, robotsCachePolicy, null, fetchJobPolicy, numReducers);
+    }
+    
+    /**
+     * Generate an assembly that will fetch all of the UrlDatum tuples coming out of urlProvider.
+     * If <hostResolver> isn't null, then we first resolve every host (in parallel, using
+     * ResolveHostsBuffer), so that robots.txt processing doesn't wait on DNS lookups. This
+     * adds an extra grouping step, so it's only worth it when DNS is slow.
+     */
+    public FetchPipe(Pipe urlProvider, BaseScoreGenerator scorer, BaseFetcher fetcher, BaseFetcher robotsFetcher, BaseRobotsParser parser,
+                    RobotsCachePolicy robotsCachePolicy, BaseHostResolver hostResolver, BaseFetchJobPolicy fetchJobPolicy, int numReducers) {
         
         Pipe robotsPipe = new Each(urlProvider, new GroupFunction(new GroupByDomain()));
+        if (hostResolver != null) {
+            robotsPipe = new GroupBy("Resolving hosts", robotsPipe, GroupedUrlDatum.getGroupingField());
+            robotsPipe = new Every(robotsPipe, new ResolveHostsBuffer(hostResolver), Fields.RESULTS);
+        }
+        
         robotsPipe = new GroupBy("Grouping URLs by IP/delay", robotsPipe, GroupedUrlDatum.getGroupingField());
-        robotsPipe = new Every(robotsPipe, new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, scorer), Fields.RESULTS);
+        robotsPipe = new Every(robotsPipe, new FilterAndScoreByUrlAndRobots(robotsFetcher, parser, scorer, robotsCachePolicy), Fields.RESULTS);
         
         // Split into records for URLs that are special (not fetchable) and regular
         SplitterAssembly splitter = new SplitterAssembly(robotsPipe, new SplitIntoSpecialAndRegularKeys());
@@ -284,7 +313,8 @@ public class FetchPipe extends SubAssembly {
      * multiple tails (like with this subassembly) and you need to build the Flow
      * 
      * @param statusSink Tap where status will be sent (can be null)
-     * @param fetchedSink Tap where fetched content will be sent (can be null)
+     * @param fetchedSink Tap where fetched content will be sent (can be null). Use a tap
+     *        with a WarcScheme to write WARC files directly from the fetch job.
      * @return Map usable in FlowConnector.connect() call.
      */
     public static Map<String, Tap> makeSinkMap(Tap statusSink, Tap fetchedSink) {
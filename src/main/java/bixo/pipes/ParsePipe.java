@@ -16,88 +16,42 @@
  */
 package bixo.pipes;
 
-import org.apache.log4j.Logger;
-
-import bixo.datum.FetchedDatum;
-import bixo.datum.ParsedDatum;
+import bixo.operations.ParseFunction;
 import bixo.parser.BaseParser;
-import bixo.parser.ParserCounters;
 import bixo.parser.SimpleParser;
-import cascading.flow.FlowProcess;
-import cascading.flow.hadoop.HadoopFlowProcess;
-import cascading.operation.BaseOperation;
-import cascading.operation.Function;
-import cascading.operation.FunctionCall;
-import cascading.operation.OperationCall;
 import cascading.pipe.Each;
 import cascading.pipe.Pipe;
 import cascading.pipe.SubAssembly;
 import cascading.tuple.Fields;
 
-import com.bixolabs.cascading.LoggingFlowProcess;
-import com.bixolabs.cascading.LoggingFlowReporter;
-import com.bixolabs.cascading.NullContext;
-
 @SuppressWarnings("serial")
 public class ParsePipe extends SubAssembly {
-    private static final Logger LOGGER = Logger.getLogger(ParsePipe.class);
-    
     public static final String PARSE_PIPE_NAME = "parse_pipe";
 
-    private static class ParseFunction extends BaseOperation<NullContext> implements Function<NullContext> {
-
-        private transient LoggingFlowProcess _flowProcess;
-        private BaseParser _parser;
-
-        public ParseFunction(BaseParser parser) {
-            super(ParsedDatum.FIELDS);
-            _parser = parser;
-        }
-
-        @Override
-        public void prepare(FlowProcess flowProcess,
-                            OperationCall<NullContext> operationCall) {
-            super.prepare(flowProcess, operationCall);
-            _flowProcess = new LoggingFlowProcess((HadoopFlowProcess)flowProcess);
-            _flowProcess.addReporter(new LoggingFlowReporter());
-        }
-
-        @Override
-        public boolean isSafe() {
-            // We don't want to get called multiple times for the same tuple
-            return false;
-        }
-        
-        @Override
-        public void operate(FlowProcess flowProcess, FunctionCall<NullContext> functionCall) {
-            FetchedDatum fetchedDatum = new FetchedDatum(functionCall.getArguments());
-            
-            try {
-                ParsedDatum parseResult = _parser.parse(fetchedDatum);
-                _flowProcess.increment(ParserCounters.DOCUMENTS_PARSED, 1);
-                functionCall.getOutputCollector().add(parseResult.getTuple());
-            } catch (Exception e) {
-                LOGGER.warn("Error processing " + fetchedDatum.getUrl(), e);
-                _flowProcess.increment(ParserCounters.DOCUMENTS_FAILED, 1);
-                // TODO KKr - don't lose datums for documents that couldn't be parsed
-            }
-        }
-        
-        @Override
-        public void cleanup(FlowProcess flowProcess, OperationCall<NullContext> operationCall) {
-            _flowProcess.dumpCounters();
-            super.cleanup(flowProcess, operationCall);
-        }
-    }
-
     public ParsePipe(Pipe fetcherPipe) {
         this(fetcherPipe, new SimpleParser());
     }
     
     public ParsePipe(Pipe fetcherPipe, BaseParser parser) {
+        this(fetcherPipe, parser, 0, false);
+    }
+    
+    /**
+     * Parse documents using <numThreads> threads, so that one task can keep multiple
+     * cores busy. Up to ParseFunction.DEFAULT_IN_FLIGHT_PER_THREAD documents per thread
+     * are being parsed or waiting to be output at any one time.
+     * 
+     * @param fetcherPipe pipe with FetchedDatums
+     * @param parser parser to use (copied for each thread)
+     * @param numThreads number of parse threads, or 0 to parse on the Cascading thread
+     * @param preserveOrder true if ParsedDatums should be output in the same order
+     *        as the FetchedDatums.
+     */
+    public ParsePipe(Pipe fetcherPipe, BaseParser parser, int numThreads, boolean preserveOrder) {
         Pipe parsePipe = new Pipe(PARSE_PIPE_NAME, fetcherPipe);
 
-        ParseFunction parserFunction = new ParseFunction(parser);
+        int maxInFlight = numThreads * ParseFunction.DEFAULT_IN_FLIGHT_PER_THREAD;
+        ParseFunction parserFunction = new ParseFunction(parser, numThreads, maxInFlight, preserveOrder);
         parsePipe = new Each(parsePipe, parserFunction, Fields.RESULTS);
         setTails(parsePipe);
     }
@@ -16,6 +16,7 @@
  */
 package bixo.robots;
 
+import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -24,9 +25,12 @@ import bixo.config.BaseFetchJobPolicy;
 /**
  * Result from parsing a single robots.txt file - which means we
  * get a set of rules, and a crawl-delay.
+ * 
+ * Rules are serializable, so that they can be cached between crawl loops.
  */
 
-public abstract class BaseRobotRules {
+@SuppressWarnings("serial")
+public abstract class BaseRobotRules implements Serializable {
     public abstract boolean isAllowed(String url);
     public abstract boolean isAllowAll();
     public abstract boolean isAllowNone();
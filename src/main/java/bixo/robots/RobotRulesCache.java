@@ -0,0 +1,425 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.OutputStream;
+import java.net.URL;
+import java.security.InvalidParameterException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.fs.FSDataInputStream;
+import org.apache.hadoop.fs.FSDataOutputStream;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.log4j.Logger;
+
+import bixo.config.RobotsCachePolicy;
+import bixo.utils.IoUtils;
+
+/**
+ * Thread-safe, size-bounded LRU cache of robots.txt rules, keyed by protocol + host
+ * (e.g. "http://www.domain.com").
+ * 
+ * Each entry expires after the policy's TTL, or the (typically much shorter) negative
+ * TTL if the rules say to defer visits, since that means we couldn't get a good answer
+ * from the server (e.g. a 5xx response) and want to try again soon. Rules for a missing
+ * robots.txt (404) are a valid result, so they get the regular TTL.
+ * 
+ * The cache can be saved to and loaded from a directory, with one file per reducer.
+ * Every reducer loads all of the files, but only saves the rules it fetched itself,
+ * plus anything still valid from its own previous file, so the same rules don't
+ * wind up in every file.
+ * 
+ */
+public class RobotRulesCache {
+    private static final Logger LOGGER = Logger.getLogger(RobotRulesCache.class);
+
+    public static final String CACHE_FILE_PREFIX = "robots-cache-part-";
+    
+    private static final int CACHE_FILE_VERSION = 1;
+    
+    // Sources for entries that weren't loaded from a reducer's cache file.
+    private static final int FETCHED_SOURCE = -1;
+    private static final int UNKNOWN_SOURCE = -2;
+    
+    private static class CacheEntry {
+        private BaseRobotRules _rules;
+        private long _expirationTime;
+        
+        // Partition of the cache file we loaded this entry from, FETCHED_SOURCE
+        // if it was put() here, or UNKNOWN_SOURCE.
+        private int _source;
+        
+        public CacheEntry(BaseRobotRules rules, long expirationTime, int source) {
+            _rules = rules;
+            _expirationTime = expirationTime;
+            _source = source;
+        }
+    }
+    
+    private final RobotsCachePolicy _policy;
+    private final LinkedHashMap<String, CacheEntry> _entries;
+    
+    private long _numHits;
+    private long _numMisses;
+    private long _numExpired;
+    private long _numEvictions;
+    
+    @SuppressWarnings("serial")
+    public RobotRulesCache(RobotsCachePolicy policy) {
+        if (policy.getMaxEntries() == RobotsCachePolicy.NO_CACHING) {
+            throw new InvalidParameterException("Policy doesn't allow caching: " + policy);
+        }
+        
+        _policy = policy;
+        
+        // Access-ordered, so the eldest entry is the least recently used.
+        _entries = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                if (size() > _policy.getMaxEntries()) {
+                    _numEvictions += 1;
+                    return true;
+                } else {
+                    return false;
+                }
+            }
+        };
+    }
+    
+    /**
+     * Return the cache key for <url>, which is the protocol plus the host (and
+     * port, if it's not the default).
+     * 
+     * @param url any URL from the server, e.g. the robots.txt URL
+     * @return key for cache.
+     */
+    public static String makeKey(URL url) {
+        StringBuilder result = new StringBuilder();
+        result.append(url.getProtocol().toLowerCase());
+        result.append("://");
+        result.append(url.getHost().toLowerCase());
+        
+        int port = url.getPort();
+        if ((port != -1) && (port != url.getDefaultPort())) {
+            result.append(':');
+            result.append(port);
+        }
+        
+        return result.toString();
+    }
+    
+    public BaseRobotRules get(String key) {
+        return get(key, System.currentTimeMillis());
+    }
+    
+    /**
+     * Return the cached rules for <key>, if they haven't expired.
+     * 
+     * @param key protocol + host
+     * @param curTime current time, in milliseconds
+     * @return rules, or null if we don't have any.
+     */
+    synchronized BaseRobotRules get(String key, long curTime) {
+        CacheEntry entry = _entries.get(key);
+        if (entry == null) {
+            _numMisses += 1;
+            return null;
+        } else if (entry._expirationTime <= curTime) {
+            _entries.remove(key);
+            _numExpired += 1;
+            _numMisses += 1;
+            return null;
+        } else {
+            _numHits += 1;
+            return entry._rules;
+        }
+    }
+    
+    public void put(String key, BaseRobotRules rules) {
+        put(key, rules, System.currentTimeMillis());
+    }
+    
+    /**
+     * Cache <rules> for <key>. Rules that defer visits expire using the
+     * negative TTL, everything else using the regular TTL.
+     * 
+     * @param key protocol + host
+     * @param rules rules to cache
+     * @param curTime current time, in milliseconds
+     */
+    synchronized void put(String key, BaseRobotRules rules, long curTime) {
+        long ttl = rules.isDeferVisits() ? _policy.getNegativeTtl() : _policy.getTtl();
+        if (ttl > 0) {
+            _entries.put(key, new CacheEntry(rules, curTime + ttl, FETCHED_SOURCE));
+        }
+    }
+    
+    public synchronized int size() {
+        return _entries.size();
+    }
+    
+    public synchronized void clear() {
+        _entries.clear();
+    }
+    
+    public synchronized long getNumHits() {
+        return _numHits;
+    }
+    
+    public synchronized long getNumMisses() {
+        return _numMisses;
+    }
+    
+    public synchronized long getNumExpired() {
+        return _numExpired;
+    }
+    
+    public synchronized long getNumEvictions() {
+        return _numEvictions;
+    }
+    
+    /**
+     * Write all of the entries that haven't expired to <out>.
+     * 
+     * @param out stream to write to
+     * @return number of entries written
+     * @throws IOException
+     */
+    public int save(OutputStream out) throws IOException {
+        return save(out, UNKNOWN_SOURCE, 0);
+    }
+    
+    /**
+     * Write the entries that haven't expired, and that belong in the cache file for
+     * <partition>, to <out>. Those are the entries we fetched, the ones from the
+     * partition's previous file, and (for partition 0) the ones from files of
+     * partitions >= <numPartitions>, which won't be saved by anybody else.
+     * 
+     * @param out stream to write to
+     * @param partition reducer number, or UNKNOWN_SOURCE to write every entry
+     * @param numPartitions number of reducers
+     * @return number of entries written
+     * @throws IOException
+     */
+    private int save(OutputStream out, int partition, int numPartitions) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        List<CacheEntry> entries = new ArrayList<CacheEntry>();
+        long curTime = System.currentTimeMillis();
+        
+        synchronized (this) {
+            for (Map.Entry<String, CacheEntry> entry : _entries.entrySet()) {
+                int source = entry.getValue()._source;
+                boolean belongsHere = (partition == UNKNOWN_SOURCE)
+                    || (source == FETCHED_SOURCE)
+                    || (source == partition)
+                    || ((partition == 0) && (source >= numPartitions));
+                
+                if (belongsHere && (entry.getValue()._expirationTime > curTime)) {
+                    keys.add(entry.getKey());
+                    entries.add(entry.getValue());
+                }
+            }
+        }
+        
+        ObjectOutputStream oos = new ObjectOutputStream(out);
+        oos.writeInt(CACHE_FILE_VERSION);
+        oos.writeInt(keys.size());
+        for (int i = 0; i < keys.size(); i++) {
+            CacheEntry entry = entries.get(i);
+            oos.writeUTF(keys.get(i));
+            oos.writeLong(entry._expirationTime);
+            oos.writeObject(entry._rules);
+        }
+        
+        oos.flush();
+        return keys.size();
+    }
+    
+    /**
+     * Add all of the entries in <in> that haven't expired. If we already have an
+     * entry with the same key, we keep whichever one expires later.
+     * 
+     * @param in stream to read from
+     * @return number of entries loaded
+     * @throws IOException
+     */
+    public int load(InputStream in) throws IOException {
+        return load(in, UNKNOWN_SOURCE);
+    }
+    
+    private int load(InputStream in, int source) throws IOException {
+        ObjectInputStream ois = new ObjectInputStream(in);
+        int version = ois.readInt();
+        if (version != CACHE_FILE_VERSION) {
+            throw new IOException("Unknown robots cache file version: " + version);
+        }
+        
+        int numEntries = ois.readInt();
+        long curTime = System.currentTimeMillis();
+        int numLoaded = 0;
+        
+        for (int i = 0; i < numEntries; i++) {
+            String key = ois.readUTF();
+            long expirationTime = ois.readLong();
+            BaseRobotRules rules;
+            
+            try {
+                rules = (BaseRobotRules)ois.readObject();
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Can't load cached robot rules for " + key, e);
+            }
+            
+            if (expirationTime > curTime) {
+                synchronized (this) {
+                    CacheEntry curEntry = _entries.get(key);
+                    if ((curEntry == null) || (curEntry._expirationTime < expirationTime)) {
+                        _entries.put(key, new CacheEntry(rules, expirationTime, source));
+                    }
+                }
+                
+                numLoaded += 1;
+            }
+        }
+        
+        return numLoaded;
+    }
+    
+    /**
+     * Save the cache to <dir>, using a file name based on <partition> so that
+     * each reducer has its own file. We write to a temp file first, so that
+     * anybody loading the cache never sees a partial file.
+     * 
+     * Only the entries that this reducer is responsible for are saved (see above).
+     * Partition 0 also picks up the entries from files left by earlier jobs that
+     * had more reducers, and then deletes those files.
+     * 
+     * @param fs file system
+     * @param dir directory for cache files
+     * @param partition reducer number
+     * @param numPartitions number of reducers
+     * @return number of entries saved
+     * @throws IOException
+     */
+    public int save(FileSystem fs, Path dir, int partition, int numPartitions) throws IOException {
+        if ((partition < 0) || (partition >= numPartitions)) {
+            throw new InvalidParameterException(String.format("Invalid partition %d of %d", partition, numPartitions));
+        }
+        
+        String fileName = makeFileName(partition);
+        Path tempFile = new Path(dir, "_" + fileName);
+        Path cacheFile = new Path(dir, fileName);
+        
+        FSDataOutputStream out = fs.create(tempFile, true);
+        int result;
+        
+        try {
+            result = save(out, partition, numPartitions);
+        } finally {
+            IoUtils.safeClose(out);
+        }
+        
+        fs.delete(cacheFile, false);
+        if (!fs.rename(tempFile, cacheFile)) {
+            throw new IOException("Can't rename robots cache file to " + cacheFile);
+        }
+        
+        if (partition == 0) {
+            for (FileStatus file : fs.listStatus(dir)) {
+                if (getPartition(file.getPath()) >= numPartitions) {
+                    fs.delete(file.getPath(), false);
+                }
+            }
+        }
+        
+        return result;
+    }
+    
+    private static String makeFileName(int partition) {
+        return String.format("%s%05d", CACHE_FILE_PREFIX, partition);
+    }
+    
+    /**
+     * Return the partition number for the cache file <path>, or UNKNOWN_SOURCE
+     * if it's not a (valid) cache file name.
+     */
+    private static int getPartition(Path path) {
+        String name = path.getName();
+        if (!name.startsWith(CACHE_FILE_PREFIX)) {
+            return UNKNOWN_SOURCE;
+        }
+        
+        try {
+            int result = Integer.parseInt(name.substring(CACHE_FILE_PREFIX.length()));
+            return result < 0 ? UNKNOWN_SOURCE : result;
+        } catch (NumberFormatException e) {
+            return UNKNOWN_SOURCE;
+        }
+    }
+    
+    /**
+     * Load all of the cache files in <dir>. Files that can't be read are logged
+     * and skipped, since the cache is only an optimization.
+     * 
+     * @param fs file system
+     * @param dir directory for cache files
+     * @return number of entries loaded
+     * @throws IOException
+     */
+    public int load(FileSystem fs, Path dir) throws IOException {
+        if (!fs.exists(dir)) {
+            return 0;
+        }
+        
+        int result = 0;
+        FileStatus[] files = fs.listStatus(dir);
+        for (FileStatus file : files) {
+            Path path = file.getPath();
+            if (file.isDir() || !path.getName().startsWith(CACHE_FILE_PREFIX)) {
+                continue;
+            }
+            
+            FSDataInputStream in = null;
+            
+            try {
+                in = fs.open(path);
+                result += load(in, getPartition(path));
+            } catch (IOException e) {
+                LOGGER.warn("Skipping robots cache file " + path + ": " + e.getMessage());
+            } finally {
+                IoUtils.safeClose(in);
+            }
+        }
+        
+        return result;
+    }
+    
+    @Override
+    public synchronized String toString() {
+        return String.format("%d entries, %d hits, %d misses, %d expired, %d evicted",
+                        _entries.size(), _numHits, _numMisses, _numExpired, _numEvictions);
+    }
+}
@@ -0,0 +1,215 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Compiled form of a list of robots.txt rule paths, which finds the first rule
+ * (in the original order) that matches a path.
+ * 
+ * Plain prefix rules go into a trie, so matching takes one walk down the trie
+ * (at most the length of the path) no matter how many rules there are. Rules
+ * with wildcards ('*' matches any sequence of characters, and a trailing '$'
+ * anchors the rule to the end of the path) are checked separately, but only
+ * the ones that come before the best trie match.
+ * 
+ */
+class RobotRulesMatcher {
+
+    public static final int NO_MATCH = -1;
+    
+    private static final int NO_RULE = Integer.MAX_VALUE;
+    
+    // Use binary search for nodes with more children than this.
+    private static final int MAX_LINEAR_CHILDREN = 8;
+    
+    private static final char[] NO_CHARS = new char[0];
+    private static final TrieNode[] NO_NODES = new TrieNode[0];
+    
+    private static class TrieNode {
+        private char[] _chars = NO_CHARS;
+        private TrieNode[] _children = NO_NODES;
+        private int _ruleIndex = NO_RULE;
+        
+        public TrieNode getChild(char c) {
+            char[] chars = _chars;
+            int numChildren = chars.length;
+            
+            if (numChildren <= MAX_LINEAR_CHILDREN) {
+                for (int i = 0; i < numChildren; i++) {
+                    if (chars[i] == c) {
+                        return _children[i];
+                    }
+                }
+                
+                return null;
+            } else {
+                int index = Arrays.binarySearch(chars, c);
+                return index < 0 ? null : _children[index];
+            }
+        }
+        
+        public TrieNode addChild(char c) {
+            int index = Arrays.binarySearch(_chars, c);
+            if (index >= 0) {
+                return _children[index];
+            }
+            
+            // Keep children sorted, so that we can use a binary search.
+            int insertAt = -(index + 1);
+            int numChildren = _chars.length;
+            char[] newChars = new char[numChildren + 1];
+            TrieNode[] newChildren = new TrieNode[numChildren + 1];
+            System.arraycopy(_chars, 0, newChars, 0, insertAt);
+            System.arraycopy(_children, 0, newChildren, 0, insertAt);
+            System.arraycopy(_chars, insertAt, newChars, insertAt + 1, numChildren - insertAt);
+            System.arraycopy(_children, insertAt, newChildren, insertAt + 1, numChildren - insertAt);
+            
+            TrieNode result = new TrieNode();
+            newChars[insertAt] = c;
+            newChildren[insertAt] = result;
+            _chars = newChars;
+            _children = newChildren;
+            return result;
+        }
+    }
+    
+    private static class WildcardRule {
+        private int _ruleIndex;
+        private String[] _segments;
+        private boolean _anchored;
+        
+        public WildcardRule(int ruleIndex, String rule) {
+            _ruleIndex = ruleIndex;
+            _anchored = rule.endsWith("$");
+            if (_anchored) {
+                rule = rule.substring(0, rule.length() - 1);
+            }
+            
+            // Split on '*', keeping empty segments (unlike String.split)
+            List<String> segments = new ArrayList<String>();
+            int start = 0;
+            int wildcard;
+            while ((wildcard = rule.indexOf('*', start)) != -1) {
+                segments.add(rule.substring(start, wildcard));
+                start = wildcard + 1;
+            }
+            
+            segments.add(rule.substring(start));
+            _segments = segments.toArray(new String[segments.size()]);
+        }
+        
+        public boolean matches(String path) {
+            String[] segments = _segments;
+            int lastSegment = segments.length - 1;
+            
+            if (!path.startsWith(segments[0])) {
+                return false;
+            } else if (lastSegment == 0) {
+                return !_anchored || (path.length() == segments[0].length());
+            }
+            
+            // Find each middle segment as early as possible, which leaves the most
+            // room for the segments that follow.
+            int pos = segments[0].length();
+            for (int i = 1; i < lastSegment; i++) {
+                String segment = segments[i];
+                if (segment.length() > 0) {
+                    int index = path.indexOf(segment, pos);
+                    if (index == -1) {
+                        return false;
+                    }
+                    
+                    pos = index + segment.length();
+                }
+            }
+            
+            String segment = segments[lastSegment];
+            if (_anchored) {
+                return (path.length() - segment.length() >= pos) && path.endsWith(segment);
+            } else {
+                return (segment.length() == 0) || (path.indexOf(segment, pos) != -1);
+            }
+        }
+    }
+    
+    private TrieNode _root;
+    private WildcardRule[] _wildcardRules;
+    
+    /**
+     * Compile <rules> (lower-cased, decoded paths, in robots.txt order).
+     * 
+     * @param rules paths from the allow/disallow directives
+     */
+    public RobotRulesMatcher(List<String> rules) {
+        _root = new TrieNode();
+        List<WildcardRule> wildcardRules = new ArrayList<WildcardRule>();
+        
+        for (int i = 0; i < rules.size(); i++) {
+            String rule = rules.get(i);
+            if ((rule.indexOf('*') != -1) || rule.endsWith("$")) {
+                wildcardRules.add(new WildcardRule(i, rule));
+            } else {
+                TrieNode node = _root;
+                for (int j = 0; j < rule.length(); j++) {
+                    node = node.addChild(rule.charAt(j));
+                }
+                
+                // If the same prefix is listed twice, the first one wins.
+                node._ruleIndex = Math.min(node._ruleIndex, i);
+            }
+        }
+        
+        _wildcardRules = wildcardRules.toArray(new WildcardRule[wildcardRules.size()]);
+    }
+    
+    /**
+     * Find the first rule that matches <path>.
+     * 
+     * @param path lower-cased, decoded path (plus query, if any)
+     * @return index of the rule, or NO_MATCH.
+     */
+    public int match(String path) {
+        TrieNode node = _root;
+        int result = node._ruleIndex;
+        
+        // Every node we pass through is a prefix of the path, and we want the
+        // one that was listed first, not the longest one.
+        int pathLength = path.length();
+        for (int i = 0; (i < pathLength) && (node != null); i++) {
+            node = node.getChild(path.charAt(i));
+            if ((node != null) && (node._ruleIndex < result)) {
+                result = node._ruleIndex;
+            }
+        }
+        
+        // Wildcard rules are in order, so stop once they're after our best match.
+        for (WildcardRule rule : _wildcardRules) {
+            if (rule._ruleIndex >= result) {
+                break;
+            } else if (rule.matches(path)) {
+                result = rule._ruleIndex;
+                break;
+            }
+        }
+        
+        return result == NO_RULE ? NO_MATCH : result;
+    }
+}
@@ -122,4 +122,33 @@ public class RobotUtils {
         }
     }
 
+    /**
+     * Return the rules for <robotsUrl> from <cache>, or fetch and parse the
+     * robots.txt file (and add the result to the cache) if they're not there.
+     * 
+     * @param fetcher Fetcher for downloading robots.txt file
+     * @param robotsUrl URL to robots.txt file
+     * @param cache Cache of rules, or null to always fetch.
+     * @return Robot rules
+     */
+    public static BaseRobotRules getRobotRules(BaseFetcher fetcher, BaseRobotsParser parser, URL robotsUrl, RobotRulesCache cache) {
+        if (cache == null) {
+            return getRobotRules(fetcher, parser, robotsUrl);
+        }
+        
+        String key = RobotRulesCache.makeKey(robotsUrl);
+        BaseRobotRules result = cache.get(key);
+        if (result != null) {
+            if (LOGGER.isTraceEnabled()) {
+                LOGGER.trace("Using cached robot rules for " + key);
+            }
+            
+            return result;
+        }
+        
+        result = getRobotRules(fetcher, parser, robotsUrl);
+        cache.put(key, result);
+        return result;
+    }
+
 }
@@ -16,9 +16,12 @@
  */
 package bixo.robots;
 
+import java.io.Serializable;
+import java.io.UnsupportedEncodingException;
 import java.net.URL;
 import java.net.URLDecoder;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.regex.Pattern;
 
 /**
@@ -26,6 +29,7 @@ import java.util.regex.Pattern;
  * get a set of rules, and a crawl-delay.
  */
 
+@SuppressWarnings("serial")
 public class SimpleRobotRules extends BaseRobotRules {
 
     public enum RobotRulesMode {
@@ -37,7 +41,7 @@ public class SimpleRobotRules extends BaseRobotRules {
     /**
      * Single rule that maps from a path prefix to an allow flag.
      */
-    protected class RobotRule {
+    protected class RobotRule implements Serializable {
         String _prefix;
         Pattern _pattern;
         boolean _allow;
@@ -59,6 +63,9 @@ public class SimpleRobotRules extends BaseRobotRules {
     private ArrayList<RobotRule> _rules;
     private RobotRulesMode _mode;
     
+    // Compiled from _rules the first time we need it, and thrown away if the rules change.
+    private transient volatile RobotRulesMatcher _matcher;
+    
     public SimpleRobotRules() {
         this(RobotRulesMode.ALLOW_SOME);
     }
@@ -72,6 +79,7 @@ public class SimpleRobotRules extends BaseRobotRules {
     
     public void clearRules() {
         _rules.clear();
+        _matcher = null;
     }
 
     public void addRule(String prefix, boolean allow) {
@@ -82,10 +90,15 @@ public class SimpleRobotRules extends BaseRobotRules {
         }
 
         _rules.add(new RobotRule(prefix, allow));
+        _matcher = null;
     }
 
     // TODO KKr - make sure paths are sorted from longest to shortest,
     // to implement longest match
+    //
+    // Rules are checked in order, and the first match wins. A '*' in a rule
+    // matches any sequence of characters, and a '$' at the end of a rule means
+    // it has to match the entire path (including any query).
     public boolean isAllowed(String url) {
         if (_mode == RobotRulesMode.ALLOW_NONE) {
             return false;
@@ -95,37 +108,121 @@ public class SimpleRobotRules extends BaseRobotRules {
             String path = getPath(url);
             
             // Always allow robots.txt
-            if (path.equals("/robots.txt")) {
+            if (path.equals("/robots.txt") || path.startsWith("/robots.txt?")) {
                 return true;
             }
 
+            int ruleIndex = getMatcher().match(path);
+            if (ruleIndex == RobotRulesMatcher.NO_MATCH) {
+                return true;
+            } else {
+                return _rules.get(ruleIndex)._allow;
+            }
+        }
+    }
+    
+    private RobotRulesMatcher getMatcher() {
+        RobotRulesMatcher result = _matcher;
+        if (result == null) {
+            List<String> prefixes = new ArrayList<String>(_rules.size());
             for (RobotRule rule : _rules) {
-                if (path.startsWith(rule._prefix)) {
-                    return rule._allow;
-                }
+                prefixes.add(rule._prefix);
             }
-
-            return true;
+            
+            result = new RobotRulesMatcher(prefixes);
+            _matcher = result;
         }
+        
+        return result;
     }
 
-    private String getPath(String url) {
-
-        try {
-            String path = new URL(url).getPath();
+    /**
+     * Return the lower-cased, decoded path plus query (if any) for <url>. For
+     * http and https URLs we pull this out of the string directly, versus
+     * creating a java.net.URL, since this is called for every URL we filter.
+     * 
+     * @param url URL to check
+     * @return path (and query), or "/" if the URL is invalid.
+     */
+    static String getPath(String url) {
+        int schemeEnd = url.indexOf("://");
+        if ((schemeEnd != 4) && (schemeEnd != 5)) {
+            return getPathFromURL(url);
+        }
+        
+        String scheme = url.substring(0, schemeEnd);
+        if (!scheme.equalsIgnoreCase("http") && !scheme.equalsIgnoreCase("https")) {
+            return getPathFromURL(url);
+        }
+        
+        // Path starts at the first '/', '?' or '#' after the authority.
+        int length = url.length();
+        int pathStart = schemeEnd + 3;
+        while (pathStart < length) {
+            char c = url.charAt(pathStart);
+            if ((c == '/') || (c == '?') || (c == '#')) {
+                break;
+            }
             
-            if ((path == null) || (path.equals(""))) {
-                return "/";
-            } else {
+            pathStart += 1;
+        }
+        
+        int pathEnd = url.indexOf('#', pathStart);
+        if (pathEnd == -1) {
+            pathEnd = length;
+        }
+        
+        int queryStart = url.indexOf('?', pathStart);
+        if ((queryStart == -1) || (queryStart > pathEnd)) {
+            return normalizePath(url.substring(pathStart, pathEnd), null);
+        } else {
+            return normalizePath(url.substring(pathStart, queryStart), url.substring(queryStart + 1, pathEnd));
+        }
+    }
+    
+    private static String getPathFromURL(String url) {
+        try {
+            URL realUrl = new URL(url);
+            return normalizePath(realUrl.getPath(), realUrl.getQuery());
+        } catch (Exception e) {
+            // If the URL is invalid, we don't really care since the fetch
+            // will fail, so return the root.
+            return "/";
+        }
+    }
+    
+    private static String normalizePath(String path, String query) {
+        if ((path == null) || (path.length() == 0)) {
+            path = "/";
+        } else {
+            try {
                 // We always lower-case the path, as anybody who sets up rules that differ only by case
                 // is insane, but it's more likely that somebody will accidentally put in rules that don't
                 // match their target paths because of case differences.
-                return URLDecoder.decode(path, "UTF-8").toLowerCase();
+                path = decode(path).toLowerCase();
+            } catch (Exception e) {
+                return "/";
             }
+        }
+        
+        if (query == null) {
+            return path;
+        }
+        
+        try {
+            query = decode(query);
         } catch (Exception e) {
-            // If the URL is invalid, we don't really care since the fetch
-            // will fail, so return the root.
-            return "/";
+            // Leave the query as-is.
+        }
+        
+        return path + "?" + query.toLowerCase();
+    }
+    
+    private static String decode(String s) throws UnsupportedEncodingException {
+        if ((s.indexOf('%') == -1) && (s.indexOf('+') == -1)) {
+            return s;
+        } else {
+            return URLDecoder.decode(s, "UTF-8");
         }
     }
     
@@ -64,6 +64,26 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
     // Remove even more common unwanted parameters from the query portion of a URL.
     private static final Pattern AGGRESSIVE_IGNORED_QUERY_PARAMETERS_PATTERN = Pattern.compile("(\\?|&)(?:(?i)user|usr|user_id|userid|memberid)=.*?(&|#|$)");
     
+    // Query parameter names that are removed by the patterns above. These must be kept in sync
+    // with SESSION_ID_PATTERN and OTHER_IGNORED_QUERY_PARAMETERS_PATTERN, as the fast path uses
+    // them to decide if it can handle a URL.
+    private static final String[] IGNORED_QUERY_PARAMETERS = {
+        "sid", "phpsessid", "sessionid", "session_id", "bv_sessionid", "jsessionid", "-session", "session", "session_key",
+        "width", "format", "country", "height", "src", "user", "username", "uname", "return_url", "returnurl", "sort",
+        "sort_by", "sortby", "sort_direction", "sort_key", "order_by", "orderby", "sortorder", "collate"
+    };
+    
+    // Same as above, for AGGRESSIVE_IGNORED_QUERY_PARAMETERS_PATTERN
+    private static final String[] AGGRESSIVE_IGNORED_QUERY_PARAMETERS = {
+        "user", "usr", "user_id", "userid", "memberid"
+    };
+    
+    // Characters that the fast path can leave as-is in each part of the URL. Anything
+    // else (e.g. '%', '+', ';', non-ASCII) means we use the regular normalization.
+    private static final boolean[] HOST_CHARS = makeCharTable("-._");
+    private static final boolean[] PATH_CHARS = makeCharTable("-._~!$'()*,=:@");
+    private static final boolean[] QUERY_CHARS = makeCharTable("-._~!$'()*,/@");
+    
     private boolean _treatRefAsQuery;
     private boolean _isAggressive;
     
@@ -80,6 +100,28 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
         _isAggressive = isAggressive;
     }
     
+    private static boolean[] makeCharTable(String extraChars) {
+        boolean[] result = new boolean[128];
+        for (char c = 'a'; c <= 'z'; c++) {
+            result[c] = true;
+            result[Character.toUpperCase(c)] = true;
+        }
+        
+        for (char c = '0'; c <= '9'; c++) {
+            result[c] = true;
+        }
+        
+        for (int i = 0; i < extraChars.length(); i++) {
+            result[extraChars.charAt(i)] = true;
+        }
+        
+        return result;
+    }
+    
+    private static boolean isValidChar(char c, boolean[] validChars) {
+        return (c < validChars.length) && validChars[c];
+    }
+    
     private String encodeCodePoint(int codepoint) {
         try {
             int[] codepoints = { codepoint };
@@ -246,6 +288,247 @@ public class SimpleUrlNormalizer extends BaseUrlNormalizer {
     }
 
     public String normalize(String url) {
+        String result = normalizeSimpleUrl(url);
+        if (result == null) {
+            result = normalizeFully(url);
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Fast path for the common case of an http(s) URL that doesn't need decoding, re-encoding,
+     * or any of the pattern-based clean-up. We make one pass over the URL, and either return
+     * the normalized URL (which is the same string, if nothing needed to change), or null if
+     * we have to use normalizeFully().
+     * 
+     * This has to return exactly what normalizeFully() would return, so it's very conservative
+     * about what it will handle.
+     * 
+     * @param url URL to normalize
+     * @return normalized URL, or null if the URL isn't simple enough.
+     */
+    protected String normalizeSimpleUrl(String url) {
+        int length = url.length();
+        boolean changed = false;
+        
+        // Protocol
+        boolean isHttps;
+        int i;
+        if (url.regionMatches(true, 0, "http://", 0, 7)) {
+            isHttps = false;
+            i = 7;
+        } else if (url.regionMatches(true, 0, "https://", 0, 8)) {
+            isHttps = true;
+            i = 8;
+        } else {
+            return null;
+        }
+        
+        for (int j = 0; j < i - 3; j++) {
+            if (Character.isUpperCase(url.charAt(j))) {
+                changed = true;
+            }
+        }
+        
+        // Hostname
+        int hostStart = i;
+        char c = 0;
+        while ((i < length) && ((c = url.charAt(i)) != '/') && (c != ':') && (c != '?') && (c != '#')) {
+            if (!isValidChar(c, HOST_CHARS)) {
+                return null;
+            } else if ((c >= 'A') && (c <= 'Z')) {
+                changed = true;
+            }
+            
+            i += 1;
+        }
+        
+        int hostEnd = i;
+        if ((hostEnd == hostStart) || url.charAt(hostStart) == '.') {
+            return null;
+        } else if (url.charAt(hostEnd - 1) == '.') {
+            hostEnd -= 1;
+            changed = true;
+            if ((hostEnd == hostStart) || (url.charAt(hostEnd - 1) == '.')) {
+                return null;
+            }
+        }
+        
+        // Port
+        int portStart = -1;
+        int portEnd = -1;
+        if ((i < length) && (url.charAt(i) == ':')) {
+            i += 1;
+            portStart = i;
+            int port = 0;
+            while ((i < length) && ((c = url.charAt(i)) >= '0') && (c <= '9')) {
+                port = (port * 10) + (c - '0');
+                i += 1;
+            }
+            
+            portEnd = i;
+            int numDigits = portEnd - portStart;
+            if ((numDigits == 0) || (numDigits > 5) || ((numDigits > 1) && (url.charAt(portStart) == '0')) || (port > 0xFFFF)) {
+                return null;
+            } else if ((i < length) && ((c = url.charAt(i)) != '/') && (c != '?') && (c != '#')) {
+                return null;
+            }
+            
+            if (port == (isHttps ? 443 : 80)) {
+                portStart = -1;
+                changed = true;
+            }
+        }
+        
+        // Path - we don't handle empty segments ("//"), relative segments, or default pages.
+        int pathStart = i;
+        int segmentStart = i + 1;
+        while ((i < length) && ((c = url.charAt(i)) != '?') && (c != '#')) {
+            if (c == '/') {
+                if ((i > pathStart) && !isSimplePathSegment(url, segmentStart, i)) {
+                    return null;
+                }
+                
+                segmentStart = i + 1;
+            } else if (!isValidChar(c, PATH_CHARS)) {
+                return null;
+            }
+            
+            i += 1;
+        }
+        
+        int pathEnd = i;
+        if (pathEnd == pathStart) {
+            changed = true;
+        } else if ((segmentStart < pathEnd) && !isSimplePathSegment(url, segmentStart, pathEnd)) {
+            return null;
+        }
+        
+        // Query - we don't handle empty parameters, or parameters that get removed.
+        int queryStart = -1;
+        int queryEnd = -1;
+        if ((i < length) && (url.charAt(i) == '?')) {
+            i += 1;
+            queryStart = i;
+            int paramStart = i;
+            while ((i < length) && ((c = url.charAt(i)) != '#')) {
+                if (c == '&') {
+                    if (!isSimpleQueryParameter(url, paramStart, i)) {
+                        return null;
+                    }
+                    
+                    paramStart = i + 1;
+                } else if ((c != '=') && !isValidChar(c, QUERY_CHARS)) {
+                    return null;
+                }
+                
+                i += 1;
+            }
+            
+            queryEnd = i;
+            if (queryEnd == queryStart) {
+                // Empty query gets removed.
+                queryStart = -1;
+                changed = true;
+            } else if (!isSimpleQueryParameter(url, paramStart, queryEnd)) {
+                return null;
+            }
+        }
+        
+        // Anchor - this gets removed, unless it might be treated as a query.
+        if (i < length) {
+            if (_treatRefAsQuery) {
+                return null;
+            }
+            
+            changed = true;
+        }
+        
+        if (!changed) {
+            return url;
+        }
+        
+        StringBuilder result = new StringBuilder(length + 1);
+        result.append(isHttps ? "https://" : "http://");
+        for (int j = hostStart; j < hostEnd; j++) {
+            c = url.charAt(j);
+            if ((c >= 'A') && (c <= 'Z')) {
+                c = (char)(c + ('a' - 'A'));
+            }
+            
+            result.append(c);
+        }
+        
+        if (portStart != -1) {
+            result.append(':');
+            result.append(url, portStart, portEnd);
+        }
+        
+        if (pathEnd == pathStart) {
+            result.append('/');
+        } else {
+            result.append(url, pathStart, pathEnd);
+        }
+        
+        if (queryStart != -1) {
+            result.append('?');
+            result.append(url, queryStart, queryEnd);
+        }
+        
+        return result.toString();
+    }
+    
+    private static boolean isSimplePathSegment(String url, int start, int end) {
+        int length = end - start;
+        if (length == 0) {
+            return false;
+        } else if ((url.charAt(start) == '.') && ((length == 1) || ((length == 2) && (url.charAt(start + 1) == '.')))) {
+            return false;
+        } else if (url.regionMatches(true, start, "index.", 0, 6) || url.regionMatches(true, start, "default.", 0, 8)) {
+            return false;
+        } else {
+            return true;
+        }
+    }
+    
+    private boolean isSimpleQueryParameter(String url, int start, int end) {
+        if (end == start) {
+            return false;
+        }
+        
+        int nameEnd = url.indexOf('=', start);
+        if ((nameEnd == -1) || (nameEnd > end)) {
+            return true;
+        }
+        
+        if (isIgnoredName(url, start, nameEnd, IGNORED_QUERY_PARAMETERS)) {
+            return false;
+        } else if (_isAggressive && isIgnoredName(url, start, nameEnd, AGGRESSIVE_IGNORED_QUERY_PARAMETERS)) {
+            return false;
+        } else {
+            return true;
+        }
+    }
+    
+    private static boolean isIgnoredName(String url, int start, int end, String[] ignoredNames) {
+        int length = end - start;
+        for (String name : ignoredNames) {
+            if ((name.length() == length) && url.regionMatches(true, start, name, 0, length)) {
+                return true;
+            }
+        }
+        
+        return false;
+    }
+    
+    /**
+     * Normalize <url> without using the fast path for simple URLs.
+     * 
+     * @param url URL to normalize
+     * @return normalized URL
+     */
+    public String normalizeFully(String url) {
         String result = url.trim();
         
         // First see if there is any protocol - if not, append http:// by default.
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.Serializable;
+import java.net.UnknownHostException;
+import java.util.Collection;
+
+/**
+ * Converts host names into IP addresses, for DomainInfo.
+ * 
+ * Resolvers are serializable, so that they can be passed to Cascading
+ * operations, which then use them from multiple threads.
+ *
+ */
+@SuppressWarnings("serial")
+public abstract class BaseHostResolver implements Serializable {
+
+    /**
+     * Return the IP address (e.g. "192.168.1.1") for <hostname>.
+     * 
+     * @param hostname name of host
+     * @return IP address, as a string
+     * @throws UnknownHostException if the host can't be resolved
+     */
+    public abstract String resolve(String hostname) throws UnknownHostException;
+    
+    /**
+     * Start resolving <hostnames> in the background, because we'll be calling
+     * resolve() for them soon. By default this does nothing.
+     * 
+     * @param hostnames hosts to resolve
+     */
+    public void prefetch(Collection<String> hostnames) {
+    }
+}
@@ -0,0 +1,44 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Encoder/decoder for elements that a DiskQueue spills to disk. Codecs are only
+ * used by one DiskQueue, so they can keep state between calls (e.g. to avoid
+ * writing the same meta-data for every element), as long as that state gets
+ * cleared by reset().
+ *
+ * @param <E> type of element being encoded
+ */
+public abstract class BaseQueueCodec<E> {
+
+    /**
+     * Called before the first element is written to (or read from) a new
+     * backing store file.
+     */
+    public void reset() {
+        // Default is to have no state.
+    }
+
+    public abstract void write(E element, DataOutput out) throws IOException;
+
+    public abstract E read(DataInput in) throws IOException;
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread-safe pool of byte arrays, so that code which needs a temporary buffer
+ * per request (e.g. fetching or decompressing content) can borrow one instead of
+ * allocating a new one each time.
+ *
+ * Buffers are at least <minBufferSize> bytes. Buffers bigger than <maxBufferSize>
+ * are never pooled, and at most <maxPooled> free buffers are kept around.
+ *
+ * The pool keeps counts of allocated versus reused buffers, which is an easy way
+ * to check that a code path isn't doing per-request allocation.
+ *
+ */
+public class BufferPool {
+
+    private final int _minBufferSize;
+    private final int _maxBufferSize;
+    private final BlockingQueue<byte[]> _free;
+
+    private final AtomicLong _allocatedCount = new AtomicLong();
+    private final AtomicLong _allocatedBytes = new AtomicLong();
+    private final AtomicLong _reusedCount = new AtomicLong();
+    private final AtomicLong _discardedCount = new AtomicLong();
+
+    public BufferPool(int minBufferSize, int maxBufferSize, int maxPooled) {
+        if (minBufferSize <= 0) {
+            throw new InvalidParameterException("Min buffer size must be > 0: " + minBufferSize);
+        }
+
+        if (maxBufferSize < minBufferSize) {
+            throw new InvalidParameterException("Max buffer size can't be less than min buffer size: " + maxBufferSize);
+        }
+
+        if (maxPooled <= 0) {
+            throw new InvalidParameterException("Max pooled buffers must be > 0: " + maxPooled);
+        }
+
+        _minBufferSize = minBufferSize;
+        _maxBufferSize = maxBufferSize;
+        _free = new ArrayBlockingQueue<byte[]>(maxPooled);
+    }
+
+    public int getMinBufferSize() {
+        return _minBufferSize;
+    }
+
+    public int getMaxBufferSize() {
+        return _maxBufferSize;
+    }
+
+    /**
+     * Return a buffer of at least <minBufferSize> bytes.
+     *
+     * @return buffer, which should be passed to release() when the caller is done with it.
+     */
+    public byte[] acquire() {
+        return acquire(_minBufferSize);
+    }
+
+    /**
+     * Return a buffer that's at least <size> bytes long. Note that the contents of the
+     * buffer are whatever the previous user left in it.
+     *
+     * @param size min length of buffer
+     * @return buffer, which should be passed to release() when the caller is done with it.
+     */
+    public byte[] acquire(int size) {
+        byte[] result = _free.poll();
+        if (result != null) {
+            if (result.length >= size) {
+                _reusedCount.incrementAndGet();
+                return result;
+            }
+
+            // Too small - toss it, and make a new one that (when released) will be
+            // big enough for the next request like this one.
+            _discardedCount.incrementAndGet();
+        }
+
+        int bufferSize = Math.max(size, _minBufferSize);
+        _allocatedCount.incrementAndGet();
+        _allocatedBytes.addAndGet(bufferSize);
+        return new byte[bufferSize];
+    }
+
+    /**
+     * Return a buffer to the pool. It's OK to pass in buffers that didn't come
+     * from acquire(), as long as the caller doesn't use them afterwards.
+     *
+     * @param buffer buffer to release (can be null)
+     */
+    public void release(byte[] buffer) {
+        if (buffer == null) {
+            return;
+        }
+
+        if ((buffer.length < _minBufferSize) || (buffer.length > _maxBufferSize) || !_free.offer(buffer)) {
+            _discardedCount.incrementAndGet();
+        }
+    }
+
+    public int getNumPooled() {
+        return _free.size();
+    }
+
+    public long getAllocatedCount() {
+        return _allocatedCount.get();
+    }
+
+    public long getAllocatedBytes() {
+        return _allocatedBytes.get();
+    }
+
+    public long getReusedCount() {
+        return _reusedCount.get();
+    }
+
+    public long getDiscardedCount() {
+        return _discardedCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d buffers allocated (%d bytes), %d reused, %d discarded, %d pooled",
+                        getAllocatedCount(), getAllocatedBytes(), getReusedCount(), getDiscardedCount(), getNumPooled());
+    }
+}
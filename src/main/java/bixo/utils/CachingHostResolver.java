@@ -0,0 +1,351 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.net.UnknownHostException;
+import java.security.InvalidParameterException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Resolver that caches results from another resolver, in a size-bounded LRU cache.
+ * Successful lookups are cached for <ttl> milliseconds, and failed lookups (unknown
+ * host) for <negativeTtl> milliseconds.
+ * 
+ * If several threads need the same host at the same time, only one lookup is done.
+ * Calling prefetch() starts lookups in a small thread pool, so that by the time
+ * somebody calls resolve() the result is (hopefully) already cached. We also keep
+ * counts of hits, lookups and lookup latency.
+ * 
+ * The cache and thread pool aren't serialized, so each deserialized copy (e.g.
+ * in a reducer) starts out empty.
+ *
+ */
+@SuppressWarnings("serial")
+public class CachingHostResolver extends BaseHostResolver {
+    private static final Logger LOGGER = Logger.getLogger(CachingHostResolver.class);
+    
+    public static final int DEFAULT_MAX_ENTRIES = 10000;
+    public static final long DEFAULT_TTL = 60 * 60 * 1000L;
+    public static final long DEFAULT_NEGATIVE_TTL = 5 * 60 * 1000L;
+    public static final int DEFAULT_PREFETCH_THREADS = 10;
+    
+    // Max number of hosts waiting to be prefetched.
+    private static final int MAX_PREFETCH_QUEUE_SIZE = 10000;
+    
+    private static final long PREFETCH_THREAD_KEEP_ALIVE = 1000L;
+    
+    private static class CacheEntry {
+        private String _address;        // null for an unknown host
+        private long _expirationTime;
+        
+        public CacheEntry(String address, long expirationTime) {
+            _address = address;
+            _expirationTime = expirationTime;
+        }
+    }
+    
+    private class Lookup implements Callable<String> {
+        private String _hostname;
+        
+        public Lookup(String hostname) {
+            _hostname = hostname;
+        }
+        
+        @Override
+        public String call() throws Exception {
+            long startTime = System.nanoTime();
+            
+            try {
+                String result = _resolver.resolve(_hostname);
+                addToCache(_hostname, result, _ttl);
+                return result;
+            } catch (UnknownHostException e) {
+                _numFailures.incrementAndGet();
+                addToCache(_hostname, null, _negativeTtl);
+                throw e;
+            } finally {
+                long lookupTime = (System.nanoTime() - startTime) / 1000000L;
+                _numLookups.incrementAndGet();
+                _lookupTime.addAndGet(lookupTime);
+                
+                long maxLookupTime;
+                while ((maxLookupTime = _maxLookupTime.get()) < lookupTime) {
+                    if (_maxLookupTime.compareAndSet(maxLookupTime, lookupTime)) {
+                        break;
+                    }
+                }
+                
+                _pending.remove(_hostname);
+            }
+        }
+    }
+    
+    private static class PrefetchThreadFactory implements ThreadFactory {
+        
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(r, "CachingHostResolver-prefetch");
+            result.setDaemon(true);
+            return result;
+        }
+    }
+    
+    private BaseHostResolver _resolver;
+    private int _maxEntries;
+    private long _ttl;
+    private long _negativeTtl;
+    private int _numPrefetchThreads;
+    
+    private transient LinkedHashMap<String, CacheEntry> _cache;
+    private transient ConcurrentHashMap<String, FutureTask<String>> _pending;
+    private transient ThreadPoolExecutor _prefetcher;
+    
+    private transient AtomicLong _numHits;
+    private transient AtomicLong _numMisses;
+    private transient AtomicLong _numLookups;
+    private transient AtomicLong _numFailures;
+    private transient AtomicLong _lookupTime;
+    private transient AtomicLong _maxLookupTime;
+    
+    public CachingHostResolver() {
+        this(new SimpleHostResolver());
+    }
+    
+    public CachingHostResolver(BaseHostResolver resolver) {
+        this(resolver, DEFAULT_MAX_ENTRIES, DEFAULT_TTL, DEFAULT_NEGATIVE_TTL, DEFAULT_PREFETCH_THREADS);
+    }
+    
+    public CachingHostResolver(BaseHostResolver resolver, int maxEntries, long ttl, long negativeTtl, int numPrefetchThreads) {
+        if (maxEntries <= 0) {
+            throw new InvalidParameterException("maxEntries must be > 0: " + maxEntries);
+        }
+        
+        if ((ttl < 0) || (negativeTtl < 0)) {
+            throw new InvalidParameterException("TTLs must be >= 0");
+        }
+        
+        if (numPrefetchThreads < 0) {
+            throw new InvalidParameterException("numPrefetchThreads must be >= 0: " + numPrefetchThreads);
+        }
+        
+        _resolver = resolver;
+        _maxEntries = maxEntries;
+        _ttl = ttl;
+        _negativeTtl = negativeTtl;
+        _numPrefetchThreads = numPrefetchThreads;
+        
+        init();
+    }
+    
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        init();
+    }
+    
+    private void init() {
+        // Access-ordered, so the eldest entry is the least recently used.
+        _cache = new LinkedHashMap<String, CacheEntry>(16, 0.75f, true) {
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CacheEntry> eldest) {
+                return size() > _maxEntries;
+            }
+        };
+        
+        _pending = new ConcurrentHashMap<String, FutureTask<String>>();
+        _prefetcher = null;
+        
+        _numHits = new AtomicLong();
+        _numMisses = new AtomicLong();
+        _numLookups = new AtomicLong();
+        _numFailures = new AtomicLong();
+        _lookupTime = new AtomicLong();
+        _maxLookupTime = new AtomicLong();
+    }
+    
+    @Override
+    public String resolve(String hostname) throws UnknownHostException {
+        String key = hostname.toLowerCase();
+        CacheEntry entry = getFromCache(key);
+        if (entry != null) {
+            _numHits.incrementAndGet();
+            if (entry._address == null) {
+                throw new UnknownHostException(hostname);
+            }
+            
+            return entry._address;
+        }
+        
+        _numMisses.incrementAndGet();
+        
+        // If somebody else (e.g. a prefetch thread) is already doing the lookup, then
+        // run() does nothing and we wait for their result. If it was queued up for
+        // prefetching but hasn't started yet, we do it now.
+        FutureTask<String> lookup = getLookup(key);
+        lookup.run();
+        
+        try {
+            return lookup.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UnknownHostException) {
+                throw (UnknownHostException)e.getCause();
+            } else {
+                UnknownHostException uhe = new UnknownHostException(hostname);
+                uhe.initCause(e.getCause());
+                throw uhe;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(hostname);
+        }
+    }
+    
+    /**
+     * Start looking up any of <hostnames> that aren't already cached or being
+     * looked up. If we've got too many lookups queued already, the extras will
+     * be looked up when resolve() is called.
+     */
+    @Override
+    public void prefetch(Collection<String> hostnames) {
+        if (_numPrefetchThreads == 0) {
+            return;
+        }
+        
+        for (String hostname : hostnames) {
+            String key = hostname.toLowerCase();
+            if ((getFromCache(key) != null) || _pending.containsKey(key)) {
+                continue;
+            }
+            
+            try {
+                getPrefetcher().execute(getLookup(key));
+            } catch (RejectedExecutionException e) {
+                LOGGER.trace("Prefetch queue is full, skipping " + hostname);
+            }
+        }
+    }
+    
+    private FutureTask<String> getLookup(String key) {
+        FutureTask<String> result = _pending.get(key);
+        if (result == null) {
+            FutureTask<String> newLookup = new FutureTask<String>(new Lookup(key));
+            result = _pending.putIfAbsent(key, newLookup);
+            if (result == null) {
+                result = newLookup;
+            }
+        }
+        
+        return result;
+    }
+    
+    private synchronized ThreadPoolExecutor getPrefetcher() {
+        if (_prefetcher == null) {
+            _prefetcher = new ThreadPoolExecutor(_numPrefetchThreads, _numPrefetchThreads, PREFETCH_THREAD_KEEP_ALIVE,
+                            TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(MAX_PREFETCH_QUEUE_SIZE),
+                            new PrefetchThreadFactory());
+            _prefetcher.allowCoreThreadTimeOut(true);
+        }
+        
+        return _prefetcher;
+    }
+    
+    private CacheEntry getFromCache(String key) {
+        synchronized (_cache) {
+            CacheEntry result = _cache.get(key);
+            if ((result != null) && (result._expirationTime <= System.currentTimeMillis())) {
+                _cache.remove(key);
+                result = null;
+            }
+            
+            return result;
+        }
+    }
+    
+    private void addToCache(String key, String address, long ttl) {
+        if (ttl > 0) {
+            synchronized (_cache) {
+                _cache.put(key, new CacheEntry(address, System.currentTimeMillis() + ttl));
+            }
+        }
+    }
+    
+    public int size() {
+        synchronized (_cache) {
+            return _cache.size();
+        }
+    }
+    
+    public long getNumHits() {
+        return _numHits.get();
+    }
+    
+    public long getNumMisses() {
+        return _numMisses.get();
+    }
+    
+    /**
+     * @return number of lookups done by the underlying resolver.
+     */
+    public long getNumLookups() {
+        return _numLookups.get();
+    }
+    
+    /**
+     * @return number of lookups that failed with an unknown host.
+     */
+    public long getNumFailures() {
+        return _numFailures.get();
+    }
+    
+    /**
+     * @return total time (in milliseconds) spent in lookups.
+     */
+    public long getLookupTime() {
+        return _lookupTime.get();
+    }
+    
+    /**
+     * @return longest time (in milliseconds) for a single lookup.
+     */
+    public long getMaxLookupTime() {
+        return _maxLookupTime.get();
+    }
+    
+    @Override
+    public String toString() {
+        long numLookups = getNumLookups();
+        return String.format("%d entries, %d hits, %d misses, %d lookups (%d failed, avg %dms, max %dms)",
+                        size(), getNumHits(), getNumMisses(), numLookups, getNumFailures(),
+                        numLookups == 0 ? 0 : getLookupTime() / numLookups, getMaxLookupTime());
+    }
+}
@@ -0,0 +1,270 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.security.InvalidParameterException;
+import java.util.AbstractQueue;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Thread-safe version of DiskQueue, for when multiple threads need to add and remove
+ * elements.
+ *
+ * The in-memory head of the queue and the on-disk tail each have their own lock, so
+ * threads adding elements that spill to disk don't block threads removing elements
+ * from memory. The only time both locks are held is when the head gets refilled
+ * from the tail, and that's always done in head->tail order.
+ *
+ * As with DiskQueue, elements in memory are returned in comparator order, and once
+ * anything has spilled to disk, new elements also go to disk (so they don't starve
+ * older elements that are waiting on disk).
+ *
+ */
+public class ConcurrentDiskQueue<E extends Serializable> extends AbstractQueue<E> {
+    private static final Logger LOGGER = Logger.getLogger(ConcurrentDiskQueue.class);
+
+    private final ReentrantLock _headLock = new ReentrantLock();
+    private final ReentrantLock _tailLock = new ReentrantLock();
+
+    // Guarded by _headLock
+    private DiskQueue.MemoryQueue<E> _memoryQueue;
+    private float _refillMemoryRatio;
+
+    // Guarded by _tailLock
+    private SegmentedBackingStore<E> _backingStore;
+    private BaseQueueCodec<E> _codec;
+    private boolean _compressFile;
+
+    // Number of elements on disk, which can be checked without holding _tailLock.
+    private final AtomicInteger _fileElements = new AtomicInteger();
+    private final AtomicInteger _size = new AtomicInteger();
+
+    public ConcurrentDiskQueue(int maxInMemorySize, Comparator<? super E> comparator) {
+        this(maxInMemorySize, comparator, false);
+    }
+
+    /**
+     * Construct a disk-backed queue that keeps at most <maxSize> elements in memory.
+     *
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     * @param comparator Comparator for ordering elements
+     * @param useHeap true to keep in-memory elements in a heap (see DiskQueue).
+     */
+    public ConcurrentDiskQueue(int maxInMemorySize, Comparator<? super E> comparator, boolean useHeap) {
+        if (maxInMemorySize < 1) {
+            throw new InvalidParameterException("ConcurrentDiskQueue max in-memory size must be at least one");
+        }
+
+        if (useHeap) {
+            _memoryQueue = new DiskQueue.HeapQueue<E>(maxInMemorySize, comparator);
+        } else {
+            _memoryQueue = new DiskQueue.IndexQueue<E>(maxInMemorySize, comparator);
+        }
+
+        _refillMemoryRatio = DiskQueue.DEFAULT_REFILL_RATIO;
+        _codec = new SerializableQueueCodec<E>();
+        _compressFile = false;
+    }
+
+    public void setCodec(BaseQueueCodec<E> codec) {
+        _tailLock.lock();
+        try {
+            if (_backingStore != null) {
+                throw new IllegalStateException("Can't change codec once elements have been written to disk");
+            }
+
+            _codec = codec;
+        } finally {
+            _tailLock.unlock();
+        }
+    }
+
+    public void setCompressFile(boolean compressFile) {
+        _tailLock.lock();
+        try {
+            if (_backingStore != null) {
+                throw new IllegalStateException("Can't change compression once elements have been written to disk");
+            }
+
+            _compressFile = compressFile;
+        } finally {
+            _tailLock.unlock();
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        throw new RuntimeException("Iterator not supported for ConcurrentDiskQueue");
+    }
+
+    @Override
+    public int size() {
+        return _size.get();
+    }
+
+    @Override
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("Element cannot be null for AbstractQueue");
+        }
+
+        // If there's anything on disk, we don't want to put this in memory, as then it
+        // would jump ahead of elements that were added earlier.
+        if (_fileElements.get() == 0) {
+            _headLock.lock();
+            try {
+                if ((_fileElements.get() == 0) && _memoryQueue.offer(element)) {
+                    _size.incrementAndGet();
+                    return true;
+                }
+            } finally {
+                _headLock.unlock();
+            }
+        }
+
+        _tailLock.lock();
+        try {
+            if (_backingStore == null) {
+                _backingStore = new SegmentedBackingStore<E>(_codec, _compressFile, SegmentedBackingStore.DEFAULT_SEGMENT_SIZE,
+                                SegmentedBackingStore.DEFAULT_TAIL_BUFFER_SIZE, null);
+            }
+
+            _backingStore.add(element);
+            _fileElements.incrementAndGet();
+            _size.incrementAndGet();
+            return true;
+        } catch (IOException e) {
+            LOGGER.error("Error writing to ConcurrentDiskQueue backing store", e);
+            return false;
+        } finally {
+            _tailLock.unlock();
+        }
+    }
+
+    @Override
+    public E peek() {
+        _headLock.lock();
+        try {
+            loadMemoryQueue();
+            return _memoryQueue.peek();
+        } finally {
+            _headLock.unlock();
+        }
+    }
+
+    @Override
+    public E poll() {
+        _headLock.lock();
+        try {
+            loadMemoryQueue();
+            E result = _memoryQueue.poll();
+            if (result != null) {
+                _size.decrementAndGet();
+            }
+
+            return result;
+        } finally {
+            _headLock.unlock();
+        }
+    }
+
+    /**
+     * Let the queue know that the sort order of queued elements might have
+     * changed. See DiskQueue.reprioritize().
+     */
+    public void reprioritize() {
+        // The memory queue isn't thread safe, and a rebuild flag that's set while
+        // poll() is rebuilding the heap would otherwise get lost.
+        _headLock.lock();
+        try {
+            _memoryQueue.reprioritize();
+        } finally {
+            _headLock.unlock();
+        }
+    }
+
+    @Override
+    public void clear() {
+        _headLock.lock();
+        try {
+            _tailLock.lock();
+            try {
+                _memoryQueue.clear();
+                closeFile();
+                _size.set(0);
+            } finally {
+                _tailLock.unlock();
+            }
+        } finally {
+            _headLock.unlock();
+        }
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        if (_backingStore != null) {
+            LOGGER.warn("Concurrent disk queue still had open file in finalize");
+            closeFile();
+        }
+    }
+
+    // Must be called with _tailLock held.
+    private void closeFile() {
+        if (_backingStore != null) {
+            _backingStore.close();
+            _backingStore = null;
+            _fileElements.set(0);
+        }
+    }
+
+    // Must be called with _headLock held.
+    private void loadMemoryQueue() {
+        // use the memory queue as our buffer, so only load it up when it's below capacity.
+        if ((_fileElements.get() == 0)
+            || ((float)_memoryQueue.size()/(float)_memoryQueue.getCapacity() >= _refillMemoryRatio)) {
+            return;
+        }
+
+        _tailLock.lock();
+        try {
+            if (_backingStore == null) {
+                return;
+            }
+
+            while (!_backingStore.isEmpty() && (_memoryQueue.size() < _memoryQueue.getCapacity())) {
+                _memoryQueue.offer(_backingStore.remove());
+                _fileElements.decrementAndGet();
+            }
+
+            // Nothing left in the file, so close/delete it.
+            if (_backingStore.isEmpty()) {
+                closeFile();
+            }
+        } catch (IOException e) {
+            LOGGER.error("Error reading from ConcurrentDiskQueue backing store", e);
+        } finally {
+            _tailLock.unlock();
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.WritableUtils;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.HttpHeaders;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+import com.bixolabs.cascading.BaseDatum;
+
+/**
+ * Codec for datums, which writes out the datum's tuple using a compact binary
+ * encoding (similar to what Hadoop uses for Writables), versus Java serialization
+ * of the datum, tuple entry, fields, etc.
+ *
+ * The datum's fields are only written when they change, which is typically just
+ * for the first element.
+ *
+ * Tuple values that are strings, numbers, booleans, nested tuples and Writables
+ * get encoded directly. Anything else falls back to Java serialization. ContentBytes
+ * and HttpHeaders have their own type ids, and the class name of any other Writable
+ * is only written the first time we see it (per backing store file, or per tuple for
+ * writeTuple()).
+ *
+ * @param <E> type of datum, which must have a constructor that takes a TupleEntry.
+ */
+public class DatumQueueCodec<E extends BaseDatum> extends BaseQueueCodec<E> {
+
+    private static final byte NULL_TYPE = 0;
+    private static final byte STRING_TYPE = 1;
+    private static final byte INTEGER_TYPE = 2;
+    private static final byte LONG_TYPE = 3;
+    private static final byte BOOLEAN_TYPE = 4;
+    private static final byte DOUBLE_TYPE = 5;
+    private static final byte FLOAT_TYPE = 6;
+    private static final byte TUPLE_TYPE = 7;
+    private static final byte WRITABLE_TYPE = 8;
+    private static final byte SERIALIZABLE_TYPE = 9;
+    private static final byte CONTENT_BYTES_TYPE = 10;
+    private static final byte HTTP_HEADERS_TYPE = 11;
+
+    /**
+     * Writable classes we've seen, so we only have to write out the class name once.
+     * Each new class gets the next id, and its name is written after the id.
+     */
+    private static class WritableClasses {
+        private Map<Class<?>, Integer> _ids = new HashMap<Class<?>, Integer>();
+        private List<Class<?>> _classes = new ArrayList<Class<?>>();
+
+        public void write(Class<?> writableClass, DataOutput out) throws IOException {
+            Integer id = _ids.get(writableClass);
+            if (id == null) {
+                WritableUtils.writeVInt(out, _ids.size());
+                Text.writeString(out, writableClass.getName());
+                _ids.put(writableClass, _ids.size());
+            } else {
+                WritableUtils.writeVInt(out, id);
+            }
+        }
+
+        public Class<?> read(DataInput in) throws IOException {
+            int id = WritableUtils.readVInt(in);
+            if (id < _classes.size()) {
+                return _classes.get(id);
+            } else if (id > _classes.size()) {
+                throw new IOException("Invalid Writable class id: " + id);
+            }
+
+            String className = Text.readString(in);
+            try {
+                Class<?> result = Class.forName(className);
+                _classes.add(result);
+                return result;
+            } catch (ClassNotFoundException e) {
+                throw new IOException("Can't find Writable class " + className, e);
+            }
+        }
+    }
+
+    private Constructor<E> _constructor;
+
+    private Fields _lastWrittenFields;
+    private Fields _lastReadFields;
+    private WritableClasses _writtenClasses;
+    private WritableClasses _readClasses;
+
+    public DatumQueueCodec(Class<E> datumClass) {
+        try {
+            _constructor = datumClass.getConstructor(TupleEntry.class);
+        } catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException("Datum class must have a constructor that takes a TupleEntry: " + datumClass.getName());
+        }
+
+        _writtenClasses = new WritableClasses();
+        _readClasses = new WritableClasses();
+    }
+
+    @Override
+    public void reset() {
+        _lastWrittenFields = null;
+        _lastReadFields = null;
+        _writtenClasses = new WritableClasses();
+        _readClasses = new WritableClasses();
+    }
+
+    @Override
+    public void write(E element, DataOutput out) throws IOException {
+        TupleEntry entry = element.getTupleEntry();
+        Fields fields = entry.getFields();
+        if (fields.equals(_lastWrittenFields)) {
+            out.writeBoolean(false);
+        } else {
+            out.writeBoolean(true);
+            WritableUtils.writeVInt(out, fields.size());
+            for (int i = 0; i < fields.size(); i++) {
+                writeValue(fields.get(i), out, _writtenClasses);
+            }
+
+            _lastWrittenFields = fields;
+        }
+
+        writeTuple(entry.getTuple(), out, _writtenClasses);
+    }
+
+    @Override
+    public E read(DataInput in) throws IOException {
+        if (in.readBoolean()) {
+            Comparable<?>[] names = new Comparable<?>[WritableUtils.readVInt(in)];
+            for (int i = 0; i < names.length; i++) {
+                names[i] = (Comparable<?>)readValue(in, _readClasses);
+            }
+
+            _lastReadFields = new Fields(names);
+        } else if (_lastReadFields == null) {
+            throw new IOException("Missing fields for first datum");
+        }
+
+        Tuple tuple = readTuple(in, _readClasses);
+        try {
+            return _constructor.newInstance(new TupleEntry(_lastReadFields, tuple));
+        } catch (Exception e) {
+            throw new IOException("Can't create datum from tuple", e);
+        }
+    }
+
+    /**
+     * Write <tuple> using the same compact encoding as datums, for other formats
+     * that need to store arbitrary tuples.
+     */
+    public static void writeTuple(Tuple tuple, DataOutput out) throws IOException {
+        writeTuple(tuple, out, new WritableClasses());
+    }
+
+    public static Tuple readTuple(DataInput in) throws IOException {
+        return readTuple(in, new WritableClasses());
+    }
+
+    private static void writeTuple(Tuple tuple, DataOutput out, WritableClasses writableClasses) throws IOException {
+        WritableUtils.writeVInt(out, tuple.size());
+
+        Iterator<?> iter = tuple.iterator();
+        while (iter.hasNext()) {
+            writeValue(iter.next(), out, writableClasses);
+        }
+    }
+
+    private static Tuple readTuple(DataInput in, WritableClasses writableClasses) throws IOException {
+        int size = WritableUtils.readVInt(in);
+        Tuple result = new Tuple();
+        for (int i = 0; i < size; i++) {
+            result.add(readValue(in, writableClasses));
+        }
+
+        return result;
+    }
+
+    private static void writeValue(Object value, DataOutput out, WritableClasses writableClasses) throws IOException {
+        if (value == null) {
+            out.writeByte(NULL_TYPE);
+        } else if (value instanceof String) {
+            out.writeByte(STRING_TYPE);
+            Text.writeString(out, (String)value);
+        } else if (value instanceof Integer) {
+            out.writeByte(INTEGER_TYPE);
+            WritableUtils.writeVInt(out, (Integer)value);
+        } else if (value instanceof Long) {
+            out.writeByte(LONG_TYPE);
+            WritableUtils.writeVLong(out, (Long)value);
+        } else if (value instanceof Boolean) {
+            out.writeByte(BOOLEAN_TYPE);
+            out.writeBoolean((Boolean)value);
+        } else if (value instanceof Double) {
+            out.writeByte(DOUBLE_TYPE);
+            out.writeDouble((Double)value);
+        } else if (value instanceof Float) {
+            out.writeByte(FLOAT_TYPE);
+            out.writeFloat((Float)value);
+        } else if (value instanceof Tuple) {
+            out.writeByte(TUPLE_TYPE);
+            writeTuple((Tuple)value, out, writableClasses);
+        } else if (value.getClass() == ContentBytes.class) {
+            out.writeByte(CONTENT_BYTES_TYPE);
+            ((ContentBytes)value).write(out);
+        } else if (value.getClass() == HttpHeaders.class) {
+            out.writeByte(HTTP_HEADERS_TYPE);
+            ((HttpHeaders)value).write(out);
+        } else if (value instanceof Writable) {
+            out.writeByte(WRITABLE_TYPE);
+            writableClasses.write(value.getClass(), out);
+            ((Writable)value).write(out);
+        } else if (value instanceof Serializable) {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oos = new ObjectOutputStream(bytes);
+            oos.writeObject(value);
+            oos.close();
+
+            out.writeByte(SERIALIZABLE_TYPE);
+            WritableUtils.writeVInt(out, bytes.size());
+            out.write(bytes.toByteArray());
+        } else {
+            throw new IOException("Can't encode value of type " + value.getClass().getName());
+        }
+    }
+
+    private static Object readValue(DataInput in, WritableClasses writableClasses) throws IOException {
+        byte type = in.readByte();
+        switch (type) {
+            case NULL_TYPE:
+                return null;
+
+            case STRING_TYPE:
+                return Text.readString(in);
+
+            case INTEGER_TYPE:
+                return WritableUtils.readVInt(in);
+
+            case LONG_TYPE:
+                return WritableUtils.readVLong(in);
+
+            case BOOLEAN_TYPE:
+                return in.readBoolean();
+
+            case DOUBLE_TYPE:
+                return in.readDouble();
+
+            case FLOAT_TYPE:
+                return in.readFloat();
+
+            case TUPLE_TYPE:
+                return readTuple(in, writableClasses);
+
+            case CONTENT_BYTES_TYPE:
+                ContentBytes content = new ContentBytes();
+                content.readFields(in);
+                return content;
+
+            case HTTP_HEADERS_TYPE:
+                HttpHeaders headers = new HttpHeaders();
+                headers.readFields(in);
+                return headers;
+
+            case WRITABLE_TYPE:
+                Writable result = (Writable)ReflectionUtils.newInstance(writableClasses.read(in), null);
+                result.readFields(in);
+                return result;
+
+            case SERIALIZABLE_TYPE:
+                byte[] data = new byte[WritableUtils.readVInt(in)];
+                in.readFully(data);
+                ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+                try {
+                    return ois.readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("Can't find class for serialized value", e);
+                } finally {
+                    ois.close();
+                }
+
+            default:
+                throw new IOException("Unknown value type: " + type);
+        }
+    }
+}
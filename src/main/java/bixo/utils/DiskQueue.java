@@ -16,13 +16,7 @@
  */
 package bixo.utils;
 
-import java.io.BufferedOutputStream;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.security.InvalidParameterException;
 import java.util.AbstractQueue;
@@ -33,8 +27,8 @@ import java.util.List;
 
 import org.apache.log4j.Logger;
 
-// FUTURE KKr - worry about multi-threaded access. Could wrap syncronized(_memoryQueue)
-// around most class bodies (also synchronized(_backingStore) for file methods.
+// Note that this class isn't thread-safe - see ConcurrentDiskQueue for a version
+// that supports multiple producers and consumers.
 
 /**
  * A queue that writes extra elements to disk, and reads them in as needed.
@@ -58,7 +52,27 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         
     }
     
-    private static class IndexQueue<E> extends AbstractQueue<E> {
+    /**
+     * Bounded in-memory queue that's used as the head of the DiskQueue.
+     */
+    static abstract class MemoryQueue<E> extends AbstractQueue<E> {
+        
+        public abstract int getCapacity();
+        
+        /**
+         * Called when the result of the comparator might have changed for
+         * elements that are already in the queue. This can be called by a
+         * different thread than the one using the queue.
+         */
+        public abstract void reprioritize();
+    }
+    
+    /**
+     * Memory queue that finds the lowest element by scanning all elements on
+     * every peek/poll. This is O(n), but it means the comparator can return
+     * different results over time without the queue needing to know.
+     */
+    static class IndexQueue<E> extends MemoryQueue<E> {
 
         private List<E> _queue;
         private Comparator<? super E> _comparator;
@@ -75,10 +89,16 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
             return _queue.iterator();
         }
 
+        @Override
         public int getCapacity() {
             return _capacity;
         }
 
+        @Override
+        public void reprioritize() {
+            // Nothing to do, since we always scan for the lowest element.
+        }
+        
         @Override
         public int size() {
             return _queue.size();
@@ -111,14 +131,22 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
             if (_queue.size() == 0) {
                 return null;
             } else {
-                sort();
-                return _queue.remove(0);
+                return remove();
             }
         }
 
         public E remove() {
             sort();
-            return _queue.remove(0);
+            
+            // Move the last element into the first slot, versus shifting everything
+            // down by one. Order doesn't matter, since we always scan.
+            E result = _queue.get(0);
+            E lastEntry = _queue.remove(_queue.size() - 1);
+            if (!_queue.isEmpty()) {
+                _queue.set(0, lastEntry);
+            }
+            
+            return result;
         }
 
         private void sort() {
@@ -142,33 +170,181 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         }
     }
     
+    /**
+     * Memory queue that's a binary heap, so offer/poll are O(log n). If the
+     * comparator's result changes for elements in the queue, reprioritize()
+     * must be called, which triggers an O(n) rebuild of the heap on the next
+     * peek/poll.
+     */
+    static class HeapQueue<E> extends MemoryQueue<E> {
+
+        private Object[] _heap;
+        private int _size;
+        private Comparator<? super E> _comparator;
+        private volatile boolean _needsRebuild;
+
+        public HeapQueue(int capacity, Comparator<? super E> comparator) {
+            _heap = new Object[capacity];
+            _size = 0;
+            _comparator = comparator;
+            _needsRebuild = false;
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public Iterator<E> iterator() {
+            List<E> result = new ArrayList<E>(_size);
+            for (int i = 0; i < _size; i++) {
+                result.add((E)_heap[i]);
+            }
+            
+            return result.iterator();
+        }
+
+        @Override
+        public int getCapacity() {
+            return _heap.length;
+        }
+
+        @Override
+        public void reprioritize() {
+            _needsRebuild = true;
+        }
+        
+        @Override
+        public int size() {
+            return _size;
+        }
+
+        @Override
+        public boolean offer(E o) {
+            if (o == null) {
+                throw new NullPointerException();
+            } else if (_size >= _heap.length) {
+                return false;
+            } else {
+                _heap[_size] = o;
+                siftUp(_size);
+                _size += 1;
+                return true;
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E peek() {
+            if (_size == 0) {
+                return null;
+            } else {
+                rebuildIfNeeded();
+                return (E)_heap[0];
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        @Override
+        public E poll() {
+            if (_size == 0) {
+                return null;
+            }
+            
+            rebuildIfNeeded();
+            E result = (E)_heap[0];
+            _size -= 1;
+            _heap[0] = _heap[_size];
+            _heap[_size] = null;
+            if (_size > 0) {
+                siftDown(0);
+            }
+            
+            return result;
+        }
+
+        @Override
+        public void clear() {
+            for (int i = 0; i < _size; i++) {
+                _heap[i] = null;
+            }
+            
+            _size = 0;
+            _needsRebuild = false;
+        }
+        
+        private void rebuildIfNeeded() {
+            // Clear the flag before rebuilding, so that if priorities change while
+            // we're rebuilding, we'll rebuild again the next time around.
+            if (_needsRebuild) {
+                _needsRebuild = false;
+                for (int i = (_size / 2) - 1; i >= 0; i--) {
+                    siftDown(i);
+                }
+            }
+        }
+        
+        @SuppressWarnings("unchecked")
+        private int compare(int i, int j) {
+            return _comparator.compare((E)_heap[i], (E)_heap[j]);
+        }
+        
+        private void swap(int i, int j) {
+            Object temp = _heap[i];
+            _heap[i] = _heap[j];
+            _heap[j] = temp;
+        }
+        
+        private void siftUp(int index) {
+            while (index > 0) {
+                int parent = (index - 1) / 2;
+                if (compare(index, parent) >= 0) {
+                    break;
+                }
+                
+                swap(index, parent);
+                index = parent;
+            }
+        }
+        
+        private void siftDown(int index) {
+            while (true) {
+                int child = (index * 2) + 1;
+                if (child >= _size) {
+                    break;
+                }
+                
+                if ((child + 1 < _size) && (compare(child + 1, child) < 0)) {
+                    child += 1;
+                }
+                
+                if (compare(child, index) >= 0) {
+                    break;
+                }
+                
+                swap(index, child);
+                index = child;
+            }
+        }
+    }
+    
     // The _memoryQueue represents the head of the queue. It can also be the tail, if
     // nothing has spilled over onto the disk.
-    private IndexQueue<E> _memoryQueue;
+    private MemoryQueue<E> _memoryQueue;
     
     // Percentage of memory queue used/capacity that triggers a refill from disk.
     private float _refillMemoryRatio;
     
-    // Number of elements in the backing store file on disk.
-    private int _fileElements;
-
-    private ObjectOutputStream _fileOut;
-    private ObjectInputStream _fileIn;
+    private BaseQueueCodec<E> _codec;
+    private boolean _compressFile;
     
     // When moving elements from disk to memory, we don't know whether the memory queue
     // has space until the offer is rejected. So rather than trying to push back an element
     // into the file, just cache it in _fileInSaved.
     private E _fileInSaved;
-    private File _backingStore;
-
-    // FUTURE - KKr could have another memory-resident queue for the tail, so that writes
-    // to the file are buffered that way, and we get better performance if the queue is
-    // being used for parallel read/write access, so you frequently wind up crossing the
-    // 'spill' boundary from memory onto disk.
-    //
-    // Another issue with parallel read/write is that the backing store file could grow
-    // unbounded, if elements spill to disk and then the disk is never exhausted when
-    // refilling the memory queue, and you keep adding more elements at the same time.
+    
+    // The backing store has its own in-memory tail buffer, so elements that spill and then
+    // get read back quickly never hit the disk. And it uses fixed-size segment files that
+    // get recycled or deleted once they've been read, so disk usage doesn't grow without
+    // bound when we're reading and writing at the same time.
+    private SegmentedBackingStore<E> _backingStore;
     
     /**
      * Construct a disk-backed queue that keeps at most <maxSize> elements in memory.
@@ -180,19 +356,80 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
     }
     
     public DiskQueue(int maxInMemorySize, Comparator<? super E> comparator) {
+        this(maxInMemorySize, comparator, false);
+    }
+    
+    /**
+     * Construct a disk-backed queue that keeps at most <maxSize> elements in memory.
+     * 
+     * If <useHeap> is true then the in-memory elements are kept in a heap, which is
+     * much faster for big queues, but the caller must call reprioritize() whenever
+     * the <comparator> might return a different result for queued elements. Otherwise
+     * every peek/poll scans all in-memory elements, so the sort order can change
+     * at any time.
+     * 
+     * @param maxInMemorySize Maximum number of elements to keep in memory.
+     * @param comparator Comparator for ordering elements
+     * @param useHeap true to keep in-memory elements in a heap.
+     */
+    public DiskQueue(int maxInMemorySize, Comparator<? super E> comparator, boolean useHeap) {
         if (maxInMemorySize < 1) {
             throw new InvalidParameterException("DiskQueue max in-memory size must be at least one");
         }
 
-        _memoryQueue = new IndexQueue<E>(maxInMemorySize, comparator);
+        if (useHeap) {
+            _memoryQueue = new HeapQueue<E>(maxInMemorySize, comparator);
+        } else {
+            _memoryQueue = new IndexQueue<E>(maxInMemorySize, comparator);
+        }
+        
         _refillMemoryRatio = DEFAULT_REFILL_RATIO;
+        _codec = new SerializableQueueCodec<E>();
+        _compressFile = false;
+    }
+
+    /**
+     * Set the codec used to write elements to the backing store file. By default
+     * this is Java serialization, which is slow and bloated, so callers with a
+     * known element type should use something better (e.g. DatumQueueCodec).
+     * 
+     * @param codec codec for elements
+     */
+    public void setCodec(BaseQueueCodec<E> codec) {
+        if (_backingStore != null) {
+            throw new IllegalStateException("Can't change codec once elements have been written to disk");
+        }
+        
+        _codec = codec;
+    }
+    
+    public BaseQueueCodec<E> getCodec() {
+        return _codec;
+    }
+    
+    /**
+     * Set whether the backing store file is written as compressed blocks. This trades
+     * CPU for less disk space and I/O.
+     * 
+     * @param compressFile true to compress the backing store file.
+     */
+    public void setCompressFile(boolean compressFile) {
+        if (_backingStore != null) {
+            throw new IllegalStateException("Can't change compression once elements have been written to disk");
+        }
+        
+        _compressFile = compressFile;
+    }
+    
+    public boolean isCompressFile() {
+        return _compressFile;
     }
 
     
     /* (non-Javadoc)
      * @see java.lang.Object#finalize()
      * 
-     * Close down streams, and toss the temp file.
+     * Toss the backing store files.
      */
     @Override
     protected void finalize() throws Throwable {
@@ -203,42 +440,31 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
 
 
     /**
-     * Make sure the file streams are all closed down, the temp file is closed, and the
-     * temp file has been deleted.
+     * Make sure the backing store has been closed, and its files deleted.
      * 
-     * @return true if we had to close down the file.
+     * @return true if we had to close down the backing store.
      */
     private boolean closeFile() {
         if (_backingStore == null) {
             return false;
         }
 
-        IoUtils.safeClose(_fileIn);
-        _fileIn = null;
         _fileInSaved = null;
-
-        IoUtils.safeClose(_fileOut);
-        _fileOut = null;
-
-        _fileElements = 0;
-
-        _backingStore.delete();
+        _backingStore.close();
         _backingStore = null;
         return true;
     }
 
-    private void openFile() throws IOException {
-        
+    private void openFile() {
         if (_backingStore == null) {
-            _backingStore = File.createTempFile(DiskQueue.class.getSimpleName() + "-backingstore-", null);
-            _fileOut = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(_backingStore)));
-
-            // Flush output file, so there's something written when we open the input stream.
-            _fileOut.flush();
-
-            _fileIn = new ObjectInputStream(new FileInputStream(_backingStore));
+            _backingStore = new SegmentedBackingStore<E>(_codec, _compressFile, SegmentedBackingStore.DEFAULT_SEGMENT_SIZE,
+                            SegmentedBackingStore.DEFAULT_TAIL_BUFFER_SIZE, null);
         }
     }
+    
+    private int getFileElements() {
+        return _backingStore == null ? 0 : _backingStore.size();
+    }
 
     @Override
     public Iterator<E> iterator() {
@@ -249,7 +475,7 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
 
     @Override
     public int size() {
-        return _memoryQueue.size() + _fileElements + (_fileInSaved != null ? 1 : 0);
+        return _memoryQueue.size() + getFileElements() + (_fileInSaved != null ? 1 : 0);
     }
 
 
@@ -263,12 +489,7 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         if ((_backingStore != null) || !_memoryQueue.offer(element)) {
             try {
                 openFile();
-                _fileOut.writeObject(element);
-                _fileElements += 1;
-                
-                // Release memory ref to <element>, since we don't have any back-references from
-                // it to other serialized objects.
-                _fileOut.reset();
+                _backingStore.add(element);
             } catch (IOException e) {
                 LOGGER.error("Error writing to DiskQueue backing store", e);
                 return false;
@@ -298,6 +519,19 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         return _memoryQueue.poll();
     }
 
+    /**
+     * Let the queue know that the sort order of queued elements might have
+     * changed. This is safe to call from a thread other than the one that's
+     * using the queue, as it only flags that the in-memory elements need to be
+     * re-sorted before the next peek/poll.
+     * 
+     * Elements on disk don't need this, since they're sorted when they get
+     * loaded into memory.
+     */
+    public void reprioritize() {
+        _memoryQueue.reprioritize();
+    }
+    
     /* (non-Javadoc)
      * @see java.util.AbstractQueue#clear()
      * 
@@ -310,7 +544,6 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         closeFile();
     }
     
-    @SuppressWarnings("unchecked")
     private void loadMemoryQueue() {
         // use the memory queue as our buffer, so only load it up when it's below capacity.
         if ((float)_memoryQueue.size()/(float)_memoryQueue.getCapacity() >= _refillMemoryRatio) {
@@ -329,13 +562,8 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
         // Now see if we have anything on disk
         if (_backingStore != null) {
             try {
-                // Since we buffer writes, we need to make sure everything has been written before
-                // we start reading.
-                _fileOut.flush();
-
-                while (_fileElements > 0) {
-                    E nextFileElement = (E)_fileIn.readObject();
-                    _fileElements -= 1;
+                while (!_backingStore.isEmpty()) {
+                    E nextFileElement = _backingStore.remove();
 
                     if (!_memoryQueue.offer(nextFileElement)) {
                         _fileInSaved = nextFileElement;
@@ -345,15 +573,9 @@ public class DiskQueue<E extends Serializable> extends AbstractQueue<E> {
 
                 // Nothing left in the file, so close/delete it.
                 closeFile();
-
-                // FUTURE KKr - file queue is empty, so could reset length of file, read/write offsets
-                // to start from zero instead of closing file (but for current use case of fill once, drain
-                // once this works just fine)
             } catch (IOException e) {
                 LOGGER.error("Error reading from DiskQueue backing store", e);
                 return;
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException("Unexpected error - can't find class for object in backing store");
             }
         }
     }
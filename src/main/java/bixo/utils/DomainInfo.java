@@ -16,7 +16,6 @@
  */
 package bixo.utils;
 
-import java.net.InetAddress;
 import java.net.MalformedURLException;
 import java.net.URI;
 import java.net.URISyntaxException;
@@ -36,26 +35,48 @@ public class DomainInfo {
         return TESTING_DOMAIN_PREFIX + index + ".com";
     }
     
+    private static final BaseHostResolver DEFAULT_RESOLVER = new SimpleHostResolver();
+    
     private String _protocolAndDomain;
     private String _domain;
     private String _hostAddress;
 
     public DomainInfo(String protocolAndDomain) throws UnknownHostException, MalformedURLException, URISyntaxException {
+        this(protocolAndDomain, DEFAULT_RESOLVER);
+    }
+    
+    public DomainInfo(String protocolAndDomain, BaseHostResolver resolver) throws UnknownHostException, MalformedURLException, URISyntaxException {
         _protocolAndDomain = protocolAndDomain;
-        URL url = new URL(protocolAndDomain);
-
-        // Since URI class is stricter than URL when validating, let's use the URL result to try to create a URI
-        new URI(url.getProtocol(), null, url.getHost(), url.getPort(), url.getPath(), url.getQuery(), null);
-        
-        _domain = url.getHost();
+        _domain = extractDomain(protocolAndDomain);
         
         if (TESTING_DOMAIN_PATTERN.matcher(_domain).matches()) {
             _hostAddress = _domain;
         } else {
-            _hostAddress = InetAddress.getByName(_domain).getHostAddress();
+            _hostAddress = resolver.resolve(_domain);
         }
     }
 
+    /**
+     * Create domain info for a domain that's already been resolved to <hostAddress>
+     * 
+     * @param protocolAndDomain protocol+domain (e.g. "http://www.domain.com")
+     * @param hostAddress IP address for the domain
+     */
+    public DomainInfo(String protocolAndDomain, String hostAddress) throws MalformedURLException, URISyntaxException {
+        _protocolAndDomain = protocolAndDomain;
+        _domain = extractDomain(protocolAndDomain);
+        _hostAddress = hostAddress;
+    }
+    
+    private static String extractDomain(String protocolAndDomain) throws MalformedURLException, URISyntaxException {
+        URL url = new URL(protocolAndDomain);
+
+        // Since URI class is stricter than URL when validating, let's use the URL result to try to create a URI
+        new URI(url.getProtocol(), null, url.getHost(), url.getPort(), url.getPath(), url.getQuery(), null);
+        
+        return url.getHost();
+    }
+    
     public String getProtocolAndDomain() {
         return _protocolAndDomain;
     }
@@ -18,13 +18,6 @@ package bixo.utils;
 
 import java.net.MalformedURLException;
 import java.net.URL;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
-import java.util.regex.Pattern;
-
-// TODO We're currently treating regional TLDs such as sicilia.it as if they
-// were paid-level domains.
 
 /**
  * Utilities to extract the PLD (paid-level domain, as per the IRLbot paper)
@@ -95,84 +88,176 @@ public class DomainNames {
         "aero arpa asia biz cat com coop edu gov info int jobs mil mobi museum name net " +
         "org pro tel";
 
-    private static final Set<String> ccTLDs = new HashSet<String>(Arrays.asList(CC_TLDS.split(" ")));
-    private static final Set<String> ccAlwaysTLDs = new HashSet<String>(Arrays.asList(CC_ALWAYS_TLDS.split(" ")));
-    private static final Set<String> ccNeverTLDs = new HashSet<String>(Arrays.asList(CC_NEVER_TLDS.split(" ")));
-    private static final Set<String> gTLDs = new HashSet<String>(Arrays.asList(G_TLDS.split(" ")));
-
-    private static final Pattern IPV4_ADDRESS_PATTERN = Pattern.compile("(?:\\d{1,3}\\.){3}\\d{1,3}");
-
-    // TODO CSc Rename this getDomainPld?
+    // Flags for two-letter top-level domains, indexed by twoLetterIndex().
+    private static final int CC_TLD_FLAG = 0x01;
+    private static final int CC_ALWAYS_TLD_FLAG = 0x02;
+    private static final int CC_NEVER_TLD_FLAG = 0x04;
+    
+    private static final byte[] TWO_LETTER_TLD_FLAGS = makeTwoLetterFlags();
+    
+    private static final String[] gTLDs = G_TLDS.split(" ");
+    
+    private static final int NO_TWO_LETTER_INDEX = -1;
+    
+    private static byte[] makeTwoLetterFlags() {
+        byte[] result = new byte[26 * 26];
+        setFlags(result, CC_TLDS, CC_TLD_FLAG);
+        setFlags(result, CC_ALWAYS_TLDS, CC_ALWAYS_TLD_FLAG);
+        setFlags(result, CC_NEVER_TLDS, CC_NEVER_TLD_FLAG);
+        return result;
+    }
+    
+    private static void setFlags(byte[] flags, String tlds, int flag) {
+        for (String tld : tlds.split(" ")) {
+            flags[twoLetterIndex(tld, 0, tld.length())] |= flag;
+        }
+    }
+    
     /**
-     * Extract the PLD (paid-level domain) from the hostname. If the format isn't recognized,
-     * the original hostname is returned.
-     * 
-     * @param hostname - hostname from URL, e.g. www.domain.com.it
-     * @return - PLD, e.g. domain.com.it
+     * @return index into TWO_LETTER_TLD_FLAGS for the label in hostname from start
+     *         to end, or NO_TWO_LETTER_INDEX if it isn't two (ASCII) letters.
      */
-    public static String getPLD(String hostname) {
-        // First, check for weird [HHHH:HH::H] IPv6 format.
-        if (hostname.startsWith("[") && hostname.endsWith("]")) {
-            return hostname;
+    private static int twoLetterIndex(String hostname, int start, int end) {
+        if (end - start != 2) {
+            return NO_TWO_LETTER_INDEX;
         }
-
-        String[] subNames = hostname.split("\\.");
-        int numPieces = subNames.length;
-        if (numPieces <= 2) {
-            return hostname;
+        
+        int c1 = (hostname.charAt(start) | 0x20) - 'a';
+        int c2 = (hostname.charAt(start + 1) | 0x20) - 'a';
+        if ((c1 < 0) || (c1 >= 26) || (c2 < 0) || (c2 >= 26)) {
+            return NO_TWO_LETTER_INDEX;
         }
-
-        // Check for ddd.ddd.ddd.ddd IPv4 format
-        if ((numPieces == 4) && (IPV4_ADDRESS_PATTERN.matcher(hostname).matches())) {
-            return hostname;
+        
+        return (c1 * 26) + c2;
+    }
+    
+    private static boolean hasTwoLetterFlag(String hostname, int start, int end, int flag) {
+        int index = twoLetterIndex(hostname, start, end);
+        return (index != NO_TWO_LETTER_INDEX) && ((TWO_LETTER_TLD_FLAGS[index] & flag) != 0);
+    }
+    
+    private static boolean isGlobalTLD(String hostname, int start, int end) {
+        int length = end - start;
+        for (String gTLD : gTLDs) {
+            if ((gTLD.length() == length) && hostname.regionMatches(true, start, gTLD, 0, length)) {
+                return true;
+            }
         }
-
-        int firstHostPiece = 0;
-        if (ccTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+        
+        return false;
+    }
+    
+    /**
+     * @return true if hostname is four groups of 1-3 digits, separated by '.'
+     */
+    private static boolean isIPv4Format(String hostname) {
+        int numDigits = 0;
+        int numDots = 0;
+        for (int i = 0; i < hostname.length(); i++) {
+            char c = hostname.charAt(i);
+            if ((c >= '0') && (c <= '9')) {
+                if (++numDigits > 3) {
+                    return false;
+                }
+            } else if ((c == '.') && (numDigits > 0) && (++numDots <= 3)) {
+                numDigits = 0;
+            } else {
+                return false;
+            }
+        }
+        
+        return (numDots == 3) && (numDigits > 0);
+    }
+    
+    /**
+     * Use what we know about country code and global TLDs to find the start
+     * of the PLD in a hostname with three or more pieces. The pieces are
+     * hostname[secondStart, lastStart - 1) and hostname[lastStart, length).
+     * 
+     * @return offset of the PLD in the hostname, or NO_MATCH if the format isn't recognized.
+     */
+    private static int getTLDRulesStart(String hostname, int secondStart, int lastStart) {
+        int end = hostname.length();
+        int secondEnd = lastStart - 1;
+        
+        // Only used if we decide the PLD has three pieces.
+        int thirdStart = hostname.lastIndexOf('.', secondStart - 2) + 1;
+        
+        if (hasTwoLetterFlag(hostname, lastStart, end, CC_TLD_FLAG)) {
             // We have a country code at the end. See if the preceding piece is either
             // a two-letter name (country code or funky short gTLD), or one of the
             // "well-known" gTLDs.
-            if (ccNeverTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+            if (hasTwoLetterFlag(hostname, lastStart, end, CC_NEVER_TLD_FLAG)) {
                 // Must be xxx.future_TLD_classification.cr format
-                firstHostPiece = numPieces - 3;
-            } else if (ccAlwaysTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+                return thirdStart;
+            } else if (hasTwoLetterFlag(hostname, lastStart, end, CC_ALWAYS_TLD_FLAG)) {
                 // Must be xxx.eu format
-                firstHostPiece = numPieces - 2;
-            } else if (subNames[numPieces - 2].length() <= 2) {
+                return secondStart;
+            } else if (secondEnd - secondStart <= 2) {
                 // Must be xxx.co.jp format
-                firstHostPiece = numPieces - 3;
-            } else if (gTLDs.contains(subNames[numPieces - 2].toLowerCase())) {
+                return thirdStart;
+            } else if (isGlobalTLD(hostname, secondStart, secondEnd)) {
                 // Must be xxx.com.mx format
-                firstHostPiece = numPieces - 3;
+                return thirdStart;
             } else {
                 // Must be xxx.it format
-                firstHostPiece = numPieces - 2;
+                return secondStart;
             }
-        } else if (gTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
-            if (ccTLDs.contains(subNames[numPieces - 2].toLowerCase())) {
+        } else if (isGlobalTLD(hostname, lastStart, end)) {
+            if (hasTwoLetterFlag(hostname, secondStart, secondEnd, CC_TLD_FLAG)) {
                 // Must be xxx.de.com format
-                firstHostPiece = numPieces - 3;
+                return thirdStart;
             } else {
                 // Must be xxx.com format
-                firstHostPiece = numPieces - 2;
+                return secondStart;
             }
         } else {
             // Unknown format.
-            // TODO KKr - log this?
+            return PublicSuffixList.NO_MATCH;
+        }
+    }
+    
+    // TODO CSc Rename this getDomainPld?
+    /**
+     * Extract the PLD (paid-level domain) from the hostname. If the format isn't recognized,
+     * the original hostname is returned.
+     * 
+     * We use both what we know about country code and global TLDs (which handles
+     * things like xxx.com.it and xxx.de.com), and the public suffix list (which
+     * handles regional domains like xxx.sicilia.it, and new TLDs). If both of
+     * them recognize the hostname, we use whichever gives the longer PLD.
+     * 
+     * @param hostname - hostname from URL, e.g. www.domain.com.it
+     * @return - PLD, e.g. domain.com.it
+     */
+    public static String getPLD(String hostname) {
+        // First, check for weird [HHHH:HH::H] IPv6 format.
+        if (hostname.startsWith("[") && hostname.endsWith("]")) {
+            return hostname;
         }
 
-        if (firstHostPiece == 0) {
+        int lastDot = hostname.lastIndexOf('.');
+        int secondDot = (lastDot > 0) ? hostname.lastIndexOf('.', lastDot - 1) : -1;
+        if (secondDot == -1) {
+            // Two or fewer pieces
             return hostname;
-        } else {
-            // Build the result from the firstHostPiece to numPices pieces.
-            StringBuilder result = new StringBuilder();
-            for (int i = firstHostPiece; i < numPieces; i++) {
-                result.append(subNames[i]);
-                result.append('.');
-            }
+        }
+
+        // Check for ddd.ddd.ddd.ddd IPv4 format
+        if (isIPv4Format(hostname)) {
+            return hostname;
+        }
 
-            // Trim off final '.'
-            return result.deleteCharAt(result.length() - 1).toString();
+        int start = getTLDRulesStart(hostname, secondDot + 1, lastDot + 1);
+        int suffixListStart = PublicSuffixList.getDefault().getRegisteredDomainStart(hostname);
+        if ((start == PublicSuffixList.NO_MATCH) || ((suffixListStart != PublicSuffixList.NO_MATCH) && (suffixListStart < start))) {
+            start = suffixListStart;
+        }
+        
+        if (start <= 0) {
+            return hostname;
+        } else {
+            return hostname.substring(start);
         }
     } // getPLD
 
@@ -19,6 +19,8 @@ package bixo.utils;
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.Inflater;
 import java.util.zip.InflaterInputStream;
@@ -66,34 +68,58 @@ public class EncodingUtils {
     public static ExpandedResult processGzipEncoded(byte[] compressed, int sizeLimit) throws IOException {
 
         ByteArrayOutputStream outStream =  new ByteArrayOutputStream(EXPECTED_GZIP_COMPRESSION_RATIO * compressed.length);
-        GZIPInputStream inStream = new GZIPInputStream (new ByteArrayInputStream(compressed));
+        boolean isTruncated = processGzipEncoded(new ByteArrayInputStream(compressed), outStream, sizeLimit);
+        IoUtils.safeClose(outStream);
+        return new ExpandedResult(outStream.toByteArray(), isTruncated);
+    }
+
+    /**
+     * Expand gzip-compressed data from <compressed> into <outStream>, without holding
+     * either the compressed or the expanded data in memory.
+     * 
+     * @param compressed stream of gzipped data
+     * @param outStream where to write the expanded data
+     * @param sizeLimit max number of expanded bytes to write
+     * @return true if the expanded data was truncated
+     * @throws IOException if the data can't be read, or written to outStream
+     */
+    public static boolean processGzipEncoded(InputStream compressed, OutputStream outStream, int sizeLimit) throws IOException {
+        return processGzipEncoded(compressed, outStream, sizeLimit, new byte[BUF_SIZE]);
+    }
+
+    /**
+     * Same as processGzipEncoded(compressed, outStream, sizeLimit), but using the
+     * caller's buffer (e.g. from a BufferPool) for copying data.
+     */
+    public static boolean processGzipEncoded(InputStream compressed, OutputStream outStream, int sizeLimit, byte[] buf) throws IOException {
+        GZIPInputStream inStream = new GZIPInputStream(compressed);
 
         boolean isTruncated = false;
-        byte[] buf = new byte[BUF_SIZE];
         int written = 0;
         while (true) {
+            int size;
             try {
-                int size = inStream.read(buf);
+                size = inStream.read(buf);
                 if (size == -1) {
                     break;
                 }
-
-                if ((written + size) > sizeLimit) {
-                    isTruncated = true;
-                    outStream.write(buf, 0, sizeLimit - written);
-                    break;
-                }
-
-                outStream.write(buf, 0, size);
-                written+= size;
             } catch (Exception e) {
                 LOGGER.trace("Exception unzipping content", e);
                 break;
             }
+
+            if ((written + size) > sizeLimit) {
+                isTruncated = true;
+                outStream.write(buf, 0, sizeLimit - written);
+                break;
+            }
+
+            outStream.write(buf, 0, size);
+            written+= size;
         }
 
-        IoUtils.safeClose(outStream);
-        return new ExpandedResult(outStream.toByteArray(), isTruncated);
+        IoUtils.safeClose(inStream);
+        return isTruncated;
     }
 
     // TODO KKr The following routines are designed to support the deflate
@@ -49,6 +49,10 @@ public class GroupingKey {
     
     private static final String UNSET_DURATION = "unset";
     
+    // Separates the protocol+domain from the IP address in a resolved domain key.
+    // This can't appear in a valid protocol+domain.
+    private static final char RESOLVED_ADDRESS_SEPARATOR = '|';
+    
     public static boolean isSpecialKey(String key) {
         return key.startsWith(KEY_PREFIX);
     }
@@ -61,6 +65,41 @@ public class GroupingKey {
         }
     }
     
+    /**
+     * Make a key for grouping URLs by protocol+domain, that also records the
+     * IP address for the domain, so it doesn't have to be resolved again.
+     * 
+     * @param protocolAndDomain protocol+domain (e.g. "http://www.domain.com")
+     * @param hostAddress IP address, or null if the host couldn't be resolved.
+     * @return resolved domain key
+     */
+    public static String makeResolvedDomainKey(String protocolAndDomain, String hostAddress) {
+        return protocolAndDomain + RESOLVED_ADDRESS_SEPARATOR + (hostAddress == null ? "" : hostAddress);
+    }
+    
+    public static boolean isResolvedDomainKey(String key) {
+        return key.indexOf(RESOLVED_ADDRESS_SEPARATOR) != -1;
+    }
+    
+    public static String getProtocolAndDomainFromKey(String key) {
+        int offset = key.indexOf(RESOLVED_ADDRESS_SEPARATOR);
+        return offset == -1 ? key : key.substring(0, offset);
+    }
+    
+    /**
+     * @param key resolved domain key
+     * @return IP address from the key, or null if the host couldn't be resolved.
+     */
+    public static String getHostAddressFromKey(String key) {
+        int offset = key.indexOf(RESOLVED_ADDRESS_SEPARATOR);
+        if (offset == -1) {
+            throw new RuntimeException("Not a resolved domain key: " + key);
+        }
+        
+        String result = key.substring(offset + 1);
+        return result.length() == 0 ? null : result;
+    }
+    
     public static String getDomainFromKey(String key) {
         Matcher m = GROUPING_KEY_PATTERN.matcher(key);
         if (!m.matches()) {
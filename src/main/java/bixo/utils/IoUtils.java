@@ -17,11 +17,14 @@
 package bixo.utils;
 
 import java.io.BufferedReader;
+import java.io.DataInput;
+import java.io.DataOutput;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 
+import org.apache.hadoop.io.WritableUtils;
 import org.apache.log4j.Logger;
 
 public class IoUtils {
@@ -63,5 +66,22 @@ public class IoUtils {
 		return br.readLine();
 	}
 
-
+    /**
+     * Write <value> in the same format as Text.writeString() (a vint length followed
+     * by the UTF-8 bytes), without the overhead of Text's CharsetEncoder.
+     */
+    public static void writeString(DataOutput out, String value) throws IOException {
+        byte[] bytes = value.getBytes("UTF-8");
+        WritableUtils.writeVInt(out, bytes.length);
+        out.write(bytes);
+    }
+    
+    /**
+     * Read a string written by writeString() or Text.writeString().
+     */
+    public static String readString(DataInput in) throws IOException {
+        byte[] bytes = new byte[WritableUtils.readVInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, "UTF-8");
+    }
 }
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.security.InvalidParameterException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded, lock-free queue for many producer threads and a single consumer thread.
+ *
+ * Each slot has a sequence number, which tells a producer whether the slot is free
+ * for the current lap around the ring, and tells the consumer whether the producer
+ * that claimed the slot has finished writing to it. Producers claim slots with a
+ * CAS on the tail, so they never block each other, and the consumer doesn't need
+ * any atomic operations at all.
+ *
+ * Only one thread at a time may call poll().
+ *
+ * @param <E> element stored in the queue
+ */
+public class MpscRingBuffer<E> {
+
+    private final int _capacity;
+    private final int _mask;
+    private final AtomicReferenceArray<E> _elements;
+    private final AtomicLongArray _sequences;
+    private final AtomicLong _tail;
+
+    // Only written by the consumer, but read by size().
+    private volatile long _head;
+
+    /**
+     * Create a ring buffer that holds at least <capacity> elements. The actual
+     * capacity is rounded up to the next power of two.
+     *
+     * @param capacity min number of elements
+     */
+    public MpscRingBuffer(int capacity) {
+        if ((capacity <= 0) || (capacity > (1 << 30))) {
+            throw new InvalidParameterException("Capacity must be between 1 and 2^30: " + capacity);
+        }
+
+        _capacity = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        _mask = _capacity - 1;
+        _elements = new AtomicReferenceArray<E>(_capacity);
+        _sequences = new AtomicLongArray(_capacity);
+        for (int i = 0; i < _capacity; i++) {
+            _sequences.set(i, i);
+        }
+
+        _tail = new AtomicLong(0);
+        _head = 0;
+    }
+
+    public int getCapacity() {
+        return _capacity;
+    }
+
+    /**
+     * Add <element> to the queue, if there's room. This is safe to call from
+     * any number of threads.
+     *
+     * @param element element to add (can't be null)
+     * @return true if it was added, false if the queue is full.
+     */
+    public boolean offer(E element) {
+        if (element == null) {
+            throw new NullPointerException("Can't add null elements");
+        }
+
+        long tail = _tail.get();
+        while (true) {
+            int index = (int)tail & _mask;
+            long delta = _sequences.get(index) - tail;
+
+            if (delta == 0) {
+                // Slot is free for this lap, so try to claim it.
+                if (_tail.compareAndSet(tail, tail + 1)) {
+                    _elements.lazySet(index, element);
+
+                    // Publish the element to the consumer.
+                    _sequences.set(index, tail + 1);
+                    return true;
+                }
+
+                tail = _tail.get();
+            } else if (delta < 0) {
+                // Slot still has the element from the previous lap, so we're full.
+                return false;
+            } else {
+                // Another producer got this slot, try again.
+                tail = _tail.get();
+            }
+        }
+    }
+
+    /**
+     * Remove the oldest element from the queue. Only one thread at a time can
+     * call this method.
+     *
+     * Note that this can return null even though size() is > 0, if a producer
+     * has claimed the next slot but hasn't finished filling it in yet.
+     *
+     * @return oldest element, or null if there isn't one ready.
+     */
+    public E poll() {
+        long head = _head;
+        int index = (int)head & _mask;
+        if (_sequences.get(index) != head + 1) {
+            return null;
+        }
+
+        E result = _elements.get(index);
+        _elements.lazySet(index, null);
+
+        // Free up the slot for the producers' next lap.
+        _sequences.lazySet(index, head + _capacity);
+        _head = head + 1;
+        return result;
+    }
+
+    /**
+     * Return the number of elements in the queue. Since producers and the
+     * consumer can be active, this is only an estimate.
+     *
+     * @return number of elements.
+     */
+    public int size() {
+        long head = _head;
+        long size = _tail.get() - head;
+        return (int)Math.max(0, Math.min(size, _capacity));
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+}
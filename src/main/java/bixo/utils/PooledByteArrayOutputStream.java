@@ -0,0 +1,120 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Replacement for ByteArrayOutputStream that gets its backing array from a
+ * BufferPool (and returns it when release() is called), and which lets callers
+ * read the data via getInputStream() without making a copy.
+ *
+ * If no pool is provided, this acts like a regular ByteArrayOutputStream.
+ *
+ */
+public class PooledByteArrayOutputStream extends OutputStream {
+
+    private BufferPool _pool;
+    private byte[] _buffer;
+    private int _count;
+
+    public PooledByteArrayOutputStream(BufferPool pool, int initialSize) {
+        _pool = pool;
+        _buffer = (pool == null ? new byte[initialSize] : pool.acquire(initialSize));
+        _count = 0;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(_count + 1);
+        _buffer[_count++] = (byte)b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(_count + len);
+        System.arraycopy(b, off, _buffer, _count, len);
+        _count += len;
+    }
+
+    private void ensureCapacity(int size) {
+        if (_buffer == null) {
+            throw new IllegalStateException("Buffer has been released");
+        }
+
+        if (size <= _buffer.length) {
+            return;
+        }
+
+        int newSize = Math.max(size, _buffer.length * 2);
+        byte[] newBuffer = (_pool == null ? new byte[newSize] : _pool.acquire(newSize));
+        System.arraycopy(_buffer, 0, newBuffer, 0, _count);
+
+        // We don't give the old buffer back to the pool, as otherwise the pool fills up with
+        // buffers that are too small for the typical request.
+        _buffer = newBuffer;
+    }
+
+    public int size() {
+        return _count;
+    }
+
+    public void reset() {
+        _count = 0;
+    }
+
+    /**
+     * Return a copy of the data. This is the only allocation that's proportional to
+     * the amount of data, if the stream is pooled.
+     *
+     * @return copy of data written so far.
+     */
+    public byte[] toByteArray() {
+        byte[] result = new byte[_count];
+        System.arraycopy(_buffer, 0, result, 0, _count);
+        return result;
+    }
+
+    /**
+     * Return a stream over the data, which is only valid until the next write,
+     * reset, or release.
+     *
+     * @return stream over the current data
+     */
+    public InputStream getInputStream() {
+        return new ByteArrayInputStream(_buffer, 0, _count);
+    }
+
+    public void writeTo(OutputStream out) throws IOException {
+        out.write(_buffer, 0, _count);
+    }
+
+    /**
+     * Give the backing array back to the pool. The stream can't be used after this.
+     */
+    public void release() {
+        if ((_pool != null) && (_buffer != null)) {
+            _pool.release(_buffer);
+        }
+
+        _buffer = null;
+        _count = 0;
+    }
+}
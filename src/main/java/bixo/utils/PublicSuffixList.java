@@ -0,0 +1,292 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.Arrays;
+
+/**
+ * Public suffix list (see http://publicsuffix.org), compiled into a trie of
+ * reversed host names, so that finding the public suffix of a host name takes
+ * one walk from the end of the name (no splitting, lowercasing or regular
+ * expressions), and the only allocation is for the result.
+ * 
+ * Rules are in the effective_tld_names.dat format: one rule per line, "//" for
+ * comments, "*.xx" for a wildcard rule (every label under xx is a public suffix),
+ * and "!yy.xx" for an exception to a wildcard rule (yy.xx is a registered
+ * domain, even though *.xx is a rule).
+ *
+ */
+public class PublicSuffixList {
+
+    public static final String DEFAULT_RESOURCE_NAME = "/effective_tld_names.dat";
+    
+    public static final int NO_MATCH = -1;
+    
+    // Use binary search for nodes with more children than this.
+    private static final int MAX_LINEAR_CHILDREN = 8;
+    
+    private static final char[] NO_CHARS = new char[0];
+    private static final TrieNode[] NO_NODES = new TrieNode[0];
+    
+    private static class TrieNode {
+        private char[] _chars = NO_CHARS;
+        private TrieNode[] _children = NO_NODES;
+        
+        private boolean _rule;          // xx.yy is a public suffix
+        private boolean _wildcard;      // *.xx.yy is a public suffix
+        private boolean _exception;     // xx.yy is not a public suffix
+        
+        public TrieNode getChild(char c) {
+            char[] chars = _chars;
+            int numChildren = chars.length;
+            
+            if (numChildren <= MAX_LINEAR_CHILDREN) {
+                for (int i = 0; i < numChildren; i++) {
+                    if (chars[i] == c) {
+                        return _children[i];
+                    }
+                }
+                
+                return null;
+            } else {
+                int index = Arrays.binarySearch(chars, c);
+                return index < 0 ? null : _children[index];
+            }
+        }
+        
+        public TrieNode addChild(char c) {
+            int index = Arrays.binarySearch(_chars, c);
+            if (index >= 0) {
+                return _children[index];
+            }
+            
+            // Keep children sorted, so that we can use a binary search.
+            int insertAt = -(index + 1);
+            int numChildren = _chars.length;
+            char[] newChars = new char[numChildren + 1];
+            TrieNode[] newChildren = new TrieNode[numChildren + 1];
+            System.arraycopy(_chars, 0, newChars, 0, insertAt);
+            System.arraycopy(_children, 0, newChildren, 0, insertAt);
+            System.arraycopy(_chars, insertAt, newChars, insertAt + 1, numChildren - insertAt);
+            System.arraycopy(_children, insertAt, newChildren, insertAt + 1, numChildren - insertAt);
+            
+            TrieNode result = new TrieNode();
+            newChars[insertAt] = c;
+            newChildren[insertAt] = result;
+            _chars = newChars;
+            _children = newChildren;
+            return result;
+        }
+    }
+    
+    private static class DefaultListHolder {
+        private static final PublicSuffixList DEFAULT_LIST = loadDefaultList();
+        
+        private static PublicSuffixList loadDefaultList() {
+            InputStream is = PublicSuffixList.class.getResourceAsStream(DEFAULT_RESOURCE_NAME);
+            if (is == null) {
+                throw new RuntimeException("Can't find public suffix list: " + DEFAULT_RESOURCE_NAME);
+            }
+            
+            try {
+                return new PublicSuffixList(is);
+            } catch (IOException e) {
+                throw new RuntimeException("Can't load public suffix list: " + DEFAULT_RESOURCE_NAME, e);
+            } finally {
+                try {
+                    is.close();
+                } catch (IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+    
+    private TrieNode _root;
+    private int _numRules;
+    
+    /**
+     * Return the list loaded from effective_tld_names.dat, which is only loaded
+     * (and compiled) the first time it's needed.
+     * 
+     * @return default public suffix list
+     */
+    public static PublicSuffixList getDefault() {
+        return DefaultListHolder.DEFAULT_LIST;
+    }
+    
+    public PublicSuffixList(InputStream is) throws IOException {
+        _root = new TrieNode();
+        _numRules = 0;
+        
+        BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        String line;
+        while ((line = reader.readLine()) != null) {
+            // Rule is everything up to the first whitespace.
+            line = line.trim();
+            int end = 0;
+            while ((end < line.length()) && !Character.isWhitespace(line.charAt(end))) {
+                end += 1;
+            }
+            
+            String rule = line.substring(0, end);
+            if ((rule.length() > 0) && !rule.startsWith("//")) {
+                addRule(rule);
+            }
+        }
+    }
+    
+    private void addRule(String rule) {
+        boolean exception = false;
+        boolean wildcard = false;
+        
+        if (rule.startsWith("!")) {
+            exception = true;
+            rule = rule.substring(1);
+        } else if (rule.startsWith("*.")) {
+            wildcard = true;
+            rule = rule.substring(2);
+        }
+        
+        rule = rule.toLowerCase();
+        TrieNode node = _root;
+        for (int i = rule.length() - 1; i >= 0; i--) {
+            node = node.addChild(rule.charAt(i));
+        }
+        
+        if (exception) {
+            node._exception = true;
+        } else if (wildcard) {
+            node._wildcard = true;
+        } else {
+            node._rule = true;
+        }
+        
+        _numRules += 1;
+    }
+    
+    public int getNumRules() {
+        return _numRules;
+    }
+    
+    /**
+     * Find the public suffix of <hostname>, using the longest matching rule.
+     * 
+     * @param hostname host name, e.g. www.domain.co.uk
+     * @return offset of the public suffix in hostname (e.g. 14, for "co.uk"),
+     *         or NO_MATCH if none of the rules match.
+     */
+    public int getPublicSuffixStart(String hostname) {
+        TrieNode node = _root;
+        int result = NO_MATCH;
+        boolean wildcard = false;
+        
+        // Start of the last label we matched, or length if we haven't matched one yet.
+        int labelStart = hostname.length();
+        
+        for (int i = hostname.length() - 1; i >= 0; i--) {
+            char c = hostname.charAt(i);
+            if ((c >= 'A') && (c <= 'Z')) {
+                c = (char)(c + ('a' - 'A'));
+            } else if (c >= 0x80) {
+                c = Character.toLowerCase(c);
+            }
+            
+            node = node.getChild(c);
+            if (node == null) {
+                break;
+            }
+            
+            if ((i == 0) || (hostname.charAt(i - 1) == '.')) {
+                // We've matched hostname.substring(i)
+                if (node._exception) {
+                    // The suffix is what's left after removing this label.
+                    return labelStart;
+                } else if (node._rule || wildcard) {
+                    result = i;
+                }
+                
+                wildcard = node._wildcard;
+                labelStart = i;
+            }
+        }
+        
+        // If the last label we matched had a wildcard rule, then the label before
+        // it is also part of the suffix.
+        if (wildcard && (labelStart >= 2)) {
+            result = hostname.lastIndexOf('.', labelStart - 2) + 1;
+        }
+        
+        return result;
+    }
+    
+    /**
+     * Find the registered domain of <hostname>, which is the public suffix plus
+     * the label before it.
+     * 
+     * @param hostname host name, e.g. www.domain.co.uk
+     * @return offset of the registered domain in hostname (e.g. 4, for "domain.co.uk"),
+     *         or NO_MATCH if none of the rules match, or hostname is a public suffix.
+     */
+    public int getRegisteredDomainStart(String hostname) {
+        int suffixStart = getPublicSuffixStart(hostname);
+        if (suffixStart < 2) {
+            return NO_MATCH;
+        }
+        
+        return hostname.lastIndexOf('.', suffixStart - 2) + 1;
+    }
+    
+    /**
+     * @param hostname host name, e.g. www.domain.co.uk
+     * @return registered domain (e.g. domain.co.uk), or null if none of the rules match,
+     *         or hostname is a public suffix.
+     */
+    public String getRegisteredDomain(String hostname) {
+        int start = getRegisteredDomainStart(hostname);
+        if (start == NO_MATCH) {
+            return null;
+        } else if (start == 0) {
+            return hostname;
+        } else {
+            return hostname.substring(start);
+        }
+    }
+    
+    /**
+     * @param hostname host name, e.g. www.domain.co.uk
+     * @return public suffix (e.g. co.uk), or null if none of the rules match.
+     */
+    public String getPublicSuffix(String hostname) {
+        int start = getPublicSuffixStart(hostname);
+        if (start == NO_MATCH) {
+            return null;
+        } else if (start == 0) {
+            return hostname;
+        } else {
+            return hostname.substring(start);
+        }
+    }
+    
+    public boolean isPublicSuffix(String hostname) {
+        return getPublicSuffixStart(hostname) == 0;
+    }
+}
@@ -0,0 +1,518 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.InvalidParameterException;
+import java.util.LinkedList;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import org.apache.log4j.Logger;
+
+/**
+ * FIFO store of encoded elements, used by DiskQueue to hold the elements that don't
+ * fit in memory.
+ *
+ * New elements are encoded into an in-memory tail buffer. When the tail buffer
+ * fills up, its contents are appended as one block (optionally compressed) to the
+ * current segment, which is a fixed-size memory-mapped temp file. When a segment is
+ * full, a new one is started.
+ *
+ * Elements are read from the oldest block, directly out of the mapped segment. Once
+ * all of the blocks in a segment have been read, the segment is recycled (we keep
+ * one spare) or deleted, so disk usage stays bounded even if elements are being
+ * added while others are being removed. If the reader catches up with the writer,
+ * elements come straight from the tail buffer, and never touch the disk.
+ *
+ * @param <E> type of element being stored
+ */
+public class SegmentedBackingStore<E> {
+    private static final Logger LOGGER = Logger.getLogger(SegmentedBackingStore.class);
+
+    public static final int DEFAULT_SEGMENT_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_TAIL_BUFFER_SIZE = 64 * 1024;
+
+    // Each block has a flag byte, the uncompressed length, and the stored length.
+    private static final int BLOCK_HEADER_SIZE = 1 + 4 + 4;
+
+    private static final byte UNCOMPRESSED_BLOCK = 0;
+    private static final byte COMPRESSED_BLOCK = 1;
+
+    private static class Segment {
+        private File _file;
+        private RandomAccessFile _raf;
+        private MappedByteBuffer _buffer;
+        private int _writePos;
+        private int _readPos;
+
+        public Segment(File dir, int size) throws IOException {
+            _file = File.createTempFile(DiskQueue.class.getSimpleName() + "-segment-", null, dir);
+            _raf = new RandomAccessFile(_file, "rw");
+            _buffer = _raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            _writePos = 0;
+            _readPos = 0;
+        }
+
+        public int getCapacity() {
+            return _buffer.capacity();
+        }
+
+        public int getFree() {
+            return _buffer.capacity() - _writePos;
+        }
+
+        public boolean isConsumed() {
+            return _readPos == _writePos;
+        }
+
+        public void recycle() {
+            _writePos = 0;
+            _readPos = 0;
+        }
+
+        public void delete() {
+            // We can't unmap the buffer, but on most platforms the file can be deleted
+            // while it's mapped, and the mapping goes away once the buffer is GC'd.
+            _buffer = null;
+            try {
+                _raf.close();
+            } catch (IOException e) {
+                // Ignore, since we're tossing the file anyway
+            }
+            
+            if (!_file.delete()) {
+                _file.deleteOnExit();
+            }
+        }
+    }
+
+    /**
+     * Stream for reading directly from a ByteBuffer (e.g. a slice of a mapped segment).
+     */
+    private static class ByteBufferInputStream extends InputStream {
+        private ByteBuffer _buffer;
+
+        public ByteBufferInputStream(ByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!_buffer.hasRemaining()) {
+                return -1;
+            }
+
+            return _buffer.get() & 0x00FF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            } else if (!_buffer.hasRemaining()) {
+                return -1;
+            }
+
+            int numToRead = Math.min(len, _buffer.remaining());
+            _buffer.get(b, off, numToRead);
+            return numToRead;
+        }
+
+        @Override
+        public int available() throws IOException {
+            return _buffer.remaining();
+        }
+    }
+
+    /**
+     * Stream that appends to the tail buffer.
+     */
+    private class TailOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) throws IOException {
+            ensureTailCapacity(1);
+            _tail[_tailCount++] = (byte)b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            ensureTailCapacity(len);
+            System.arraycopy(b, off, _tail, _tailCount, len);
+            _tailCount += len;
+        }
+    }
+
+    private BaseQueueCodec<E> _codec;
+    private boolean _compress;
+    private int _segmentSize;
+    private int _tailBufferSize;
+    private File _dir;
+
+    private LinkedList<Segment> _segments;
+    private Segment _spareSegment;
+    private int _numElements;
+
+    // Tail buffer - elements that have been added but not yet written to a segment.
+    private byte[] _tail;
+    private int _tailCount;
+    private int _tailReadPos;
+    private DataOutputStream _tailOut;
+
+    // Block that we're currently reading elements from.
+    private ByteBuffer _readBlock;
+    private DataInputStream _readIn;
+
+    private Deflater _deflater;
+    private Inflater _inflater;
+    private byte[] _compressed;
+
+    public SegmentedBackingStore(BaseQueueCodec<E> codec) {
+        this(codec, false, DEFAULT_SEGMENT_SIZE, DEFAULT_TAIL_BUFFER_SIZE, null);
+    }
+
+    /**
+     * @param codec codec for elements
+     * @param compress true to compress blocks of elements
+     * @param segmentSize size of each segment file, in bytes
+     * @param tailBufferSize amount of data to buffer before writing a block to a segment
+     * @param dir directory for segment files, or null for the default temp directory
+     */
+    public SegmentedBackingStore(BaseQueueCodec<E> codec, boolean compress, int segmentSize, int tailBufferSize, File dir) {
+        if (tailBufferSize <= 0) {
+            throw new InvalidParameterException("Tail buffer size must be > 0: " + tailBufferSize);
+        }
+
+        if (segmentSize < tailBufferSize + BLOCK_HEADER_SIZE) {
+            throw new InvalidParameterException("Segment size must be bigger than tail buffer size: " + segmentSize);
+        }
+
+        _codec = codec;
+        _compress = compress;
+        _segmentSize = segmentSize;
+        _tailBufferSize = tailBufferSize;
+        _dir = dir;
+
+        _segments = new LinkedList<Segment>();
+        _numElements = 0;
+
+        _tail = new byte[tailBufferSize];
+        _tailCount = 0;
+        _tailReadPos = 0;
+        _tailOut = new DataOutputStream(new TailOutputStream());
+
+        _codec.reset();
+    }
+
+    public int size() {
+        return _numElements;
+    }
+
+    public boolean isEmpty() {
+        return _numElements == 0;
+    }
+
+    /**
+     * @return number of segment files currently in use (including the spare).
+     */
+    public int getNumSegments() {
+        return _segments.size() + (_spareSegment != null ? 1 : 0);
+    }
+
+    public void add(E element) throws IOException {
+        _codec.write(element, _tailOut);
+        _numElements += 1;
+
+        if ((_tailCount - _tailReadPos) >= _tailBufferSize) {
+            flushTail();
+        }
+    }
+
+    /**
+     * Return the oldest element, or null if the store is empty.
+     *
+     * @return next element
+     * @throws IOException
+     */
+    public E remove() throws IOException {
+        if (_numElements == 0) {
+            return null;
+        }
+
+        E result;
+        if (((_readBlock != null) && _readBlock.hasRemaining()) || nextBlock()) {
+            result = _codec.read(_readIn);
+        } else {
+            // Everything on disk has been read, so read directly from the tail buffer.
+            ByteBuffer tailBuffer = ByteBuffer.wrap(_tail, _tailReadPos, _tailCount - _tailReadPos);
+            result = _codec.read(new DataInputStream(new ByteBufferInputStream(tailBuffer)));
+            _tailReadPos = tailBuffer.position();
+        }
+
+        _numElements -= 1;
+        return result;
+    }
+
+    /**
+     * Close and delete all of the segment files.
+     */
+    public void close() {
+        for (Segment segment : _segments) {
+            segment.delete();
+        }
+
+        _segments.clear();
+
+        if (_spareSegment != null) {
+            _spareSegment.delete();
+            _spareSegment = null;
+        }
+
+        if (_deflater != null) {
+            _deflater.end();
+            _deflater = null;
+        }
+
+        if (_inflater != null) {
+            _inflater.end();
+            _inflater = null;
+        }
+
+        _numElements = 0;
+        _tailCount = 0;
+        _tailReadPos = 0;
+        _readBlock = null;
+        _readIn = null;
+    }
+
+    private void ensureTailCapacity(int len) {
+        if (_tailCount + len <= _tail.length) {
+            return;
+        }
+
+        // Compact, if there's stuff at the front that's already been read.
+        if (_tailReadPos > 0) {
+            System.arraycopy(_tail, _tailReadPos, _tail, 0, _tailCount - _tailReadPos);
+            _tailCount -= _tailReadPos;
+            _tailReadPos = 0;
+        }
+
+        if (_tailCount + len > _tail.length) {
+            byte[] newTail = new byte[Math.max(_tailCount + len, _tail.length * 2)];
+            System.arraycopy(_tail, 0, newTail, 0, _tailCount);
+            _tail = newTail;
+        }
+    }
+
+    /**
+     * Write any unread data in the tail buffer out to a segment as a block.
+     *
+     * @throws IOException
+     */
+    private void flushTail() throws IOException {
+        int length = _tailCount - _tailReadPos;
+        if (length == 0) {
+            return;
+        }
+
+        byte[] data = _tail;
+        int offset = _tailReadPos;
+        int storedLength = length;
+        byte flag = UNCOMPRESSED_BLOCK;
+
+        if (_compress) {
+            storedLength = compress(_tail, _tailReadPos, length);
+            data = _compressed;
+            offset = 0;
+            flag = COMPRESSED_BLOCK;
+        }
+
+        Segment segment = getWriteSegment(BLOCK_HEADER_SIZE + storedLength);
+        ByteBuffer buffer = segment._buffer;
+        buffer.position(segment._writePos);
+        buffer.put(flag);
+        buffer.putInt(length);
+        buffer.putInt(storedLength);
+        buffer.put(data, offset, storedLength);
+        segment._writePos = buffer.position();
+
+        _tailCount = 0;
+        _tailReadPos = 0;
+
+        // Shrink the tail buffer back down, if one big element made it grow.
+        if (_tail.length > _tailBufferSize * 2) {
+            _tail = new byte[_tailBufferSize];
+        }
+    }
+
+    private Segment getWriteSegment(int blockSize) throws IOException {
+        Segment segment = _segments.peekLast();
+        if ((segment != null) && (segment.getFree() >= blockSize)) {
+            return segment;
+        }
+
+        if ((_spareSegment != null) && (_spareSegment.getCapacity() >= blockSize)) {
+            segment = _spareSegment;
+            _spareSegment = null;
+        } else {
+            segment = new Segment(_dir, Math.max(_segmentSize, blockSize));
+        }
+
+        _segments.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * Set up _readBlock with the next unread block from the oldest segment.
+     * 
+     * @return false if all blocks in all segments have been read.
+     * @throws IOException
+     */
+    private boolean nextBlock() throws IOException {
+        _readBlock = null;
+        _readIn = null;
+
+        while (!_segments.isEmpty()) {
+            Segment segment = _segments.peekFirst();
+            if (!segment.isConsumed()) {
+                _readBlock = readBlock(segment);
+                _readIn = new DataInputStream(new ByteBufferInputStream(_readBlock));
+                return true;
+            }
+
+            // Segment has been fully read. If it's the one being written to, just
+            // start over at the beginning, otherwise recycle or delete it.
+            if (_segments.size() == 1) {
+                segment.recycle();
+                return false;
+            }
+
+            _segments.removeFirst();
+            if ((_spareSegment == null) && (segment.getCapacity() == _segmentSize)) {
+                segment.recycle();
+                _spareSegment = segment;
+            } else {
+                segment.delete();
+            }
+        }
+
+        return false;
+    }
+
+    private ByteBuffer readBlock(Segment segment) throws IOException {
+        ByteBuffer buffer = segment._buffer.duplicate();
+        buffer.position(segment._readPos);
+        byte flag = buffer.get();
+        int length = buffer.getInt();
+        int storedLength = buffer.getInt();
+
+        ByteBuffer result;
+        if (flag == UNCOMPRESSED_BLOCK) {
+            // Read straight out of the mapped segment.
+            result = buffer.slice();
+            result.limit(storedLength);
+        } else if (flag == COMPRESSED_BLOCK) {
+            result = ByteBuffer.wrap(uncompress(buffer, length, storedLength));
+            result.limit(length);
+        } else {
+            throw new IOException("Invalid block flag in segment: " + flag);
+        }
+
+        segment._readPos = buffer.position() + storedLength;
+        return result;
+    }
+
+    private int compress(byte[] data, int offset, int length) {
+        if (_deflater == null) {
+            _deflater = new Deflater(Deflater.BEST_SPEED);
+        }
+
+        int maxLength = length + (length / 8) + 64;
+        if ((_compressed == null) || (_compressed.length < maxLength)) {
+            _compressed = new byte[maxLength];
+        }
+
+        _deflater.reset();
+        _deflater.setInput(data, offset, length);
+        _deflater.finish();
+
+        int result = 0;
+        while (!_deflater.finished()) {
+            if (result == _compressed.length) {
+                byte[] newCompressed = new byte[_compressed.length * 2];
+                System.arraycopy(_compressed, 0, newCompressed, 0, result);
+                _compressed = newCompressed;
+            }
+
+            result += _deflater.deflate(_compressed, result, _compressed.length - result);
+        }
+
+        return result;
+    }
+
+    private byte[] uncompress(ByteBuffer buffer, int length, int storedLength) throws IOException {
+        if (_inflater == null) {
+            _inflater = new Inflater();
+        }
+
+        if ((_compressed == null) || (_compressed.length < storedLength)) {
+            _compressed = new byte[storedLength];
+        }
+
+        // We can't reuse this buffer, since elements are read from it lazily.
+        byte[] result = new byte[length];
+
+        buffer.duplicate().get(_compressed, 0, storedLength);
+        _inflater.reset();
+        _inflater.setInput(_compressed, 0, storedLength);
+
+        try {
+            int count = 0;
+            while (count < length) {
+                int numInflated = _inflater.inflate(result, count, length - count);
+                if ((numInflated == 0) && (_inflater.finished() || _inflater.needsInput())) {
+                    throw new IOException("Truncated compressed block");
+                }
+
+                count += numInflated;
+            }
+        } catch (DataFormatException e) {
+            throw new IOException("Invalid compressed block", e);
+        }
+
+        return result;
+    }
+
+    @Override
+    protected void finalize() throws Throwable {
+        if (!_segments.isEmpty() || (_spareSegment != null)) {
+            LOGGER.warn("Backing store still had segments in finalize");
+            close();
+        }
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Codec that uses Java serialization for each element, with a length prefix. This
+ * works with anything, but is slow and bloated compared to a codec that knows about
+ * the element type (e.g. DatumQueueCodec).
+ *
+ * @param <E> type of element being encoded
+ */
+public class SerializableQueueCodec<E extends Serializable> extends BaseQueueCodec<E> {
+
+    private ByteArrayOutputStream _bytes = new ByteArrayOutputStream();
+
+    @Override
+    public void write(E element, DataOutput out) throws IOException {
+        _bytes.reset();
+        ObjectOutputStream oos = new ObjectOutputStream(_bytes);
+        oos.writeObject(element);
+        oos.close();
+
+        out.writeInt(_bytes.size());
+        out.write(_bytes.toByteArray());
+    }
+
+    @SuppressWarnings("unchecked")
+    @Override
+    public E read(DataInput in) throws IOException {
+        byte[] data = new byte[in.readInt()];
+        in.readFully(data);
+
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return (E)ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException("Can't find class for serialized element", e);
+        } finally {
+            ois.close();
+        }
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+import bixo.hadoop.BaseSerialization;
+
+/**
+ * Codec that uses one of Bixo's Hadoop serializations (e.g. FetchSetDatumSerialization)
+ * for each element. Serializations know the element type, so this is more compact
+ * than DatumQueueCodec, which has to write a type for every tuple value.
+ *
+ * @param <E> type of element being encoded
+ */
+public class SerializationQueueCodec<E> extends BaseQueueCodec<E> {
+
+    private BaseSerialization<E> _serialization;
+    
+    public SerializationQueueCodec(BaseSerialization<E> serialization) {
+        _serialization = serialization;
+    }
+    
+    @Override
+    public void write(E element, DataOutput out) throws IOException {
+        _serialization.write(element, out);
+    }
+
+    @Override
+    public E read(DataInput in) throws IOException {
+        return _serialization.read(null, in);
+    }
+}
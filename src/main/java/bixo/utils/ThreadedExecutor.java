@@ -16,23 +16,37 @@
  */
 package bixo.utils;
 
+import java.security.InvalidParameterException;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A wrapper for ThreadPoolExecutor that implements a specific behavior we need in Bixo.
  * When execute() is called, it succeeds unless all of the threads are busy and the
  * specified timeout is exceeded (no threads finish up in that amount of time).
  *
+ * There's also a lightweight task mode, for when we want lots (thousands) of mostly
+ * idle, I/O-bound tasks running at the same time. In that mode the number of running
+ * tasks is limited by a semaphore versus the pool size, and each task gets a thread
+ * with a small stack from an unbounded pool that lets idle threads time out. So we
+ * only pay for as many threads as are actually in use, and each one costs much less
+ * memory than a regular thread.
+ *
  */
 public class ThreadedExecutor {
     
     public static final long MAX_POLL_TIME = 1000L;
     
+    // Stack size to use for lightweight tasks, if the caller doesn't care.
+    public static final long DEFAULT_TASK_STACK_SIZE = 256 * 1024L;
+    
     /**
      * Always wait for some time when offer() is called. This gives any
      * active threads that much time to complete, before a RejectedExectionException
@@ -59,22 +73,112 @@ public class ThreadedExecutor {
     }
 
 
+    /**
+     * Create daemon threads with a specific stack size, for lightweight tasks.
+     */
+    private static class TaskThreadFactory implements ThreadFactory {
+        private static final AtomicInteger POOL_NUMBER = new AtomicInteger(1);
+
+        private final long _stackSize;
+        private final String _namePrefix;
+        private final AtomicInteger _threadNumber;
+
+        public TaskThreadFactory(long stackSize) {
+            _stackSize = stackSize;
+            _namePrefix = "bixo-task-" + POOL_NUMBER.getAndIncrement() + "-";
+            _threadNumber = new AtomicInteger(1);
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread result = new Thread(null, r, _namePrefix + _threadNumber.getAndIncrement(), _stackSize);
+            result.setDaemon(true);
+            return result;
+        }
+    }
+
+    /**
+     * Wrapper for a lightweight task, which gives back its permit when it's done.
+     */
+    private class PermitReleasingTask implements Runnable {
+        private final Runnable _command;
+
+        public PermitReleasingTask(Runnable command) {
+            _command = command;
+        }
+
+        @Override
+        public void run() {
+            try {
+                _command.run();
+            } finally {
+                _permits.release();
+            }
+        }
+    }
+
     private long _requestTimeout;
     private ThreadPoolExecutor _pool;
     
+    // Only set for lightweight task mode.
+    private int _maxTasks;
+    private Semaphore _permits;
+    
     public ThreadedExecutor(int maxThreads, long requestTimeout) {
+        this(maxThreads, requestTimeout, 0);
+    }
+    
+    /**
+     * Create an executor in lightweight task mode, where up to <maxTasks> commands can
+     * be running at once, each on a thread with a <taskStackSize> byte stack. If
+     * <taskStackSize> is 0, we use the regular (fixed size pool) mode, with <maxTasks>
+     * threads.
+     * 
+     * @param maxTasks max number of commands running at the same time
+     * @param requestTimeout max time execute() will wait for a running command to finish
+     * @param taskStackSize stack size (in bytes) for task threads, or 0 for a regular pool.
+     */
+    public ThreadedExecutor(int maxTasks, long requestTimeout, long taskStackSize) {
+        if (taskStackSize < 0) {
+            throw new InvalidParameterException("Task stack size must be >= 0: " + taskStackSize);
+        }
+        
         _requestTimeout = requestTimeout;
         
-        // With the "always offer with a timeout" queue, the maximumPoolSize should always
-        // be set to the same as the corePoolSize, as otherwise things get very inefficient
-        // since each execute() call will will delay by <timeout> even if we could add more
-        // threads. And since these two values are the same, the keepAliveTime value has
-        // little meaning (especially since we no longer incorrectly set allowCoreThreadTimeOut to true,
-        // as if that's true then the timeout value still does apply). It's only the max latency
-        // between when a task is accepted by this executor, and when a thread starts working
-        // on it.
-        BlockingQueue<Runnable> queue = new MyBlockingQueue<Runnable>();
-        _pool = new ThreadPoolExecutor(maxThreads, maxThreads, MAX_POLL_TIME, TimeUnit.MILLISECONDS, queue);
+        if (taskStackSize == 0) {
+            _permits = null;
+            
+            // With the "always offer with a timeout" queue, the maximumPoolSize should always
+            // be set to the same as the corePoolSize, as otherwise things get very inefficient
+            // since each execute() call will will delay by <timeout> even if we could add more
+            // threads. And since these two values are the same, the keepAliveTime value has
+            // little meaning (especially since we no longer incorrectly set allowCoreThreadTimeOut to true,
+            // as if that's true then the timeout value still does apply). It's only the max latency
+            // between when a task is accepted by this executor, and when a thread starts working
+            // on it.
+            BlockingQueue<Runnable> queue = new MyBlockingQueue<Runnable>();
+            _pool = new ThreadPoolExecutor(maxTasks, maxTasks, MAX_POLL_TIME, TimeUnit.MILLISECONDS, queue);
+        } else {
+            if (maxTasks <= 0) {
+                throw new InvalidParameterException("Max tasks must be > 0: " + maxTasks);
+            }
+            
+            // Threads are only created when a command has a permit, so the pool never
+            // needs to queue anything, and idle threads go away after MAX_POLL_TIME.
+            _maxTasks = maxTasks;
+            _permits = new Semaphore(maxTasks, true);
+            _pool = new ThreadPoolExecutor(0, Integer.MAX_VALUE, MAX_POLL_TIME, TimeUnit.MILLISECONDS,
+                            new SynchronousQueue<Runnable>(), new TaskThreadFactory(taskStackSize));
+        }
+    }
+    
+    /**
+     * Return true if we're running commands as lightweight tasks.
+     * 
+     * @return true if lightweight task mode.
+     */
+    public boolean isLightweight() {
+        return _permits != null;
     }
     
     /**
@@ -84,17 +188,41 @@ public class ThreadedExecutor {
      * @throws RejectedExecutionException
      */
     public void execute(Runnable command) throws RejectedExecutionException {
-        _pool.execute(command);
+        if (_permits == null) {
+            _pool.execute(command);
+            return;
+        }
+        
+        try {
+            if (!_permits.tryAcquire(_requestTimeout, TimeUnit.MILLISECONDS)) {
+                throw new RejectedExecutionException("No task finished within " + _requestTimeout + "ms");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for a task to finish");
+        }
+        
+        try {
+            _pool.execute(new PermitReleasingTask(command));
+        } catch (RejectedExecutionException e) {
+            // We've been terminated.
+            _permits.release();
+            throw e;
+        }
     }
     
     
     /**
-     * Return number of active threads
+     * Return number of active threads (or running tasks, in lightweight mode)
      * 
      * @return count of active threads
      */
     public int getActiveCount() {
-        return _pool.getActiveCount();
+        if (_permits == null) {
+            return _pool.getActiveCount();
+        } else {
+            return _maxTasks - _permits.availablePermits();
+        }
     }
     
     /**
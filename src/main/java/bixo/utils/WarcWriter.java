@@ -0,0 +1,315 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.UUID;
+import java.util.zip.GZIPOutputStream;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+
+/**
+ * Writes FetchedDatums as WARC/1.0 records, with each record compressed as a separate
+ * gzip member (so readers can seek to any record).
+ * 
+ * Each FetchedDatum becomes a response record plus a request record. We don't keep
+ * the original status line or request headers, so these are reconstructed: only
+ * successful fetches make it into the content pipe, so the status is always 200,
+ * and the request has just the Host (and optionally User-Agent) headers. The content
+ * has already been decoded (and might have been truncated), so the Content-Encoding,
+ * Transfer-Encoding and Content-Length headers are replaced, with the original values
+ * kept as X-Crawler-xxx headers.
+ *
+ */
+public class WarcWriter {
+
+    public static final String WARC_VERSION = "WARC/1.0";
+    public static final String SOFTWARE = "bixo";
+    
+    private static final String CRLF = "\r\n";
+    private static final String ENCODING = "UTF-8";
+    
+    private static final String[] REPLACED_HEADERS = {
+        "content-encoding",
+        "transfer-encoding",
+        "content-length",
+    };
+    
+    private static final String REPLACED_HEADER_PREFIX = "X-Crawler-";
+    
+    private static final char[] BASE32_CHARS = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567".toCharArray();
+    
+    private static final int COPY_BUFFER_SIZE = 8 * 1024;
+    
+    // Wrapper so closing a gzip member doesn't close the real output stream.
+    private static class NonClosingOutputStream extends FilterOutputStream {
+        public NonClosingOutputStream(OutputStream out) {
+            super(out);
+        }
+        
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+        
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+    
+    private OutputStream _out;
+    private String _userAgent;
+    private SimpleDateFormat _dateFormat;
+    private MessageDigest _digest;
+    private byte[] _copyBuffer;
+    
+    /**
+     * @param out stream for the WARC data
+     * @param userAgent user agent string for request records, or null
+     */
+    public WarcWriter(OutputStream out, String userAgent) {
+        _out = out;
+        _userAgent = userAgent;
+        
+        _dateFormat = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        _dateFormat.setTimeZone(TimeZone.getTimeZone("UTC"));
+        _copyBuffer = new byte[COPY_BUFFER_SIZE];
+        
+        try {
+            _digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("Impossible exception", e);
+        }
+    }
+    
+    /**
+     * Write the warcinfo record that should start every WARC file.
+     * 
+     * @param filename name of the WARC file
+     * @param fields extra fields to include (besides software & format)
+     * @throws IOException
+     */
+    public void writeWarcInfo(String filename, Map<String, String> fields) throws IOException {
+        StringBuilder block = new StringBuilder();
+        block.append("software: " + SOFTWARE + CRLF);
+        block.append("format: WARC File Format 1.0" + CRLF);
+        if (fields != null) {
+            for (Map.Entry<String, String> field : fields.entrySet()) {
+                block.append(field.getKey() + ": " + field.getValue() + CRLF);
+            }
+        }
+        
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("WARC-Type", "warcinfo");
+        headers.put("WARC-Date", formatDate(System.currentTimeMillis()));
+        headers.put("WARC-Filename", filename);
+        headers.put("WARC-Record-ID", makeRecordId());
+        headers.put("Content-Type", "application/warc-fields");
+        
+        writeRecord(headers, block.toString().getBytes(ENCODING), null);
+    }
+    
+    /**
+     * Write the response and request records for <datum>.
+     * 
+     * @param datum
+     * @throws IOException
+     */
+    public void write(FetchedDatum datum) throws IOException {
+        String url = datum.getFetchedUrl();
+        String date = formatDate(datum.getFetchTime());
+        String responseId = makeRecordId();
+        ContentBytes content = datum.getContent();
+        
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put("WARC-Type", "response");
+        headers.put("WARC-Target-URI", url);
+        headers.put("WARC-Date", date);
+        headers.put("WARC-Record-ID", responseId);
+        if ((datum.getHostAddress() != null) && (datum.getHostAddress().length() > 0)) {
+            headers.put("WARC-IP-Address", datum.getHostAddress());
+        }
+        headers.put("WARC-Payload-Digest", "sha1:" + getPayloadDigest(content));
+        headers.put("Content-Type", "application/http; msgtype=response");
+        writeRecord(headers, makeResponseHead(datum.getHeaders(), content.getLength()), content);
+        
+        headers.clear();
+        headers.put("WARC-Type", "request");
+        headers.put("WARC-Target-URI", url);
+        headers.put("WARC-Date", date);
+        headers.put("WARC-Record-ID", makeRecordId());
+        headers.put("WARC-Concurrent-To", responseId);
+        headers.put("Content-Type", "application/http; msgtype=request");
+        writeRecord(headers, makeRequest(url), null);
+    }
+    
+    private byte[] makeResponseHead(HttpHeaders httpHeaders, int contentLength) throws IOException {
+        StringBuilder result = new StringBuilder("HTTP/1.1 200 OK" + CRLF);
+        
+        for (String name : httpHeaders.getNames()) {
+            String headerName = name;
+            for (String replacedHeader : REPLACED_HEADERS) {
+                if (replacedHeader.equals(name)) {
+                    headerName = REPLACED_HEADER_PREFIX + name;
+                    break;
+                }
+            }
+            
+            List<String> values = httpHeaders.getAll(name);
+            for (String value : values) {
+                result.append(headerName + ": " + value + CRLF);
+            }
+        }
+        
+        result.append("content-length: " + contentLength + CRLF);
+        result.append(CRLF);
+        return result.toString().getBytes(ENCODING);
+    }
+    
+    private byte[] makeRequest(String url) throws IOException {
+        String path = "/";
+        String host = "";
+        
+        try {
+            URL realUrl = new URL(url);
+            host = realUrl.getAuthority();
+            path = realUrl.getFile();
+            if (path.length() == 0) {
+                path = "/";
+            }
+        } catch (MalformedURLException e) {
+            // Leave the request with an empty host
+        }
+        
+        StringBuilder result = new StringBuilder("GET " + path + " HTTP/1.1" + CRLF);
+        result.append("Host: " + host + CRLF);
+        if (_userAgent != null) {
+            result.append("User-Agent: " + _userAgent + CRLF);
+        }
+        
+        result.append(CRLF);
+        return result.toString().getBytes(ENCODING);
+    }
+    
+    private void writeRecord(Map<String, String> headers, byte[] blockHead, ContentBytes payload) throws IOException {
+        long blockLength = blockHead.length + (payload == null ? 0 : payload.getLength());
+        
+        StringBuilder recordHead = new StringBuilder(WARC_VERSION + CRLF);
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            recordHead.append(header.getKey() + ": " + header.getValue() + CRLF);
+        }
+        
+        recordHead.append("Content-Length: " + blockLength + CRLF);
+        recordHead.append(CRLF);
+        
+        GZIPOutputStream gzipOut = new GZIPOutputStream(new NonClosingOutputStream(_out), COPY_BUFFER_SIZE);
+        gzipOut.write(recordHead.toString().getBytes(ENCODING));
+        gzipOut.write(blockHead);
+        
+        if (payload != null) {
+            if (payload.isSpilled()) {
+                copy(payload.getInputStream(), gzipOut);
+            } else {
+                gzipOut.write(payload.getBuffer(), payload.getOffset(), payload.getLength());
+            }
+        }
+        
+        gzipOut.write((CRLF + CRLF).getBytes(ENCODING));
+        gzipOut.finish();
+        gzipOut.close();
+    }
+    
+    private void copy(InputStream in, OutputStream out) throws IOException {
+        try {
+            int bytesRead;
+            while ((bytesRead = in.read(_copyBuffer)) != -1) {
+                out.write(_copyBuffer, 0, bytesRead);
+            }
+        } finally {
+            in.close();
+        }
+    }
+    
+    private String getPayloadDigest(ContentBytes content) throws IOException {
+        _digest.reset();
+        
+        if (content.isSpilled()) {
+            InputStream in = content.getInputStream();
+            
+            try {
+                int bytesRead;
+                while ((bytesRead = in.read(_copyBuffer)) != -1) {
+                    _digest.update(_copyBuffer, 0, bytesRead);
+                }
+            } finally {
+                in.close();
+            }
+        } else {
+            _digest.update(content.getBuffer(), content.getOffset(), content.getLength());
+        }
+        
+        return base32(_digest.digest());
+    }
+    
+    private String formatDate(long time) {
+        return _dateFormat.format(new Date(time));
+    }
+    
+    private static String makeRecordId() {
+        return "<urn:uuid:" + UUID.randomUUID().toString() + ">";
+    }
+    
+    /**
+     * RFC 4648 base32 encoding (without padding, which a SHA-1 digest never needs).
+     */
+    private static String base32(byte[] bytes) {
+        StringBuilder result = new StringBuilder(((bytes.length * 8) + 4) / 5);
+        int buffer = 0;
+        int numBits = 0;
+        
+        for (byte b : bytes) {
+            buffer = (buffer << 8) | (b & 0xFF);
+            numBits += 8;
+            while (numBits >= 5) {
+                result.append(BASE32_CHARS[(buffer >> (numBits - 5)) & 0x1F]);
+                numBits -= 5;
+            }
+        }
+        
+        if (numBits > 0) {
+            result.append(BASE32_CHARS[(buffer << (5 - numBits)) & 0x1F]);
+        }
+        
+        return result.toString();
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.datum;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.security.InvalidParameterException;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+
+public class ContentBytesTest {
+
+    private static byte[] serialize(ContentBytes... contents) throws Exception {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bos);
+        for (ContentBytes content : contents) {
+            content.write(out);
+        }
+        
+        out.close();
+        return bos.toByteArray();
+    }
+    
+    @Test
+    public void testSlice() throws Exception {
+        byte[] buffer = "xxcontentyy".getBytes("UTF-8");
+        ContentBytes slice = new ContentBytes(buffer, 2, 7);
+        ContentBytes full = new ContentBytes("content".getBytes("UTF-8"));
+        
+        assertEquals(7, slice.getLength());
+        assertSame(buffer, slice.getBuffer());
+        assertEquals(2, slice.getOffset());
+        assertEquals("content", IOUtils.toString(slice.getInputStream(), "UTF-8"));
+        
+        assertEquals(full, slice);
+        assertEquals(slice, full);
+        assertEquals(full.hashCode(), slice.hashCode());
+        assertEquals(full.toString(), slice.toString());
+        assertTrue(new ContentBytes(buffer, 0, 7).compareTo(slice) > 0);
+        
+        // getBytes() has to return an exact-size array.
+        assertEquals("content", new String(slice.getBytes(), "UTF-8"));
+        assertEquals(0, slice.getOffset());
+        assertEquals(7, slice.getLength());
+    }
+    
+    @Test
+    public void testInvalidSlice() throws Exception {
+        try {
+            new ContentBytes(new byte[10], 5, 6);
+            fail("Should have thrown exception");
+        } catch (InvalidParameterException e) {
+            // expected
+        }
+    }
+    
+    @Test
+    public void testWritingSlice() throws Exception {
+        byte[] buffer = "xxcontentyy".getBytes("UTF-8");
+        ContentBytes copy = new ContentBytes();
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(serialize(new ContentBytes(buffer, 2, 7)))));
+        assertEquals("content", new String(copy.getBytes(), "UTF-8"));
+        
+        // Java serialization should only send the slice.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(new ContentBytes(buffer, 2, 7));
+        oos.close();
+        
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        ContentBytes result = (ContentBytes)ois.readObject();
+        assertEquals(7, result.getBuffer().length);
+        assertEquals("content", new String(result.getBytes(), "UTF-8"));
+    }
+    
+    @Test
+    public void testBufferReuse() throws Exception {
+        byte[] data = serialize(new ContentBytes("first record".getBytes("UTF-8")),
+                        new ContentBytes("second".getBytes("UTF-8")),
+                        new ContentBytes("a much longer third record".getBytes("UTF-8")));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        
+        ContentBytes content = new ContentBytes();
+        content.readFields(in);
+        byte[] buffer = content.getBuffer();
+        assertEquals("first record", IOUtils.toString(content.getInputStream(), "UTF-8"));
+        
+        // Smaller record gets read into the same buffer.
+        content.readFields(in);
+        assertSame(buffer, content.getBuffer());
+        assertEquals(0, content.getOffset());
+        assertEquals(6, content.getLength());
+        assertEquals("second", IOUtils.toString(content.getInputStream(), "UTF-8"));
+        
+        // Bigger record needs a new buffer.
+        content.readFields(in);
+        assertNotSame(buffer, content.getBuffer());
+        assertEquals("a much longer third record", new String(content.getBytes(), "UTF-8"));
+    }
+    
+    @Test
+    public void testNoReuseOfReturnedBytes() throws Exception {
+        byte[] data = serialize(new ContentBytes("first".getBytes("UTF-8")),
+                        new ContentBytes("other".getBytes("UTF-8")));
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        
+        ContentBytes content = new ContentBytes();
+        content.readFields(in);
+        byte[] firstBytes = content.getBytes();
+        
+        content.readFields(in);
+        assertEquals("first", new String(firstBytes, "UTF-8"));
+        assertEquals("other", new String(content.getBytes(), "UTF-8"));
+        
+        // Arrays we were given also can't be overwritten.
+        byte[] original = "given".getBytes("UTF-8");
+        content = new ContentBytes(original);
+        content.readFields(new DataInputStream(new ByteArrayInputStream(serialize(new ContentBytes("later".getBytes("UTF-8"))))));
+        assertEquals("given", new String(original, "UTF-8"));
+        assertEquals("later", new String(content.getBytes(), "UTF-8"));
+    }
+}
@@ -25,6 +25,8 @@ import java.io.DataInput;
 import java.io.DataInputStream;
 import java.io.DataOutput;
 import java.io.DataOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Collections;
 import java.util.List;
 
@@ -122,4 +124,98 @@ public class HttpHeadersTest {
         
         assertEquals(2, newHeaders.getNames().size());
     }
+    
+    @Test
+    public void testCompactEncoding() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Type", "text/html");
+        
+        // Common names are written as a single byte id.
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        headers.write(new DataOutputStream(byteStream));
+        assertEquals(1 + 1 + 1 + 1 + 1 + "text/html".length(), byteStream.size());
+    }
+    
+    @Test
+    public void testPassThroughWithoutDecoding() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("content-type", "text/html");
+        headers.add("x-custom", "value1");
+        headers.add("x-custom", "value2");
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        headers.write(new DataOutputStream(byteStream));
+        byte[] encoded = byteStream.toByteArray();
+        
+        HttpHeaders newHeaders = new HttpHeaders();
+        newHeaders.readFields(new DataInputStream(new ByteArrayInputStream(encoded)));
+        
+        // Writing out headers we haven't used should give us the same bytes.
+        byteStream = new ByteArrayOutputStream();
+        newHeaders.write(new DataOutputStream(byteStream));
+        assertArrayEquals(encoded, byteStream.toByteArray());
+        assertEquals(0, headers.compareTo(newHeaders));
+        
+        // And once they're decoded & modified, we should write out the new values.
+        assertEquals(headers, newHeaders);
+        newHeaders.add("x-custom", "value3");
+        assertEquals(3, newHeaders.getAll("x-custom").size());
+        
+        byteStream = new ByteArrayOutputStream();
+        newHeaders.write(new DataOutputStream(byteStream));
+        HttpHeaders modifiedHeaders = new HttpHeaders();
+        modifiedHeaders.readFields(new DataInputStream(new ByteArrayInputStream(byteStream.toByteArray())));
+        assertEquals("value3", modifiedHeaders.getAll("x-custom").get(2));
+        assertEquals(newHeaders, modifiedHeaders);
+    }
+    
+    @Test
+    public void testCompareAfterChanges() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("x-custom", "value1");
+
+        HttpHeaders otherHeaders = new HttpHeaders();
+        otherHeaders.add("x-custom", "value1");
+        assertEquals(0, headers.compareTo(otherHeaders));
+
+        // Changing a list we got back shouldn't change the headers.
+        headers.getAll("x-custom").add("value2");
+        assertEquals(1, headers.getAll("x-custom").size());
+        assertEquals(0, headers.compareTo(otherHeaders));
+
+        // But adding a value should, even though we've already compared them.
+        headers.add("x-custom", "value2");
+        assertTrue(headers.compareTo(otherHeaders) > 0);
+        assertTrue(otherHeaders.compareTo(headers) < 0);
+
+        otherHeaders.add("x-custom", "value2");
+        assertEquals(0, headers.compareTo(otherHeaders));
+    }
+
+    @Test
+    public void testJavaSerialization() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("key1", "value1");
+        headers.add("content-type", "text/html");
+
+        ByteArrayOutputStream byteStream = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(byteStream);
+        out.writeObject(headers);
+        out.close();
+        
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(byteStream.toByteArray()));
+        HttpHeaders newHeaders = (HttpHeaders)in.readObject();
+        assertEquals(headers, newHeaders);
+        assertEquals(headers.hashCode(), newHeaders.hashCode());
+    }
+    
+    @Test
+    public void testFromTupleValue() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("key1", "value1");
+        
+        assertSame(headers, HttpHeaders.fromTupleValue(headers));
+        assertEquals(headers, HttpHeaders.fromTupleValue(headers.toTuple()));
+        assertEquals(0, HttpHeaders.fromTupleValue(null).getNames().size());
+    }
 }
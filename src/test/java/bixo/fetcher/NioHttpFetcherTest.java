@@ -0,0 +1,574 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.http.HttpStatus;
+import org.junit.Test;
+import org.mortbay.jetty.HttpException;
+import org.mortbay.jetty.Request;
+import org.mortbay.jetty.Server;
+import org.mortbay.jetty.handler.AbstractHandler;
+
+import bixo.config.FetcherPolicy;
+import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.datum.FetchedDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.AbortedFetchException;
+import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
+import bixo.exceptions.HttpFetchException;
+import bixo.exceptions.IOFetchException;
+import bixo.exceptions.RedirectFetchException;
+import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
+import bixo.fetcher.simulation.SimulationWebServer;
+import bixo.utils.ConfigUtils;
+
+public class NioHttpFetcherTest extends SimulationWebServer {
+    
+    private class RedirectResponseHandler extends AbstractHandler {
+        
+        private boolean _permanent;
+        
+        public RedirectResponseHandler(boolean permanent) {
+            super();
+            _permanent = permanent;
+        }
+        
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            if (pathInContext.endsWith("base")) {
+                if (_permanent) {
+                    // Can't use sendRedirect, as that forces it to be a temp redirect.
+                    response.setStatus(HttpStatus.SC_MOVED_PERMANENTLY);
+                    response.setHeader("Location", "http://localhost:8089/redirect");
+                    ((Request)request).setHandled(true);
+                } else {
+                    response.sendRedirect("http://localhost:8089/redirect");
+                }
+            } else if (pathInContext.endsWith("loop")) {
+                response.sendRedirect("http://localhost:8089/loop");
+            } else {
+                response.setStatus(HttpStatus.SC_OK);
+                response.setContentType("text/plain");
+
+                String content = "redirected";
+                response.setContentLength(content.length());
+                response.getOutputStream().write(content.getBytes());
+            }
+        }
+    }
+
+    private class MimeTypeResponseHandler extends AbstractHandler {
+        
+        private String _mimeType;
+        
+        public MimeTypeResponseHandler(String mimeType) {
+            _mimeType = mimeType;
+        }
+
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            String content = "test";
+            response.setStatus(HttpStatus.SC_OK);
+            if (_mimeType != null) {
+                response.setContentType(_mimeType);
+            }
+            
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes());
+        }
+    }
+
+    // Waits <delay> ms before responding, and then sends <length> bytes over <duration> ms.
+    // Unlike RandomResponseHandler, the data is flushed as it's written, versus Jetty
+    // buffering up the headers and the start of the content.
+    private static class SlowResponseHandler extends AbstractHandler {
+        
+        private static final int CHUNK_SIZE = 1000;
+        
+        private int _length;
+        private long _delay;
+        private long _duration;
+        
+        public SlowResponseHandler(int length, long delay, long duration) {
+            _length = length;
+            _delay = delay;
+            _duration = duration;
+        }
+        
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            try {
+                Thread.sleep(_delay);
+
+                response.setContentLength(_length);
+                response.setContentType("text/html");
+                response.setStatus(HttpStatus.SC_OK);
+                response.flushBuffer();
+                
+                OutputStream os = response.getOutputStream();
+                byte[] chunk = new byte[CHUNK_SIZE];
+                long startTime = System.currentTimeMillis();
+                for (int written = 0; written < _length; written += CHUNK_SIZE) {
+                    os.write(chunk, 0, Math.min(CHUNK_SIZE, _length - written));
+                    os.flush();
+                    
+                    long targetTime = startTime + ((written * _duration) / _length);
+                    long curTime = System.currentTimeMillis();
+                    if (curTime < targetTime) {
+                        Thread.sleep(targetTime - curTime);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new HttpException(500, "Response handler interrupted");
+            }
+        }
+    }
+
+    private static class BatchListener implements IBatchFetchListener {
+        
+        private List<FetchedDatum> _results = new ArrayList<FetchedDatum>();
+        private List<BaseFetchException> _failures = new ArrayList<BaseFetchException>();
+        private int _numStarted = 0;
+        private int _numProcessed = -1;
+        private CountDownLatch _done = new CountDownLatch(1);
+        
+        @Override
+        public synchronized void fetchStarting(ScoredUrlDatum scoredUrl) {
+            _numStarted += 1;
+        }
+
+        @Override
+        public synchronized void fetchSucceeded(ScoredUrlDatum scoredUrl, FetchedDatum result, long fetchTime) {
+            _results.add(result);
+        }
+
+        @Override
+        public synchronized void fetchFailed(ScoredUrlDatum scoredUrl, BaseFetchException e, long fetchTime) {
+            _failures.add(e);
+        }
+
+        @Override
+        public synchronized void batchFinished(int numProcessed) {
+            _numProcessed = numProcessed;
+            _done.countDown();
+        }
+        
+        public boolean await(long timeout) throws InterruptedException {
+            return _done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+    }
+    
+    @Test
+    public final void testConnectionRefused() throws Exception {
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8088/simple-page.html";
+        
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception not thrown");
+        } catch (IOFetchException e) {
+            // valid
+        }
+    }
+    
+    @Test
+    public final void testSimpleFetch() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/simple-page.html";
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+        
+        assertEquals(url, result.getUrl());
+        assertEquals(url, result.getFetchedUrl());
+        assertTrue(result.getContentLength() > 0);
+        assertEquals("text/html", result.getHeaders().getFirst(HttpHeaderNames.CONTENT_TYPE));
+        assertEquals("127.0.0.1", result.getHostAddress());
+    }
+    
+    @Test
+    public final void testMissingPage() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/no-such-page.html";
+        
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception not thrown");
+        } catch (HttpFetchException e) {
+            assertEquals(HttpStatus.SC_NOT_FOUND, e.getHttpStatus());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testConcurrentFetches() throws Exception {
+        Server server = startServer(new RandomResponseHandler(10000, 500), 8089);
+        
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(FetcherPolicy.NO_MIN_RESPONSE_RATE);
+        final BaseFetcher fetcher = new NioHttpFetcher(10, policy, ConfigUtils.BIXO_TEST_AGENT);
+        
+        final int numThreads = 10;
+        final int[] sizes = new int[numThreads];
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            final int index = i;
+            threads[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        sizes[index] = fetcher.get(new ScoredUrlDatum("http://localhost:8089/page-" + index + ".html")).getContentLength();
+                    } catch (Exception e) {
+                        sizes[index] = -1;
+                    }
+                }
+            });
+            
+            threads[i].start();
+        }
+        
+        // All requests share the same reactor threads, so they should all be running
+        // at the same time - if they were serialized this would take 5+ seconds.
+        long startTime = System.currentTimeMillis();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long duration = System.currentTimeMillis() - startTime;
+        server.stop();
+        
+        for (int size : sizes) {
+            assertEquals(10000, size);
+        }
+        
+        assertTrue("Fetches should run in parallel", duration < 4000);
+    }
+    
+    @Test
+    public final void testAsyncBatch() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        assertTrue(fetcher.isAsynchronous());
+        
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        urls.add(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+        urls.add(new ScoredUrlDatum("http://localhost:8089/no-such-page.html"));
+        urls.add(new ScoredUrlDatum("http://localhost:8089/karlie.html"));
+        
+        BatchListener listener = new BatchListener();
+        long startTime = System.currentTimeMillis();
+        
+        try {
+            fetcher.getAsync(urls, 100, listener);
+            assertTrue("Batch should finish", listener.await(10 * 1000L));
+        } finally {
+            server.stop();
+        }
+        
+        synchronized (listener) {
+            assertEquals(3, listener._numProcessed);
+            assertEquals(3, listener._numStarted);
+            assertEquals(2, listener._results.size());
+            assertEquals("http://localhost:8089/simple-page.html", listener._results.get(0).getUrl());
+            assertEquals("http://localhost:8089/karlie.html", listener._results.get(1).getUrl());
+            assertEquals(1, listener._failures.size());
+            assertTrue(listener._failures.get(0) instanceof HttpFetchException);
+        }
+        
+        assertTrue("Requests should be spaced out", System.currentTimeMillis() - startTime >= 200);
+    }
+    
+    @Test
+    public final void testFetchTimeout() throws Exception {
+        // 20K bytes over 10 seconds, with no min response rate, so only the fetch
+        // timeout will stop the fetch.
+        Server server = startServer(new RandomResponseHandler(20000, 10 * 1000L), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(FetcherPolicy.NO_MIN_RESPONSE_RATE);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setFetchTimeout(1000);
+
+        String url = "http://localhost:8089/test.html";
+        
+        try {
+            long startTime = System.currentTimeMillis();
+            
+            try {
+                fetcher.get(new ScoredUrlDatum(url));
+                fail("Exception not thrown");
+            } catch (IOFetchException e) {
+                assertTrue(e.getCause() instanceof SocketTimeoutException);
+            }
+            
+            assertTrue("Fetch should time out", System.currentTimeMillis() - startTime < 5000);
+
+            List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+            urls.add(new ScoredUrlDatum(url));
+            BatchListener listener = new BatchListener();
+            fetcher.getAsync(urls, 0, listener);
+            assertTrue("Batch should finish", listener.await(5000));
+            
+            synchronized (listener) {
+                assertEquals(1, listener._numProcessed);
+                assertEquals(1, listener._failures.size());
+                assertTrue(listener._failures.get(0).getCause() instanceof SocketTimeoutException);
+            }
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testAbortAsyncBatch() throws Exception {
+        Server server = startServer(new RandomResponseHandler(20000, 10 * 1000L), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(FetcherPolicy.NO_MIN_RESPONSE_RATE);
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        urls.add(new ScoredUrlDatum("http://localhost:8089/page-1.html"));
+        urls.add(new ScoredUrlDatum("http://localhost:8089/page-2.html"));
+        BatchListener listener = new BatchListener();
+        
+        try {
+            fetcher.getAsync(urls, 0, listener);
+            Thread.sleep(500);
+            fetcher.abort();
+            assertTrue("Batch should finish", listener.await(5000));
+        } finally {
+            server.stop();
+        }
+        
+        synchronized (listener) {
+            assertEquals(1, listener._numProcessed);
+            assertEquals(1, listener._failures.size());
+            AbortedFetchException e = (AbortedFetchException)listener._failures.get(0);
+            assertEquals(AbortedFetchReason.INTERRUPTED, e.getAbortReason());
+        }
+    }
+    
+    @Test
+    public final void testSlowServerTermination() throws Exception {
+        // Same setup as SimpleHttpFetcherTest - 20K bytes over 2 seconds,
+        // versus a minimum rate of 20K bytes/second. The read time starts when we
+        // get the response headers, so the server has to send them right away.
+        Server server = startServer(new SlowResponseHandler(20000, 0, 2 * 1000L), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(20000);
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        String url = "http://localhost:8089/test.html";
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.SLOW_RESPONSE_RATE, e.getAbortReason());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testSlowResponseStart() throws Exception {
+        // 50K bytes in 200ms is well over the minimum response rate, but if the two
+        // seconds we wait for the response were counted, the rate would be too low.
+        Server server = startServer(new SlowResponseHandler(50000, 2 * 1000L, 200L), 8089);
+
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setMinResponseRate(20000);
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+
+        String url = "http://localhost:8089/test.html";
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+            assertEquals(50000, result.getContentLength());
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    public final void testTruncation() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+
+        BaseFetcher fetcher = new NioHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setDefaultMaxContentSize(1000);
+        fetcher.setMaxContentSize("image/png", 5000);
+        
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/karlie.html"));
+        assertEquals(1000, result.getContentLength());
+
+        ScoredUrlDatum datumToFetch = new ScoredUrlDatum("http://localhost:8089/bixolabs_mining.png");
+        result = fetcher.get(datumToFetch);
+        assertTrue(result.getContentLength() > 1000);
+        
+        fetcher.setMaxContentSize("image/png", 1500);
+        try {
+            fetcher.get(datumToFetch);
+            fail("Aborted fetch exception not thrown");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.CONTENT_SIZE, e.getAbortReason());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testTempRedirectHandling() throws Exception {
+        Server server = startServer(new RedirectResponseHandler(false), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/base";
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+
+        assertEquals("Redirected URL", "http://localhost:8089/redirect", result.getFetchedUrl());
+        assertNull(result.getNewBaseUrl());
+        assertEquals(1, result.getNumRedirects());
+    }
+    
+    @Test
+    public final void testPermRedirectHandling() throws Exception {
+        Server server = startServer(new RedirectResponseHandler(true), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/base";
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+        server.stop();
+
+        assertEquals("Redirected URL", "http://localhost:8089/redirect", result.getFetchedUrl());
+        assertEquals("New base URL", "http://localhost:8089/redirect", result.getNewBaseUrl());
+        assertEquals(1, result.getNumRedirects());
+    }
+    
+    @Test
+    public final void testRedirectLoop() throws Exception {
+        Server server = startServer(new RedirectResponseHandler(false), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/loop";
+        
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception should have been thrown");
+        } catch (RedirectFetchException e) {
+            assertEquals(RedirectExceptionReason.TOO_MANY_REDIRECTS, e.getReason());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testRedirectPolicy() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        policy.setRedirectMode(RedirectMode.FOLLOW_TEMP);
+        Server server = startServer(new RedirectResponseHandler(true), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/base";
+        
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception should have been thrown");
+        } catch (RedirectFetchException e) {
+            assertEquals("Redirected URL", "http://localhost:8089/redirect", e.getRedirectedUrl());
+            assertEquals(RedirectExceptionReason.PERM_REDIRECT_DISALLOWED, e.getReason());
+        } finally {
+            server.stop();
+        }
+        
+        policy.setRedirectMode(RedirectMode.FOLLOW_NONE);
+        server = startServer(new RedirectResponseHandler(false), 8089);
+        fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Exception should have been thrown");
+        } catch (RedirectFetchException e) {
+            assertEquals("Redirected URL", "http://localhost:8089/redirect", e.getRedirectedUrl());
+            assertEquals(RedirectExceptionReason.TEMP_REDIRECT_DISALLOWED, e.getReason());
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testMimeTypeFiltering() throws Exception {
+        FetcherPolicy policy = new FetcherPolicy();
+        Set<String> validMimeTypes = new HashSet<String>();
+        validMimeTypes.add("text/html");
+        policy.setValidMimeTypes(validMimeTypes);
+
+        Server server = startServer(new MimeTypeResponseHandler("text/xml"), 8089);
+        BaseFetcher fetcher = new NioHttpFetcher(1, policy, ConfigUtils.BIXO_TEST_AGENT);
+        String url = "http://localhost:8089/";
+        
+        try {
+            fetcher.get(new ScoredUrlDatum(url));
+            fail("Fetch should have failed");
+        } catch (AbortedFetchException e) {
+            assertEquals(AbortedFetchReason.INVALID_MIMETYPE, e.getAbortReason());
+        } finally {
+            server.stop();
+        }
+        
+        server = startServer(new MimeTypeResponseHandler("text/html; charset=UTF-8"), 8089);
+        try {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum(url));
+            assertNotNull(result);
+        } finally {
+            server.stop();
+        }
+    }
+    
+    @Test
+    public final void testSettingsAfterInit() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        NioHttpFetcher fetcher = new NioHttpFetcher(1, ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setSocketTimeout(10 * 1000);
+        fetcher.get(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+        server.stop();
+        
+        try {
+            fetcher.setSocketTimeout(20 * 1000);
+            fail("Exception should have been thrown");
+        } catch (IllegalStateException e) {
+            // valid
+        }
+    }
+}
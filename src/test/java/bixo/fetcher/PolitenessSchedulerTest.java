@@ -0,0 +1,116 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.fetcher;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class PolitenessSchedulerTest {
+
+    @Test
+    public void testRefStates() {
+        PolitenessScheduler scheduler = new PolitenessScheduler();
+
+        assertEquals(0, scheduler.getFetchTime("ref"));
+        assertTrue(scheduler.isReady("ref"));
+
+        long nextFetchTime = System.currentTimeMillis() + 100000L;
+        scheduler.makeActive("ref", nextFetchTime);
+        assertTrue(scheduler.isActive("ref"));
+        assertFalse(scheduler.isReady("ref"));
+        assertEquals(PolitenessScheduler.ACTIVE_FETCH_TIME, scheduler.getFetchTime("ref"));
+
+        scheduler.adjustActive("ref", 10);
+        assertEquals(nextFetchTime + 10, scheduler.finished("ref"));
+        assertFalse(scheduler.isActive("ref"));
+        assertFalse(scheduler.isReady("ref"));
+        assertEquals(nextFetchTime + 10, scheduler.getFetchTime("ref"));
+
+        // Last batch, so once it's done the ref is ready again.
+        scheduler.makeActive("ref", 0);
+        assertEquals(0, scheduler.finished("ref"));
+        assertTrue(scheduler.isReady("ref"));
+    }
+
+    @Test
+    public void testFinishingNonActiveRef() {
+        PolitenessScheduler scheduler = new PolitenessScheduler();
+
+        try {
+            scheduler.finished("ref");
+            fail("Should have thrown exception");
+        } catch (RuntimeException e) {
+            // valid
+        }
+    }
+
+    @Test
+    public void testWaitingUntilReady() throws Exception {
+        PolitenessScheduler scheduler = new PolitenessScheduler();
+
+        long startTime = System.currentTimeMillis();
+        assertFalse(scheduler.waitUntil(startTime + 100, 10000));
+        long deltaTime = System.currentTimeMillis() - startTime;
+        assertTrue(deltaTime >= 100);
+        assertTrue(deltaTime < 1000);
+
+        // Max wait time limits how long we wait.
+        startTime = System.currentTimeMillis();
+        assertFalse(scheduler.waitUntil(Long.MAX_VALUE, 100));
+        deltaTime = System.currentTimeMillis() - startTime;
+        assertTrue(deltaTime >= 100);
+        assertTrue(deltaTime < 1000);
+    }
+
+    @Test
+    public void testWakingUp() throws Exception {
+        final PolitenessScheduler scheduler = new PolitenessScheduler();
+        scheduler.makeActive("ref", 0);
+
+        Thread t = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                } catch (InterruptedException e) {
+                    // Ignore
+                }
+
+                scheduler.finished("ref");
+                scheduler.wakeUp();
+            }
+        });
+
+        long startTime = System.currentTimeMillis();
+        t.start();
+        assertTrue(scheduler.waitUntil(Long.MAX_VALUE, 10000));
+        long deltaTime = System.currentTimeMillis() - startTime;
+        assertTrue(deltaTime < 5000);
+        assertTrue(scheduler.isReady("ref"));
+        t.join();
+
+        // A wakeup with nobody waiting means the next wait returns immediately, but only once.
+        scheduler.wakeUp();
+        assertTrue(scheduler.waitUntil(Long.MAX_VALUE, 10000));
+        assertFalse(scheduler.waitUntil(0, 10000));
+    }
+}
@@ -17,13 +17,22 @@
 package bixo.fetcher;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.ByteArrayInputStream;
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
 import java.util.Set;
 
 import javax.servlet.http.HttpServletRequest;
@@ -44,10 +53,12 @@ import org.mortbay.jetty.handler.AbstractHandler;
 
 import bixo.config.FetcherPolicy;
 import bixo.config.FetcherPolicy.RedirectMode;
+import bixo.datum.ContentBytes;
 import bixo.datum.FetchedDatum;
 import bixo.datum.ScoredUrlDatum;
 import bixo.exceptions.AbortedFetchException;
 import bixo.exceptions.AbortedFetchReason;
+import bixo.exceptions.BaseFetchException;
 import bixo.exceptions.IOFetchException;
 import bixo.exceptions.RedirectFetchException;
 import bixo.exceptions.RedirectFetchException.RedirectExceptionReason;
@@ -147,6 +158,84 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         }
     }
 
+    private class GzipResponseHandler extends AbstractHandler {
+        
+        private byte[] _compressed;
+        
+        public GzipResponseHandler(byte[] content) throws IOException {
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            GZIPOutputStream gos = new GZIPOutputStream(bos);
+            gos.write(content);
+            gos.close();
+            _compressed = bos.toByteArray();
+        }
+
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/html");
+            response.setHeader(HttpHeaderNames.CONTENT_ENCODING, "gzip");
+            response.setContentLength(_compressed.length);
+            response.getOutputStream().write(_compressed);
+        }
+    }
+
+    private class ConnectionTrackingHandler extends AbstractHandler {
+        
+        private Set<Integer> _remotePorts = new HashSet<Integer>();
+        private List<String> _connectionHeaders = new ArrayList<String>();
+        
+        @Override
+        public void handle(String pathInContext, HttpServletRequest request, HttpServletResponse response, int dispatch) throws HttpException, IOException {
+            synchronized (this) {
+                _remotePorts.add(request.getRemotePort());
+                _connectionHeaders.add(request.getHeader("Connection"));
+            }
+            
+            String content = "test";
+            response.setStatus(HttpStatus.SC_OK);
+            response.setContentType("text/plain");
+            response.setContentLength(content.length());
+            response.getOutputStream().write(content.getBytes());
+        }
+        
+        public synchronized Set<Integer> getRemotePorts() {
+            return _remotePorts;
+        }
+        
+        public synchronized List<String> getConnectionHeaders() {
+            return _connectionHeaders;
+        }
+    }
+    
+    private static class ResultsListener implements IBatchFetchListener {
+        
+        private List<FetchedDatum> _results = new ArrayList<FetchedDatum>();
+        private List<BaseFetchException> _failures = new ArrayList<BaseFetchException>();
+        private int _numStarted = 0;
+        private int _numProcessed = -1;
+        
+        @Override
+        public void fetchStarting(ScoredUrlDatum scoredUrl) {
+            _numStarted += 1;
+        }
+
+        @Override
+        public void fetchSucceeded(ScoredUrlDatum scoredUrl, FetchedDatum result, long fetchTime) {
+            _results.add(result);
+        }
+
+        @Override
+        public void fetchFailed(ScoredUrlDatum scoredUrl, BaseFetchException e, long fetchTime) {
+            _failures.add(e);
+        }
+
+        @Override
+        public void batchFinished(int numProcessed) {
+            _numProcessed = numProcessed;
+        }
+    }
+    
     @Test
     public final void testConnectionTimeout() throws Exception {
         Server server = startServer(new ResourcesResponseHandler(), 8089);
@@ -472,4 +561,186 @@ public class SimpleHttpFetcherTest extends SimulationWebServer {
         assertEquals(acceptEncoding, fetcher.getAcceptEncoding());
     }
     
+    @Test
+    public final void testContentSpilling() throws Exception {
+        Server server = startServer(new RandomResponseHandler(50000, 100), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setContentSpillThreshold(10000);
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/test.html"));
+        server.stop();
+        
+        ContentBytes content = result.getContent();
+        assertTrue(content.isSpilled());
+        File spillFile = content.getSpillFile();
+        assertEquals(50000, spillFile.length());
+        assertEquals(50000, result.getContentLength());
+        
+        // Serializing the content shouldn't load it, and should give us the same bytes.
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        content.write(new DataOutputStream(bos));
+        assertTrue(content.isSpilled());
+        
+        ContentBytes copy = new ContentBytes();
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertEquals(content, copy);
+        assertTrue(!content.isSpilled());
+        
+        content.releaseSpillFile(true);
+        assertTrue(!spillFile.exists());
+        assertEquals(50000, content.getLength());
+    }
+    
+    @Test
+    public final void testContentNotSpilled() throws Exception {
+        Server server = startServer(new RandomResponseHandler(5000, 100), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setContentSpillThreshold(10000);
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/test.html"));
+        server.stop();
+        
+        assertTrue(!result.getContent().isSpilled());
+        assertEquals(5000, result.getContentLength());
+    }
+    
+    @Test
+    public final void testSpilledGzipContent() throws Exception {
+        StringBuilder text = new StringBuilder();
+        while (text.length() < 100000) {
+            text.append("Now is the time for all good men to come to the aid of their country. ");
+        }
+        
+        byte[] expected = text.toString().getBytes("us-ascii");
+        Server server = startServer(new GzipResponseHandler(expected), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        fetcher.setDefaultMaxContentSize(expected.length * 2);
+        
+        // Compressed size is small, so only the expanded content gets spilled.
+        fetcher.setContentSpillThreshold(50000);
+        FetchedDatum result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/test.html"));
+        assertTrue(result.getContent().isSpilled());
+        assertEquals(expected.length, result.getContentLength());
+        assertEquals(new ContentBytes(expected), result.getContent());
+        
+        // Now force the compressed content to get spilled as well.
+        fetcher.setContentSpillThreshold(100);
+        result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/test.html"));
+        server.stop();
+        
+        assertTrue(result.getContent().isSpilled());
+        assertEquals(new ContentBytes(expected), result.getContent());
+    }
+    
+    @Test
+    public final void testBufferReuse() throws Exception {
+        Server server = startServer(new RandomResponseHandler(20000, 100), 8089);
+        SimpleHttpFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        
+        for (int i = 0; i < 10; i++) {
+            FetchedDatum result = fetcher.get(new ScoredUrlDatum("http://localhost:8089/test-" + i + ".html"));
+            assertEquals(20000, result.getContentLength());
+        }
+        
+        server.stop();
+        
+        // With one thread, we should only ever need one read buffer and one content buffer.
+        assertEquals(1, fetcher.getReadBufferPool().getAllocatedCount());
+        assertEquals(9, fetcher.getReadBufferPool().getReusedCount());
+        assertEquals(1, fetcher.getContentBufferPool().getAllocatedCount());
+        assertEquals(9, fetcher.getContentBufferPool().getReusedCount());
+    }
+    
+    @Test
+    public final void testBatchFetchUsesOneConnection() throws Exception {
+        ConnectionTrackingHandler handler = new ConnectionTrackingHandler();
+        Server server = startServer(handler, 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        for (int i = 0; i < 5; i++) {
+            urls.add(new ScoredUrlDatum("http://localhost:8089/page-" + i + ".html"));
+        }
+        
+        ResultsListener listener = new ResultsListener();
+        int numProcessed = fetcher.get(urls, 0, listener);
+        server.stop();
+        
+        assertEquals(5, numProcessed);
+        assertEquals(5, listener._numStarted);
+        assertEquals(5, listener._results.size());
+        assertEquals(0, listener._failures.size());
+        assertEquals("http://localhost:8089/page-3.html", listener._results.get(3).getUrl());
+        
+        // All requests should have come in on the same connection, and the last
+        // request should tell the server to close it.
+        assertEquals(1, handler.getRemotePorts().size());
+        assertEquals("close", handler.getConnectionHeaders().get(4).toLowerCase());
+        assertFalse("close".equalsIgnoreCase(handler.getConnectionHeaders().get(0)));
+    }
+    
+    @Test
+    public final void testBatchFetchDelay() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        urls.add(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+        urls.add(new ScoredUrlDatum("http://localhost:8089/no-such-page.html"));
+        urls.add(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+        
+        ResultsListener listener = new ResultsListener();
+        long startTime = System.currentTimeMillis();
+        fetcher.get(urls, 500, listener);
+        long duration = System.currentTimeMillis() - startTime;
+        server.stop();
+        
+        assertEquals(2, listener._results.size());
+        assertEquals(1, listener._failures.size());
+        assertTrue("Requests should be delayed", duration >= 1000);
+    }
+    
+    @Test
+    public final void testGetAsync() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        assertFalse(fetcher.isAsynchronous());
+        
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        urls.add(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+        urls.add(new ScoredUrlDatum("http://localhost:8089/no-such-page.html"));
+        
+        // We don't support asynchronous fetching, so the batch is done by the time it returns.
+        ResultsListener listener = new ResultsListener();
+        try {
+            fetcher.getAsync(urls, 0, listener);
+        } finally {
+            server.stop();
+        }
+        
+        assertEquals(2, listener._numProcessed);
+        assertEquals(1, listener._results.size());
+        assertEquals(1, listener._failures.size());
+    }
+    
+    @Test
+    public final void testBatchFetchInterrupted() throws Exception {
+        Server server = startServer(new ResourcesResponseHandler(), 8089);
+        BaseFetcher fetcher = new SimpleHttpFetcher(1, new FetcherPolicy(), ConfigUtils.BIXO_TEST_AGENT);
+        
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        urls.add(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+        urls.add(new ScoredUrlDatum("http://localhost:8089/simple-page.html"));
+        
+        ResultsListener listener = new ResultsListener();
+        Thread.currentThread().interrupt();
+        
+        try {
+            assertEquals(0, fetcher.get(urls, 0, listener));
+            assertTrue(Thread.interrupted());
+        } finally {
+            server.stop();
+        }
+        
+        assertEquals(0, listener._numStarted);
+    }
+    
 }
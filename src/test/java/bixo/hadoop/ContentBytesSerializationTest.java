@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.junit.Test;
+
+import bixo.datum.ContentBytes;
+
+public class ContentBytesSerializationTest {
+
+    private static byte[] serialize(ContentBytes content) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        new ContentBytesSerialization().write(content, out);
+        byte[] result = new byte[out.getLength()];
+        System.arraycopy(out.getData(), 0, result, 0, result.length);
+        return result;
+    }
+    
+    @Test
+    public void testRoundTripAndReuse() throws Exception {
+        ContentBytesSerialization serialization = new ContentBytesSerialization();
+        byte[] bytes = serialize(new ContentBytes("some content".getBytes("UTF-8")));
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, bytes.length);
+        ContentBytes result = serialization.read(null, in);
+        assertEquals("some content", new String(result.getBuffer(), result.getOffset(), result.getLength(), "UTF-8"));
+        
+        byte[] buffer = result.getBuffer();
+        bytes = serialize(new ContentBytes("less".getBytes("UTF-8")));
+        in.reset(bytes, bytes.length);
+        ContentBytes reused = serialization.read(result, in);
+        assertSame(result, reused);
+        assertSame(buffer, reused.getBuffer());
+        assertEquals(4, reused.getLength());
+    }
+    
+    @Test
+    public void testRawComparator() throws Exception {
+        RawComparator<ContentBytes> comparator = new ContentBytesSerialization().getRawComparator();
+        ContentBytes[] contents = {
+            new ContentBytes(new byte[0]),
+            new ContentBytes(new byte[] { 1, 2 }),
+            new ContentBytes(new byte[] { 1, 2, 3 }),
+            new ContentBytes(new byte[] { 2 }),
+        };
+        
+        for (int i = 0; i < contents.length; i++) {
+            byte[] iBytes = serialize(contents[i]);
+            for (int j = 0; j < contents.length; j++) {
+                byte[] jBytes = serialize(contents[j]);
+                int expected = Integer.signum(i - j);
+                assertEquals(expected, Integer.signum(comparator.compare(iBytes, 0, iBytes.length, jBytes, 0, jBytes.length)));
+                assertEquals(expected, Integer.signum(comparator.compare(contents[i], contents[j])));
+            }
+        }
+    }
+}
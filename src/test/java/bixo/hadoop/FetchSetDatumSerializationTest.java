@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.junit.Test;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+import bixo.utils.DiskQueue;
+import bixo.utils.SerializationQueueCodec;
+
+public class FetchSetDatumSerializationTest {
+
+    private static FetchSetDatum makeFetchSet(int numUrls, long fetchTime, int groupingKey) {
+        List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>();
+        for (int i = 0; i < numUrls; i++) {
+            urls.add(new ScoredUrlDatum("http://domain.com/page-" + i, "key", UrlStatus.UNFETCHED, 1.0));
+        }
+        
+        return new FetchSetDatum(urls, fetchTime, 1000, groupingKey, "ref-" + groupingKey);
+    }
+    
+    private static byte[] serialize(FetchSetDatum datum) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        new FetchSetDatumSerialization().write(datum, out);
+        byte[] result = new byte[out.getLength()];
+        System.arraycopy(out.getData(), 0, result, 0, result.length);
+        return result;
+    }
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        FetchSetDatum datum = makeFetchSet(3, 12345678L, -7);
+        datum.setLastList(true);
+        
+        byte[] bytes = serialize(datum);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, bytes.length);
+        FetchSetDatum result = new FetchSetDatumSerialization().read(null, in);
+        
+        assertEquals(12345678L, result.getFetchTime());
+        assertEquals(1000, result.getFetchDelay());
+        assertEquals(-7, result.getGroupingKey());
+        assertEquals("ref--7", result.getGroupingRef());
+        assertTrue(result.isLastList());
+        assertFalse(result.isSkipped());
+        assertEquals(3, result.getNumUrls());
+        assertEquals("http://domain.com/page-2", result.getUrls().get(2).getUrl());
+        assertEquals(datum, result);
+    }
+    
+    @Test
+    public void testRawComparator() throws Exception {
+        RawComparator<FetchSetDatum> comparator = new FetchSetDatumSerialization().getRawComparator();
+        FetchSetDatum[] datums = {
+            makeFetchSet(1, 2000, -1),
+            makeFetchSet(1, 1000, 1),
+            makeFetchSet(2, 1000000, 1),
+            makeFetchSet(1, 0, 1000),
+        };
+        
+        for (int i = 0; i < datums.length; i++) {
+            byte[] iBytes = serialize(datums[i]);
+            for (int j = 0; j < datums.length; j++) {
+                byte[] jBytes = serialize(datums[j]);
+                int expected = Integer.signum(i - j);
+                assertEquals(expected, Integer.signum(comparator.compare(iBytes, 0, iBytes.length, jBytes, 0, jBytes.length)));
+                assertEquals(expected, Integer.signum(comparator.compare(datums[i], datums[j])));
+            }
+        }
+    }
+    
+    @Test
+    public void testQueueCodec() throws Exception {
+        DiskQueue<FetchSetDatum> queue = new DiskQueue<FetchSetDatum>(1);
+        queue.setCodec(new SerializationQueueCodec<FetchSetDatum>(new FetchSetDatumSerialization()));
+        
+        for (int i = 0; i < 10; i++) {
+            assertTrue(queue.offer(makeFetchSet(i + 1, i, i)));
+        }
+        
+        for (int i = 0; i < 10; i++) {
+            FetchSetDatum datum = queue.poll();
+            assertEquals(i, datum.getGroupingKey());
+            assertEquals(i + 1, datum.getUrls().size());
+        }
+        
+        assertNull(queue.poll());
+    }
+}
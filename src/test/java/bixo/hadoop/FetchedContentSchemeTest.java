@@ -0,0 +1,197 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+import org.junit.Test;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+
+
+public class FetchedContentSchemeTest {
+
+    private static final int NUM_RECORDS = 100;
+    
+    private static FetchedDatum makeDatum(int index) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Type", "text/html; charset=utf-8");
+        headers.add("Server", "Apache");
+        headers.add("X-Custom", "value-" + index);
+        headers.add("Set-Cookie", "a=1");
+        headers.add("Set-Cookie", "b=2");
+        
+        String url = "http://domain" + (index % 5) + ".com/page-" + index + ".html";
+        String content = "<html><body>Page " + index + "</body></html>";
+        FetchedDatum result = new FetchedDatum(url, url + "?redirected", 1000L + index, headers, new ContentBytes(content.getBytes()), "text/html", 10000);
+        result.setNumRedirects(1);
+        result.setHostAddress("127.0.0." + index);
+        return result;
+    }
+    
+    private static Path writeRecords(JobConf conf, File dir) throws IOException {
+        FileUtils.deleteDirectory(dir);
+        Path file = new Path(new File(dir, "part-00000").getAbsolutePath());
+        FileSystem fs = FileSystem.getLocal(conf);
+        final SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file, FetchedContentKey.class, FetchedContentValue.class,
+                        CompressionType.BLOCK, ReflectionUtils.newInstance(DefaultCodec.class, conf));
+        
+        OutputCollector<FetchedContentKey, FetchedContentValue> collector = new OutputCollector<FetchedContentKey, FetchedContentValue>() {
+
+            @Override
+            public void collect(FetchedContentKey key, FetchedContentValue value) throws IOException {
+                writer.append(key, value);
+            }
+        };
+        
+        FetchedContentScheme scheme = new FetchedContentScheme();
+        for (int i = 0; i < NUM_RECORDS; i++) {
+            scheme.sink(makeDatum(i).getTupleEntry(), collector);
+        }
+        
+        writer.close();
+        return file;
+    }
+    
+    @Test
+    public void testSinkAndSource() throws Exception {
+        JobConf conf = new JobConf();
+        File dir = new File("build/test/FetchedContentSchemeTest/testSinkAndSource");
+        Path file = writeRecords(conf, dir);
+        
+        FileSplit split = new FileSplit(file, 0, FileSystem.getLocal(conf).getFileStatus(file).getLen(), (String[])null);
+        RecordReader<FetchedContentKey, FetchedContentValue> reader = new SequenceFileInputFormat<FetchedContentKey, FetchedContentValue>().getRecordReader(split, conf, Reporter.NULL);
+        FetchedContentKey key = reader.createKey();
+        FetchedContentValue value = reader.createValue();
+        FetchedContentScheme scheme = new FetchedContentScheme();
+        
+        int numRecords = 0;
+        while (reader.next(key, value)) {
+            FetchedDatum expected = makeDatum(numRecords++);
+            FetchedDatum actual = new FetchedDatum(scheme.source(key, value));
+            
+            assertEquals(expected.getUrl(), actual.getUrl());
+            assertEquals(expected.getFetchedUrl(), actual.getFetchedUrl());
+            assertNull(actual.getNewBaseUrl());
+            assertEquals(expected.getFetchTime(), actual.getFetchTime());
+            assertEquals(expected.getContentType(), actual.getContentType());
+            assertEquals(expected.getResponseRate(), actual.getResponseRate());
+            assertEquals(1, actual.getNumRedirects());
+            assertEquals(expected.getHostAddress(), actual.getHostAddress());
+            assertEquals(expected.getContent(), actual.getContent());
+            
+            HttpHeaders headers = actual.getHeaders();
+            assertEquals("text/html; charset=utf-8", headers.getFirst("content-type"));
+            assertEquals("Apache", headers.getFirst("server"));
+            assertEquals(expected.getHeaders().getFirst("x-custom"), headers.getFirst("x-custom"));
+            assertEquals(2, headers.getAll("set-cookie").size());
+        }
+        
+        reader.close();
+        assertEquals(NUM_RECORDS, numRecords);
+    }
+    
+    @Test
+    public void testSummaryOnly() throws Exception {
+        JobConf conf = new JobConf();
+        File dir = new File("build/test/FetchedContentSchemeTest/testSummaryOnly");
+        Path file = writeRecords(conf, dir);
+        
+        FetchedContentScheme scheme = new FetchedContentScheme(false);
+        scheme.sourceInit(null, conf);
+        assertEquals(FetchedContentSummaryInputFormat.class, conf.getInputFormat().getClass());
+        
+        FileSplit split = new FileSplit(file, 0, FileSystem.getLocal(conf).getFileStatus(file).getLen(), (String[])null);
+        RecordReader<FetchedContentKey, FetchedContentValue> reader = new FetchedContentSummaryInputFormat().getRecordReader(split, conf, Reporter.NULL);
+        FetchedContentKey key = reader.createKey();
+        FetchedContentValue value = reader.createValue();
+        
+        int numRecords = 0;
+        while (reader.next(key, value)) {
+            FetchedDatum expected = makeDatum(numRecords++);
+            TupleEntry summary = new TupleEntry(FetchedContentScheme.SUMMARY_FIELDS, scheme.source(key, value));
+            
+            assertEquals(expected.getUrl(), summary.getString(FetchedDatum.URL_FN));
+            assertEquals(expected.getFetchTime(), summary.getLong(FetchedDatum.FETCH_TIME_FN));
+            assertEquals(expected.getContentLength(), summary.getInteger(FetchedContentScheme.CONTENT_LENGTH_FN));
+            
+            // The value never gets read.
+            assertEquals(0, value.getContent().getLength());
+        }
+        
+        reader.close();
+        assertEquals(NUM_RECORDS, numRecords);
+    }
+    
+    @Test
+    public void testKeyValueTypes() throws Exception {
+        Tuple values = new Tuple("string", 1, 2L, 3.0, 4.0f, true, null, new Tuple("nested", 5), new ContentBytes(new byte[] { 1, 2 }));
+        FetchedContentKey key = new FetchedContentKey(values, 10);
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        key.write(new DataOutputStream(bos));
+        
+        FetchedContentKey copy = new FetchedContentKey();
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertEquals(values, copy.getValues());
+        assertEquals(10, copy.getContentLength());
+    }
+    
+    @Test
+    public void testHeaderDictionary() throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Type", "text/html");
+        headers.add("Connection", "close");
+        FetchedContentValue value = new FetchedContentValue(headers, new ContentBytes());
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        value.write(new DataOutputStream(bos));
+        
+        // version, header count, then two names & values that are each
+        // in the dictionary, then the content length.
+        assertEquals(1 + 1 + (2 * 3) + 4, bos.size());
+        
+        FetchedContentValue copy = new FetchedContentValue();
+        copy.readFields(new DataInputStream(new ByteArrayInputStream(bos.toByteArray())));
+        assertEquals("text/html", copy.getHeaders().getFirst("content-type"));
+        assertEquals("close", copy.getHeaders().getFirst("connection"));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.junit.Test;
+
+import bixo.datum.Outlink;
+import bixo.datum.ParsedDatum;
+import cascading.tuple.Tuple;
+
+public class OutlinkSerializationTest {
+
+    private static byte[] serialize(Outlink outlink) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        new OutlinkSerialization().write(outlink, out);
+        byte[] result = new byte[out.getLength()];
+        System.arraycopy(out.getData(), 0, result, 0, result.length);
+        return result;
+    }
+    
+    @Test
+    public void testRoundTrip() throws Exception {
+        Configuration conf = new Configuration();
+        SerializationUtils.addSerializations(conf);
+        SerializationFactory factory = new SerializationFactory(conf);
+        assertTrue(factory.getSerializer(Outlink.class) != null);
+        
+        // Rel attributes can be null.
+        Outlink outlink = new Outlink("http://domain.com/page", "anchor text");
+        byte[] bytes = serialize(outlink);
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(bytes, bytes.length);
+        Outlink result = new OutlinkSerialization().read(null, in);
+        assertEquals(outlink, result);
+        assertNull(result.getRelAttributes());
+        
+        outlink = new Outlink("http://domain.com/page", "anchor text", "nofollow");
+        bytes = serialize(outlink);
+        in.reset(bytes, bytes.length);
+        result = new OutlinkSerialization().read(result, in);
+        assertEquals("nofollow", result.getRelAttributes());
+    }
+    
+    @Test
+    public void testRawComparator() throws Exception {
+        RawComparator<Outlink> comparator = new OutlinkSerialization().getRawComparator();
+        Outlink[] outlinks = {
+            new Outlink("http://domain.com/a", "anchor a"),
+            new Outlink("http://domain.com/a", "anchor b", "nofollow"),
+            new Outlink("http://domain.com/b", ""),
+        };
+        
+        for (int i = 0; i < outlinks.length; i++) {
+            byte[] iBytes = serialize(outlinks[i]);
+            for (int j = 0; j < outlinks.length; j++) {
+                byte[] jBytes = serialize(outlinks[j]);
+                int expected = Integer.signum(i - j);
+                assertEquals(expected, Integer.signum(comparator.compare(iBytes, 0, iBytes.length, jBytes, 0, jBytes.length)));
+                assertEquals(expected, Integer.signum(comparator.compare(outlinks[i], outlinks[j])));
+            }
+        }
+    }
+    
+    @Test
+    public void testParsedDatumOutlinks() throws Exception {
+        Outlink[] outlinks = { new Outlink("http://domain.com/a", "a", "nofollow") };
+        ParsedDatum datum = new ParsedDatum("http://domain.com", null, "text", "en", "title", outlinks, null);
+        assertEquals(outlinks[0], datum.getOutlinks()[0]);
+        
+        // Make sure we can still handle the older format, with three strings per outlink.
+        Tuple legacyOutlinks = new Tuple("http://domain.com/b", "b", null);
+        datum.getTupleEntry().set(ParsedDatum.OUTLINKS_FN, legacyOutlinks);
+        Outlink[] result = datum.getOutlinks();
+        assertEquals(1, result.length);
+        assertEquals("http://domain.com/b", result[0].getToUrl());
+        assertEquals("b", result[0].getAnchor());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import static org.junit.Assert.*;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.RawComparator;
+import org.apache.hadoop.io.serializer.Deserializer;
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.Serializer;
+import org.junit.Test;
+
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+
+public class ScoredUrlDatumSerializationTest {
+
+    private static byte[] serialize(ScoredUrlDatum datum) throws Exception {
+        DataOutputBuffer out = new DataOutputBuffer();
+        new ScoredUrlDatumSerialization().write(datum, out);
+        byte[] result = new byte[out.getLength()];
+        System.arraycopy(out.getData(), 0, result, 0, result.length);
+        return result;
+    }
+    
+    @Test
+    public void testRoundTripViaFactory() throws Exception {
+        Configuration conf = new Configuration();
+        SerializationUtils.addSerializations(conf);
+        SerializationFactory factory = new SerializationFactory(conf);
+        
+        ScoredUrlDatum datum = new ScoredUrlDatum("http://domain.com/page", "1.2.3.4-30000", UrlStatus.SKIPPED_BY_SCORE, 0.5);
+        ScoredUrlDatum noGroupKey = new ScoredUrlDatum("http://domain.com/other", null, UrlStatus.UNFETCHED, 1.0);
+        
+        DataOutputBuffer out = new DataOutputBuffer();
+        Serializer<ScoredUrlDatum> serializer = factory.getSerializer(ScoredUrlDatum.class);
+        assertNotNull(serializer);
+        serializer.open(out);
+        serializer.serialize(datum);
+        serializer.serialize(noGroupKey);
+        
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(out.getData(), out.getLength());
+        Deserializer<ScoredUrlDatum> deserializer = factory.getDeserializer(ScoredUrlDatum.class);
+        deserializer.open(in);
+        
+        ScoredUrlDatum result = deserializer.deserialize(null);
+        assertEquals("http://domain.com/page", result.getUrl());
+        assertEquals("1.2.3.4-30000", result.getGroupKey());
+        assertEquals(UrlStatus.SKIPPED_BY_SCORE, result.getStatus());
+        assertEquals(0.5, result.getScore(), 0.0);
+        assertEquals(datum, result);
+        
+        result = deserializer.deserialize(result);
+        assertEquals("http://domain.com/other", result.getUrl());
+        assertNull(result.getGroupKey());
+        assertEquals(noGroupKey, result);
+    }
+    
+    @Test
+    public void testCompact() throws Exception {
+        String url = "http://domain.com/page";
+        String groupKey = "1.2.3.4-30000";
+        byte[] bytes = serialize(new ScoredUrlDatum(url, groupKey, UrlStatus.UNFETCHED, 1.0));
+        
+        // URL, flag + group key, status, score, empty payload tuple
+        int expectedSize = (1 + url.length()) + (1 + 1 + groupKey.length()) + 1 + 8;
+        assertTrue(bytes.length <= expectedSize + 4);
+    }
+    
+    @Test
+    public void testRawComparator() throws Exception {
+        RawComparator<ScoredUrlDatum> comparator = new ScoredUrlDatumSerialization().getRawComparator();
+        ScoredUrlDatum a = new ScoredUrlDatum("http://domain.com/a", "key2", UrlStatus.UNFETCHED, 2.0);
+        ScoredUrlDatum b = new ScoredUrlDatum("http://domain.com/b", "key1", UrlStatus.FETCHED, 1.0);
+        byte[] aBytes = serialize(a);
+        byte[] bBytes = serialize(b);
+        
+        assertTrue(comparator.compare(aBytes, 0, aBytes.length, bBytes, 0, bBytes.length) < 0);
+        assertTrue(comparator.compare(bBytes, 0, bBytes.length, aBytes, 0, aBytes.length) > 0);
+        assertEquals(0, comparator.compare(aBytes, 0, aBytes.length, aBytes, 0, aBytes.length));
+        assertTrue(comparator.compare(a, b) < 0);
+    }
+}
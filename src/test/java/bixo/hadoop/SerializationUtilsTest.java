@@ -0,0 +1,70 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.hadoop;
+
+import static org.junit.Assert.*;
+
+import java.util.Properties;
+
+import org.apache.hadoop.io.serializer.SerializationFactory;
+import org.apache.hadoop.io.serializer.WritableSerialization;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+
+import bixo.datum.Outlink;
+
+public class SerializationUtilsTest {
+
+    @Test
+    public void testAddingTokens() throws Exception {
+        Properties props = new Properties();
+        SerializationUtils.addSerializationTokens(props);
+        String tokens = props.getProperty(SerializationUtils.SERIALIZATION_TOKENS_PROPERTY);
+        assertTrue(tokens.startsWith("130=bixo.datum.HttpHeaders,"));
+        
+        // Adding again shouldn't create duplicates.
+        SerializationUtils.addSerializationTokens(props);
+        assertEquals(tokens, props.getProperty(SerializationUtils.SERIALIZATION_TOKENS_PROPERTY));
+    }
+    
+    @Test
+    public void testKeepingExistingTokens() throws Exception {
+        JobConf conf = new JobConf();
+        conf.set(SerializationUtils.SERIALIZATION_TOKENS_PROPERTY, "200=com.domain.MyWritable");
+        SerializationUtils.addSerializationTokens(conf);
+        assertTrue(conf.get(SerializationUtils.SERIALIZATION_TOKENS_PROPERTY).startsWith("200=com.domain.MyWritable,130=bixo.datum.HttpHeaders,"));
+    }
+    
+    @Test
+    public void testAddingSerializations() throws Exception {
+        Properties props = new Properties();
+        SerializationUtils.addSerializations(props);
+        String serializations = props.getProperty(SerializationUtils.SERIALIZATIONS_PROPERTY);
+        assertTrue(serializations.startsWith(ScoredUrlDatumSerialization.class.getName() + ","));
+        assertTrue(serializations.endsWith("," + WritableSerialization.class.getName()));
+        assertNotNull(props.getProperty(SerializationUtils.SERIALIZATION_TOKENS_PROPERTY));
+        
+        SerializationUtils.addSerializations(props);
+        assertEquals(serializations, props.getProperty(SerializationUtils.SERIALIZATIONS_PROPERTY));
+        
+        // Ours have to come before WritableSerialization, which would also accept Outlink.
+        JobConf conf = new JobConf();
+        SerializationUtils.addSerializations(conf);
+        SerializationFactory factory = new SerializationFactory(conf);
+        assertEquals(OutlinkSerialization.class, factory.getSerialization(Outlink.class).getClass());
+    }
+}
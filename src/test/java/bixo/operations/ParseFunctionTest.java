@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.mapred.JobConf;
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import bixo.config.ParserPolicy;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.Outlink;
+import bixo.datum.ParsedDatum;
+import bixo.parser.BaseParser;
+import cascading.flow.hadoop.HadoopFlowProcess;
+import cascading.operation.FunctionCall;
+import cascading.operation.OperationCall;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntry;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.NullContext;
+
+public class ParseFunctionTest {
+
+    private static final int NUM_DOCUMENTS = 200;
+
+    // Takes a random amount of time to parse, and fails for every tenth document.
+    @SuppressWarnings("serial")
+    private static class SlowParser extends BaseParser {
+        private boolean _throwError;
+        private transient Random _rand;
+
+        public SlowParser() {
+            this(false);
+        }
+
+        /**
+         * @param throwError true if failures should throw an Error, versus an Exception
+         */
+        public SlowParser(boolean throwError) {
+            super(new ParserPolicy());
+
+            _throwError = throwError;
+        }
+
+        @Override
+        public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
+            if (_rand == null) {
+                _rand = new Random();
+            }
+
+            Thread.sleep(_rand.nextInt(5));
+
+            String url = fetchedDatum.getUrl();
+            if (getDocumentNumber(url) % 10 == 0) {
+                if (_throwError) {
+                    throw new StackOverflowError("Can't parse " + url);
+                } else {
+                    throw new Exception("Can't parse " + url);
+                }
+            }
+
+            return new ParsedDatum(url, null, Thread.currentThread().getName(), "en", "title", new Outlink[0], null);
+        }
+    }
+
+    // Returns the content as the parsed text, after waiting a bit so the caller has
+    // moved on to the next document.
+    @SuppressWarnings("serial")
+    private static class ContentParser extends BaseParser {
+
+        public ContentParser() {
+            super(new ParserPolicy());
+        }
+
+        @Override
+        public ParsedDatum parse(FetchedDatum fetchedDatum) throws Exception {
+            Thread.sleep(5);
+
+            String content = new String(fetchedDatum.getContentBytes(), "UTF-8");
+            return new ParsedDatum(fetchedDatum.getUrl(), null, content, "en", "title", new Outlink[0], null);
+        }
+    }
+
+    private static int getDocumentNumber(String url) {
+        return Integer.parseInt(url.substring(url.lastIndexOf('/') + 1));
+    }
+
+    private static FetchedDatum makeDatum(int documentNumber) {
+        String url = "http://domain.com/" + documentNumber;
+        return new FetchedDatum(url, url, 0, new HttpHeaders(), new ContentBytes(), "text/html", 0);
+    }
+
+    private List<ParsedDatum> runParse(ParseFunction function) throws Exception {
+        return runParse(function, false);
+    }
+
+    /**
+     * Parse NUM_DOCUMENTS documents with <function>. If <spillContent> is true, then the
+     * content of document N is "N", in a spill file that gets released (without keeping
+     * the content) as soon as operate() returns.
+     */
+    @SuppressWarnings("unchecked")
+    private List<ParsedDatum> runParse(ParseFunction function, boolean spillContent) throws Exception {
+        HadoopFlowProcess fp = Mockito.mock(HadoopFlowProcess.class);
+        Mockito.when(fp.getJobConf()).thenReturn(new JobConf());
+
+        OperationCall<NullContext> oc = Mockito.mock(OperationCall.class);
+        FunctionCall<NullContext> fc = Mockito.mock(FunctionCall.class);
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+        Mockito.when(fc.getOutputCollector()).thenReturn(collector);
+
+        final List<ParsedDatum> results = Collections.synchronizedList(new ArrayList<ParsedDatum>());
+        Mockito.doAnswer(new Answer<Object>() {
+
+            @Override
+            public Object answer(InvocationOnMock invocation) throws Throwable {
+                Tuple tuple = (Tuple)invocation.getArguments()[0];
+                results.add(new ParsedDatum(new TupleEntry(ParsedDatum.FIELDS, tuple)));
+                return null;
+            }
+        }).when(collector).add(Mockito.any(Tuple.class));
+
+        function.prepare(fp, oc);
+        for (int i = 0; i < NUM_DOCUMENTS; i++) {
+            FetchedDatum datum = makeDatum(i);
+            if (spillContent) {
+                File spillFile = File.createTempFile("ParseFunctionTest", ".content");
+                byte[] content = Integer.toString(i).getBytes("UTF-8");
+                FileUtils.writeByteArrayToFile(spillFile, content);
+                datum.setContent(new ContentBytes(spillFile, content.length));
+            }
+
+            Mockito.when(fc.getArguments()).thenReturn(datum.getTupleEntry());
+            function.operate(fp, fc);
+            
+            datum.getContent().releaseSpillFile(false);
+        }
+        function.cleanup(fp, oc);
+
+        return results;
+    }
+
+    @Test
+    public void testSingleThreaded() throws Exception {
+        List<ParsedDatum> results = runParse(new ParseFunction(new SlowParser()));
+
+        assertEquals(NUM_DOCUMENTS - (NUM_DOCUMENTS / 10), results.size());
+        String threadName = Thread.currentThread().getName();
+        for (ParsedDatum result : results) {
+            assertEquals(threadName, result.getParsedText());
+        }
+    }
+
+    @Test
+    public void testMultiThreaded() throws Exception {
+        List<ParsedDatum> results = runParse(new ParseFunction(new SlowParser(), 4, 8, false));
+
+        assertEquals(NUM_DOCUMENTS - (NUM_DOCUMENTS / 10), results.size());
+
+        Set<Integer> documents = new HashSet<Integer>();
+        Set<String> threadNames = new HashSet<String>();
+        for (ParsedDatum result : results) {
+            documents.add(getDocumentNumber(result.getUrl()));
+            threadNames.add(result.getParsedText());
+        }
+
+        assertEquals(results.size(), documents.size());
+        assertTrue(threadNames.size() > 1);
+        assertTrue(threadNames.size() <= 4);
+    }
+
+    @Test
+    public void testPreservingOrder() throws Exception {
+        List<ParsedDatum> results = runParse(new ParseFunction(new SlowParser(), 4, 8, true));
+
+        assertEquals(NUM_DOCUMENTS - (NUM_DOCUMENTS / 10), results.size());
+
+        int lastDocument = -1;
+        for (ParsedDatum result : results) {
+            int document = getDocumentNumber(result.getUrl());
+            assertTrue(document > lastDocument);
+            lastDocument = document;
+        }
+    }
+
+    @Test
+    public void testSpilledContent() throws Exception {
+        List<ParsedDatum> results = runParse(new ParseFunction(new ContentParser(), 4, 8, false), true);
+
+        assertEquals(NUM_DOCUMENTS, results.size());
+        for (ParsedDatum result : results) {
+            assertEquals(Integer.toString(getDocumentNumber(result.getUrl())), result.getParsedText());
+        }
+    }
+
+    @Test(timeout = 30 * 1000L)
+    public void testErrorsWhileParsing() throws Exception {
+        List<ParsedDatum> results = runParse(new ParseFunction(new SlowParser(true), 4, 8, false));
+        assertEquals(NUM_DOCUMENTS - (NUM_DOCUMENTS / 10), results.size());
+
+        results = runParse(new ParseFunction(new SlowParser(true), 4, 8, true));
+        assertEquals(NUM_DOCUMENTS - (NUM_DOCUMENTS / 10), results.size());
+    }
+}
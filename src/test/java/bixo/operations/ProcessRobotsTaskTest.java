@@ -0,0 +1,73 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import java.util.LinkedList;
+import java.util.Queue;
+
+import org.junit.Test;
+import org.mockito.ArgumentMatcher;
+import org.mockito.Mockito;
+
+import bixo.datum.GroupedUrlDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.fetcher.BaseFetcher;
+import bixo.robots.SimpleRobotRulesParser;
+import bixo.utils.BaseHostResolver;
+import bixo.utils.GroupingKey;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+public class ProcessRobotsTaskTest {
+
+    private static class MatchGroupingKey extends ArgumentMatcher<Tuple> {
+        private String _key;
+        
+        public MatchGroupingKey(String key) {
+            _key = key;
+        }
+        
+        @Override
+        public boolean matches(Object argument) {
+            ScoredUrlDatum datum = new ScoredUrlDatum((Tuple)argument);
+            return datum.getGroupKey().equals(_key);
+        }
+    }
+    
+    @Test
+    public void testUnknownResolvedHost() throws Exception {
+        String key = GroupingKey.makeResolvedDomainKey("http://www.domain.com", null);
+        Queue<GroupedUrlDatum> urls = new LinkedList<GroupedUrlDatum>();
+        urls.add(new GroupedUrlDatum("http://www.domain.com/page.html", key));
+        
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+        TupleCollectorQueue output = new TupleCollectorQueue(collector);
+        
+        // We shouldn't try to resolve the host again, or fetch robots.txt.
+        BaseHostResolver resolver = Mockito.mock(BaseHostResolver.class);
+        BaseFetcher fetcher = Mockito.mock(BaseFetcher.class);
+        
+        new ProcessRobotsTask(key, new FixedScoreGenerator(1.0), urls, fetcher, new SimpleRobotRulesParser(), null,
+                        resolver, output, Mockito.mock(LoggingFlowProcess.class)).run();
+        output.close();
+        
+        Mockito.verifyZeroInteractions(resolver, fetcher);
+        Mockito.verify(collector).add(Mockito.argThat(new MatchGroupingKey(GroupingKey.UNKNOWN_HOST_GROUPING_KEY)));
+    }
+}
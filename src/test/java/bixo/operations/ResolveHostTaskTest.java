@@ -0,0 +1,124 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.UnknownHostException;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Queue;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import bixo.datum.GroupedUrlDatum;
+import bixo.utils.BaseHostResolver;
+import bixo.utils.GroupingKey;
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+import com.bixolabs.cascading.LoggingFlowProcess;
+
+public class ResolveHostTaskTest {
+
+    @SuppressWarnings("serial")
+    private static class StubResolver extends BaseHostResolver {
+        private int _numCalls = 0;
+        
+        @Override
+        public String resolve(String hostname) throws UnknownHostException {
+            _numCalls += 1;
+            
+            if (hostname.equals("www.domain.com")) {
+                return "10.0.0.1";
+            } else {
+                throw new UnknownHostException(hostname);
+            }
+        }
+    }
+    
+    private static Queue<GroupedUrlDatum> makeUrls(String protocolAndDomain, int numUrls) {
+        Queue<GroupedUrlDatum> result = new LinkedList<GroupedUrlDatum>();
+        for (int i = 0; i < numUrls; i++) {
+            result.add(new GroupedUrlDatum(protocolAndDomain + "/page-" + i + ".html", protocolAndDomain));
+        }
+        
+        return result;
+    }
+    
+    private static List<Tuple> runTask(String protocolAndDomain, int numUrls, BaseHostResolver resolver) {
+        final List<Tuple> result = new LinkedList<Tuple>();
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+        Mockito.doAnswer(new Answer<Void>() {
+
+            @Override
+            public Void answer(InvocationOnMock invocation) throws Throwable {
+                result.add((Tuple)invocation.getArguments()[0]);
+                return null;
+            }
+        }).when(collector).add(Mockito.any(Tuple.class));
+        
+        TupleCollectorQueue output = new TupleCollectorQueue(collector);
+        Queue<GroupedUrlDatum> urls = makeUrls(protocolAndDomain, numUrls);
+        new ResolveHostTask(protocolAndDomain, urls, resolver, output, Mockito.mock(LoggingFlowProcess.class)).run();
+        assertEquals(0, urls.size());
+        
+        output.close();
+        return result;
+    }
+    
+    @Test
+    public void testResolvingHost() throws Exception {
+        StubResolver resolver = new StubResolver();
+        List<Tuple> results = runTask("http://www.domain.com", 3, resolver);
+        
+        assertEquals(1, resolver._numCalls);
+        assertEquals(3, results.size());
+        for (Tuple t : results) {
+            GroupedUrlDatum datum = new GroupedUrlDatum(GroupedUrlDatum.FIELDS, t);
+            assertEquals("http://www.domain.com", GroupingKey.getProtocolAndDomainFromKey(datum.getGroupKey()));
+            assertEquals("10.0.0.1", GroupingKey.getHostAddressFromKey(datum.getGroupKey()));
+        }
+    }
+    
+    @Test
+    public void testUnknownHost() throws Exception {
+        List<Tuple> results = runTask("http://www.unknown.com", 2, new StubResolver());
+        
+        assertEquals(2, results.size());
+        for (Tuple t : results) {
+            GroupedUrlDatum datum = new GroupedUrlDatum(GroupedUrlDatum.FIELDS, t);
+            assertEquals("http://www.unknown.com", GroupingKey.getProtocolAndDomainFromKey(datum.getGroupKey()));
+            assertEquals(null, GroupingKey.getHostAddressFromKey(datum.getGroupKey()));
+        }
+    }
+    
+    @Test
+    public void testInvalidDomain() throws Exception {
+        StubResolver resolver = new StubResolver();
+        List<Tuple> results = runTask("http://-subdomain.domain.com", 1, resolver);
+        
+        // Invalid domains get passed through unchanged.
+        assertEquals(0, resolver._numCalls);
+        assertEquals(1, results.size());
+        GroupedUrlDatum datum = new GroupedUrlDatum(GroupedUrlDatum.FIELDS, results.get(0));
+        assertEquals("http://-subdomain.domain.com", datum.getGroupKey());
+    }
+}
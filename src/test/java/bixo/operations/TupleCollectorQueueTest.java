@@ -0,0 +1,195 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.operations;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.mockito.Mockito;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
+
+import cascading.tuple.Tuple;
+import cascading.tuple.TupleEntryCollector;
+
+public class TupleCollectorQueueTest {
+
+    private static class ListCollector implements Answer<Void> {
+        private List<Tuple> _tuples = new ArrayList<Tuple>();
+        private Thread _lastThread;
+
+        @Override
+        public Void answer(InvocationOnMock invocation) throws Throwable {
+            _tuples.add((Tuple)invocation.getArguments()[0]);
+            _lastThread = Thread.currentThread();
+            return null;
+        }
+
+        public TupleEntryCollector makeCollector() {
+            TupleEntryCollector result = Mockito.mock(TupleEntryCollector.class);
+            Mockito.doAnswer(this).when(result).add(Mockito.any(Tuple.class));
+            return result;
+        }
+    }
+
+    @Test
+    public void testDraining() {
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+        TupleCollectorQueue queue = new TupleCollectorQueue(collector, 16, 4);
+
+        for (int i = 0; i < 10; i++) {
+            queue.add(new Tuple(i));
+        }
+
+        Mockito.verifyZeroInteractions(collector);
+        assertEquals(10, queue.getDepth());
+
+        // Batch size limits each drain.
+        assertEquals(4, queue.drain());
+        assertEquals(6, queue.getDepth());
+        assertEquals(6, queue.drain(100));
+        assertEquals(0, queue.drain());
+
+        for (int i = 0; i < 10; i++) {
+            Mockito.verify(collector).add(new Tuple(i));
+        }
+
+        assertEquals(10, queue.getNumAdded());
+        assertEquals(2, queue.getNumDrains());
+        assertEquals(10, queue.getMaxDepth());
+        assertEquals(0, queue.getNumWaits());
+    }
+
+    @Test
+    public void testNoCollectorYet() {
+        TupleCollectorQueue queue = new TupleCollectorQueue();
+        queue.add(new Tuple("a"));
+        assertEquals(0, queue.drain());
+        assertEquals(1, queue.getDepth());
+
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+        queue.setCollector(collector);
+        assertEquals(1, queue.drain());
+        Mockito.verify(collector).add(new Tuple("a"));
+    }
+
+    @Test
+    public void testClosing() {
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+        TupleCollectorQueue queue = new TupleCollectorQueue(collector);
+
+        queue.add(new Tuple("a"));
+        queue.close();
+        assertTrue(queue.isClosed());
+        Mockito.verify(collector).add(new Tuple("a"));
+
+        // Anything after we're closed gets dropped.
+        queue.add(new Tuple("b"));
+        Mockito.verifyNoMoreInteractions(collector);
+        assertEquals(1, queue.getNumLost());
+        assertEquals(0, queue.getDepth());
+    }
+
+    @Test
+    public void testTupleDone() {
+        final List<Tuple> doneTuples = new ArrayList<Tuple>();
+        TupleEntryCollector collector = Mockito.mock(TupleEntryCollector.class);
+        TupleCollectorQueue queue = new TupleCollectorQueue(collector) {
+
+            @Override
+            protected void tupleDone(Tuple tuple) {
+                doneTuples.add(tuple);
+            }
+        };
+
+        queue.add(new Tuple("a"));
+        assertEquals(0, doneTuples.size());
+        queue.drain();
+        assertEquals(1, doneTuples.size());
+        assertEquals(new Tuple("a"), doneTuples.get(0));
+
+        // Tuples that get dropped are done too.
+        queue.close();
+        queue.add(new Tuple("b"));
+        assertEquals(2, doneTuples.size());
+        assertEquals(new Tuple("b"), doneTuples.get(1));
+    }
+
+    @Test
+    public void testBackpressure() throws Exception {
+        final int numProducers = 4;
+        final int numPerProducer = 1000;
+        final TupleCollectorQueue queue = new TupleCollectorQueue(null, 8, 4);
+
+        Thread[] producers = new Thread[numProducers];
+        for (int i = 0; i < numProducers; i++) {
+            producers[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < numPerProducer; j++) {
+                        queue.add(new Tuple(j));
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        // With no collector, nobody can drain, so producers have to wait.
+        Thread.sleep(100);
+        assertEquals(8, queue.getDepth());
+        assertTrue(queue.getNumWaits() > 0);
+
+        ListCollector collector = new ListCollector();
+        queue.setCollector(collector.makeCollector());
+        while (collector._tuples.size() < numProducers * numPerProducer) {
+            queue.drain();
+            Thread.yield();
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertEquals(0, queue.drain());
+        assertEquals(numProducers * numPerProducer, queue.getNumAdded());
+    }
+
+    @Test
+    public void testProducerDrainsWhenConsumerIsBusy() throws Exception {
+        final ListCollector collector = new ListCollector();
+        final TupleCollectorQueue queue = new TupleCollectorQueue(collector.makeCollector(), 4, 4);
+
+        // Nobody else is draining, so we have to do it ourselves once we've waited long enough.
+        for (int i = 0; i < 100; i++) {
+            queue.add(new Tuple(i));
+        }
+
+        assertTrue(queue.getNumProducerDrains() > 0);
+        assertEquals(Thread.currentThread(), collector._lastThread);
+
+        queue.close();
+        assertEquals(100, collector._tuples.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(new Tuple(i), collector._tuples.get(i));
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+public class ParseExecutorTest {
+
+    private static class ThreadNameCallable implements Callable<String> {
+
+        @Override
+        public String call() throws Exception {
+            return Thread.currentThread().getName();
+        }
+    }
+
+    private static class SleepingCallable implements Callable<String> {
+        private boolean _ignoreInterrupt;
+        private CountDownLatch _done;
+
+        public SleepingCallable(boolean ignoreInterrupt) {
+            _ignoreInterrupt = ignoreInterrupt;
+            _done = new CountDownLatch(1);
+        }
+
+        @Override
+        public String call() throws Exception {
+            try {
+                long endTime = System.currentTimeMillis() + 2000L;
+                while (System.currentTimeMillis() < endTime) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        if (!_ignoreInterrupt) {
+                            throw e;
+                        }
+                    }
+                }
+
+                return "done";
+            } finally {
+                _done.countDown();
+            }
+        }
+
+        public boolean waitUntilDone(long maxTime) throws InterruptedException {
+            return _done.await(maxTime, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Test
+    public void testReusingThreads() throws Exception {
+        ParseExecutor executor = new ParseExecutor(1);
+
+        String threadName = executor.execute(new ThreadNameCallable(), 1000);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(threadName, executor.execute(new ThreadNameCallable(), 1000));
+        }
+
+        assertEquals(11, executor.getNumParsed());
+        assertEquals(1, executor.getNumWorkers());
+        assertEquals(0, executor.getNumTimeouts());
+        executor.terminate();
+    }
+
+    @Test
+    public void testExceptionsArePassedThrough() throws Exception {
+        ParseExecutor executor = new ParseExecutor(1);
+
+        try {
+            executor.execute(new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+                    throw new IOException("bad content");
+                }
+            }, 1000);
+            fail("Should have thrown exception");
+        } catch (IOException e) {
+            assertEquals("bad content", e.getMessage());
+        }
+
+        executor.terminate();
+    }
+
+    @Test
+    public void testTimeout() throws Exception {
+        ParseExecutor executor = new ParseExecutor(1);
+        SleepingCallable callable = new SleepingCallable(false);
+
+        long startTime = System.currentTimeMillis();
+        try {
+            executor.execute(callable, 200);
+            fail("Should have timed out");
+        } catch (TimeoutException e) {
+            // valid
+        }
+
+        assertTrue(System.currentTimeMillis() - startTime < 1000);
+        assertTrue(callable.waitUntilDone(1000));
+        assertEquals(1, executor.getNumTimeouts());
+        assertEquals(1, executor.getNumReplacedWorkers());
+
+        // A new worker is ready for the next parse.
+        assertEquals("done", executor.execute(new Callable<String>() {
+
+            @Override
+            public String call() throws Exception {
+                return "done";
+            }
+        }, 1000));
+        assertEquals(1, executor.getNumWorkers());
+        executor.terminate();
+    }
+
+    @Test
+    public void testReplacingHungThread() throws Exception {
+        ParseExecutor executor = new ParseExecutor(1, 10, 100, 1000);
+        SleepingCallable callable = new SleepingCallable(true);
+
+        String firstThreadName = executor.execute(new ThreadNameCallable(), 1000);
+
+        try {
+            executor.execute(callable, 200);
+            fail("Should have timed out");
+        } catch (TimeoutException e) {
+            // valid
+        }
+
+        // We don't have to wait for the hung parse to return.
+        String secondThreadName = executor.execute(new ThreadNameCallable(), 1000);
+        assertTrue(!firstThreadName.equals(secondThreadName));
+        assertEquals(1, executor.getNumTimeouts());
+        assertEquals(1, executor.getNumReplacedWorkers());
+        assertEquals(1, executor.getNumWorkers());
+
+        assertTrue(callable.waitUntilDone(5000));
+        executor.terminate();
+    }
+
+    @Test
+    public void testNoWaitForReplacement() throws Exception {
+        // Default hung thread timeout is much longer than the time we allow below.
+        ParseExecutor executor = new ParseExecutor(1);
+        SleepingCallable callable = new SleepingCallable(true);
+
+        try {
+            executor.execute(callable, 100);
+            fail("Should have timed out");
+        } catch (TimeoutException e) {
+            // valid
+        }
+
+        long startTime = System.currentTimeMillis();
+        executor.execute(new ThreadNameCallable(), 1000);
+        assertTrue(System.currentTimeMillis() - startTime < 1000);
+
+        assertTrue(callable.waitUntilDone(5000));
+        executor.terminate();
+    }
+
+    @Test
+    public void testNoSpuriousTimeouts() throws Exception {
+        ParseExecutor executor = new ParseExecutor(1);
+
+        // Parses that finish right around the max duration either time out or
+        // not, but a finished parse is never counted as a timeout.
+        int numTimeouts = 0;
+        for (int i = 0; i < 50; i++) {
+            try {
+                assertEquals("done", executor.execute(new Callable<String>() {
+
+                    @Override
+                    public String call() throws Exception {
+                        long endTime = System.currentTimeMillis() + 20;
+                        while (System.currentTimeMillis() < endTime) {
+                            // Busy wait, so that an interrupt doesn't end the parse early.
+                        }
+                        
+                        return "done";
+                    }
+                }, 20));
+            } catch (TimeoutException e) {
+                numTimeouts += 1;
+            }
+        }
+
+        assertEquals(50, executor.getNumParsed());
+        assertEquals(numTimeouts, executor.getNumTimeouts());
+        assertTrue(executor.getNumReplacedWorkers() >= numTimeouts);
+        executor.terminate();
+    }
+}
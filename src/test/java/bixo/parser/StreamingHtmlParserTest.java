@@ -0,0 +1,242 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.parser;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.commons.io.IOUtils;
+import org.junit.Assert;
+import org.junit.Test;
+
+import bixo.config.ParserPolicy;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.Outlink;
+import bixo.datum.ParsedDatum;
+import bixo.fetcher.HttpHeaderNames;
+
+public class StreamingHtmlParserTest {
+
+    private static String readFromFile(String filePath) throws IOException {
+        InputStream is = StreamingHtmlParserTest.class.getResourceAsStream("/" + filePath);
+        return IOUtils.toString(is);
+    }
+
+    private static FetchedDatum makeFetchedDatum(String url, byte[] content, String contentType, String location) {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add(HttpHeaderNames.CONTENT_TYPE, contentType);
+        if (location != null) {
+            headers.add(HttpHeaderNames.CONTENT_LOCATION, location);
+        }
+
+        return new FetchedDatum(url, url, System.currentTimeMillis(), headers, new ContentBytes(content), contentType, 0);
+    }
+
+    private static FetchedDatum makeFetchedDatum(String url, String html) throws Exception {
+        return makeFetchedDatum(url, html.getBytes("utf-8"), "text/html; charset=utf-8", null);
+    }
+
+    private static String normalize(String text) {
+        return text.replaceAll("\\s+", " ").trim();
+    }
+
+    @Test
+    public void testRelativeLinks() throws Exception {
+        String html = readFromFile("parser-files/relative-urls.html");
+        String url = "http://olddomain.com/relative-urls.html";
+        FetchedDatum fetchedDatum = makeFetchedDatum(url, html.getBytes("utf-8"), "text/html; charset=utf-8", "redirected/");
+
+        ParsedDatum parsedDatum = new StreamingHtmlParser().parse(fetchedDatum);
+        Outlink[] outlinks = parsedDatum.getOutlinks();
+        Assert.assertEquals(2, outlinks.length);
+        Assert.assertEquals("http://olddomain.com/redirected/link1", outlinks[0].getToUrl());
+        Assert.assertEquals("link1", outlinks[0].getAnchor());
+        Assert.assertEquals("http://domain.com/link2", outlinks[1].getToUrl());
+        Assert.assertEquals("link2", outlinks[1].getAnchor());
+    }
+
+    @Test
+    public void testBaseUrl() throws Exception {
+        String html = readFromFile("parser-files/base-url.html");
+        ParsedDatum parsedDatum = new StreamingHtmlParser().parse(makeFetchedDatum("http://olddomain.com/base-url.html", html));
+
+        Outlink[] outlinks = parsedDatum.getOutlinks();
+        Assert.assertEquals(2, outlinks.length);
+        Assert.assertEquals("http://newdomain.com/link", outlinks[0].getToUrl());
+        Assert.assertEquals("link1", outlinks[0].getAnchor());
+        Assert.assertEquals("http://domain.com/link", outlinks[1].getToUrl());
+    }
+
+    @Test
+    public void testMetaNoFollow() throws Exception {
+        String html = readFromFile("parser-files/meta-nofollow.html");
+        ParsedDatum parsedDatum = new StreamingHtmlParser().parse(makeFetchedDatum("http://domain.com/meta-nofollow.html", html));
+
+        Assert.assertEquals(0, parsedDatum.getOutlinks().length);
+    }
+
+    @SuppressWarnings("serial")
+    @Test
+    public void testSomeLinkTypes() throws Exception {
+        String html = readFromFile("parser-files/all-link-types.html");
+        FetchedDatum fetchedDatum = makeFetchedDatum("http://domain.com/all-link-types.html", html);
+
+        Set<String> linkTags = new HashSet<String>() {{
+            add("a");
+            add("img");
+            add("link");
+        }};
+
+        Set<String> linkAttributeTypes = new HashSet<String>() {{
+            add("href");
+            add("src");
+        }};
+
+        ParserPolicy policy = new ParserPolicy(ParserPolicy.DEFAULT_MAX_PARSE_DURATION, linkTags, linkAttributeTypes);
+        Outlink[] outlinks = new StreamingHtmlParser(policy).parse(fetchedDatum).getOutlinks();
+        Assert.assertEquals(4, outlinks.length);
+
+        Assert.assertEquals("http://newdomain.com/favicon.ico", outlinks[0].getToUrl());
+        Assert.assertEquals("http://newdomain.com/link1", outlinks[1].getToUrl());
+        Assert.assertEquals("link1", outlinks[1].getAnchor());
+        Assert.assertEquals("http://domain.com/link2", outlinks[2].getToUrl());
+        Assert.assertEquals("link2", outlinks[2].getAnchor());
+        Assert.assertEquals("http://newdomain.com/giant-prawn.jpg", outlinks[3].getToUrl());
+    }
+
+    @Test
+    public void testSameResultsAsSimpleParser() throws Exception {
+        ParserPolicy policy = new ParserPolicy(ParserPolicy.DEFAULT_MAX_PARSE_DURATION,
+                        BaseLinkExtractor.ALL_LINK_TAGS, BaseLinkExtractor.ALL_LINK_ATTRIBUTE_TYPES);
+        SimpleParser simpleParser = new SimpleParser(policy);
+        StreamingHtmlParser streamingParser = new StreamingHtmlParser(policy);
+
+        String[] files = { "all-link-types.html", "base-url.html", "lang-dc.html", "lang-http-equiv.html",
+                        "meta-nofollow.html", "relative-urls.html", "simple-content.html" };
+
+        for (String file : files) {
+            FetchedDatum fetchedDatum = makeFetchedDatum("http://domain.com/" + file, readFromFile("parser-files/" + file));
+            ParsedDatum expected = simpleParser.parse(fetchedDatum);
+            ParsedDatum actual = streamingParser.parse(fetchedDatum);
+
+            Assert.assertEquals(file, expected.getTitle(), actual.getTitle());
+            Assert.assertEquals(file, expected.getLanguage(), actual.getLanguage());
+            Assert.assertEquals(file, normalize(expected.getParsedText()), normalize(actual.getParsedText()));
+
+            Outlink[] expectedLinks = expected.getOutlinks();
+            Outlink[] actualLinks = actual.getOutlinks();
+            Assert.assertEquals(file, expectedLinks.length, actualLinks.length);
+            for (int i = 0; i < expectedLinks.length; i++) {
+                Assert.assertEquals(file, expectedLinks[i].getToUrl(), actualLinks[i].getToUrl());
+                Assert.assertEquals(file, expectedLinks[i].getAnchor(), actualLinks[i].getAnchor());
+                Assert.assertEquals(file, expectedLinks[i].getRelAttributes(), actualLinks[i].getRelAttributes());
+            }
+        }
+    }
+
+    @Test
+    public void testMarkup() throws Exception {
+        String html = "<!DOCTYPE html><html><head><title>Fish &amp; Chips</title>"
+                        + "<style>p { color: red; }</style><script>var s = '<a href=\"/bogus\">';</script></head>"
+                        + "<body><!-- <a href=\"/commented\">x</a> -->"
+                        + "<p>One&nbsp;&#84;wo &#x54;hree &bogus; 1 < 2</p><div>Four</div>"
+                        + "<A HREF='/page?a=1&amp;b=2' rel=nofollow>Some <b>bold</b> text</A> "
+                        + "<a href=/unquoted/>Unquoted</a> <a>no href</a></body></html>";
+
+        ParsedDatum parsedDatum = new StreamingHtmlParser().parse(makeFetchedDatum("http://domain.com/", html));
+        Assert.assertEquals("Fish & Chips", parsedDatum.getTitle());
+        Assert.assertEquals("Fish & Chips One\u00A0Two Three &bogus; 1 < 2 Four Some bold text Unquoted no href", normalize(parsedDatum.getParsedText()));
+
+        Outlink[] outlinks = parsedDatum.getOutlinks();
+        Assert.assertEquals(2, outlinks.length);
+        Assert.assertEquals("http://domain.com/page?a=1&b=2", outlinks[0].getToUrl());
+        Assert.assertEquals("Some bold text", outlinks[0].getAnchor());
+        Assert.assertTrue(outlinks[0].isNoFollow());
+        Assert.assertEquals("http://domain.com/unquoted/", outlinks[1].getToUrl());
+        Assert.assertEquals("Unquoted", outlinks[1].getAnchor());
+    }
+
+    @Test
+    public void testUnclosedLinks() throws Exception {
+        String html = "<html><body><a href=one>One<a href=two>Two<a href=three>Three</body></html>";
+        FetchedDatum fetchedDatum = makeFetchedDatum("http://domain.com/", html);
+
+        Outlink[] outlinks = new StreamingHtmlParser().parse(fetchedDatum).getOutlinks();
+        Assert.assertEquals(3, outlinks.length);
+        Assert.assertEquals("http://domain.com/one", outlinks[0].getToUrl());
+        Assert.assertEquals("One", outlinks[0].getAnchor());
+        Assert.assertEquals("http://domain.com/two", outlinks[1].getToUrl());
+        Assert.assertEquals("Two", outlinks[1].getAnchor());
+        Assert.assertEquals("http://domain.com/three", outlinks[2].getToUrl());
+        Assert.assertEquals("Three", outlinks[2].getAnchor());
+
+        Outlink[] expectedLinks = new SimpleParser().parse(fetchedDatum).getOutlinks();
+        Assert.assertEquals(expectedLinks.length, outlinks.length);
+        for (int i = 0; i < expectedLinks.length; i++) {
+            Assert.assertEquals(expectedLinks[i].getToUrl(), outlinks[i].getToUrl());
+            Assert.assertEquals(expectedLinks[i].getAnchor(), outlinks[i].getAnchor());
+        }
+    }
+
+    @Test
+    public void testLinkAttributePriority() throws Exception {
+        String html = "<html><body><a src=/src href=/href>Link</a><img data=/data src=/src></body></html>";
+        FetchedDatum fetchedDatum = makeFetchedDatum("http://domain.com/", html);
+
+        ParserPolicy policy = new ParserPolicy(ParserPolicy.DEFAULT_MAX_PARSE_DURATION,
+                        BaseLinkExtractor.ALL_LINK_TAGS, BaseLinkExtractor.ALL_LINK_ATTRIBUTE_TYPES);
+        Outlink[] outlinks = new StreamingHtmlParser(policy).parse(fetchedDatum).getOutlinks();
+        Assert.assertEquals(2, outlinks.length);
+        Assert.assertEquals("http://domain.com/href", outlinks[0].getToUrl());
+        Assert.assertEquals("http://domain.com/src", outlinks[1].getToUrl());
+
+        Outlink[] expectedLinks = new SimpleParser(policy).parse(fetchedDatum).getOutlinks();
+        Assert.assertEquals(expectedLinks.length, outlinks.length);
+        for (int i = 0; i < expectedLinks.length; i++) {
+            Assert.assertEquals(expectedLinks[i].getToUrl(), outlinks[i].getToUrl());
+        }
+    }
+
+    @Test
+    public void testCharsetFromMetaTag() throws Exception {
+        String html = "<html><head><meta http-equiv=\"Content-Type\" content=\"text/html; charset=ISO-8859-1\">"
+                        + "<title>Caf\u00E9</title></head><body>Cr\u00E8me</body></html>";
+        FetchedDatum fetchedDatum = makeFetchedDatum("http://domain.com/", html.getBytes("ISO-8859-1"), "text/html", null);
+
+        ParsedDatum parsedDatum = new StreamingHtmlParser().parse(fetchedDatum);
+        Assert.assertEquals("Caf\u00E9", parsedDatum.getTitle());
+        Assert.assertEquals("Caf\u00E9 Cr\u00E8me", normalize(parsedDatum.getParsedText()));
+
+        // No charset anywhere, and it's valid UTF-8.
+        html = "<html><head><title>Caf\u00E9</title></head><body>Cr\u00E8me</body></html>";
+        fetchedDatum = makeFetchedDatum("http://domain.com/", html.getBytes("UTF-8"), "text/html", null);
+        Assert.assertEquals("Caf\u00E9", new StreamingHtmlParser().parse(fetchedDatum).getTitle());
+    }
+
+    @Test
+    public void testFallbackForNonHtml() throws Exception {
+        byte[] content = "Just some plain text".getBytes("utf-8");
+        FetchedDatum fetchedDatum = makeFetchedDatum("http://domain.com/file.txt", content, "text/plain; charset=utf-8", null);
+
+        ParsedDatum parsedDatum = new StreamingHtmlParser().parse(fetchedDatum);
+        Assert.assertEquals("Just some plain text", normalize(parsedDatum.getParsedText()));
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.net.URL;
+
+import junit.framework.Assert;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.http.HttpStatus;
+import org.junit.Test;
+import org.mockito.Mockito;
+
+import bixo.config.RobotsCachePolicy;
+import bixo.datum.HttpHeaders;
+import bixo.datum.ScoredUrlDatum;
+import bixo.exceptions.HttpFetchException;
+import bixo.fetcher.BaseFetcher;
+import bixo.robots.SimpleRobotRules.RobotRulesMode;
+
+public class RobotRulesCacheTest {
+
+    private static final long TTL = 10000L;
+    private static final long NEGATIVE_TTL = 1000L;
+    
+    private static BaseRobotRules makeDeferredRules() {
+        BaseRobotRules result = new SimpleRobotRules(RobotRulesMode.ALLOW_NONE);
+        result.setDeferVisits(true);
+        return result;
+    }
+    
+    @Test
+    public void testMakingKeys() throws Exception {
+        Assert.assertEquals("http://www.domain.com", RobotRulesCache.makeKey(new URL("http://WWW.Domain.com/robots.txt")));
+        Assert.assertEquals("http://www.domain.com", RobotRulesCache.makeKey(new URL("http://www.domain.com:80/robots.txt")));
+        Assert.assertEquals("https://www.domain.com", RobotRulesCache.makeKey(new URL("https://www.domain.com/robots.txt")));
+        Assert.assertEquals("http://www.domain.com:8080", RobotRulesCache.makeKey(new URL("http://www.domain.com:8080/robots.txt")));
+    }
+    
+    @Test
+    public void testExpiration() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache(new RobotsCachePolicy(10, TTL, NEGATIVE_TTL));
+        
+        BaseRobotRules goodRules = new SimpleRobotRules(RobotRulesMode.ALLOW_ALL);
+        cache.put("http://good.com", goodRules, 0);
+        cache.put("http://bad.com", makeDeferredRules(), 0);
+        Assert.assertEquals(2, cache.size());
+        
+        Assert.assertSame(goodRules, cache.get("http://good.com", TTL - 1));
+        Assert.assertNotNull(cache.get("http://bad.com", NEGATIVE_TTL - 1));
+        
+        // Temp failures expire sooner than good results.
+        Assert.assertNull(cache.get("http://bad.com", NEGATIVE_TTL));
+        Assert.assertNotNull(cache.get("http://good.com", NEGATIVE_TTL));
+        Assert.assertNull(cache.get("http://good.com", TTL));
+        Assert.assertEquals(0, cache.size());
+        
+        Assert.assertNull(cache.get("http://other.com", 0));
+        
+        Assert.assertEquals(3, cache.getNumHits());
+        Assert.assertEquals(3, cache.getNumMisses());
+        Assert.assertEquals(2, cache.getNumExpired());
+    }
+    
+    @Test
+    public void testNoNegativeCaching() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache(new RobotsCachePolicy(10, TTL, 0));
+        cache.put("http://bad.com", makeDeferredRules(), 0);
+        Assert.assertEquals(0, cache.size());
+    }
+    
+    @Test
+    public void testEviction() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache(new RobotsCachePolicy(2, TTL, NEGATIVE_TTL));
+        cache.put("http://domain1.com", new SimpleRobotRules(), 0);
+        cache.put("http://domain2.com", new SimpleRobotRules(), 0);
+        
+        // Touch domain1, so that domain2 is the least recently used.
+        Assert.assertNotNull(cache.get("http://domain1.com", 0));
+        cache.put("http://domain3.com", new SimpleRobotRules(), 0);
+        
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getNumEvictions());
+        Assert.assertNotNull(cache.get("http://domain1.com", 0));
+        Assert.assertNull(cache.get("http://domain2.com", 0));
+        Assert.assertNotNull(cache.get("http://domain3.com", 0));
+    }
+    
+    @Test
+    public void testSavingAndLoading() throws Exception {
+        RobotRulesCache cache = new RobotRulesCache(new RobotsCachePolicy());
+        
+        SimpleRobotRules rules = new SimpleRobotRules();
+        rules.addRule("/private", false);
+        rules.setCrawlDelay(5000);
+        cache.put("http://domain.com", rules);
+        cache.put("http://bad.com", makeDeferredRules());
+        
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Assert.assertEquals(2, cache.save(out));
+        
+        RobotRulesCache newCache = new RobotRulesCache(new RobotsCachePolicy());
+        Assert.assertEquals(2, newCache.load(new ByteArrayInputStream(out.toByteArray())));
+        
+        BaseRobotRules loadedRules = newCache.get("http://domain.com");
+        Assert.assertEquals(5000, loadedRules.getCrawlDelay());
+        Assert.assertFalse(loadedRules.isAllowed("http://domain.com/private/page.html"));
+        Assert.assertTrue(loadedRules.isAllowed("http://domain.com/public/page.html"));
+        
+        Assert.assertTrue(newCache.get("http://bad.com").isDeferVisits());
+    }
+    
+    @Test
+    public void testSavingAndLoadingDir() throws Exception {
+        File cacheDir = new File("build/test/RobotRulesCacheTest/testSavingAndLoadingDir/");
+        FileUtils.deleteDirectory(cacheDir);
+        cacheDir.mkdirs();
+        
+        Path cachePath = new Path(cacheDir.getAbsolutePath());
+        FileSystem fs = cachePath.getFileSystem(new JobConf());
+
+        // Nothing there yet.
+        RobotRulesCache cache = new RobotRulesCache(new RobotsCachePolicy());
+        Assert.assertEquals(0, cache.load(fs, cachePath));
+
+        // Two reducers, each with their own file.
+        cache.put("http://domain1.com", new SimpleRobotRules(RobotRulesMode.ALLOW_ALL));
+        Assert.assertEquals(1, cache.save(fs, cachePath, 0, 2));
+        
+        cache.clear();
+        cache.put("http://domain2.com", new SimpleRobotRules(RobotRulesMode.ALLOW_NONE));
+        Assert.assertEquals(1, cache.save(fs, cachePath, 1, 2));
+        
+        // Re-saving replaces the old file.
+        Assert.assertEquals(1, cache.save(fs, cachePath, 1, 2));
+        
+        // And a bad file gets skipped.
+        FileUtils.writeStringToFile(new File(cacheDir, RobotRulesCache.CACHE_FILE_PREFIX + "bad"), "not a cache file");
+        
+        RobotRulesCache newCache = new RobotRulesCache(new RobotsCachePolicy());
+        Assert.assertEquals(2, newCache.load(fs, cachePath));
+        Assert.assertTrue(newCache.get("http://domain1.com").isAllowAll());
+        Assert.assertTrue(newCache.get("http://domain2.com").isAllowNone());
+    }
+    
+    @Test
+    public void testSavingOnlyOwnEntries() throws Exception {
+        File cacheDir = new File("build/test/RobotRulesCacheTest/testSavingOnlyOwnEntries/");
+        FileUtils.deleteDirectory(cacheDir);
+        cacheDir.mkdirs();
+        
+        Path cachePath = new Path(cacheDir.getAbsolutePath());
+        FileSystem fs = cachePath.getFileSystem(new JobConf());
+        
+        // A previous job with three reducers.
+        for (int i = 0; i < 3; i++) {
+            RobotRulesCache cache = new RobotRulesCache(new RobotsCachePolicy());
+            cache.put("http://domain" + i + ".com", new SimpleRobotRules(RobotRulesMode.ALLOW_ALL));
+            Assert.assertEquals(1, cache.save(fs, cachePath, i, 3));
+        }
+        
+        // Now a job with two reducers, which both load everything. The second one
+        // fetches rules for a new domain, and saves them along with its old entry.
+        RobotRulesCache cache1 = new RobotRulesCache(new RobotsCachePolicy());
+        Assert.assertEquals(3, cache1.load(fs, cachePath));
+        cache1.put("http://domain3.com", new SimpleRobotRules(RobotRulesMode.ALLOW_NONE));
+        Assert.assertEquals(2, cache1.save(fs, cachePath, 1, 2));
+        
+        // The first one also picks up the entry from the third reducer's file, and
+        // deletes that file.
+        RobotRulesCache cache0 = new RobotRulesCache(new RobotsCachePolicy());
+        Assert.assertEquals(4, cache0.load(fs, cachePath));
+        Assert.assertEquals(2, cache0.save(fs, cachePath, 0, 2));
+        Assert.assertFalse(new File(cacheDir, RobotRulesCache.CACHE_FILE_PREFIX + "00002").exists());
+        
+        // So we still have every entry, but only once.
+        RobotRulesCache newCache = new RobotRulesCache(new RobotsCachePolicy());
+        Assert.assertEquals(4, newCache.load(fs, cachePath));
+        for (int i = 0; i < 3; i++) {
+            Assert.assertTrue(newCache.get("http://domain" + i + ".com").isAllowAll());
+        }
+        
+        Assert.assertTrue(newCache.get("http://domain3.com").isAllowNone());
+    }
+    
+    @Test
+    public void testCachingNeedsCacheDir() throws Exception {
+        RobotsCachePolicy policy = new RobotsCachePolicy();
+        Assert.assertFalse(policy.isCaching());
+        
+        policy.setCacheDir("robots-cache");
+        Assert.assertTrue(policy.isCaching());
+        
+        policy.setMaxEntries(RobotsCachePolicy.NO_CACHING);
+        Assert.assertFalse(policy.isCaching());
+    }
+    
+    @Test
+    public void testFetchingWithCache() throws Exception {
+        BaseFetcher fetcher = Mockito.mock(BaseFetcher.class);
+        Mockito.when(fetcher.get(Mockito.any(ScoredUrlDatum.class))).thenThrow(new HttpFetchException("http://domain.com/robots.txt", "Not found", HttpStatus.SC_NOT_FOUND, new HttpHeaders()));
+        
+        BaseRobotsParser parser = new SimpleRobotRulesParser();
+        RobotRulesCache cache = new RobotRulesCache(new RobotsCachePolicy());
+        
+        URL robotsUrl = new URL("http://domain.com/robots.txt");
+        BaseRobotRules rules = RobotUtils.getRobotRules(fetcher, parser, robotsUrl, cache);
+        Assert.assertTrue(rules.isAllowAll());
+        
+        // Second time we should get the (missing robots.txt) result from the cache.
+        Assert.assertSame(rules, RobotUtils.getRobotRules(fetcher, parser, robotsUrl, cache));
+        Mockito.verify(fetcher, Mockito.times(1)).get(Mockito.any(ScoredUrlDatum.class));
+        Assert.assertEquals(1, cache.getNumHits());
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.robots;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+public class RobotRulesMatcherTest {
+
+    /**
+     * Straightforward version of matching, to compare against: convert each rule to
+     * a regular expression, and check them in order.
+     */
+    private static int slowMatch(List<String> rules, String path) {
+        for (int i = 0; i < rules.size(); i++) {
+            String rule = rules.get(i);
+            boolean anchored = rule.endsWith("$");
+            if (anchored) {
+                rule = rule.substring(0, rule.length() - 1);
+            }
+            
+            StringBuilder regex = new StringBuilder();
+            for (String piece : rule.split("\\*", -1)) {
+                if (regex.length() > 0) {
+                    regex.append(".*");
+                }
+                
+                if (piece.length() > 0) {
+                    regex.append(Pattern.quote(piece));
+                }
+            }
+            
+            if (!anchored) {
+                regex.append(".*");
+            }
+            
+            if (Pattern.compile(regex.toString(), Pattern.DOTALL).matcher(path).matches()) {
+                return i;
+            }
+        }
+        
+        return RobotRulesMatcher.NO_MATCH;
+    }
+    
+    @Test
+    public void testPrefixRules() {
+        List<String> rules = Arrays.asList("/a/b", "/a", "/a/b/c", "/d", "/d");
+        RobotRulesMatcher matcher = new RobotRulesMatcher(rules);
+        
+        assertEquals(0, matcher.match("/a/b/c/d"));
+        assertEquals(1, matcher.match("/a/c"));
+        assertEquals(1, matcher.match("/a"));
+        assertEquals(3, matcher.match("/d/e"));
+        assertEquals(RobotRulesMatcher.NO_MATCH, matcher.match("/"));
+        assertEquals(RobotRulesMatcher.NO_MATCH, matcher.match("/b"));
+    }
+    
+    @Test
+    public void testEmptyRuleMatchesEverything() {
+        RobotRulesMatcher matcher = new RobotRulesMatcher(Arrays.asList("/a", ""));
+        assertEquals(0, matcher.match("/a"));
+        assertEquals(1, matcher.match("/b"));
+        
+        assertEquals(RobotRulesMatcher.NO_MATCH, new RobotRulesMatcher(new ArrayList<String>()).match("/a"));
+    }
+    
+    @Test
+    public void testWildcardRules() {
+        List<String> rules = Arrays.asList("/*.gif$", "/a*b*c", "/x$", "/*/y/*$", "/**z");
+        RobotRulesMatcher matcher = new RobotRulesMatcher(rules);
+        
+        assertEquals(0, matcher.match("/images/a.gif"));
+        assertEquals(RobotRulesMatcher.NO_MATCH, matcher.match("/images/a.gif?x=1"));
+        assertEquals(1, matcher.match("/a123b456c789"));
+        assertEquals(RobotRulesMatcher.NO_MATCH, matcher.match("/a123c456b"));
+        assertEquals(2, matcher.match("/x"));
+        assertEquals(RobotRulesMatcher.NO_MATCH, matcher.match("/xx"));
+        assertEquals(3, matcher.match("/w/y/"));
+        assertEquals(4, matcher.match("/zzz"));
+    }
+    
+    @Test
+    public void testSameAsSlowMatching() {
+        Random rand = new Random(1L);
+        final String chars = "/ab*$.?";
+        
+        for (int test = 0; test < 200; test++) {
+            List<String> rules = new ArrayList<String>();
+            int numRules = 1 + rand.nextInt(20);
+            for (int i = 0; i < numRules; i++) {
+                rules.add("/" + randomString(rand, chars, 6));
+            }
+            
+            RobotRulesMatcher matcher = new RobotRulesMatcher(rules);
+            for (int i = 0; i < 100; i++) {
+                String path = "/" + randomString(rand, "/ab.?", 10);
+                assertEquals("Matching " + path + " against " + rules, slowMatch(rules, path), matcher.match(path));
+            }
+        }
+    }
+    
+    private static String randomString(Random rand, String chars, int maxLength) {
+        StringBuilder result = new StringBuilder();
+        int length = rand.nextInt(maxLength + 1);
+        for (int i = 0; i < length; i++) {
+            result.append(chars.charAt(rand.nextInt(chars.length())));
+        }
+        
+        return result.toString();
+    }
+}
@@ -53,8 +53,7 @@ public class SimpleRobotRulesParserTest {
         assertTrue(rules.isAllowed("http://www.domain.com/anypage.html"));
     }
     
-    // TODO - reenable this test when wildcards (the '*' in the disallow) are supported.
-    // @Test
+    @Test
     public void testQueryParamInDisallow() throws Exception {
         final String simpleRobotsTxt = "User-agent: *" + CRLF
         + "Disallow: /index.cfm?fuseaction=sitesearch.results*";
@@ -63,6 +62,73 @@ public class SimpleRobotRulesParserTest {
         assertFalse(rules.isAllowed("http://searchservice.domain.com/index.cfm?fuseaction=sitesearch.results&type=People&qry=california&pg=2"));
     }
     
+    @Test
+    public void testWildcardsInRules() throws Exception {
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Allow: /*/public/" + CRLF
+        + "Disallow: /*.gif$" + CRLF
+        + "Disallow: /*/private/" + CRLF
+        + "Disallow: /exact$" + CRLF
+        + "Disallow: /*?sessionid=";
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com/images/logo.gif"));
+        assertTrue(rules.isAllowed("http://www.domain.com/images/logo.gif?size=big"));
+        assertTrue(rules.isAllowed("http://www.domain.com/images/logo.giff"));
+        
+        assertFalse(rules.isAllowed("http://www.domain.com/users/private/page.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/users/public/private/page.html"));
+        
+        assertFalse(rules.isAllowed("http://www.domain.com/exact"));
+        assertTrue(rules.isAllowed("http://www.domain.com/exactly"));
+        
+        assertFalse(rules.isAllowed("http://www.domain.com/page.html?SessionId=123"));
+        assertTrue(rules.isAllowed("http://www.domain.com/page.html?id=123"));
+    }
+    
+    @Test
+    public void testFirstMatchingRuleWins() throws Exception {
+        final String simpleRobotsTxt = "User-agent: *" + CRLF
+        + "Disallow: /a" + CRLF
+        + "Allow: /a/b" + CRLF
+        + "Allow: /c/d" + CRLF
+        + "Disallow: /c";
+        
+        BaseRobotRules rules = createRobotRules("Any-darn-crawler", simpleRobotsTxt.getBytes());
+        assertFalse(rules.isAllowed("http://www.domain.com/a/b/page.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/c/d/page.html"));
+        assertFalse(rules.isAllowed("http://www.domain.com/c/e/page.html"));
+    }
+    
+    @Test
+    public void testAddingRulesAfterMatching() throws Exception {
+        SimpleRobotRules rules = new SimpleRobotRules();
+        rules.addRule("/a", false);
+        assertFalse(rules.isAllowed("http://www.domain.com/a/page.html"));
+        assertTrue(rules.isAllowed("http://www.domain.com/b/page.html"));
+        
+        rules.addRule("/b", false);
+        assertFalse(rules.isAllowed("http://www.domain.com/b/page.html"));
+        
+        rules.clearRules();
+        assertTrue(rules.isAllowed("http://www.domain.com/a/page.html"));
+    }
+    
+    @Test
+    public void testExtractingPaths() throws Exception {
+        assertEquals("/", SimpleRobotRules.getPath("http://www.domain.com"));
+        assertEquals("/", SimpleRobotRules.getPath("http://www.domain.com#frag"));
+        assertEquals("/?q=1", SimpleRobotRules.getPath("http://www.domain.com?q=1"));
+        assertEquals("/a/b.html", SimpleRobotRules.getPath("HTTP://www.domain.com:8080/A/b.html#Frag"));
+        assertEquals("/a/b.html?x=y z", SimpleRobotRules.getPath("https://user@www.domain.com/a/b.html?x=Y+z#frag"));
+        assertEquals("/a b/", SimpleRobotRules.getPath("http://www.domain.com/a%20b/"));
+        assertEquals("/", SimpleRobotRules.getPath("http://www.domain.com/a%zzb/"));
+        
+        // Non-http URLs go through java.net.URL
+        assertEquals("/dir/file.txt", SimpleRobotRules.getPath("ftp://ftp.domain.com/Dir/file.txt"));
+        assertEquals("/", SimpleRobotRules.getPath("not a url"));
+    }
+    
     @Test
     public void testCommentedOutLines() throws MalformedURLException {
         final String simpleRobotsTxt =  "#user-agent: testAgent" + LF
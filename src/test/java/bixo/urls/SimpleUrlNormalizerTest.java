@@ -16,6 +16,8 @@
  */
 package bixo.urls;
 
+import java.util.Random;
+
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -403,4 +405,100 @@ public class SimpleUrlNormalizerTest {
         normalizeTest("http://www.domain.com", "http://www.domain.com/", "Add trailing slash");
         normalizeTest("www.pondliner.com", "http://www.pondliner.com/", "Add trailing slash even if no protocol");
     }
+    
+    @Test
+    public void testFastPath() {
+        // Simple URLs that don't need to change are returned as-is.
+        String url = "http://www.domain.com/path/page.html?x=1&y=2";
+        Assert.assertSame(url, _normalizer.normalizeSimpleUrl(url));
+        
+        Assert.assertEquals("http://www.domain.com/", _normalizer.normalizeSimpleUrl("HTTP://WWW.Domain.COM:80"));
+        Assert.assertEquals("https://www.domain.com:8443/?q", _normalizer.normalizeSimpleUrl("https://www.domain.com.:8443?q#ref"));
+        
+        // Anything tricky is left for the full normalization.
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("www.domain.com/"));
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("ftp://www.domain.com/"));
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("http://www.domain.com/some%20text"));
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("http://www.domain.com/some+text"));
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("http://www.domain.com//aa/bb"));
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("http://www.domain.com/aa/../bb"));
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("http://www.domain.com/index.html"));
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("http://www.domain.com/page.html;jsessionid=1234"));
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("http://www.domain.com/page.php?x=1&SID=2"));
+        Assert.assertNull(_normalizer.normalizeSimpleUrl("http://www.domain.com/page.php?x=1&&y=2"));
+        Assert.assertNull(new SimpleUrlNormalizer(true).normalizeSimpleUrl("http://www.domain.com/#q=1"));
+        Assert.assertNull(new SimpleUrlNormalizer(false, true).normalizeSimpleUrl("http://www.domain.com/page.php?usr=x"));
+    }
+    
+    private static final String[] SCHEMES = { "http://", "https://", "HTTP://", "Https://", "", "ftp://" };
+    private static final String[] HOSTS = { "www.domain.com", "WWW.Domain.com", "domain.com.", "10.0.0.1", "a-b_c.domain.co.uk", "user@domain.com", ".domain.com" };
+    private static final String[] PORTS = { "", "", ":80", ":443", ":8080", ":0", ":080", ":", ":99999" };
+    private static final String[] SEGMENTS = {
+        "aa", "bb", "page.html", "index.html", "Default.ASP", "..", ".", "", "a..a", "foo%20bar", "foo%2fbar",
+        "some text", "some+text", "a;jsessionid=1234", "a:b", "a@b", "a=b", "~user", "(x)", "\u00e9t\u00e9", "a&b", "index.jspfx"
+    };
+    private static final String[] PARAMS = {
+        "x=1", "y=", "z", "", "sid=123", "PHPSESSID=abc", "width=7", "user=me", "usr=me", "user_id=7", "a=b=c", "q=%66oo",
+        "q=a/b", "q=a:b", "q=a+b", "q=a b", "-session=1", "session=", "format", "m=7Q==", "q=\u00e9", "a;b=1"
+    };
+    private static final String[] ANCHORS = { "", "", "#", "#ref", "#q=1&r=2", "#x?sid=1", "#a b" };
+    
+    private static String makeRandomUrl(Random rand) {
+        StringBuilder result = new StringBuilder();
+        result.append(SCHEMES[rand.nextInt(SCHEMES.length)]);
+        result.append(HOSTS[rand.nextInt(HOSTS.length)]);
+        result.append(PORTS[rand.nextInt(PORTS.length)]);
+        
+        int numSegments = rand.nextInt(4);
+        for (int i = 0; i < numSegments; i++) {
+            result.append('/');
+            result.append(SEGMENTS[rand.nextInt(SEGMENTS.length)]);
+        }
+        
+        if (rand.nextBoolean()) {
+            result.append('/');
+        }
+        
+        if (rand.nextBoolean()) {
+            result.append('?');
+            int numParams = rand.nextInt(4);
+            for (int i = 0; i < numParams; i++) {
+                if (i > 0) {
+                    result.append('&');
+                }
+                
+                result.append(PARAMS[rand.nextInt(PARAMS.length)]);
+            }
+        }
+        
+        result.append(ANCHORS[rand.nextInt(ANCHORS.length)]);
+        return result.toString();
+    }
+    
+    @Test
+    public void testFastPathMatchesFullNormalization() {
+        SimpleUrlNormalizer[] normalizers = {
+            new SimpleUrlNormalizer(),
+            new SimpleUrlNormalizer(true),
+            new SimpleUrlNormalizer(false, true),
+        };
+        
+        Random rand = new Random(1L);
+        int numFastPath = 0;
+        for (int i = 0; i < 20000; i++) {
+            String url = makeRandomUrl(rand);
+            for (SimpleUrlNormalizer normalizer : normalizers) {
+                String fastResult = normalizer.normalizeSimpleUrl(url);
+                if (fastResult != null) {
+                    numFastPath += 1;
+                    Assert.assertEquals(url, normalizer.normalizeFully(url), fastResult);
+                }
+                
+                Assert.assertEquals(url, normalizer.normalizeFully(url), normalizer.normalize(url));
+            }
+        }
+        
+        // Make sure we're actually testing the fast path.
+        Assert.assertTrue(numFastPath > 4000);
+    }
 }
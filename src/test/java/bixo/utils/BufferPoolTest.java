@@ -0,0 +1,113 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+
+import org.junit.Test;
+
+public class BufferPoolTest {
+
+    @Test
+    public void testReuse() throws Exception {
+        BufferPool pool = new BufferPool(100, 1000, 2);
+        
+        byte[] buffer = pool.acquire();
+        assertEquals(100, buffer.length);
+        pool.release(buffer);
+        
+        assertSame(buffer, pool.acquire());
+        assertEquals(0, pool.getNumPooled());
+        pool.release(buffer);
+        assertSame(buffer, pool.acquire(50));
+        
+        assertEquals(1, pool.getAllocatedCount());
+        assertEquals(100, pool.getAllocatedBytes());
+        assertEquals(2, pool.getReusedCount());
+    }
+    
+    @Test
+    public void testLimits() throws Exception {
+        BufferPool pool = new BufferPool(100, 1000, 2);
+        
+        // Too big to be pooled.
+        pool.release(new byte[2000]);
+        
+        // Too small to be pooled.
+        pool.release(new byte[10]);
+        assertEquals(0, pool.getNumPooled());
+        assertEquals(2, pool.getDiscardedCount());
+        
+        // Only two buffers can be pooled.
+        pool.release(pool.acquire());
+        pool.release(new byte[100]);
+        pool.release(new byte[100]);
+        assertEquals(2, pool.getNumPooled());
+        assertEquals(3, pool.getDiscardedCount());
+    }
+    
+    @Test
+    public void testGrowingBuffer() throws Exception {
+        BufferPool pool = new BufferPool(100, 1000, 2);
+        
+        byte[] smallBuffer = pool.acquire();
+        pool.release(smallBuffer);
+        
+        // Pooled buffer is too small, so we should get a new one.
+        byte[] bigBuffer = pool.acquire(500);
+        assertEquals(500, bigBuffer.length);
+        assertEquals(2, pool.getAllocatedCount());
+        assertEquals(1, pool.getDiscardedCount());
+        
+        // And now the big buffer can be reused for smaller requests.
+        pool.release(bigBuffer);
+        assertSame(bigBuffer, pool.acquire(200));
+    }
+    
+    @Test
+    public void testPooledOutputStream() throws Exception {
+        BufferPool pool = new BufferPool(16, 1024, 4);
+        
+        for (int i = 0; i < 10; i++) {
+            PooledByteArrayOutputStream out = new PooledByteArrayOutputStream(pool, 16);
+            for (int j = 0; j < 100; j++) {
+                out.write(j);
+            }
+            
+            assertEquals(100, out.size());
+            byte[] result = out.toByteArray();
+            assertEquals(100, result.length);
+            
+            InputStream is = out.getInputStream();
+            for (int j = 0; j < 100; j++) {
+                assertEquals(j, result[j]);
+                assertEquals(j, is.read());
+            }
+            
+            assertEquals(-1, is.read());
+            out.release();
+        }
+        
+        // After the first time through, we should be reusing the (grown) buffer.
+        assertEquals(9, pool.getReusedCount());
+        assertEquals(4, pool.getAllocatedCount());
+    }
+}
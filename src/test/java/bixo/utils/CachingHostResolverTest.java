@@ -0,0 +1,227 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class CachingHostResolverTest {
+
+    @SuppressWarnings("serial")
+    private static class CountingResolver extends BaseHostResolver {
+        private transient AtomicInteger _numCalls = new AtomicInteger();
+        private transient volatile long _delay = 0;
+        
+        @Override
+        public String resolve(String hostname) throws UnknownHostException {
+            _numCalls.incrementAndGet();
+            
+            if (_delay > 0) {
+                try {
+                    Thread.sleep(_delay);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            
+            if (hostname.startsWith("unknown")) {
+                throw new UnknownHostException(hostname);
+            }
+            
+            return "10.0.0." + hostname.length();
+        }
+        
+        public int getNumCalls() {
+            return _numCalls.get();
+        }
+    }
+    
+    @Test
+    public void testCachingLookups() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter);
+        
+        assertEquals("10.0.0.7", resolver.resolve("abc.com"));
+        assertEquals("10.0.0.7", resolver.resolve("abc.com"));
+        assertEquals("10.0.0.7", resolver.resolve("ABC.com"));
+        assertEquals(1, counter.getNumCalls());
+        
+        assertEquals("10.0.0.8", resolver.resolve("abcd.com"));
+        assertEquals(2, counter.getNumCalls());
+        
+        assertEquals(2, resolver.size());
+        assertEquals(2, resolver.getNumHits());
+        assertEquals(2, resolver.getNumMisses());
+        assertEquals(2, resolver.getNumLookups());
+        assertEquals(0, resolver.getNumFailures());
+    }
+    
+    @Test
+    public void testCachingUnknownHosts() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter);
+        
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown.com");
+                fail("Should throw exception");
+            } catch (UnknownHostException e) {
+                // Valid.
+            }
+        }
+        
+        assertEquals(1, counter.getNumCalls());
+        assertEquals(1, resolver.getNumFailures());
+        assertEquals(1, resolver.getNumHits());
+    }
+    
+    @Test
+    public void testExpiration() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter, 100, 50, 0, 0);
+        
+        resolver.resolve("abc.com");
+        resolver.resolve("abc.com");
+        assertEquals(1, counter.getNumCalls());
+        
+        Thread.sleep(100);
+        resolver.resolve("abc.com");
+        assertEquals(2, counter.getNumCalls());
+        
+        // Negative TTL of zero means unknown hosts aren't cached.
+        for (int i = 0; i < 2; i++) {
+            try {
+                resolver.resolve("unknown.com");
+                fail("Should throw exception");
+            } catch (UnknownHostException e) {
+                // Valid.
+            }
+        }
+        
+        assertEquals(4, counter.getNumCalls());
+    }
+    
+    @Test
+    public void testLRUEviction() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        CachingHostResolver resolver = new CachingHostResolver(counter, 2, 100000, 100000, 0);
+        
+        resolver.resolve("a.com");
+        resolver.resolve("bb.com");
+        
+        // Touch a.com, so bb.com is the least recently used.
+        resolver.resolve("a.com");
+        resolver.resolve("ccc.com");
+        assertEquals(2, resolver.size());
+        assertEquals(3, counter.getNumCalls());
+        
+        resolver.resolve("a.com");
+        assertEquals(3, counter.getNumCalls());
+        
+        resolver.resolve("bb.com");
+        assertEquals(4, counter.getNumCalls());
+    }
+    
+    @Test
+    public void testPrefetching() throws Exception {
+        CountingResolver counter = new CountingResolver();
+        counter._delay = 100;
+        CachingHostResolver resolver = new CachingHostResolver(counter, 100, 100000, 100000, 4);
+        
+        long startTime = System.currentTimeMillis();
+        resolver.prefetch(Arrays.asList("a.com", "bb.com", "ccc.com", "dddd.com"));
+        assertEquals("10.0.0.5", resolver.resolve("a.com"));
+        assertEquals("10.0.0.6", resolver.resolve("bb.com"));
+        assertEquals("10.0.0.7", resolver.resolve("ccc.com"));
+        assertEquals("10.0.0.8", resolver.resolve("dddd.com"));
+        long deltaTime = System.currentTimeMillis() - startTime;
+        
+        // Lookups were done in parallel, and only once each.
+        assertTrue("Took " + deltaTime + "ms", deltaTime < 350);
+        assertEquals(4, counter.getNumCalls());
+        assertEquals(4, resolver.getNumLookups());
+        assertTrue(resolver.getMaxLookupTime() >= 90);
+        
+        // Already cached, so no new lookups.
+        resolver.prefetch(Arrays.asList("a.com", "bb.com"));
+        Thread.sleep(50);
+        assertEquals(4, counter.getNumCalls());
+    }
+    
+    @Test
+    public void testConcurrentLookupsOfSameHost() throws Exception {
+        final CountingResolver counter = new CountingResolver();
+        counter._delay = 100;
+        final CachingHostResolver resolver = new CachingHostResolver(counter, 100, 100000, 100000, 0);
+        
+        final int numThreads = 10;
+        final CountDownLatch startLatch = new CountDownLatch(1);
+        final AtomicInteger numCorrect = new AtomicInteger();
+        Thread[] threads = new Thread[numThreads];
+        for (int i = 0; i < numThreads; i++) {
+            threads[i] = new Thread(new Runnable() {
+                
+                @Override
+                public void run() {
+                    try {
+                        startLatch.await();
+                        if (resolver.resolve("abc.com").equals("10.0.0.7")) {
+                            numCorrect.incrementAndGet();
+                        }
+                    } catch (Exception e) {
+                        // Leave it as not correct.
+                    }
+                }
+            });
+            
+            threads[i].start();
+        }
+        
+        startLatch.countDown();
+        for (Thread t : threads) {
+            t.join();
+        }
+        
+        assertEquals(numThreads, numCorrect.get());
+        assertEquals(1, counter.getNumCalls());
+    }
+    
+    @Test
+    public void testSerialization() throws Exception {
+        CachingHostResolver resolver = new CachingHostResolver(new SimpleHostResolver(), 100, 1000, 1000, 2);
+        
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        ObjectOutputStream oos = new ObjectOutputStream(bos);
+        oos.writeObject(resolver);
+        oos.close();
+        
+        ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bos.toByteArray()));
+        CachingHostResolver copy = (CachingHostResolver)ois.readObject();
+        assertEquals(0, copy.size());
+        assertEquals(0, copy.getNumLookups());
+    }
+}
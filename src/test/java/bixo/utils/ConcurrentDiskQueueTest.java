@@ -0,0 +1,157 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.Test;
+
+public class ConcurrentDiskQueueTest {
+
+    private static class IntegerComparator implements Comparator<Integer> {
+
+        @Override
+        public int compare(Integer o1, Integer o2) {
+            return o1 - o2;
+        }
+    }
+
+    @Test
+    public void testSingleThreaded() {
+        ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(10, new IntegerComparator(), true);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(queue.offer(i));
+        }
+
+        assertEquals(100, queue.size());
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i, queue.poll().intValue());
+        }
+
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+        assertNull(queue.peek());
+    }
+
+    @Test
+    public void testClearingQueue() {
+        ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(1, new IntegerComparator());
+        assertTrue(queue.offer(1));
+        assertTrue(queue.offer(2));
+        queue.clear();
+
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+
+        // Now we can change the codec, since nothing is on disk.
+        queue.setCodec(new SerializableQueueCodec<Integer>());
+    }
+
+    @Test
+    public void testInvalidQueueSize() {
+        try {
+            new ConcurrentDiskQueue<Integer>(0, new IntegerComparator());
+            fail("Should have thrown exception");
+        } catch (Exception e) {
+            // valid
+        }
+    }
+
+    @Test
+    public void testMultipleProducersAndConsumers() throws Exception {
+        final int numProducers = 4;
+        final int numConsumers = 4;
+        final int elementsPerProducer = 20000;
+        final int numElements = numProducers * elementsPerProducer;
+
+        // Small in-memory size, so that we're constantly spilling to and refilling from disk.
+        final ConcurrentDiskQueue<Integer> queue = new ConcurrentDiskQueue<Integer>(100, new IntegerComparator(), true);
+        final AtomicIntegerArray counts = new AtomicIntegerArray(numElements);
+        final AtomicInteger numConsumed = new AtomicInteger();
+        final AtomicInteger numErrors = new AtomicInteger();
+        final CountDownLatch producersDone = new CountDownLatch(numProducers);
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numProducers; i++) {
+            final int producerIndex = i;
+            threads.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for (int j = 0; j < elementsPerProducer; j++) {
+                            if (!queue.offer((producerIndex * elementsPerProducer) + j)) {
+                                numErrors.incrementAndGet();
+                            }
+                        }
+                    } finally {
+                        producersDone.countDown();
+                    }
+                }
+            }));
+        }
+
+        for (int i = 0; i < numConsumers; i++) {
+            threads.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    while (numConsumed.get() < numElements) {
+                        Integer element = queue.poll();
+                        if (element != null) {
+                            counts.incrementAndGet(element);
+                            numConsumed.incrementAndGet();
+                        } else if (producersDone.getCount() == 0 && queue.isEmpty()) {
+                            break;
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+        }
+
+        for (Thread t : threads) {
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join(60000);
+            assertTrue("Thread didn't terminate", !t.isAlive());
+        }
+
+        assertEquals(0, numErrors.get());
+        assertEquals(numElements, numConsumed.get());
+        for (int i = 0; i < numElements; i++) {
+            assertEquals("Element " + i, 1, counts.get(i));
+        }
+
+        assertEquals(0, queue.size());
+        assertNull(queue.poll());
+    }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+
+import org.apache.hadoop.io.IntWritable;
+import org.junit.Test;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.HttpHeaders;
+import bixo.datum.UrlDatum;
+import bixo.datum.UrlStatus;
+import cascading.tuple.Fields;
+import cascading.tuple.Tuple;
+
+public class DatumQueueCodecTest {
+
+    @Test
+    public void testValueTypes() throws Exception {
+        Fields fields = UrlDatum.FIELDS.append(new Fields("a", "b", "c", "d", "e", "f", "g", "h"));
+        UrlDatum datum = new UrlDatum(fields, "http://domain.com");
+        Tuple tuple = datum.getTuple();
+        tuple.set(1, 10);
+        tuple.set(2, 1000000000000L);
+        tuple.set(3, 0.5);
+        tuple.set(4, 0.25f);
+        tuple.set(5, true);
+        tuple.set(6, new Tuple("nested", 1));
+        tuple.set(7, new ContentBytes("content".getBytes("UTF-8")));
+        tuple.set(8, UrlStatus.FETCHED);
+        
+        DatumQueueCodec<UrlDatum> codec = new DatumQueueCodec<UrlDatum>(UrlDatum.class);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        codec.write(datum, out);
+        codec.write(datum, out);
+        
+        // Second datum has different fields.
+        UrlDatum datum2 = new UrlDatum("http://domain2.com");
+        codec.write(datum2, out);
+        out.close();
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        UrlDatum result = codec.read(in);
+        assertEquals(datum, result);
+        assertEquals(fields, result.getTupleEntry().getFields());
+        assertEquals(UrlStatus.FETCHED, result.getTuple().getObject(8));
+        assertEquals(datum, codec.read(in));
+        
+        result = codec.read(in);
+        assertEquals(datum2, result);
+        assertEquals(UrlDatum.FIELDS, result.getTupleEntry().getFields());
+        assertNull(result.getTuple().getObject(1));
+    }
+    
+    @Test
+    public void testWritableClassNames() throws Exception {
+        Fields fields = UrlDatum.FIELDS.append(new Fields("headers", "writable"));
+        UrlDatum datum = new UrlDatum(fields, "http://domain.com");
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("content-type", "text/html");
+        datum.getTuple().set(1, headers);
+        datum.getTuple().set(2, new IntWritable(10));
+        
+        DatumQueueCodec<UrlDatum> codec = new DatumQueueCodec<UrlDatum>(UrlDatum.class);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        codec.write(datum, out);
+        int firstSize = out.size();
+        codec.write(datum, out);
+        int secondSize = out.size() - firstSize;
+        
+        // Known classes never need a class name, and other Writables only need it once.
+        String encoded = new String(bytes.toByteArray(), "ISO-8859-1");
+        assertFalse(encoded.contains(HttpHeaders.class.getName()));
+        assertEquals(encoded.indexOf(IntWritable.class.getName()), encoded.lastIndexOf(IntWritable.class.getName()));
+        assertTrue(secondSize < firstSize - IntWritable.class.getName().length());
+        
+        // After a reset (new backing store file), everything gets written again.
+        codec.reset();
+        codec.write(datum, out);
+        out.close();
+        
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+        for (int i = 0; i < 2; i++) {
+            UrlDatum result = codec.read(in);
+            assertEquals(headers, result.getTuple().getObject(1));
+            assertEquals(new IntWritable(10), result.getTuple().getObject(2));
+        }
+        
+        codec.reset();
+        assertEquals(datum, codec.read(in));
+    }
+    
+    @Test(expected=IllegalArgumentException.class)
+    public void testMissingConstructor() {
+        new DatumQueueCodec<TestDatum>(TestDatum.class);
+    }
+    
+    @SuppressWarnings("serial")
+    private static class TestDatum extends UrlDatum {
+        
+    }
+}
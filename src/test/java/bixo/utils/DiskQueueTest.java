@@ -299,4 +299,161 @@ public class DiskQueueTest {
         assertEquals(null, queue.peek());
     }
     
+    @Test
+    public void testHeapOrdering() throws Exception {
+        final int numElements = 1000;
+        DiskQueue<Integer> queue = new DiskQueue<Integer>(numElements, new IntegerComparator(), true);
+        
+        Random rand = new Random(1L);
+        for (int i = 0; i < numElements; i++) {
+            assertTrue(queue.offer(rand.nextInt(numElements)));
+        }
+        
+        assertEquals(numElements, queue.size());
+        
+        int lastValue = -1;
+        for (int i = 0; i < numElements; i++) {
+            int value = queue.remove();
+            assertTrue(value >= lastValue);
+            lastValue = value;
+        }
+        
+        assertNull(queue.poll());
+        assertEquals(0, queue.size());
+    }
+    
+    @Test
+    public void testHeapMatchesScanning() throws Exception {
+        DiskQueue<Integer> scanQueue = new DiskQueue<Integer>(100, new IntegerComparator(), false);
+        DiskQueue<Integer> heapQueue = new DiskQueue<Integer>(100, new IntegerComparator(), true);
+
+        Random rand = new Random(1L);
+        for (int i = 0; i < 10000; i++) {
+            if (rand.nextInt(3) == 0) {
+                Integer scanValue = scanQueue.poll();
+                Integer heapValue = heapQueue.poll();
+                assertEquals(scanValue, heapValue);
+            } else {
+                Integer value = rand.nextInt(1000);
+                assertTrue(scanQueue.offer(value));
+                assertTrue(heapQueue.offer(value));
+            }
+            
+            assertEquals(scanQueue.size(), heapQueue.size());
+        }
+    }
+    
+    @Test
+    public void testHeapReprioritize() throws Exception {
+        DiskQueue<AtomicInteger> queue = new DiskQueue<AtomicInteger>(10, new AtomicIntegerComparator(), true);
+
+        List<AtomicInteger> values = new ArrayList<AtomicInteger>();
+        for (int i = 0; i < 10; i++) {
+            AtomicInteger value = new AtomicInteger(i);
+            values.add(value);
+            assertTrue(queue.offer(value));
+        }
+        
+        assertEquals(0, queue.peek().get());
+
+        // Reverse the order of everything, and verify that after we call reprioritize
+        // we get back elements in the new order.
+        for (AtomicInteger value : values) {
+            value.set(100 - value.get());
+        }
+        
+        queue.reprioritize();
+        
+        int lastValue = -1;
+        for (int i = 0; i < 10; i++) {
+            int value = queue.remove().get();
+            assertTrue(value > lastValue);
+            lastValue = value;
+        }
+        
+        assertNull(queue.poll());
+    }
+    
+    @Test
+    public void testDatumCodec() {
+        checkFetchSetRoundTrip(new DatumQueueCodec<FetchSetDatum>(FetchSetDatum.class), false);
+        checkFetchSetRoundTrip(new DatumQueueCodec<FetchSetDatum>(FetchSetDatum.class), true);
+        checkFetchSetRoundTrip(new SerializableQueueCodec<FetchSetDatum>(), true);
+    }
+    
+    private void checkFetchSetRoundTrip(BaseQueueCodec<FetchSetDatum> codec, boolean compress) {
+        final int numElements = 1000;
+        DiskQueue<FetchSetDatum> queue = new DiskQueue<FetchSetDatum>(numElements/10, new FetchSetComparator());
+        queue.setCodec(codec);
+        queue.setCompressFile(compress);
+        
+        final long fetchStartTime = System.currentTimeMillis();
+        FetchSetDatum datums[] = new FetchSetDatum[numElements];
+        for (int i = 0; i < numElements; i++) {
+            String groupingRef = "groupingRef-" + (i % 10);
+            List<ScoredUrlDatum> scoredUrls = new ArrayList<ScoredUrlDatum>();
+            for (int j = 0; j < 1 + (i % 5); j++) {
+                String url = String.format("http://domain-%03d.com/page-%d.html", i, j);
+                scoredUrls.add(new ScoredUrlDatum(url, groupingRef, UrlStatus.UNFETCHED, j / 10.0));
+            }
+            
+            FetchSetDatum datum = new FetchSetDatum(scoredUrls, fetchStartTime + (i * 10), 30000, i, groupingRef);
+            datum.setLastList((i % 2) == 0);
+            datums[i] = datum;
+            assertTrue(queue.offer(datum));
+        }
+        
+        // Mix in some writes with reads, so that we're appending to the backing store
+        // file after we've started reading from it. Since re-added elements can come
+        // back out in a different order, just check that we get everything back.
+        int[] counts = new int[numElements];
+        int numPolled = 0;
+        FetchSetDatum datum;
+        while ((datum = queue.poll()) != null) {
+            int index = datum.getGroupingKey();
+            assertEquals(datums[index], datum);
+            assertEquals(datums[index].getUrls().size(), datum.getUrls().size());
+            assertEquals(datums[index].isLastList(), datum.isLastList());
+            
+            counts[index] += 1;
+            numPolled += 1;
+            if ((numPolled < numElements / 2) && (counts[index] == 1)) {
+                assertTrue(queue.offer(datum));
+            }
+        }
+        
+        int numReadded = 0;
+        for (int i = 0; i < numElements; i++) {
+            assertTrue(counts[i] > 0);
+            numReadded += counts[i] - 1;
+        }
+        
+        assertEquals((numElements / 2) - 1, numReadded);
+    }
+
+    @Test
+    public void testChangingCodecAfterSpilling() {
+        DiskQueue<String> queue = new DiskQueue<String>(1, new StringComparator());
+        queue.add("a");
+        queue.add("b");
+        
+        try {
+            queue.setCompressFile(true);
+            fail("Should have thrown exception");
+        } catch (IllegalStateException e) {
+            // valid
+        }
+        
+        try {
+            queue.setCodec(new SerializableQueueCodec<String>());
+            fail("Should have thrown exception");
+        } catch (IllegalStateException e) {
+            // valid
+        }
+        
+        // Once the file is gone, we can change things again.
+        queue.clear();
+        queue.setCompressFile(true);
+    }
+    
 }
@@ -17,6 +17,7 @@
 package bixo.utils;
 
 import java.net.URISyntaxException;
+import java.net.UnknownHostException;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
@@ -40,4 +41,39 @@ public class DomainInfoTest {
         DomainInfo di = new DomainInfo("http://" + domain);
         assertEquals(di.getDomain(), di.getHostAddress());
     }
+    
+    @SuppressWarnings("serial")
+    @Test
+    public void testUsingResolver() throws Exception {
+        BaseHostResolver resolver = new BaseHostResolver() {
+            
+            @Override
+            public String resolve(String hostname) throws UnknownHostException {
+                if (hostname.equals("www.domain.com")) {
+                    return "10.0.0.1";
+                } else {
+                    throw new UnknownHostException(hostname);
+                }
+            }
+        };
+        
+        DomainInfo di = new DomainInfo("http://www.domain.com", resolver);
+        assertEquals("www.domain.com", di.getDomain());
+        assertEquals("10.0.0.1", di.getHostAddress());
+        
+        try {
+            new DomainInfo("http://www.unknown.com", resolver);
+            fail("Should throw exception");
+        } catch (UnknownHostException e) {
+            // Valid.
+        }
+    }
+    
+    @Test
+    public void testUsingResolvedAddress() throws Exception {
+        DomainInfo di = new DomainInfo("http://www.domain.com:8080", "10.0.0.1");
+        assertEquals("http://www.domain.com:8080", di.getProtocolAndDomain());
+        assertEquals("www.domain.com", di.getDomain());
+        assertEquals("10.0.0.1", di.getHostAddress());
+    }
 }
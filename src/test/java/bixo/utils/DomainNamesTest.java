@@ -122,6 +122,21 @@ public class DomainNamesTest extends TestCase {
         assertTrue(DomainNames.isUrlWithinDomain("http://subsubdomain.subdomain.domain.com", "domain.com"));
     }
     
+    // The public suffix list knows about regional domains and newer TLDs.
+    public final void testPublicSuffixDomains() {
+        assertEquals("xxx.agrigento.it", DomainNames.getPLD("www.xxx.agrigento.it"));
+        assertEquals("xxx.travel", DomainNames.getPLD("www.xxx.travel"));
+        
+        // But an unknown TLD still means we return the hostname.
+        assertEquals("www.xxx.local", DomainNames.getPLD("www.xxx.local"));
+    }
+    
+    public final void testMixedCase() {
+        assertEquals("XXX.Co.JP", DomainNames.getPLD("WWW.XXX.Co.JP"));
+        assertEquals("xxx.COM", DomainNames.getPLD("www.xxx.COM"));
+        assertEquals("xxx.De.com", DomainNames.getPLD("www.xxx.De.com"));
+    }
+    
     public final void testIsIpAddress() {
         assertTrue(DomainNames.isIPAddress("222.177.24.54"));
         assertFalse(DomainNames.isIPAddress("163.com"));
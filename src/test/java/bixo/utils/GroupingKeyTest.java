@@ -17,6 +17,9 @@
 package bixo.utils;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import org.junit.Test;
@@ -64,4 +67,20 @@ public class GroupingKeyTest {
             // Valid
         }
     }
+    
+    @Test
+    public void testResolvedDomainKeys() {
+        String key = GroupingKey.makeResolvedDomainKey("http://www.domain.com:8080", "10.0.0.1");
+        assertTrue(GroupingKey.isResolvedDomainKey(key));
+        assertEquals("http://www.domain.com:8080", GroupingKey.getProtocolAndDomainFromKey(key));
+        assertEquals("10.0.0.1", GroupingKey.getHostAddressFromKey(key));
+        
+        key = GroupingKey.makeResolvedDomainKey("http://www.domain.com", null);
+        assertTrue(GroupingKey.isResolvedDomainKey(key));
+        assertEquals("http://www.domain.com", GroupingKey.getProtocolAndDomainFromKey(key));
+        assertNull(GroupingKey.getHostAddressFromKey(key));
+        
+        assertFalse(GroupingKey.isResolvedDomainKey("http://www.domain.com"));
+        assertEquals("http://www.domain.com", GroupingKey.getProtocolAndDomainFromKey("http://www.domain.com"));
+    }
 }
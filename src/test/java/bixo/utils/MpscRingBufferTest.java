@@ -0,0 +1,114 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class MpscRingBufferTest {
+
+    @Test
+    public void testCapacity() {
+        assertEquals(1, new MpscRingBuffer<String>(1).getCapacity());
+        assertEquals(16, new MpscRingBuffer<String>(16).getCapacity());
+        assertEquals(32, new MpscRingBuffer<String>(17).getCapacity());
+    }
+
+    @Test
+    public void testOfferAndPoll() {
+        MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(4);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+
+        // Go around the ring a few times.
+        for (int lap = 0; lap < 3; lap++) {
+            for (int i = 0; i < 4; i++) {
+                assertTrue(buffer.offer(i));
+            }
+
+            assertEquals(4, buffer.size());
+            assertFalse(buffer.offer(4));
+
+            for (int i = 0; i < 4; i++) {
+                assertEquals(i, buffer.poll().intValue());
+            }
+
+            assertTrue(buffer.isEmpty());
+            assertNull(buffer.poll());
+        }
+    }
+
+    @Test
+    public void testMultipleProducers() throws Exception {
+        final int numProducers = 4;
+        final int numPerProducer = 10000;
+        final MpscRingBuffer<Integer> buffer = new MpscRingBuffer<Integer>(64);
+        final AtomicInteger numFull = new AtomicInteger();
+
+        Thread[] producers = new Thread[numProducers];
+        for (int i = 0; i < numProducers; i++) {
+            final int producer = i;
+            producers[i] = new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < numPerProducer; j++) {
+                        while (!buffer.offer((producer * numPerProducer) + j)) {
+                            numFull.incrementAndGet();
+                            Thread.yield();
+                        }
+                    }
+                }
+            });
+            producers[i].start();
+        }
+
+        // Each producer's values must show up in order, and we must see all of them.
+        int[] lastValues = new int[numProducers];
+        for (int i = 0; i < numProducers; i++) {
+            lastValues[i] = -1;
+        }
+
+        int numReceived = 0;
+        while (numReceived < numProducers * numPerProducer) {
+            Integer value = buffer.poll();
+            if (value == null) {
+                Thread.yield();
+                continue;
+            }
+
+            int producer = value / numPerProducer;
+            int index = value % numPerProducer;
+            assertEquals(lastValues[producer] + 1, index);
+            lastValues[producer] = index;
+            numReceived += 1;
+        }
+
+        for (Thread producer : producers) {
+            producer.join();
+        }
+
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+
+import org.junit.Test;
+
+public class PublicSuffixListTest {
+
+    private static PublicSuffixList makeList(String... rules) throws Exception {
+        StringBuilder content = new StringBuilder("// Test rules\n\n");
+        for (String rule : rules) {
+            content.append(rule);
+            content.append('\n');
+        }
+        
+        return new PublicSuffixList(new ByteArrayInputStream(content.toString().getBytes("UTF-8")));
+    }
+    
+    @Test
+    public void testSimpleRules() throws Exception {
+        PublicSuffixList list = makeList("com", "jp", "co.jp");
+        assertEquals(3, list.getNumRules());
+        
+        assertEquals("com", list.getPublicSuffix("www.domain.com"));
+        assertEquals("domain.com", list.getRegisteredDomain("www.domain.com"));
+        assertEquals("domain.com", list.getRegisteredDomain("domain.com"));
+        assertEquals(4, list.getRegisteredDomainStart("www.domain.com"));
+        
+        // Longest rule wins.
+        assertEquals("co.jp", list.getPublicSuffix("www.domain.co.jp"));
+        assertEquals("domain.co.jp", list.getRegisteredDomain("www.domain.co.jp"));
+        assertEquals("ne.jp", list.getRegisteredDomain("www.domain.ne.jp"));
+        
+        assertTrue(list.isPublicSuffix("co.jp"));
+        assertNull(list.getRegisteredDomain("co.jp"));
+        assertFalse(list.isPublicSuffix("domain.co.jp"));
+    }
+    
+    @Test
+    public void testNoMatchingRule() throws Exception {
+        PublicSuffixList list = makeList("com");
+        
+        assertEquals(PublicSuffixList.NO_MATCH, list.getPublicSuffixStart("www.domain.local"));
+        assertNull(list.getPublicSuffix("www.domain.local"));
+        assertNull(list.getRegisteredDomain("www.domain.local"));
+        
+        // Partial match of a label isn't a match.
+        assertNull(list.getPublicSuffix("www.domain.xcom"));
+    }
+    
+    @Test
+    public void testCaseInsensitive() throws Exception {
+        PublicSuffixList list = makeList("CO.uk");
+        
+        assertEquals("Domain.Co.UK", list.getRegisteredDomain("WWW.Domain.Co.UK"));
+    }
+    
+    @Test
+    public void testWildcardRules() throws Exception {
+        PublicSuffixList list = makeList("*.uk", "*.sch.uk");
+        
+        assertEquals("co.uk", list.getPublicSuffix("www.domain.co.uk"));
+        assertEquals("domain.co.uk", list.getRegisteredDomain("www.domain.co.uk"));
+        assertEquals("domain.co.uk", list.getRegisteredDomain("domain.co.uk"));
+        assertNull(list.getRegisteredDomain("co.uk"));
+        
+        // A wildcard doesn't make the parent a suffix
+        assertNull(list.getPublicSuffix("uk"));
+        
+        assertEquals("school.county.sch.uk", list.getRegisteredDomain("www.school.county.sch.uk"));
+    }
+    
+    @Test
+    public void testExceptionRules() throws Exception {
+        PublicSuffixList list = makeList("jp", "*.kawasaki.jp", "!city.kawasaki.jp");
+        
+        assertEquals("domain.foo.kawasaki.jp", list.getRegisteredDomain("www.domain.foo.kawasaki.jp"));
+        assertEquals("kawasaki.jp", list.getPublicSuffix("www.city.kawasaki.jp"));
+        assertEquals("city.kawasaki.jp", list.getRegisteredDomain("www.city.kawasaki.jp"));
+        assertEquals("city.kawasaki.jp", list.getRegisteredDomain("city.kawasaki.jp"));
+    }
+    
+    @Test
+    public void testDefaultList() throws Exception {
+        PublicSuffixList list = PublicSuffixList.getDefault();
+        assertTrue(list.getNumRules() > 1000);
+        assertTrue(list == PublicSuffixList.getDefault());
+        
+        assertEquals("domain.co.uk", list.getRegisteredDomain("www.domain.co.uk"));
+        assertEquals("bl.uk", list.getRegisteredDomain("www.bl.uk"));
+        assertEquals("domain.travel", list.getRegisteredDomain("www.domain.travel"));
+        assertEquals("domain.agrigento.it", list.getRegisteredDomain("www.domain.agrigento.it"));
+    }
+}
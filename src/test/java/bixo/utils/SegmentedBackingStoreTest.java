@@ -0,0 +1,147 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.security.InvalidParameterException;
+
+import org.junit.Test;
+
+public class SegmentedBackingStoreTest {
+
+    private static SegmentedBackingStore<String> makeStore(boolean compress) {
+        return new SegmentedBackingStore<String>(new SerializableQueueCodec<String>(), compress, 1024, 256, null);
+    }
+
+    @Test
+    public void testFifoAcrossSegments() throws Exception {
+        checkFifoAcrossSegments(false);
+        checkFifoAcrossSegments(true);
+    }
+
+    private void checkFifoAcrossSegments(boolean compress) throws Exception {
+        SegmentedBackingStore<String> store = makeStore(compress);
+
+        try {
+            for (int i = 0; i < 1000; i++) {
+                store.add("element-" + i);
+            }
+
+            assertEquals(1000, store.size());
+            if (!compress) {
+                assertTrue(store.getNumSegments() > 10);
+            }
+
+            for (int i = 0; i < 1000; i++) {
+                assertEquals("element-" + i, store.remove());
+            }
+
+            assertEquals(0, store.size());
+            assertNull(store.remove());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testReadingFromTailBuffer() throws Exception {
+        SegmentedBackingStore<String> store = makeStore(false);
+
+        try {
+            // Small elements that never fill up the tail buffer shouldn't create a segment.
+            for (int i = 0; i < 100; i++) {
+                store.add("a" + i);
+                assertEquals("a" + i, store.remove());
+            }
+
+            assertEquals(0, store.getNumSegments());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testSegmentsAreRecycled() throws Exception {
+        SegmentedBackingStore<String> store = makeStore(false);
+
+        try {
+            int readIndex = 0;
+            int writeIndex = 0;
+            for (int i = 0; i < 100; i++) {
+                store.add("element-" + writeIndex++);
+                store.add("element-" + writeIndex++);
+            }
+
+            // Keep the store at a steady size while reading and writing, and make
+            // sure we don't keep growing the number of segments.
+            int maxSegments = 0;
+            for (int i = 0; i < 10000; i++) {
+                store.add("element-" + writeIndex++);
+                assertEquals("element-" + readIndex++, store.remove());
+                maxSegments = Math.max(maxSegments, store.getNumSegments());
+            }
+
+            assertTrue(maxSegments < 20);
+
+            while (readIndex < writeIndex) {
+                assertEquals("element-" + readIndex++, store.remove());
+            }
+
+            assertNull(store.remove());
+        } finally {
+            store.close();
+        }
+
+        assertEquals(0, store.getNumSegments());
+    }
+
+    @Test
+    public void testOversizedElements() throws Exception {
+        SegmentedBackingStore<String> store = makeStore(false);
+
+        try {
+            StringBuilder bigElement = new StringBuilder();
+            for (int i = 0; i < 1000; i++) {
+                bigElement.append("0123456789");
+            }
+
+            store.add("small");
+            store.add(bigElement.toString());
+            store.add("small2");
+
+            assertEquals("small", store.remove());
+            assertEquals(bigElement.toString(), store.remove());
+            assertEquals("small2", store.remove());
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testInvalidSizes() {
+        try {
+            new SegmentedBackingStore<String>(new SerializableQueueCodec<String>(), false, 100, 256, null);
+            fail("Should have thrown exception");
+        } catch (InvalidParameterException e) {
+            // valid
+        }
+    }
+}
@@ -16,6 +16,7 @@
  */
 package bixo.utils;
 
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.RejectedExecutionException;
 
 import junit.framework.Assert;
@@ -169,4 +170,102 @@ public class ThreadedExecutorTest {
             Assert.fail("Termination was interrupted");
         }
     }
+
+    @Test
+    public void testLightweightTasks() throws Exception {
+        final int numTasks = 100;
+        final CountDownLatch started = new CountDownLatch(numTasks);
+        final CountDownLatch done = new CountDownLatch(1);
+        
+        ThreadedExecutor executor = new ThreadedExecutor(numTasks, 100, ThreadedExecutor.DEFAULT_TASK_STACK_SIZE);
+        Assert.assertTrue(executor.isLightweight());
+        
+        for (int i = 0; i < numTasks; i++) {
+            executor.execute(new Runnable() {
+                public void run() {
+                    started.countDown();
+                    
+                    try {
+                        done.await();
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            });
+        }
+        
+        started.await();
+        Assert.assertEquals(numTasks, executor.getActiveCount());
+        
+        // All of the permits are in use, so the next one should be rejected.
+        try {
+            executor.execute(new Runnable() {
+                public void run() { }
+            });
+            Assert.fail("Should have failed");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+        
+        done.countDown();
+        Assert.assertTrue(executor.terminate(1000));
+        Assert.assertEquals(0, executor.getActiveCount());
+        
+        // Once we've been terminated, nothing else gets accepted.
+        try {
+            executor.execute(new Runnable() {
+                public void run() { }
+            });
+            Assert.fail("Should have failed");
+        } catch (RejectedExecutionException e) {
+            // Valid
+        }
+        
+        Assert.assertEquals(0, executor.getActiveCount());
+    }
+    
+    @Test
+    public void testLightweightWaitsForTask() throws Exception {
+        final long timeoutInMS = 100;
+        
+        ThreadedExecutor executor = new ThreadedExecutor(1, timeoutInMS, ThreadedExecutor.DEFAULT_TASK_STACK_SIZE);
+        for (int i = 0; i < 5; i++) {
+            // Each request should wait for the previous one to finish.
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        Thread.sleep(timeoutInMS / 4);
+                    } catch (InterruptedException e) {
+                        // Terminate the run
+                    }
+                }
+            });
+        }
+        
+        Assert.assertTrue(executor.terminate(timeoutInMS));
+    }
+    
+    @Test
+    public void testLightweightHardTermination() throws Exception {
+        final long timeoutInMS = 50;
+
+        ThreadedExecutor executor = new ThreadedExecutor(1, timeoutInMS, ThreadedExecutor.DEFAULT_TASK_STACK_SIZE);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    Thread.sleep(timeoutInMS * 10);
+                } catch (InterruptedException e) {
+                    // Terminate the run
+                }
+            }
+        });
+
+        Assert.assertFalse(executor.terminate(timeoutInMS));
+    }
+    
+    @Test
+    public void testRegularMode() {
+        Assert.assertFalse(new ThreadedExecutor(1, 10).isLightweight());
+        Assert.assertFalse(new ThreadedExecutor(1, 10, 0).isLightweight());
+    }
 }
@@ -0,0 +1,167 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.utils;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.mapred.FileOutputFormat;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.RecordWriter;
+import org.apache.hadoop.mapred.Reporter;
+import org.junit.Test;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.hadoop.WarcOutputFormat;
+
+
+public class WarcWriterTest {
+
+    private static FetchedDatum makeDatum(String url, String content) throws Exception {
+        HttpHeaders headers = new HttpHeaders();
+        headers.add("Content-Type", "text/html");
+        headers.add("Content-Encoding", "gzip");
+        headers.add("Content-Length", "10");
+        FetchedDatum result = new FetchedDatum(url, url, 1287400000000L, headers, new ContentBytes(content.getBytes("UTF-8")), "text/html", 0);
+        result.setHostAddress("10.0.0.1");
+        return result;
+    }
+    
+    /**
+     * Split the (decompressed) WARC data into records, checking that each record's
+     * Content-Length matches the length of its block.
+     */
+    private static String[] getRecords(String warc) {
+        String[] records = warc.split("(?=WARC/1.0\r\n)");
+        for (String record : records) {
+            int headEnd = record.indexOf("\r\n\r\n") + 4;
+            String head = record.substring(0, headEnd);
+            int contentLength = Integer.parseInt(head.replaceAll("(?s).*\r\nContent-Length: (\\d+)\r\n.*", "$1"));
+            assertTrue(record.endsWith("\r\n\r\n"));
+            assertEquals(contentLength, record.length() - headEnd - 4);
+        }
+        
+        return records;
+    }
+    
+    @Test
+    public void testWritingRecords() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        WarcWriter writer = new WarcWriter(out, "test-agent");
+        writer.writeWarcInfo("test.warc.gz", null);
+        writer.write(makeDatum("http://domain.com/page.html?a=b", "<html>content</html>"));
+        
+        // Each record is a separate gzip member, which GZIPInputStream reads as one stream.
+        String warc = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), "UTF-8");
+        String[] records = getRecords(warc);
+        assertEquals(3, records.length);
+        
+        assertTrue(records[0].contains("WARC-Type: warcinfo\r\n"));
+        assertTrue(records[0].contains("WARC-Filename: test.warc.gz\r\n"));
+        
+        String response = records[1];
+        assertTrue(response.contains("WARC-Type: response\r\n"));
+        assertTrue(response.contains("WARC-Target-URI: http://domain.com/page.html?a=b\r\n"));
+        assertTrue(response.contains("WARC-Date: 2010-10-18T11:06:40Z\r\n"));
+        assertTrue(response.contains("WARC-IP-Address: 10.0.0.1\r\n"));
+        assertTrue(response.contains("WARC-Payload-Digest: sha1:"));
+        assertTrue(response.contains("\r\n\r\nHTTP/1.1 200 OK\r\n"));
+        assertTrue(response.contains("content-type: text/html\r\n"));
+        assertTrue(response.contains("X-Crawler-content-encoding: gzip\r\n"));
+        assertTrue(response.contains("X-Crawler-content-length: 10\r\n"));
+        assertTrue(response.contains("content-length: 20\r\n\r\n<html>content</html>\r\n\r\n"));
+        
+        String request = records[2];
+        assertTrue(request.contains("WARC-Type: request\r\n"));
+        String responseId = response.replaceAll("(?s).*WARC-Record-ID: (<[^>]+>).*", "$1");
+        assertTrue(request.contains("WARC-Concurrent-To: " + responseId + "\r\n"));
+        assertTrue(request.contains("GET /page.html?a=b HTTP/1.1\r\nHost: domain.com\r\nUser-Agent: test-agent\r\n\r\n"));
+    }
+    
+    @Test
+    public void testPayloadDigest() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new WarcWriter(out, null).write(makeDatum("http://domain.com/", "abc"));
+        
+        // SHA-1 of "abc" is a9993e364706816aba3e25717850c26c9cd0d89d
+        String warc = IOUtils.toString(new GZIPInputStream(new ByteArrayInputStream(out.toByteArray())), "UTF-8");
+        assertTrue(warc.contains("WARC-Payload-Digest: sha1:VGMT4NSHA2AWVOR6EVYXQUGCNSONBWE5\r\n"));
+        assertFalse(warc.contains("User-Agent"));
+    }
+    
+    @Test
+    public void testOutputFormatRollover() throws Exception {
+        File outputDir = new File("build/test/WarcWriterTest/testOutputFormatRollover");
+        FileUtils.deleteDirectory(outputDir);
+        
+        // What the output committer would normally create when setting up the job.
+        new File(outputDir, "_temporary").mkdirs();
+        
+        JobConf conf = new JobConf();
+        conf.set("mapred.task.id", "attempt_200707121733_0001_r_000000_0");
+        conf.setLong(WarcOutputFormat.MAX_FILE_SIZE_KEY, 1000);
+        FileOutputFormat.setOutputPath(conf, new Path(outputDir.getAbsolutePath()));
+        
+        RecordWriter<NullWritable, FetchedDatum> writer = new WarcOutputFormat().getRecordWriter(null, conf, "part-00000", Reporter.NULL);
+        Map<String, String> contents = new HashMap<String, String>();
+        for (int i = 0; i < 20; i++) {
+            String url = "http://domain.com/page-" + i;
+            String content = "<html>content for page " + i + "</html>";
+            contents.put(url, content);
+            writer.write(NullWritable.get(), makeDatum(url, content));
+        }
+        
+        writer.close(Reporter.NULL);
+        
+        Collection<File> files = FileUtils.listFiles(outputDir, new String[] { "gz" }, true);
+        assertTrue(files.size() > 1);
+        
+        int numResponses = 0;
+        for (File file : files) {
+            assertTrue(file.getName().matches("part-00000-\\d{5}\\.warc\\.gz"));
+            InputStream in = new GZIPInputStream(new FileInputStream(file));
+            String[] records = getRecords(IOUtils.toString(in, "UTF-8"));
+            in.close();
+            
+            assertTrue(records[0].contains("WARC-Type: warcinfo\r\n"));
+            for (String record : records) {
+                if (record.contains("WARC-Type: response\r\n")) {
+                    String url = record.replaceAll("(?s).*WARC-Target-URI: ([^\r]+)\r\n.*", "$1");
+                    assertTrue(record.endsWith(contents.get(url) + "\r\n\r\n"));
+                    numResponses += 1;
+                }
+            }
+        }
+        
+        assertEquals(20, numResponses);
+    }
+}
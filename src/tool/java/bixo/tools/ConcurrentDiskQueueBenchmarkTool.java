@@ -0,0 +1,139 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import bixo.utils.ConcurrentDiskQueue;
+import bixo.utils.DiskQueue;
+
+/**
+ * Compare throughput of a DiskQueue that's shared by synchronizing on it, versus
+ * ConcurrentDiskQueue, with N producer threads and N consumer threads.
+ *
+ * Usage: ConcurrentDiskQueueBenchmarkTool [<elements per producer>] [<max in memory>]
+ *
+ */
+public class ConcurrentDiskQueueBenchmarkTool {
+
+    private static final int DEFAULT_ELEMENTS_PER_PRODUCER = 100000;
+    private static final int DEFAULT_MAX_IN_MEMORY = 1000;
+    private static final int[] THREAD_COUNTS = { 1, 2, 4, 8 };
+
+    private static class IntegerComparator implements Comparator<Integer> {
+
+        @Override
+        public int compare(Integer o1, Integer o2) {
+            return o1 - o2;
+        }
+    }
+
+    private static long runBenchmark(final Queue<Integer> queue, final boolean synchronize, int numThreads, final int elementsPerProducer) throws InterruptedException {
+        final int numElements = numThreads * elementsPerProducer;
+        final AtomicInteger numConsumed = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < numThreads; i++) {
+            threads.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    for (int j = 0; j < elementsPerProducer; j++) {
+                        if (synchronize) {
+                            synchronized (queue) {
+                                queue.offer(j);
+                            }
+                        } else {
+                            queue.offer(j);
+                        }
+                    }
+                }
+            }));
+
+            threads.add(new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    while (numConsumed.get() < numElements) {
+                        Integer element;
+                        if (synchronize) {
+                            synchronized (queue) {
+                                element = queue.poll();
+                            }
+                        } else {
+                            element = queue.poll();
+                        }
+
+                        if (element != null) {
+                            numConsumed.incrementAndGet();
+                        } else {
+                            Thread.yield();
+                        }
+                    }
+                }
+            }));
+        }
+
+        long startTime = System.nanoTime();
+        for (Thread t : threads) {
+            t.start();
+        }
+
+        for (Thread t : threads) {
+            t.join();
+        }
+
+        return System.nanoTime() - startTime;
+    }
+
+    public static void main(String[] args) {
+        int elementsPerProducer = DEFAULT_ELEMENTS_PER_PRODUCER;
+        int maxInMemory = DEFAULT_MAX_IN_MEMORY;
+
+        if (args.length > 0) {
+            elementsPerProducer = Integer.parseInt(args[0]);
+        }
+
+        if (args.length > 1) {
+            maxInMemory = Integer.parseInt(args[1]);
+        }
+
+        try {
+            // Warm up the JIT.
+            runBenchmark(new DiskQueue<Integer>(maxInMemory, new IntegerComparator(), true), true, 2, elementsPerProducer);
+            runBenchmark(new ConcurrentDiskQueue<Integer>(maxInMemory, new IntegerComparator(), true), false, 2, elementsPerProducer);
+
+            System.out.println(String.format("%8s %16s %16s", "threads", "synced ops/s", "concurrent ops/s"));
+            for (int numThreads : THREAD_COUNTS) {
+                int numOps = numThreads * elementsPerProducer * 2;
+                long syncedTime = runBenchmark(new DiskQueue<Integer>(maxInMemory, new IntegerComparator(), true), true, numThreads, elementsPerProducer);
+                long concurrentTime = runBenchmark(new ConcurrentDiskQueue<Integer>(maxInMemory, new IntegerComparator(), true), false, numThreads, elementsPerProducer);
+                System.out.println(String.format("%8d %16d %16d", numThreads,
+                                (long)(numOps / (syncedTime / 1000000000.0)), (long)(numOps / (concurrentTime / 1000000000.0))));
+            }
+        } catch (Throwable t) {
+            System.err.println("Exception running benchmark: " + t.getMessage());
+            t.printStackTrace(System.err);
+            System.exit(-1);
+        }
+    }
+
+}
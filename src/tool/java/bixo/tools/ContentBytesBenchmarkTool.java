@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.io.File;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+
+import org.apache.hadoop.conf.Configuration;
+import org.apache.hadoop.fs.FileStatus;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.Text;
+
+import bixo.datum.ContentBytes;
+
+/**
+ * Compare reading a directory of content SequenceFiles (Text url -> ContentBytes) with
+ * a new ContentBytes per record, versus re-using one ContentBytes (and thus its buffer)
+ * for every record. If the directory doesn't exist, it's first filled with <num GB> of
+ * random content, in records of up to <max record KB>.
+ *
+ * Run with a fixed heap (e.g. -Xmx1g), so the GC numbers are comparable.
+ * 
+ * Usage: ContentBytesBenchmarkTool <content directory> [<num GB>] [<max record KB>]
+ *
+ */
+public class ContentBytesBenchmarkTool {
+
+    private static final int DEFAULT_NUM_GB = 10;
+    private static final int DEFAULT_MAX_RECORD_KB = 500;
+    
+    private static final long BYTES_PER_FILE = 1024L * 1024L * 1024L;
+    
+    private static void makeContent(FileSystem fs, Configuration conf, Path dir, long numBytes, int maxRecordSize) throws Exception {
+        Random rand = new Random(1L);
+        byte[] buffer = new byte[maxRecordSize];
+        rand.nextBytes(buffer);
+
+        long bytesWritten = 0;
+        int fileIndex = 0;
+        int recordIndex = 0;
+        while (bytesWritten < numBytes) {
+            Path file = new Path(dir, String.format("part-%05d", fileIndex++));
+            SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file, Text.class, ContentBytes.class, SequenceFile.CompressionType.NONE);
+            
+            try {
+                long fileEnd = Math.min(numBytes, bytesWritten + BYTES_PER_FILE);
+                while (bytesWritten < fileEnd) {
+                    int size = 1 + rand.nextInt(maxRecordSize);
+                    writer.append(new Text("http://domain.com/page-" + recordIndex++), new ContentBytes(buffer, 0, size));
+                    bytesWritten += size;
+                }
+            } finally {
+                writer.close();
+            }
+            
+            System.out.println(String.format("Wrote %s (%dMB total)", file, bytesWritten / (1024 * 1024)));
+        }
+    }
+    
+    private static long getGCTime() {
+        long result = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += gc.getCollectionTime();
+        }
+        
+        return result;
+    }
+    
+    private static long getGCCount() {
+        long result = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            result += gc.getCollectionCount();
+        }
+        
+        return result;
+    }
+    
+    private static void readContent(FileSystem fs, Configuration conf, FileStatus[] files, boolean reuse) throws Exception {
+        System.gc();
+        long startGCTime = getGCTime();
+        long startGCCount = getGCCount();
+        long startTime = System.nanoTime();
+        
+        long numRecords = 0;
+        long numBytes = 0;
+        long checksum = 0;
+        Text key = new Text();
+        ContentBytes value = new ContentBytes();
+        
+        for (FileStatus file : files) {
+            SequenceFile.Reader reader = new SequenceFile.Reader(fs, file.getPath(), conf);
+            
+            try {
+                while (true) {
+                    if (!reuse) {
+                        value = new ContentBytes();
+                    }
+                    
+                    if (!reader.next(key, value)) {
+                        break;
+                    }
+                    
+                    // Touch the content the way a parser would, so nothing gets optimized away.
+                    byte[] buffer = value.getBuffer();
+                    int offset = value.getOffset();
+                    int length = value.getLength();
+                    for (int i = offset; i < offset + length; i += 4096) {
+                        checksum += buffer[i];
+                    }
+                    
+                    numRecords += 1;
+                    numBytes += length;
+                }
+            } finally {
+                reader.close();
+            }
+        }
+        
+        long deltaTime = Math.max(1, (System.nanoTime() - startTime) / 1000000L);
+        System.out.println(String.format("%-12s %10d %10d %10d %10d %10d %10d %16d", reuse ? "reused" : "new",
+                        numRecords, numBytes / (1024 * 1024), deltaTime, (numBytes / (1024 * 1024) * 1000) / deltaTime,
+                        getGCCount() - startGCCount, getGCTime() - startGCTime, checksum));
+    }
+    
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ContentBytesBenchmarkTool <content directory> [<num GB>] [<max record KB>]");
+            System.exit(-1);
+        }
+        
+        int numGB = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_NUM_GB;
+        int maxRecordKB = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_MAX_RECORD_KB;
+        
+        Configuration conf = new Configuration();
+        FileSystem fs = FileSystem.getLocal(conf);
+        Path dir = new Path(new File(args[0]).getAbsolutePath());
+        if (!fs.exists(dir)) {
+            makeContent(fs, conf, dir, numGB * 1024L * 1024L * 1024L, maxRecordKB * 1024);
+        }
+        
+        FileStatus[] files = fs.listStatus(dir);
+        System.out.println(String.format("%-12s %10s %10s %10s %10s %10s %10s %16s", "content", "records", "MB", "ms", "MB/sec", "GCs", "GC ms", "checksum"));
+        
+        // Alternate, so the OS file cache helps both equally.
+        for (int i = 0; i < 2; i++) {
+            readContent(fs, conf, files, false);
+            readContent(fs, conf, files, true);
+        }
+    }
+
+}
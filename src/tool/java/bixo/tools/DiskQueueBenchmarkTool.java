@@ -0,0 +1,143 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.io.Serializable;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+import bixo.utils.DiskQueue;
+
+/**
+ * Compare the scanning and heap versions of DiskQueue's in-memory queue, using
+ * a FetchBuffer-like access pattern: a full queue, where we repeatedly poll the
+ * best element and add it back (or add a new one), and the sort order changes
+ * every so often because a "ref" moves between active and pending.
+ *
+ * Usage: DiskQueueBenchmarkTool [<num operations>] [<queue sizes>...]
+ *
+ */
+public class DiskQueueBenchmarkTool {
+
+    private static final int DEFAULT_NUM_OPERATIONS = 100000;
+    private static final int[] DEFAULT_QUEUE_SIZES = { 1000, 10000, 100000 };
+
+    // How often (in operations) a ref changes state, which changes the sort order.
+    private static final int OPERATIONS_PER_REPRIORITIZE = 10;
+
+    private static final int NUM_REFS = 1000;
+
+    @SuppressWarnings("serial")
+    private static class Entry implements Serializable {
+        private String _ref;
+        private int _numUrls;
+
+        public Entry(String ref, int numUrls) {
+            _ref = ref;
+            _numUrls = numUrls;
+        }
+    }
+
+    private static class EntryComparator implements Comparator<Entry> {
+        private ConcurrentHashMap<String, Long> _fetchTimes;
+
+        public EntryComparator(ConcurrentHashMap<String, Long> fetchTimes) {
+            _fetchTimes = fetchTimes;
+        }
+
+        private long getFetchTime(String ref) {
+            Long fetchTime = _fetchTimes.get(ref);
+            return fetchTime == null ? 0 : fetchTime;
+        }
+
+        @Override
+        public int compare(Entry o1, Entry o2) {
+            long o1FetchTime = getFetchTime(o1._ref);
+            long o2FetchTime = getFetchTime(o2._ref);
+
+            if (o1FetchTime < o2FetchTime) {
+                return -1;
+            } else if (o1FetchTime > o2FetchTime) {
+                return 1;
+            } else if (o1._numUrls > o2._numUrls) {
+                return -1;
+            } else if (o1._numUrls < o2._numUrls) {
+                return 1;
+            } else {
+                return 0;
+            }
+        }
+    }
+
+    private static long runBenchmark(int queueSize, int numOperations, boolean useHeap) {
+        ConcurrentHashMap<String, Long> fetchTimes = new ConcurrentHashMap<String, Long>();
+        DiskQueue<Entry> queue = new DiskQueue<Entry>(queueSize, new EntryComparator(fetchTimes), useHeap);
+        Random rand = new Random(1L);
+
+        for (int i = 0; i < queueSize; i++) {
+            queue.add(new Entry("ref-" + rand.nextInt(NUM_REFS), 1 + rand.nextInt(100)));
+        }
+
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < numOperations; i++) {
+            Entry entry = queue.poll();
+            queue.add(entry);
+
+            if ((i % OPERATIONS_PER_REPRIORITIZE) == 0) {
+                String ref = "ref-" + rand.nextInt(NUM_REFS);
+                if (fetchTimes.remove(ref) == null) {
+                    fetchTimes.put(ref, (long)rand.nextInt(1000000));
+                }
+
+                queue.reprioritize();
+            }
+        }
+
+        return System.nanoTime() - startTime;
+    }
+
+    public static void main(String[] args) {
+        int numOperations = DEFAULT_NUM_OPERATIONS;
+        int[] queueSizes = DEFAULT_QUEUE_SIZES;
+
+        if (args.length > 0) {
+            numOperations = Integer.parseInt(args[0]);
+        }
+
+        if (args.length > 1) {
+            queueSizes = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                queueSizes[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+
+        // Warm up the JIT for both versions.
+        runBenchmark(1000, numOperations, false);
+        runBenchmark(1000, numOperations, true);
+
+        System.out.println(String.format("%10s %12s %12s %12s", "size", "scan ns/op", "heap ns/op", "speedup"));
+        for (int queueSize : queueSizes) {
+            long scanTime = runBenchmark(queueSize, numOperations, false);
+            long heapTime = runBenchmark(queueSize, numOperations, true);
+            System.out.println(String.format("%10d %12d %12d %11.1fx", queueSize,
+                            scanTime / numOperations, heapTime / numOperations, (double)scanTime / (double)heapTime));
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+import bixo.utils.BaseQueueCodec;
+import bixo.utils.DatumQueueCodec;
+import bixo.utils.DiskQueue;
+import bixo.utils.SerializableQueueCodec;
+
+/**
+ * Measure how fast DiskQueue can spill FetchSetDatums to disk and read them back,
+ * using Java serialization versus the datum codec, with and without compression.
+ *
+ * MB/s is based on the size of the uncompressed encoded elements, which differs
+ * between codecs, so the sets/s numbers are the better comparison.
+ *
+ * Usage: DiskQueueSpillBenchmarkTool [<num fetch sets>] [<urls per fetch set>]
+ *
+ */
+public class DiskQueueSpillBenchmarkTool {
+
+    private static final int DEFAULT_NUM_FETCH_SETS = 50000;
+    private static final int DEFAULT_URLS_PER_FETCH_SET = 10;
+
+    private static class FetchTimeComparator implements Comparator<FetchSetDatum> {
+
+        @Override
+        public int compare(FetchSetDatum o1, FetchSetDatum o2) {
+            long o1FetchTime = o1.getFetchTime();
+            long o2FetchTime = o2.getFetchTime();
+            return o1FetchTime < o2FetchTime ? -1 : (o1FetchTime > o2FetchTime ? 1 : 0);
+        }
+    }
+
+    private static List<FetchSetDatum> makeFetchSets(int numFetchSets, int urlsPerFetchSet) {
+        List<FetchSetDatum> result = new ArrayList<FetchSetDatum>(numFetchSets);
+        long fetchTime = System.currentTimeMillis();
+        for (int i = 0; i < numFetchSets; i++) {
+            String groupingRef = String.format("www.domain-%d.com", i % 1000);
+            List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>(urlsPerFetchSet);
+            for (int j = 0; j < urlsPerFetchSet; j++) {
+                String url = String.format("http://%s/path/to/page-%d.html", groupingRef, (i * urlsPerFetchSet) + j);
+                urls.add(new ScoredUrlDatum(url, groupingRef, UrlStatus.UNFETCHED, 1.0));
+            }
+
+            result.add(new FetchSetDatum(urls, fetchTime + i, 30000, i, groupingRef));
+        }
+
+        return result;
+    }
+
+    private static long getEncodedSize(List<FetchSetDatum> fetchSets, BaseQueueCodec<FetchSetDatum> codec) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        codec.reset();
+        long result = 0;
+        for (FetchSetDatum fetchSet : fetchSets) {
+            codec.write(fetchSet, out);
+            out.flush();
+            result += bytes.size();
+            bytes.reset();
+        }
+
+        return result;
+    }
+
+    private static void runBenchmark(String name, List<FetchSetDatum> fetchSets, BaseQueueCodec<FetchSetDatum> codec, boolean compress) throws IOException {
+        long numBytes = getEncodedSize(fetchSets, codec);
+
+        // Only keep one element in memory, so everything else goes through the file.
+        DiskQueue<FetchSetDatum> queue = new DiskQueue<FetchSetDatum>(1, new FetchTimeComparator());
+        queue.setCodec(codec);
+        queue.setCompressFile(compress);
+
+        long startTime = System.nanoTime();
+        for (FetchSetDatum fetchSet : fetchSets) {
+            queue.add(fetchSet);
+        }
+
+        long spillTime = System.nanoTime() - startTime;
+
+        startTime = System.nanoTime();
+        int numRead = 0;
+        while (queue.poll() != null) {
+            numRead += 1;
+        }
+
+        long refillTime = System.nanoTime() - startTime;
+
+        if (numRead != fetchSets.size()) {
+            throw new RuntimeException(String.format("Wrote %d fetch sets, but read %d", fetchSets.size(), numRead));
+        }
+
+        System.out.println(String.format("%-24s %10d %12.1f %12.1f %12d %12d", name, numBytes / fetchSets.size(),
+                        getMBPerSecond(numBytes, spillTime), getMBPerSecond(numBytes, refillTime),
+                        getPerSecond(numRead, spillTime), getPerSecond(numRead, refillTime)));
+    }
+
+    private static long getPerSecond(int count, long nanoseconds) {
+        return (long)(count / (nanoseconds / 1000000000.0));
+    }
+
+    private static double getMBPerSecond(long numBytes, long nanoseconds) {
+        return (numBytes / (1024.0 * 1024.0)) / (nanoseconds / 1000000000.0);
+    }
+
+    public static void main(String[] args) {
+        int numFetchSets = DEFAULT_NUM_FETCH_SETS;
+        int urlsPerFetchSet = DEFAULT_URLS_PER_FETCH_SET;
+
+        if (args.length > 0) {
+            numFetchSets = Integer.parseInt(args[0]);
+        }
+
+        if (args.length > 1) {
+            urlsPerFetchSet = Integer.parseInt(args[1]);
+        }
+
+        try {
+            List<FetchSetDatum> fetchSets = makeFetchSets(numFetchSets, urlsPerFetchSet);
+
+            // Warm up the JIT.
+            List<FetchSetDatum> warmupSets = fetchSets.subList(0, Math.min(fetchSets.size(), 5000));
+            runBenchmark("warmup", warmupSets, new SerializableQueueCodec<FetchSetDatum>(), false);
+            runBenchmark("warmup", warmupSets, new DatumQueueCodec<FetchSetDatum>(FetchSetDatum.class), true);
+
+            System.out.println();
+            System.out.println(String.format("%-24s %10s %12s %12s %12s %12s", "codec", "bytes/set", "spill MB/s", "refill MB/s", "spill sets/s", "refill sets/s"));
+            runBenchmark("serializable", fetchSets, new SerializableQueueCodec<FetchSetDatum>(), false);
+            runBenchmark("serializable+compress", fetchSets, new SerializableQueueCodec<FetchSetDatum>(), true);
+            runBenchmark("datum", fetchSets, new DatumQueueCodec<FetchSetDatum>(FetchSetDatum.class), false);
+            runBenchmark("datum+compress", fetchSets, new DatumQueueCodec<FetchSetDatum>(FetchSetDatum.class), true);
+        } catch (Throwable t) {
+            System.err.println("Exception running benchmark: " + t.getMessage());
+            t.printStackTrace(System.err);
+            System.exit(-1);
+        }
+    }
+
+}
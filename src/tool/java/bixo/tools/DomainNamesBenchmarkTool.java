@@ -0,0 +1,224 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import bixo.utils.DomainNames;
+import bixo.utils.PublicSuffixList;
+
+/**
+ * Compare DomainNames.getPLD with the previous split/HashSet implementation,
+ * using generated hostnames, and report how many hostnames get a different PLD
+ * (from public suffix rules that the old code didn't know about).
+ * 
+ * Usage: DomainNamesBenchmarkTool [<num hostnames>] [<num runs>]
+ *
+ */
+public class DomainNamesBenchmarkTool {
+
+    private static final int DEFAULT_NUM_HOSTNAMES = 2000000;
+    private static final int DEFAULT_NUM_RUNS = 5;
+    
+    private static final int MAX_DIFFERENCES_TO_PRINT = 10;
+    
+    private static final String[] SUFFIXES = {
+        "com", "com", "com", "com", "net", "org", "de", "co.uk", "ac.uk", "co.jp", "ne.jp",
+        "com.it", "it", "agrigento.it", "fr", "com.br", "com.au", "ru", "cn", "com.cn",
+        "de.com", "travel", "info", "edu", "gov", "eu", "nl", "ch.cr", "to", "bl.uk",
+        "local", "museum", "co.za", "com.mx", "biz"
+    };
+    
+    private static final String[] PREFIXES = {
+        "", "", "www.", "www.", "www.", "blog.", "mail.", "news.sub.", "a.b.c."
+    };
+    
+    /**
+     * The old version of DomainNames.getPLD
+     */
+    private static class OldDomainNames {
+        private static final String CC_TLDS =
+            "ac ad ae af ag ai al am an ao aq ar as at au aw ax az ba bb bd be bf bg bh bi " +
+            "bj bl bm bn bo br bs bt bv bw by bz ca cc cd cf cg ch ci ck cl cm cn co cr cu " +
+            "cv cx cy cz de dj dk dm do dz ec ee eg eh er es et eu fi fj fk fm fo fr ga gb " +
+            "gd ge gf gg gh gi gl gm gn gp gq gr gs gt gu gw gy hk hm hn hr ht hu id ie il " +
+            "im in io iq ir is it je jm jo jp ke kg kh ki km kn kp kr kw ky kz la lb lc li " +
+            "lk lr ls lt lu lv ly ma mc md me mf mg mh mk ml mm mn mo mp mq mr ms mt mu mv " +
+            "mw mx my mz na nc ne nf ng ni nl no np nr nu nz om pa pe pf pg ph pk pl pm pn " +
+            "pr ps pt pw py qa re ro rs ru rw sa sb sc sd se sg sh si sj sk sl sm sn so sr " +
+            "st su sv sy sz tc td tf tg th tj tk tl tm tn to tp tr tt tv tw tz ua ug uk um " +
+            "us uy uz va vc ve vg vi vn vu wf ws ye yt yu za zm zw";
+        
+        private static final String CC_ALWAYS_TLDS =
+            "am ao aq as ax bf bg bh bi bj bw by bz cc cd cf cg ch ci cl cm cv cx cz de dj " +
+            "dk eu fi fm fo ga gd gf gl gm gq gs gw gy hm ie io km kn la li lt lu md mh mp " +
+            "mq mr ms mu na nc ne ng nl nu sh si sk sl sm sn sr st su sz tc td tf tg tk tl " +
+            "tm tn to tv va vc vg vu ws";
+
+        private static final String CC_NEVER_TLDS =
+            "bd bn bt ck cr cy do eg er et fj fk gh gn gt gu jm ke kh kw lb lr ml mm mt mv " +
+            "my mz ni np om pa pe pg pw py qa sa sb sv sy th tr tz uy ve ye yu zm zw";
+
+        private static final String G_TLDS = 
+            "aero arpa asia biz cat com coop edu gov info int jobs mil mobi museum name net " +
+            "org pro tel";
+
+        private static final Set<String> ccTLDs = new HashSet<String>(Arrays.asList(CC_TLDS.split(" ")));
+        private static final Set<String> ccAlwaysTLDs = new HashSet<String>(Arrays.asList(CC_ALWAYS_TLDS.split(" ")));
+        private static final Set<String> ccNeverTLDs = new HashSet<String>(Arrays.asList(CC_NEVER_TLDS.split(" ")));
+        private static final Set<String> gTLDs = new HashSet<String>(Arrays.asList(G_TLDS.split(" ")));
+
+        private static final Pattern IPV4_ADDRESS_PATTERN = Pattern.compile("(?:\\d{1,3}\\.){3}\\d{1,3}");
+
+        public static String getPLD(String hostname) {
+            if (hostname.startsWith("[") && hostname.endsWith("]")) {
+                return hostname;
+            }
+
+            String[] subNames = hostname.split("\\.");
+            int numPieces = subNames.length;
+            if (numPieces <= 2) {
+                return hostname;
+            }
+
+            if ((numPieces == 4) && (IPV4_ADDRESS_PATTERN.matcher(hostname).matches())) {
+                return hostname;
+            }
+
+            int firstHostPiece = 0;
+            if (ccTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+                if (ccNeverTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+                    firstHostPiece = numPieces - 3;
+                } else if (ccAlwaysTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+                    firstHostPiece = numPieces - 2;
+                } else if (subNames[numPieces - 2].length() <= 2) {
+                    firstHostPiece = numPieces - 3;
+                } else if (gTLDs.contains(subNames[numPieces - 2].toLowerCase())) {
+                    firstHostPiece = numPieces - 3;
+                } else {
+                    firstHostPiece = numPieces - 2;
+                }
+            } else if (gTLDs.contains(subNames[numPieces - 1].toLowerCase())) {
+                if (ccTLDs.contains(subNames[numPieces - 2].toLowerCase())) {
+                    firstHostPiece = numPieces - 3;
+                } else {
+                    firstHostPiece = numPieces - 2;
+                }
+            }
+
+            if (firstHostPiece == 0) {
+                return hostname;
+            } else {
+                StringBuilder result = new StringBuilder();
+                for (int i = firstHostPiece; i < numPieces; i++) {
+                    result.append(subNames[i]);
+                    result.append('.');
+                }
+
+                return result.deleteCharAt(result.length() - 1).toString();
+            }
+        }
+    }
+    
+    private static String[] makeHostnames(int numHostnames) {
+        Random rand = new Random(1L);
+        String[] result = new String[numHostnames];
+        for (int i = 0; i < numHostnames; i++) {
+            String prefix = PREFIXES[rand.nextInt(PREFIXES.length)];
+            String suffix = SUFFIXES[rand.nextInt(SUFFIXES.length)];
+            result[i] = prefix + "domain" + rand.nextInt(100000) + "." + suffix;
+        }
+        
+        return result;
+    }
+    
+    private static long runOld(String[] hostnames) {
+        long startTime = System.nanoTime();
+        int totalLength = 0;
+        for (String hostname : hostnames) {
+            totalLength += OldDomainNames.getPLD(hostname).length();
+        }
+        
+        long result = System.nanoTime() - startTime;
+        if (totalLength == 0) {
+            System.out.println("No PLDs found");
+        }
+        
+        return result;
+    }
+    
+    private static long runNew(String[] hostnames) {
+        long startTime = System.nanoTime();
+        int totalLength = 0;
+        for (String hostname : hostnames) {
+            totalLength += DomainNames.getPLD(hostname).length();
+        }
+        
+        long result = System.nanoTime() - startTime;
+        if (totalLength == 0) {
+            System.out.println("No PLDs found");
+        }
+        
+        return result;
+    }
+    
+    public static void main(String[] args) {
+        int numHostnames = DEFAULT_NUM_HOSTNAMES;
+        int numRuns = DEFAULT_NUM_RUNS;
+        
+        if (args.length > 0) {
+            numHostnames = Integer.parseInt(args[0]);
+        }
+        
+        if (args.length > 1) {
+            numRuns = Integer.parseInt(args[1]);
+        }
+        
+        long loadStartTime = System.nanoTime();
+        int numRules = PublicSuffixList.getDefault().getNumRules();
+        System.out.println(String.format("Loaded %d public suffix rules in %dms", numRules, (System.nanoTime() - loadStartTime) / 1000000L));
+        
+        String[] hostnames = makeHostnames(numHostnames);
+        
+        int numDifferent = 0;
+        for (String hostname : hostnames) {
+            String oldPLD = OldDomainNames.getPLD(hostname);
+            String newPLD = DomainNames.getPLD(hostname);
+            if (!oldPLD.equals(newPLD)) {
+                if (numDifferent < MAX_DIFFERENCES_TO_PRINT) {
+                    System.out.println(String.format("%s: old %s, new %s", hostname, oldPLD, newPLD));
+                }
+                
+                numDifferent += 1;
+            }
+        }
+        
+        System.out.println(String.format("%d of %d hostnames have a different PLD", numDifferent, numHostnames));
+        
+        System.out.println(String.format("%5s %12s %12s %12s", "run", "old ns/op", "new ns/op", "speedup"));
+        for (int run = 0; run < numRuns; run++) {
+            long oldTime = runOld(hostnames);
+            long newTime = runNew(hostnames);
+            System.out.println(String.format("%5d %12d %12d %11.1fx", run, oldTime / numHostnames,
+                            newTime / numHostnames, (double)oldTime / (double)newTime));
+        }
+    }
+}
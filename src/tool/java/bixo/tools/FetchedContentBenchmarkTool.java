@@ -0,0 +1,289 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.hadoop.fs.FileSystem;
+import org.apache.hadoop.fs.Path;
+import org.apache.hadoop.io.NullWritable;
+import org.apache.hadoop.io.SequenceFile;
+import org.apache.hadoop.io.SequenceFile.CompressionType;
+import org.apache.hadoop.io.Text;
+import org.apache.hadoop.io.Writable;
+import org.apache.hadoop.io.compress.DefaultCodec;
+import org.apache.hadoop.mapred.FileSplit;
+import org.apache.hadoop.mapred.JobConf;
+import org.apache.hadoop.mapred.OutputCollector;
+import org.apache.hadoop.mapred.RecordReader;
+import org.apache.hadoop.mapred.Reporter;
+import org.apache.hadoop.mapred.SequenceFileInputFormat;
+import org.apache.hadoop.util.ReflectionUtils;
+
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.hadoop.FetchedContentKey;
+import bixo.hadoop.FetchedContentScheme;
+import bixo.hadoop.FetchedContentSummaryInputFormat;
+import bixo.hadoop.FetchedContentValue;
+
+/**
+ * Compare writing FetchedDatum records to an uncompressed SequenceFile (with each
+ * field written the way a Tuple would be, and the headers in their Writable form) versus
+ * FetchedContentScheme, with and without sorting by URL. Then compare reading all of
+ * the FetchedContentScheme data versus just the summary fields.
+ * 
+ * Records are generated from the HTML files in <html directory>, with each host
+ * using one file as a "template" plus some per-page text. Point it at real crawled
+ * pages to get realistic compression ratios.
+ * 
+ * Usage: FetchedContentBenchmarkTool [<html directory>] [<num records>] [<num hosts>]
+ *
+ */
+public class FetchedContentBenchmarkTool {
+
+    private static final String DEFAULT_HTML_DIR = "src/test/resources";
+    private static final int DEFAULT_NUM_RECORDS = 50000;
+    private static final int DEFAULT_NUM_HOSTS = 500;
+    
+    private static final String WORDS[] = {
+        "the", "quick", "brown", "fox", "jumps", "over", "lazy", "dog", "crawl", "fetch",
+        "parse", "page", "link", "content", "bixo", "hadoop", "web", "mining", "data", "host"
+    };
+    
+    /**
+     * Roughly what Cascading does for a SequenceFile scheme with FetchedDatum.FIELDS.
+     */
+    private static class TupleLikeWritable implements Writable {
+        private FetchedDatum _datum;
+        
+        public TupleLikeWritable(FetchedDatum datum) {
+            _datum = datum;
+        }
+        
+        private static void writeString(DataOutput out, String value) throws IOException {
+            out.writeByte(value == null ? 0 : 1);
+            if (value != null) {
+                out.writeUTF(value);
+            }
+        }
+        
+        @Override
+        public void write(DataOutput out) throws IOException {
+            writeString(out, _datum.getUrl());
+            writeString(out, _datum.getNewBaseUrl());
+            writeString(out, _datum.getFetchedUrl());
+            out.writeLong(_datum.getFetchTime());
+            _datum.getContent().write(out);
+            writeString(out, _datum.getContentType());
+            out.writeInt(_datum.getResponseRate());
+            out.writeInt(_datum.getNumRedirects());
+            writeString(out, _datum.getHostAddress());
+            
+            _datum.getHeaders().write(out);
+        }
+
+        @Override
+        public void readFields(DataInput in) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+    
+    private static List<byte[]> readTemplates(File dir, List<byte[]> result) throws IOException {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                readTemplates(file, result);
+            } else if (file.getName().endsWith(".html") || file.getName().endsWith(".htm")) {
+                result.add(FileUtils.readFileToByteArray(file));
+            }
+        }
+        
+        return result;
+    }
+    
+    private static List<FetchedDatum> makeDatums(List<byte[]> templates, int numRecords, int numHosts) throws Exception {
+        Random rand = new Random(1L);
+        List<FetchedDatum> result = new ArrayList<FetchedDatum>(numRecords);
+        
+        for (int i = 0; i < numRecords; i++) {
+            int hostIndex = rand.nextInt(numHosts);
+            String url = String.format("http://www.host%d.com/section%d/page-%d.html", hostIndex, rand.nextInt(10), i);
+            
+            StringBuilder text = new StringBuilder("<p>");
+            int numWords = 50 + rand.nextInt(500);
+            for (int j = 0; j < numWords; j++) {
+                text.append(WORDS[rand.nextInt(WORDS.length)]);
+                text.append(rand.nextInt(10) == 0 ? rand.nextInt(100000) + " " : " ");
+            }
+            text.append("</p>");
+            
+            byte[] template = templates.get(hostIndex % templates.size());
+            byte[] extra = text.toString().getBytes("UTF-8");
+            byte[] content = new byte[template.length + extra.length];
+            System.arraycopy(template, 0, content, 0, template.length);
+            System.arraycopy(extra, 0, content, template.length, extra.length);
+            
+            HttpHeaders headers = new HttpHeaders();
+            headers.add("Date", "Sun, 18 Oct 2026 " + (10 + rand.nextInt(10)) + ":" + (10 + rand.nextInt(50)) + ":00 GMT");
+            headers.add("Server", (hostIndex % 2) == 0 ? "Apache" : "nginx");
+            headers.add("Content-Type", "text/html; charset=UTF-8");
+            headers.add("Content-Length", "" + content.length);
+            headers.add("Connection", "close");
+            headers.add("Cache-Control", "private");
+            headers.add("Vary", "Accept-Encoding");
+            headers.add("Set-Cookie", "session=" + Long.toHexString(rand.nextLong()) + "; path=/");
+            
+            FetchedDatum datum = new FetchedDatum(url, url, System.currentTimeMillis(), headers, new ContentBytes(content), "text/html", 50000 + rand.nextInt(50000));
+            datum.setHostAddress("10.0." + (hostIndex / 256) + "." + (hostIndex % 256));
+            result.add(datum);
+        }
+        
+        return result;
+    }
+    
+    private static long writeTupleLike(JobConf conf, Path file, List<FetchedDatum> datums) throws IOException {
+        FileSystem fs = FileSystem.getLocal(conf);
+        SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file, NullWritable.class, TupleLikeWritable.class, CompressionType.NONE);
+        
+        long startTime = System.nanoTime();
+        for (FetchedDatum datum : datums) {
+            writer.append(NullWritable.get(), new TupleLikeWritable(datum));
+        }
+        
+        writer.close();
+        return System.nanoTime() - startTime;
+    }
+    
+    private static long writeScheme(JobConf conf, Path file, List<FetchedDatum> datums) throws IOException {
+        FileSystem fs = FileSystem.getLocal(conf);
+        final SequenceFile.Writer writer = SequenceFile.createWriter(fs, conf, file, FetchedContentKey.class, FetchedContentValue.class,
+                        CompressionType.BLOCK, ReflectionUtils.newInstance(DefaultCodec.class, conf));
+        OutputCollector<FetchedContentKey, FetchedContentValue> collector = new OutputCollector<FetchedContentKey, FetchedContentValue>() {
+            
+            @Override
+            public void collect(FetchedContentKey key, FetchedContentValue value) throws IOException {
+                writer.append(key, value);
+            }
+        };
+        
+        FetchedContentScheme scheme = new FetchedContentScheme();
+        long startTime = System.nanoTime();
+        for (FetchedDatum datum : datums) {
+            scheme.sink(datum.getTupleEntry(), collector);
+        }
+        
+        writer.close();
+        return System.nanoTime() - startTime;
+    }
+    
+    private static long readScheme(JobConf conf, Path file, boolean readContent) throws IOException {
+        FileSplit split = new FileSplit(file, 0, FileSystem.getLocal(conf).getFileStatus(file).getLen(), (String[])null);
+        RecordReader<FetchedContentKey, FetchedContentValue> reader;
+        if (readContent) {
+            reader = new SequenceFileInputFormat<FetchedContentKey, FetchedContentValue>().getRecordReader(split, conf, Reporter.NULL);
+        } else {
+            reader = new FetchedContentSummaryInputFormat().getRecordReader(split, conf, Reporter.NULL);
+        }
+        
+        FetchedContentScheme scheme = new FetchedContentScheme(readContent);
+        FetchedContentKey key = reader.createKey();
+        FetchedContentValue value = reader.createValue();
+        
+        long startTime = System.nanoTime();
+        while (reader.next(key, value)) {
+            scheme.source(key, value);
+        }
+        
+        reader.close();
+        return System.nanoTime() - startTime;
+    }
+    
+    private static void printResult(String label, long numBytes, long fileSize, long deltaNanos) {
+        long deltaMS = Math.max(1, deltaNanos / 1000000L);
+        System.out.println(String.format("%-36s %12d %8d %10d %10.1f", label, fileSize / 1024, deltaMS,
+                        (numBytes * 1000L) / (deltaMS * 1024L * 1024L), (double)numBytes / (double)fileSize));
+    }
+    
+    public static void main(String[] args) throws Exception {
+        String htmlDir = (args.length > 0) ? args[0] : DEFAULT_HTML_DIR;
+        int numRecords = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_NUM_RECORDS;
+        int numHosts = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_NUM_HOSTS;
+        
+        List<FetchedDatum> datums = makeDatums(readTemplates(new File(htmlDir), new ArrayList<byte[]>()), numRecords, numHosts);
+        long numBytes = 0;
+        for (FetchedDatum datum : datums) {
+            numBytes += datum.getContentLength();
+        }
+        
+        List<FetchedDatum> sortedDatums = new ArrayList<FetchedDatum>(datums);
+        Collections.sort(sortedDatums, new Comparator<FetchedDatum>() {
+
+            @Override
+            public int compare(FetchedDatum o1, FetchedDatum o2) {
+                return o1.getUrl().compareTo(o2.getUrl());
+            }
+        });
+        
+        File workingDir = new File("build/test/FetchedContentBenchmarkTool");
+        FileUtils.deleteDirectory(workingDir);
+        workingDir.mkdirs();
+        Path tupleLikeFile = new Path(new File(workingDir, "sequencefile").getAbsolutePath());
+        Path schemeFile = new Path(new File(workingDir, "scheme").getAbsolutePath());
+        Path sortedFile = new Path(new File(workingDir, "scheme-sorted").getAbsolutePath());
+
+        JobConf conf = new JobConf();
+        FileSystem fs = FileSystem.getLocal(conf);
+        
+        // Warm up
+        writeTupleLike(conf, tupleLikeFile, datums);
+        writeScheme(conf, schemeFile, datums);
+        
+        System.out.println(String.format("%d records, %d hosts, %dMB of content", numRecords, numHosts, numBytes / (1024 * 1024)));
+        System.out.println(String.format("%-36s %12s %8s %10s %10s", "", "KB on disk", "ms", "MB/sec", "ratio"));
+        
+        long deltaTime = writeTupleLike(conf, tupleLikeFile, datums);
+        printResult("write SequenceFile (uncompressed)", numBytes, fs.getFileStatus(tupleLikeFile).getLen(), deltaTime);
+        
+        deltaTime = writeScheme(conf, schemeFile, datums);
+        long schemeSize = fs.getFileStatus(schemeFile).getLen();
+        printResult("write FetchedContentScheme", numBytes, schemeSize, deltaTime);
+        
+        deltaTime = writeScheme(conf, sortedFile, sortedDatums);
+        printResult("write FetchedContentScheme (sorted)", numBytes, fs.getFileStatus(sortedFile).getLen(), deltaTime);
+        
+        readScheme(conf, schemeFile, true);
+        deltaTime = readScheme(conf, schemeFile, true);
+        printResult("read FetchedContentScheme", numBytes, schemeSize, deltaTime);
+
+        readScheme(conf, schemeFile, false);
+        deltaTime = readScheme(conf, schemeFile, false);
+        printResult("read FetchedContentScheme (summary)", numBytes, schemeSize, deltaTime);
+        
+        FileUtils.deleteDirectory(workingDir);
+    }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+
+import bixo.datum.HttpHeaders;
+import bixo.fetcher.HttpHeaderNames;
+import cascading.tuple.Tuple;
+
+/**
+ * Compare the size and speed of HttpHeaders serialization, using the older format
+ * (a tuple of URL-encoded strings) versus the binary Writable format. For the binary
+ * format we time reading and using the headers, and also just passing them through
+ * (read then write, without decoding), which is what happens in a GroupBy or a sink.
+ * 
+ * Usage: HttpHeadersBenchmarkTool [<num records>] [<num runs>]
+ *
+ */
+public class HttpHeadersBenchmarkTool {
+
+    private static final int DEFAULT_NUM_RECORDS = 100000;
+    private static final int DEFAULT_NUM_RUNS = 5;
+    
+    private static final String SERVERS[] = {
+        "Apache", "Apache/2.2.22 (Ubuntu)", "nginx", "nginx/1.2.1", "Microsoft-IIS/7.5", "lighttpd"
+    };
+    
+    private static List<HttpHeaders> makeHeaders(int numRecords) {
+        Random rand = new Random(1L);
+        List<HttpHeaders> result = new ArrayList<HttpHeaders>(numRecords);
+        
+        for (int i = 0; i < numRecords; i++) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.add(HttpHeaderNames.CONTENT_TYPE, rand.nextBoolean() ? "text/html" : "text/html; charset=UTF-8");
+            headers.add(HttpHeaderNames.CONTENT_LENGTH, "" + (1000 + rand.nextInt(100000)));
+            headers.add("date", "Wed, 11 May 2011 18:" + (10 + rand.nextInt(50)) + ":45 GMT");
+            headers.add("server", SERVERS[rand.nextInt(SERVERS.length)]);
+            headers.add(HttpHeaderNames.LAST_MODIFIED, "Tue, 10 May 2011 08:26:45 GMT");
+            headers.add("etag", "\"" + Integer.toHexString(rand.nextInt()) + "-" + Integer.toHexString(rand.nextInt()) + "\"");
+            headers.add("cache-control", "max-age=" + rand.nextInt(3600));
+            headers.add("connection", "close");
+            headers.add("vary", "Accept-Encoding");
+            if (rand.nextBoolean()) {
+                headers.add("set-cookie", "session=" + Long.toHexString(rand.nextLong()) + "; path=/");
+                headers.add("set-cookie", "visitor=" + Long.toHexString(rand.nextLong()) + "; path=/; HttpOnly");
+            }
+            
+            if (rand.nextInt(4) == 0) {
+                headers.add("x-generator", "Drupal 7 (http://drupal.org)");
+            }
+            
+            result.add(headers);
+        }
+        
+        return result;
+    }
+    
+    private static DataOutputBuffer writeTuples(List<HttpHeaders> headersList) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        for (HttpHeaders headers : headersList) {
+            Tuple tuple = headers.toTuple();
+            out.writeInt(tuple.size());
+            for (int i = 0; i < tuple.size(); i++) {
+                out.writeUTF(tuple.getString(i));
+            }
+        }
+        
+        return out;
+    }
+    
+    private static void readTuples(DataOutputBuffer data, int numRecords) throws IOException {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(data.getData(), data.getLength());
+        for (int i = 0; i < numRecords; i++) {
+            Tuple tuple = new Tuple();
+            int numValues = in.readInt();
+            for (int j = 0; j < numValues; j++) {
+                tuple.add(in.readUTF());
+            }
+            
+            new HttpHeaders(tuple).getFirst(HttpHeaderNames.CONTENT_TYPE);
+        }
+    }
+    
+    private static DataOutputBuffer writeBinary(List<HttpHeaders> headersList) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        for (HttpHeaders headers : headersList) {
+            headers.write(out);
+        }
+        
+        return out;
+    }
+    
+    private static void readBinary(DataOutputBuffer data, int numRecords) throws IOException {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(data.getData(), data.getLength());
+        for (int i = 0; i < numRecords; i++) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.readFields(in);
+            headers.getFirst(HttpHeaderNames.CONTENT_TYPE);
+        }
+    }
+    
+    private static void passThroughBinary(DataOutputBuffer data, int numRecords) throws IOException {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(data.getData(), data.getLength());
+        DataOutputBuffer out = new DataOutputBuffer(data.getLength());
+        for (int i = 0; i < numRecords; i++) {
+            HttpHeaders headers = new HttpHeaders();
+            headers.readFields(in);
+            headers.write(out);
+        }
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int numRecords = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUM_RECORDS;
+        int numRuns = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_NUM_RUNS;
+        
+        List<HttpHeaders> headersList = makeHeaders(numRecords);
+        
+        // Warm up
+        DataOutputBuffer tupleData = writeTuples(headersList);
+        readTuples(tupleData, numRecords);
+        DataOutputBuffer binaryData = writeBinary(headersList);
+        readBinary(binaryData, numRecords);
+        passThroughBinary(binaryData, numRecords);
+        
+        long tupleWriteTime = 0;
+        long tupleReadTime = 0;
+        long binaryWriteTime = 0;
+        long binaryReadTime = 0;
+        long passThroughTime = 0;
+        
+        for (int i = 0; i < numRuns; i++) {
+            long startTime = System.nanoTime();
+            writeTuples(headersList);
+            tupleWriteTime += System.nanoTime() - startTime;
+            
+            startTime = System.nanoTime();
+            readTuples(tupleData, numRecords);
+            tupleReadTime += System.nanoTime() - startTime;
+            
+            startTime = System.nanoTime();
+            writeBinary(headersList);
+            binaryWriteTime += System.nanoTime() - startTime;
+            
+            startTime = System.nanoTime();
+            readBinary(binaryData, numRecords);
+            binaryReadTime += System.nanoTime() - startTime;
+            
+            startTime = System.nanoTime();
+            passThroughBinary(binaryData, numRecords);
+            passThroughTime += System.nanoTime() - startTime;
+        }
+        
+        long numOps = (long)numRecords * numRuns;
+        System.out.println(String.format("%d records, %d runs", numRecords, numRuns));
+        System.out.println(String.format("%20s %12s %12s %12s", "format", "bytes/rec", "write ns/rec", "read ns/rec"));
+        System.out.println(String.format("%20s %12d %12d %12d", "tuple of strings", tupleData.getLength() / numRecords,
+                        tupleWriteTime / numOps, tupleReadTime / numOps));
+        System.out.println(String.format("%20s %12d %12d %12d", "binary", binaryData.getLength() / numRecords,
+                        binaryWriteTime / numOps, binaryReadTime / numOps));
+        System.out.println(String.format("%20s %12s %12s %12d", "binary pass-through", "", "",
+                        passThroughTime / numOps));
+    }
+}
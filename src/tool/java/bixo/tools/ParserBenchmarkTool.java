@@ -0,0 +1,138 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.commons.io.FileUtils;
+
+import bixo.config.ParserPolicy;
+import bixo.datum.ContentBytes;
+import bixo.datum.FetchedDatum;
+import bixo.datum.HttpHeaders;
+import bixo.datum.Outlink;
+import bixo.datum.ParsedDatum;
+import bixo.parser.BaseParser;
+import bixo.parser.SimpleParser;
+import bixo.parser.StreamingHtmlParser;
+
+/**
+ * Compare the throughput of SimpleParser and StreamingHtmlParser on the HTML files
+ * in a directory (and its sub-directories), and report how many of SimpleParser's
+ * outlinks StreamingHtmlParser also finds.
+ *
+ * Usage: ParserBenchmarkTool [<html directory>] [<num runs>]
+ *
+ */
+public class ParserBenchmarkTool {
+
+    private static final String DEFAULT_HTML_DIR = "src/test/resources";
+    private static final int DEFAULT_NUM_RUNS = 5;
+
+    private static void readDatums(File dir, List<FetchedDatum> result) throws Exception {
+        for (File file : dir.listFiles()) {
+            if (file.isDirectory()) {
+                readDatums(file, result);
+            } else if (file.getName().endsWith(".html") || file.getName().endsWith(".htm")) {
+                String url = "http://domain.com/" + file.getName();
+                byte[] content = FileUtils.readFileToByteArray(file);
+                result.add(new FetchedDatum(url, url, System.currentTimeMillis(), new HttpHeaders(), new ContentBytes(content), "text/html", 0));
+            }
+        }
+    }
+
+    private static long runParser(BaseParser parser, List<FetchedDatum> datums, List<ParsedDatum> results) {
+        long startTime = System.nanoTime();
+
+        for (FetchedDatum datum : datums) {
+            ParsedDatum result = null;
+            try {
+                result = parser.parse(datum);
+            } catch (Exception e) {
+                // Count it as a document with no outlinks.
+            }
+
+            if (results != null) {
+                results.add(result);
+            }
+        }
+
+        return System.nanoTime() - startTime;
+    }
+
+    private static Set<String> getOutlinkUrls(ParsedDatum datum) {
+        Set<String> result = new HashSet<String>();
+        if (datum != null) {
+            for (Outlink outlink : datum.getOutlinks()) {
+                result.add(outlink.getToUrl());
+            }
+        }
+
+        return result;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String htmlDir = (args.length > 0) ? args[0] : DEFAULT_HTML_DIR;
+        int numRuns = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_NUM_RUNS;
+
+        List<FetchedDatum> datums = new ArrayList<FetchedDatum>();
+        readDatums(new File(htmlDir), datums);
+        ParserPolicy policy = new ParserPolicy();
+        SimpleParser simpleParser = new SimpleParser(policy);
+        StreamingHtmlParser streamingParser = new StreamingHtmlParser(policy);
+
+        // Warm up, and compare outlinks.
+        List<ParsedDatum> simpleResults = new ArrayList<ParsedDatum>();
+        List<ParsedDatum> streamingResults = new ArrayList<ParsedDatum>();
+        runParser(simpleParser, datums, simpleResults);
+        runParser(streamingParser, datums, streamingResults);
+
+        int numSimpleLinks = 0;
+        int numStreamingLinks = 0;
+        int numCommonLinks = 0;
+        for (int i = 0; i < datums.size(); i++) {
+            Set<String> simpleLinks = getOutlinkUrls(simpleResults.get(i));
+            Set<String> streamingLinks = getOutlinkUrls(streamingResults.get(i));
+            numSimpleLinks += simpleLinks.size();
+            numStreamingLinks += streamingLinks.size();
+
+            simpleLinks.retainAll(streamingLinks);
+            numCommonLinks += simpleLinks.size();
+        }
+
+        System.out.println(String.format("%d HTML documents, unique outlinks: %d from SimpleParser, %d from StreamingHtmlParser, %d in common",
+                        datums.size(), numSimpleLinks, numStreamingLinks, numCommonLinks));
+
+        long simpleTime = 0;
+        long streamingTime = 0;
+        for (int i = 0; i < numRuns; i++) {
+            simpleTime += runParser(simpleParser, datums, null);
+            streamingTime += runParser(streamingParser, datums, null);
+        }
+
+        long numParses = (long)datums.size() * numRuns;
+        System.out.println(String.format("%20s %12s", "parser", "us/doc"));
+        System.out.println(String.format("%20s %12d", "SimpleParser", simpleTime / numParses / 1000));
+        System.out.println(String.format("%20s %12d", "StreamingHtmlParser", streamingTime / numParses / 1000));
+        System.out.println(String.format("Speedup: %.1fx", (double)simpleTime / (double)streamingTime));
+    }
+
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.commons.io.FileUtils;
+
+import bixo.robots.SimpleRobotRules;
+
+/**
+ * Compare SimpleRobotRules.isAllowed() (compiled rules, no java.net.URL) against the
+ * old approach of creating a URL, decoding and lower-casing the path, and then
+ * checking every rule with startsWith().
+ * 
+ * Each robots.txt file passed on the command line is treated as one big set of
+ * rules (all allow/disallow lines, regardless of user agent), and we also generate
+ * synthetic rule sets with lots of Disallow lines.
+ * 
+ * Usage: RobotRulesBenchmarkTool [<robots.txt file>...]
+ *
+ */
+public class RobotRulesBenchmarkTool {
+
+    private static final int NUM_URLS = 10000;
+    private static final int NUM_ITERATIONS = 20;
+    private static final int[] SYNTHETIC_RULE_COUNTS = { 10, 100, 1000 };
+    
+    private static class LegacyRules {
+        private List<String> _prefixes = new ArrayList<String>();
+        private List<Boolean> _allows = new ArrayList<Boolean>();
+        
+        public void addRule(String prefix, boolean allow) {
+            _prefixes.add(prefix);
+            _allows.add(allow || (prefix.length() == 0));
+        }
+        
+        public boolean isAllowed(String url) {
+            String path;
+            try {
+                path = new URL(url).getPath();
+                if ((path == null) || (path.equals(""))) {
+                    path = "/";
+                } else {
+                    path = URLDecoder.decode(path, "UTF-8").toLowerCase();
+                }
+            } catch (Exception e) {
+                path = "/";
+            }
+            
+            if (path.equals("/robots.txt")) {
+                return true;
+            }
+            
+            for (int i = 0; i < _prefixes.size(); i++) {
+                if (path.startsWith(_prefixes.get(i))) {
+                    return _allows.get(i);
+                }
+            }
+            
+            return true;
+        }
+    }
+    
+    private static void runBenchmark(String name, List<String> paths, List<Boolean> allows, Random rand) {
+        SimpleRobotRules rules = new SimpleRobotRules();
+        LegacyRules legacyRules = new LegacyRules();
+        for (int i = 0; i < paths.size(); i++) {
+            rules.addRule(paths.get(i), allows.get(i));
+            legacyRules.addRule(paths.get(i), allows.get(i));
+        }
+        
+        // Half of the URLs are under a rule's path, the rest are random.
+        String[] urls = new String[NUM_URLS];
+        for (int i = 0; i < NUM_URLS; i++) {
+            String path;
+            if (!paths.isEmpty() && rand.nextBoolean()) {
+                path = paths.get(rand.nextInt(paths.size())).replace("*", "x").replace("$", "") + "page-" + i + ".html";
+            } else {
+                path = "/dir-" + rand.nextInt(100) + "/page-" + i + ".html";
+            }
+            
+            if (!path.startsWith("/")) {
+                path = "/" + path;
+            }
+            
+            urls[i] = "http://www.domain.com" + path;
+        }
+        
+        // Warm up both, and count how many URLs are allowed (to keep the JIT honest).
+        int numAllowed = 0;
+        for (int i = 0; i < NUM_URLS; i++) {
+            numAllowed += rules.isAllowed(urls[i]) ? 1 : 0;
+            numAllowed += legacyRules.isAllowed(urls[i]) ? 1 : 0;
+        }
+        
+        long startTime = System.nanoTime();
+        for (int iteration = 0; iteration < NUM_ITERATIONS; iteration++) {
+            for (String url : urls) {
+                numAllowed += legacyRules.isAllowed(url) ? 1 : 0;
+            }
+        }
+        
+        long legacyTime = System.nanoTime() - startTime;
+        
+        startTime = System.nanoTime();
+        for (int iteration = 0; iteration < NUM_ITERATIONS; iteration++) {
+            for (String url : urls) {
+                numAllowed += rules.isAllowed(url) ? 1 : 0;
+            }
+        }
+        
+        long compiledTime = System.nanoTime() - startTime;
+        
+        int numChecks = NUM_URLS * NUM_ITERATIONS;
+        System.out.println(String.format("%-40s %8d %12d %12d %9.1fx (%d)", name, paths.size(),
+                        legacyTime / numChecks, compiledTime / numChecks,
+                        (double)legacyTime / (double)compiledTime, numAllowed));
+    }
+    
+    private static void runFileBenchmark(File file, Random rand) throws IOException {
+        List<String> paths = new ArrayList<String>();
+        List<Boolean> allows = new ArrayList<Boolean>();
+        
+        for (Object line : FileUtils.readLines(file, "UTF-8")) {
+            String ruleLine = ((String)line).trim().toLowerCase();
+            int commentIndex = ruleLine.indexOf('#');
+            if (commentIndex != -1) {
+                ruleLine = ruleLine.substring(0, commentIndex).trim();
+            }
+            
+            boolean allow = ruleLine.startsWith("allow:");
+            if (allow || ruleLine.startsWith("disallow:")) {
+                String path = ruleLine.substring(ruleLine.indexOf(':') + 1).trim();
+                if (path.length() > 0) {
+                    try {
+                        path = URLDecoder.decode(path, "UTF-8");
+                    } catch (IllegalArgumentException e) {
+                        // Use the raw path, same as the robots parser.
+                    }
+                    
+                    paths.add(path);
+                    allows.add(allow);
+                }
+            }
+        }
+        
+        runBenchmark(file.getName(), paths, allows, rand);
+    }
+    
+    public static void main(String[] args) throws IOException {
+        Random rand = new Random(1L);
+        
+        System.out.println(String.format("%-40s %8s %12s %12s %10s", "rules", "count", "old ns/url", "new ns/url", "speedup"));
+        for (String arg : args) {
+            runFileBenchmark(new File(arg), rand);
+        }
+        
+        for (int numRules : SYNTHETIC_RULE_COUNTS) {
+            List<String> paths = new ArrayList<String>();
+            List<Boolean> allows = new ArrayList<Boolean>();
+            for (int i = 0; i < numRules; i++) {
+                paths.add("/section-" + rand.nextInt(numRules * 10) + "/");
+                allows.add(false);
+            }
+            
+            runBenchmark("synthetic-" + numRules, paths, allows, rand);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+
+import org.apache.hadoop.io.DataInputBuffer;
+import org.apache.hadoop.io.DataOutputBuffer;
+import org.apache.hadoop.io.WritableUtils;
+
+import bixo.datum.FetchSetDatum;
+import bixo.datum.Outlink;
+import bixo.datum.ScoredUrlDatum;
+import bixo.datum.UrlStatus;
+import bixo.hadoop.OutlinkSerialization;
+import bixo.hadoop.ScoredUrlDatumSerialization;
+import cascading.tuple.Tuple;
+
+/**
+ * Estimate the shuffle size (and serialization time) per million URLs for the
+ * "Fetching URL sets" GroupBy in FetchPipe, with fetch set URLs stored as nested
+ * tuples (the old format) versus ScoredUrlDatum values written by
+ * ScoredUrlDatumSerialization. Also compare outlinks stored as three strings per
+ * outlink versus Outlink values written by OutlinkSerialization.
+ * 
+ * Tuples are written roughly the way Cascading does, with a type token per value,
+ * and a registered serialization token for Bixo values.
+ * 
+ * Usage: ShuffleSizeBenchmarkTool [<num urls>] [<urls per fetch set>] [<num runs>]
+ *
+ */
+public class ShuffleSizeBenchmarkTool {
+
+    private static final int DEFAULT_NUM_URLS = 200000;
+    private static final int DEFAULT_URLS_PER_SET = 10;
+    private static final int DEFAULT_NUM_RUNS = 5;
+    
+    private static final int OUTLINKS_PER_URL = 20;
+    
+    private static final int NULL_TOKEN = 0;
+    private static final int STRING_TOKEN = 1;
+    private static final int DOUBLE_TOKEN = 3;
+    private static final int INTEGER_TOKEN = 4;
+    private static final int LONG_TOKEN = 5;
+    private static final int BOOLEAN_TOKEN = 6;
+    private static final int TUPLE_TOKEN = 8;
+    private static final int SCORED_URL_DATUM_TOKEN = 131;
+    private static final int OUTLINK_TOKEN = 133;
+    
+    private static final ScoredUrlDatumSerialization SCORED_URL_SERIALIZATION = new ScoredUrlDatumSerialization();
+    private static final OutlinkSerialization OUTLINK_SERIALIZATION = new OutlinkSerialization();
+    
+    private static void writeTuple(Tuple tuple, DataOutput out) throws IOException {
+        WritableUtils.writeVInt(out, tuple.size());
+        Iterator<?> iter = tuple.iterator();
+        while (iter.hasNext()) {
+            Object value = iter.next();
+            if (value == null) {
+                WritableUtils.writeVInt(out, NULL_TOKEN);
+            } else if (value instanceof String) {
+                WritableUtils.writeVInt(out, STRING_TOKEN);
+                WritableUtils.writeString(out, (String)value);
+            } else if (value instanceof Double) {
+                WritableUtils.writeVInt(out, DOUBLE_TOKEN);
+                out.writeDouble((Double)value);
+            } else if (value instanceof Integer) {
+                WritableUtils.writeVInt(out, INTEGER_TOKEN);
+                WritableUtils.writeVInt(out, (Integer)value);
+            } else if (value instanceof Long) {
+                WritableUtils.writeVInt(out, LONG_TOKEN);
+                WritableUtils.writeVLong(out, (Long)value);
+            } else if (value instanceof Boolean) {
+                WritableUtils.writeVInt(out, BOOLEAN_TOKEN);
+                out.writeBoolean((Boolean)value);
+            } else if (value instanceof Tuple) {
+                WritableUtils.writeVInt(out, TUPLE_TOKEN);
+                writeTuple((Tuple)value, out);
+            } else if (value instanceof ScoredUrlDatum) {
+                WritableUtils.writeVInt(out, SCORED_URL_DATUM_TOKEN);
+                SCORED_URL_SERIALIZATION.write((ScoredUrlDatum)value, out);
+            } else if (value instanceof Outlink) {
+                WritableUtils.writeVInt(out, OUTLINK_TOKEN);
+                OUTLINK_SERIALIZATION.write((Outlink)value, out);
+            } else {
+                throw new IOException("Unsupported value type: " + value.getClass());
+            }
+        }
+    }
+    
+    private static Tuple readTuple(DataInput in) throws IOException {
+        int size = WritableUtils.readVInt(in);
+        Tuple result = new Tuple();
+        for (int i = 0; i < size; i++) {
+            int token = WritableUtils.readVInt(in);
+            switch (token) {
+                case NULL_TOKEN:
+                    result.add(null);
+                    break;
+                case STRING_TOKEN:
+                    result.add(WritableUtils.readString(in));
+                    break;
+                case DOUBLE_TOKEN:
+                    result.add(in.readDouble());
+                    break;
+                case INTEGER_TOKEN:
+                    result.add(WritableUtils.readVInt(in));
+                    break;
+                case LONG_TOKEN:
+                    result.add(WritableUtils.readVLong(in));
+                    break;
+                case BOOLEAN_TOKEN:
+                    result.add(in.readBoolean());
+                    break;
+                case TUPLE_TOKEN:
+                    result.add(readTuple(in));
+                    break;
+                case SCORED_URL_DATUM_TOKEN:
+                    result.add(SCORED_URL_SERIALIZATION.read(null, in));
+                    break;
+                case OUTLINK_TOKEN:
+                    result.add(OUTLINK_SERIALIZATION.read(null, in));
+                    break;
+                default:
+                    throw new IOException("Unknown token: " + token);
+            }
+        }
+        
+        return result;
+    }
+    
+    private static List<FetchSetDatum> makeFetchSets(int numUrls, int urlsPerSet, boolean oldFormat) {
+        Random rand = new Random(1L);
+        List<FetchSetDatum> result = new ArrayList<FetchSetDatum>();
+        
+        int urlIndex = 0;
+        while (urlIndex < numUrls) {
+            int hostIndex = rand.nextInt(10000);
+            String groupKey = String.format("10.0.%d.%d-30000", hostIndex / 256, hostIndex % 256);
+            List<ScoredUrlDatum> urls = new ArrayList<ScoredUrlDatum>(urlsPerSet);
+            for (int i = 0; (i < urlsPerSet) && (urlIndex < numUrls); i++, urlIndex++) {
+                String url = String.format("http://www.host%d.com/section%d/page-%d.html", hostIndex, rand.nextInt(10), urlIndex);
+                urls.add(new ScoredUrlDatum(url, groupKey, UrlStatus.UNFETCHED, rand.nextDouble()));
+            }
+            
+            FetchSetDatum fetchSet = new FetchSetDatum(urls, System.currentTimeMillis() + rand.nextInt(100000), 30000, hostIndex, groupKey);
+            if (oldFormat) {
+                Tuple urlTuples = new Tuple();
+                for (ScoredUrlDatum url : urls) {
+                    urlTuples.add(url.getTuple());
+                }
+                
+                fetchSet.getTupleEntry().set(FetchSetDatum.FIELDS.get(0), urlTuples);
+            }
+            
+            result.add(fetchSet);
+        }
+        
+        return result;
+    }
+    
+    private static List<Tuple> makeOutlinks(int numUrls, boolean oldFormat) {
+        Random rand = new Random(1L);
+        List<Tuple> result = new ArrayList<Tuple>(numUrls);
+        
+        for (int i = 0; i < numUrls; i++) {
+            Tuple outlinks = new Tuple();
+            for (int j = 0; j < OUTLINKS_PER_URL; j++) {
+                String url = String.format("http://www.host%d.com/section%d/page-%d.html", rand.nextInt(10000), rand.nextInt(10), rand.nextInt(1000000));
+                String anchor = "link number " + j;
+                String rel = rand.nextInt(10) == 0 ? "nofollow" : null;
+                if (oldFormat) {
+                    outlinks.add(url);
+                    outlinks.add(anchor);
+                    outlinks.add(rel);
+                } else {
+                    outlinks.add(new Outlink(url, anchor, rel));
+                }
+            }
+            
+            result.add(outlinks);
+        }
+        
+        return result;
+    }
+    
+    private static List<Tuple> getTuples(List<FetchSetDatum> fetchSets) {
+        List<Tuple> result = new ArrayList<Tuple>(fetchSets.size());
+        for (FetchSetDatum fetchSet : fetchSets) {
+            result.add(fetchSet.getTuple());
+        }
+        
+        return result;
+    }
+    
+    private static DataOutputBuffer writeTuples(List<Tuple> tuples) throws IOException {
+        DataOutputBuffer out = new DataOutputBuffer();
+        for (Tuple tuple : tuples) {
+            writeTuple(tuple, out);
+        }
+        
+        return out;
+    }
+    
+    private static void readTuples(DataOutputBuffer data, int numTuples, boolean fetchSets) throws IOException {
+        DataInputBuffer in = new DataInputBuffer();
+        in.reset(data.getData(), data.getLength());
+        for (int i = 0; i < numTuples; i++) {
+            Tuple tuple = readTuple(in);
+            
+            // FetchBuffer always gets the URLs, so include that in the time.
+            if (fetchSets) {
+                new FetchSetDatum(tuple).getUrls();
+            }
+        }
+    }
+    
+    private static void report(String label, List<Tuple> tuples, int numUrls, int numRuns, boolean fetchSets) throws IOException {
+        // Warm up
+        DataOutputBuffer data = writeTuples(tuples);
+        readTuples(data, tuples.size(), fetchSets);
+        
+        long writeTime = 0;
+        long readTime = 0;
+        for (int i = 0; i < numRuns; i++) {
+            long startTime = System.nanoTime();
+            writeTuples(tuples);
+            writeTime += System.nanoTime() - startTime;
+            
+            startTime = System.nanoTime();
+            readTuples(data, tuples.size(), fetchSets);
+            readTime += System.nanoTime() - startTime;
+        }
+        
+        long numOps = (long)numUrls * numRuns;
+        double mbPerMillion = (data.getLength() * (1000000.0 / numUrls)) / (1024.0 * 1024.0);
+        System.out.println(String.format("%30s %16.1f %12d %12d", label, mbPerMillion, writeTime / numOps, readTime / numOps));
+    }
+    
+    public static void main(String[] args) throws Exception {
+        int numUrls = (args.length > 0) ? Integer.parseInt(args[0]) : DEFAULT_NUM_URLS;
+        int urlsPerSet = (args.length > 1) ? Integer.parseInt(args[1]) : DEFAULT_URLS_PER_SET;
+        int numRuns = (args.length > 2) ? Integer.parseInt(args[2]) : DEFAULT_NUM_RUNS;
+        
+        System.out.println(String.format("%d URLs, %d URLs per fetch set, %d outlinks per URL, %d runs", numUrls, urlsPerSet, OUTLINKS_PER_URL, numRuns));
+        System.out.println(String.format("%30s %16s %12s %12s", "shuffle", "MB/million URLs", "write ns/URL", "read ns/URL"));
+        
+        report("fetch sets (nested tuples)", getTuples(makeFetchSets(numUrls, urlsPerSet, true)), numUrls, numRuns, true);
+        report("fetch sets (serialization)", getTuples(makeFetchSets(numUrls, urlsPerSet, false)), numUrls, numRuns, true);
+        
+        int numParsed = numUrls / 10;
+        report("outlinks (strings)", makeOutlinks(numParsed, true), numParsed, numRuns, false);
+        report("outlinks (serialization)", makeOutlinks(numParsed, false), numParsed, numRuns, false);
+    }
+}
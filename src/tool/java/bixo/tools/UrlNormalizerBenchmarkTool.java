@@ -0,0 +1,136 @@
+/*
+ * Copyright 2009-2012 Scale Unlimited
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+package bixo.tools;
+
+import java.util.Random;
+
+import bixo.urls.SimpleUrlNormalizer;
+
+/**
+ * Compare SimpleUrlNormalizer.normalize (with the fast path for simple URLs) to
+ * normalizeFully, using a mix of generated outlinks where most URLs are simple.
+ * 
+ * Usage: UrlNormalizerBenchmarkTool [<num urls>] [<num runs>]
+ *
+ */
+public class UrlNormalizerBenchmarkTool {
+
+    private static final int DEFAULT_NUM_URLS = 500000;
+    private static final int DEFAULT_NUM_RUNS = 5;
+    
+    private static final String[] HOSTS = { "www.domain.com", "blog.example.org", "news.site.co.uk", "WWW.Shop.com", "cdn.example.net" };
+    private static final String[] SEGMENTS = { "articles", "2012", "products", "item-1234.html", "about", "tags", "page.php", "Some_Page" };
+    private static final String[] PARAMS = { "id=1234", "page=2", "q=search", "lang=en", "ref=home" };
+    
+    // URLs that need the full normalization.
+    private static final String[] COMPLEX_URLS = {
+        "http://www.domain.com/index.html", "http://www.domain.com/a%20b/c", "http://www.domain.com/page.php?sid=abcdef",
+        "http://www.domain.com/page.php?x=%20y", "http://www.domain.com//aa/../bb", "www.domain.com/page"
+    };
+    
+    // Percentage of URLs that are complex.
+    private static final int COMPLEX_URL_PERCENT = 10;
+    
+    private static String[] makeUrls(int numUrls) {
+        Random rand = new Random(1L);
+        String[] result = new String[numUrls];
+        for (int i = 0; i < numUrls; i++) {
+            if (rand.nextInt(100) < COMPLEX_URL_PERCENT) {
+                result[i] = COMPLEX_URLS[rand.nextInt(COMPLEX_URLS.length)] + i;
+                continue;
+            }
+            
+            StringBuilder url = new StringBuilder(rand.nextInt(10) == 0 ? "https://" : "http://");
+            url.append(HOSTS[rand.nextInt(HOSTS.length)]);
+            
+            int numSegments = 1 + rand.nextInt(3);
+            for (int j = 0; j < numSegments; j++) {
+                url.append('/');
+                url.append(SEGMENTS[rand.nextInt(SEGMENTS.length)]);
+            }
+            
+            if (rand.nextInt(3) == 0) {
+                url.append('?');
+                url.append(PARAMS[rand.nextInt(PARAMS.length)]);
+                if (rand.nextBoolean()) {
+                    url.append('&');
+                    url.append(PARAMS[rand.nextInt(PARAMS.length)]);
+                }
+            }
+            
+            if (rand.nextInt(10) == 0) {
+                url.append("#section");
+            }
+            
+            result[i] = url.toString();
+        }
+        
+        return result;
+    }
+    
+    public static void main(String[] args) {
+        int numUrls = DEFAULT_NUM_URLS;
+        int numRuns = DEFAULT_NUM_RUNS;
+        
+        if (args.length > 0) {
+            numUrls = Integer.parseInt(args[0]);
+        }
+        
+        if (args.length > 1) {
+            numRuns = Integer.parseInt(args[1]);
+        }
+        
+        SimpleUrlNormalizer normalizer = new SimpleUrlNormalizer();
+        String[] urls = makeUrls(numUrls);
+        
+        int numDifferent = 0;
+        for (String url : urls) {
+            if (!normalizer.normalize(url).equals(normalizer.normalizeFully(url))) {
+                numDifferent += 1;
+            }
+        }
+        
+        if (numDifferent > 0) {
+            System.out.println(String.format("ERROR: %d URLs were normalized differently", numDifferent));
+        }
+        
+        System.out.println(String.format("%5s %12s %12s %12s", "run", "full ns/op", "fast ns/op", "speedup"));
+        for (int run = 0; run < numRuns; run++) {
+            int totalLength = 0;
+            long startTime = System.nanoTime();
+            for (String url : urls) {
+                totalLength += normalizer.normalizeFully(url).length();
+            }
+            
+            long fullTime = System.nanoTime() - startTime;
+            
+            startTime = System.nanoTime();
+            for (String url : urls) {
+                totalLength += normalizer.normalize(url).length();
+            }
+            
+            long fastTime = System.nanoTime() - startTime;
+            
+            if (totalLength == 0) {
+                System.out.println("No URLs normalized");
+            }
+            
+            System.out.println(String.format("%5d %12d %12d %11.1fx", run, fullTime / numUrls,
+                            fastTime / numUrls, (double)fullTime / (double)fastTime));
+        }
+    }
+}